@@ -133,6 +133,13 @@ public class ArtOfIllusion
 
   public static void main(String args[])
   {
+    if (args.length > 0 && args[0].equals("-render"))
+    {
+      // Render from the command line without opening any windows.
+
+      artofillusion.batch.CommandLineRenderer.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
     Translate.setLocale(Locale.getDefault());
     try
     {
@@ -146,40 +153,7 @@ public class ArtOfIllusion
     ToolTipManager.sharedInstance().setLightWeightPopupEnabled(false);
 
     TitleWindow title = new TitleWindow();
-    PluginRegistry.addCategory(Plugin.class);
-    PluginRegistry.addCategory(Renderer.class);
-    PluginRegistry.addCategory(Translator.class);
-    PluginRegistry.addCategory(ModellingTool.class);
-    PluginRegistry.addCategory(Texture.class);
-    PluginRegistry.addCategory(Material.class);
-    PluginRegistry.addCategory(TextureMapping.class);
-    PluginRegistry.addCategory(MaterialMapping.class);
-    PluginRegistry.addCategory(ImageFilter.class);
-    PluginRegistry.addCategory(artofillusion.procedural.Module.class);
-    PluginRegistry.registerPlugin(new UniformTexture());
-    PluginRegistry.registerPlugin(new ImageMapTexture());
-    PluginRegistry.registerPlugin(new ProceduralTexture2D());
-    PluginRegistry.registerPlugin(new ProceduralTexture3D());
-    PluginRegistry.registerPlugin(new UniformMaterial());
-    PluginRegistry.registerPlugin(new ProceduralMaterial3D());
-    PluginRegistry.registerPlugin(new UniformMapping(null, null));
-    PluginRegistry.registerPlugin(new ProjectionMapping(null, null));
-    PluginRegistry.registerPlugin(new CylindricalMapping(null, null));
-    PluginRegistry.registerPlugin(new SphericalMapping(null, null));
-    PluginRegistry.registerPlugin(new UVMapping(null, null));
-    PluginRegistry.registerPlugin(new LinearMapping3D(null, null));
-    PluginRegistry.registerPlugin(new LinearMaterialMapping(null, null));
-    PluginRegistry.registerPlugin(new BrightnessFilter());
-    PluginRegistry.registerPlugin(new SaturationFilter());
-    PluginRegistry.registerPlugin(new ExposureFilter());
-    PluginRegistry.registerPlugin(new TintFilter());
-    PluginRegistry.registerPlugin(new BlurFilter());
-    PluginRegistry.registerPlugin(new GlowFilter());
-    PluginRegistry.registerPlugin(new OutlineFilter());
-    PluginRegistry.registerPlugin(new NoiseReductionFilter());
-    PluginRegistry.registerPlugin(new DepthOfFieldFilter());
-    PluginRegistry.registerResource("TranslateBundle", "artofillusion", ArtOfIllusion.class.getClassLoader(), "artofillusion", null);
-    PluginRegistry.registerResource("UITheme", "default", ArtOfIllusion.class.getClassLoader(), "artofillusion/Icons/defaultTheme.xml", null);
+    registerBuiltInPlugins();
     PluginRegistry.scanPlugins();
     ThemeManager.initThemes();
     preferences = new ApplicationPreferences();
@@ -219,6 +193,75 @@ public class ArtOfIllusion
     title.dispose();
   }
 
+  /**
+   * Initialize the plugins and preferences without creating any windows.  This can be used instead of main()
+   * by programs that load and render scenes without a user interface.
+   */
+
+  public static void initHeadless()
+  {
+    Translate.setLocale(Locale.getDefault());
+    registerBuiltInPlugins();
+    if (new File(PLUGIN_DIRECTORY).exists())
+      PluginRegistry.scanPlugins();
+    else
+      System.err.println("*** Cannot locate the plugins directory "+PLUGIN_DIRECTORY);
+    ThemeManager.initThemes();
+    preferences = new ApplicationPreferences();
+    for (Plugin plugin: PluginRegistry.getPlugins(Plugin.class))
+    {
+      try
+      {
+        plugin.processMessage(Plugin.APPLICATION_STARTING, new Object [0]);
+      }
+      catch (Throwable tx)
+      {
+        System.err.println("*** Exception initializing plugin "+plugin.getClass().getSimpleName());
+        tx.printStackTrace();
+      }
+    }
+  }
+
+  /** Register the plugin categories, and the plugins and resources that are built into the application. */
+
+  private static void registerBuiltInPlugins()
+  {
+    PluginRegistry.addCategory(Plugin.class);
+    PluginRegistry.addCategory(Renderer.class);
+    PluginRegistry.addCategory(Translator.class);
+    PluginRegistry.addCategory(ModellingTool.class);
+    PluginRegistry.addCategory(Texture.class);
+    PluginRegistry.addCategory(Material.class);
+    PluginRegistry.addCategory(TextureMapping.class);
+    PluginRegistry.addCategory(MaterialMapping.class);
+    PluginRegistry.addCategory(ImageFilter.class);
+    PluginRegistry.addCategory(artofillusion.procedural.Module.class);
+    PluginRegistry.registerPlugin(new UniformTexture());
+    PluginRegistry.registerPlugin(new ImageMapTexture());
+    PluginRegistry.registerPlugin(new ProceduralTexture2D());
+    PluginRegistry.registerPlugin(new ProceduralTexture3D());
+    PluginRegistry.registerPlugin(new UniformMaterial());
+    PluginRegistry.registerPlugin(new ProceduralMaterial3D());
+    PluginRegistry.registerPlugin(new UniformMapping(null, null));
+    PluginRegistry.registerPlugin(new ProjectionMapping(null, null));
+    PluginRegistry.registerPlugin(new CylindricalMapping(null, null));
+    PluginRegistry.registerPlugin(new SphericalMapping(null, null));
+    PluginRegistry.registerPlugin(new UVMapping(null, null));
+    PluginRegistry.registerPlugin(new LinearMapping3D(null, null));
+    PluginRegistry.registerPlugin(new LinearMaterialMapping(null, null));
+    PluginRegistry.registerPlugin(new BrightnessFilter());
+    PluginRegistry.registerPlugin(new SaturationFilter());
+    PluginRegistry.registerPlugin(new ExposureFilter());
+    PluginRegistry.registerPlugin(new TintFilter());
+    PluginRegistry.registerPlugin(new BlurFilter());
+    PluginRegistry.registerPlugin(new GlowFilter());
+    PluginRegistry.registerPlugin(new OutlineFilter());
+    PluginRegistry.registerPlugin(new NoiseReductionFilter());
+    PluginRegistry.registerPlugin(new DepthOfFieldFilter());
+    PluginRegistry.registerResource("TranslateBundle", "artofillusion", ArtOfIllusion.class.getClassLoader(), "artofillusion", null);
+    PluginRegistry.registerResource("UITheme", "default", ArtOfIllusion.class.getClassLoader(), "artofillusion/Icons/defaultTheme.xml", null);
+  }
+
   /** Get the complete version number of Art of Illusion. */
 
   public static String getVersion()
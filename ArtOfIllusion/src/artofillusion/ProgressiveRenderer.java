@@ -0,0 +1,23 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion;
+
+/** A ProgressiveRenderer is a Renderer whose image keeps improving the longer it runs.  In addition to
+    being canceled, a render can be stopped early, in which case the best image produced so far is
+    returned just as if rendering had finished normally. */
+
+public interface ProgressiveRenderer extends Renderer
+{
+  /** Stop refining the image which is currently being rendered.  Unlike cancelRendering(), the
+      RenderListener's imageComplete() method is still called, with the image produced so far. */
+
+  public void stopRendering(Scene theScene);
+}
@@ -34,7 +34,7 @@ public class RenderingDialog extends BDialog implements RenderListener
   private double start, end, originalTime;
   private ImageSaver imgsaver;
   private ImageAverager imgaverager;
-  private BButton closeButton, saveButton, filterButton;
+  private BButton closeButton, stopButton, saveButton, filterButton;
   private BLabel label1, label2;
   private BFrame parent;
   private int w, h, fps, subimages, currentFrame, currentSubimage, totalFrames;
@@ -100,10 +100,13 @@ public class RenderingDialog extends BDialog implements RenderListener
     content.setDefaultLayout(new LayoutInfo(LayoutInfo.WEST, LayoutInfo.HORIZONTAL, new Insets(2, 2, 2, 2), null));
     content.add(label1 = new BLabel(Translate.text("Rendering", "...")), 0, 0);
     content.add(label2 = new BLabel(Translate.text("elapsedTime", "0:00")), 0, 1);
+    content.add(stopButton = Translate.button("stopRendering", this, "doStop"), 1, 0);
     content.add(closeButton = Translate.button("cancel", this, "doCancel"), 2, 0);
     content.add(saveButton = Translate.button("save", this, "doSave"), 2, 1);
     content.add(filterButton = Translate.button("filter", this, "doFilter"), 1, 1);
     closeButton.setFocusable(false);
+    stopButton.setFocusable(false);
+    stopButton.setVisible(imgsaver == null && renderer instanceof ProgressiveRenderer);
     saveButton.setVisible(false);
     filterButton.setVisible(false);
     canvas = new CustomWidget();
@@ -143,6 +146,14 @@ public class RenderingDialog extends BDialog implements RenderListener
     }
   }
 
+  /** Stop refining the image, and show the best one produced so far. */
+
+  private void doStop()
+  {
+    stopButton.setEnabled(false);
+    ((ProgressiveRenderer) renderer).stopRendering(theScene);
+  }
+
   private void doSave()
   {
     setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
@@ -328,6 +339,7 @@ public class RenderingDialog extends BDialog implements RenderListener
                 imgsaver.lastMovieImage();
               label1.setText(Translate.text("doneRendering"));
               closeButton.setText(Translate.text("button.close"));
+              stopButton.setVisible(false);
               saveButton.setVisible(imgsaver == null);
               filterButton.setVisible(imgsaver == null);
               ((WidgetContainer) getContent()).layoutChildren();
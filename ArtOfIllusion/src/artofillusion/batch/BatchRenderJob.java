@@ -0,0 +1,571 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.batch;
+
+import artofillusion.*;
+import artofillusion.image.*;
+import artofillusion.object.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * A BatchRenderJob describes a range of animation frames to render from a scene file without a user
+ * interface: which camera and renderer to use, how to configure the renderer, the size of the images, and
+ * where to save them.  A job can be saved to and loaded from a properties file, which is how a
+ * RenderCoordinator passes it to its worker processes.
+ * <p>
+ * Frames are numbered the same way as in the Render Scene dialog, so frame 1 is rendered at time 0, and
+ * frame n at time (n-1)/fps.
+ */
+
+public class BatchRenderJob
+{
+  private File sceneFile, output;
+  private String cameraName, rendererName;
+  private Map<String, Object> configuration;
+  private int width, height, fps, subimages, startFrame, endFrame, quality;
+  private ImageCollector collector;
+
+  public BatchRenderJob()
+  {
+    configuration = new LinkedHashMap<String, Object>();
+    width = 640;
+    height = 480;
+    fps = 30;
+    subimages = 1;
+    startFrame = endFrame = 1;
+    quality = 90;
+  }
+
+  /** Get the scene file to render. */
+
+  public File getSceneFile()
+  {
+    return sceneFile;
+  }
+
+  /** Set the scene file to render. */
+
+  public void setSceneFile(File file)
+  {
+    sceneFile = file;
+  }
+
+  /**
+   * Get the file to save images to.  Any sequence of '#' characters in the name is replaced by the frame
+   * number, padded with zeros to the same length.  See getOutputFile().
+   */
+
+  public File getOutput()
+  {
+    return output;
+  }
+
+  /**
+   * Set the file to save images to.  Any sequence of '#' characters in the name is replaced by the frame
+   * number, padded with zeros to the same length.  The format is chosen based on the file extension.
+   */
+
+  public void setOutput(File file)
+  {
+    output = file;
+  }
+
+  /** Get the name of the camera to render from, or null to use the first camera in the scene. */
+
+  public String getCameraName()
+  {
+    return cameraName;
+  }
+
+  /** Set the name of the camera to render from, or null to use the first camera in the scene. */
+
+  public void setCameraName(String name)
+  {
+    cameraName = name;
+  }
+
+  /**
+   * Get the name of the renderer to use, or null to use the default renderer.  This may be either the name
+   * returned by Renderer.getName(), or the name of its class.
+   */
+
+  public String getRendererName()
+  {
+    return rendererName;
+  }
+
+  /**
+   * Set the name of the renderer to use, or null to use the default renderer.  This may be either the name
+   * returned by Renderer.getName(), or the name of its class.
+   */
+
+  public void setRendererName(String name)
+  {
+    rendererName = name;
+  }
+
+  /**
+   * Get the renderer configuration options to set.  These are applied on top of any settings saved in the
+   * scene for that renderer.  The returned map may be modified.  Values must be Booleans, Numbers, or
+   * Strings.
+   */
+
+  public Map<String, Object> getConfiguration()
+  {
+    return configuration;
+  }
+
+  /** Get the width of the images in pixels. */
+
+  public int getWidth()
+  {
+    return width;
+  }
+
+  /** Get the height of the images in pixels. */
+
+  public int getHeight()
+  {
+    return height;
+  }
+
+  /** Set the size of the images in pixels. */
+
+  public void setSize(int width, int height)
+  {
+    if (width < 1 || height < 1)
+      throw new IllegalArgumentException("Invalid image size: "+width+" x "+height);
+    this.width = width;
+    this.height = height;
+  }
+
+  /** Get the number of frames per second. */
+
+  public int getFramesPerSecond()
+  {
+    return fps;
+  }
+
+  /** Set the number of frames per second. */
+
+  public void setFramesPerSecond(int fps)
+  {
+    if (fps < 1)
+      throw new IllegalArgumentException("Invalid frame rate: "+fps);
+    this.fps = fps;
+  }
+
+  /** Get the number of images to average for each frame to simulate motion blur. */
+
+  public int getSubimages()
+  {
+    return subimages;
+  }
+
+  /** Set the number of images to average for each frame to simulate motion blur. */
+
+  public void setSubimages(int subimages)
+  {
+    if (subimages < 1)
+      throw new IllegalArgumentException("Invalid number of subimages: "+subimages);
+    this.subimages = subimages;
+  }
+
+  /** Get the number of the first frame to render. */
+
+  public int getStartFrame()
+  {
+    return startFrame;
+  }
+
+  /** Get the number of the last frame to render. */
+
+  public int getEndFrame()
+  {
+    return endFrame;
+  }
+
+  /** Set the range of frames to render.  Both the start and end frames are included. */
+
+  public void setFrameRange(int start, int end)
+  {
+    if (end < start)
+      throw new IllegalArgumentException("Invalid frame range: "+start+" to "+end);
+    startFrame = start;
+    endFrame = end;
+  }
+
+  /** Get the number of frames to render. */
+
+  public int getNumFrames()
+  {
+    return endFrame-startFrame+1;
+  }
+
+  /** Get the quality (between 0 and 100) for saving JPEG images. */
+
+  public int getQuality()
+  {
+    return quality;
+  }
+
+  /** Set the quality (between 0 and 100) for saving JPEG images. */
+
+  public void setQuality(int quality)
+  {
+    this.quality = Math.max(0, Math.min(100, quality));
+  }
+
+  /** Get the scene time at which to render one subimage of a frame. */
+
+  public double getTime(int frame, int subimage)
+  {
+    return ((frame-1)*subimages+subimage)/(double) (fps*subimages);
+  }
+
+  /** Get the file to save a frame to. */
+
+  public File getOutputFile(int frame)
+  {
+    String name = output.getName();
+    int start = name.indexOf('#');
+    if (start == -1)
+    {
+      if (getNumFrames() == 1)
+        return output;
+
+      // Insert the frame number before the extension, the same way ImageSaver does.
+
+      int dot = name.lastIndexOf('.');
+      if (dot == -1)
+        dot = name.length();
+      name = name.substring(0, dot)+"####"+name.substring(dot);
+      start = dot;
+    }
+    int end = start;
+    while (end < name.length() && name.charAt(end) == '#')
+      end++;
+    StringBuilder number = new StringBuilder(Integer.toString(Math.abs(frame)));
+    while (number.length() < end-start)
+      number.insert(0, '0');
+    if (frame < 0)
+      number.insert(0, '-');
+    return new File(output.getParentFile(), name.substring(0, start)+number+name.substring(end));
+  }
+
+  /** Get the format (one of the constants defined by ImageSaver) to save images in, based on the extension of the output file. */
+
+  public int getOutputFormat()
+  {
+    String name = output.getName();
+    int dot = name.lastIndexOf('.');
+    int format = (dot == -1 ? -1 : ImageSaver.getFormatForExtension(name.substring(dot+1)));
+    if (format == -1)
+      throw new IllegalArgumentException("Unsupported image format: "+name);
+    return format;
+  }
+
+  /** Find the camera to render from. */
+
+  public ObjectInfo findCamera(Scene scene)
+  {
+    for (ObjectInfo info : scene.getCameras())
+      if (cameraName == null || cameraName.equals(info.getName()))
+        return info;
+    throw new IllegalArgumentException(cameraName == null ? "The scene contains no cameras" : "No camera named "+cameraName);
+  }
+
+  /** Find the renderer to use, without changing its configuration. */
+
+  public Renderer findRenderer()
+  {
+    Renderer renderer = null;
+    if (rendererName == null)
+      renderer = ArtOfIllusion.getPreferences().getDefaultRenderer();
+    else
+    {
+      for (Renderer r : PluginRegistry.getPlugins(Renderer.class))
+        if (rendererName.equals(r.getName()) || rendererName.equals(r.getClass().getName()))
+          renderer = r;
+      if (renderer == null)
+      {
+        // It may be on the classpath without having been registered as a plugin.
+
+        try
+        {
+          Class<?> rendererClass = ArtOfIllusion.getClass(rendererName);
+          renderer = (Renderer) rendererClass.getDeclaredConstructor().newInstance();
+        }
+        catch (Exception ex)
+        {
+          throw new IllegalArgumentException("Unknown renderer: "+rendererName);
+        }
+      }
+    }
+    if (renderer == null)
+      throw new IllegalArgumentException("No renderer is available");
+    return renderer;
+  }
+
+  /**
+   * Find the renderer to use, and configure it.  Any settings saved in the scene by the Render Scene dialog
+   * are applied first, followed by the options in this job's configuration.
+   */
+
+  public Renderer createRenderer(Scene scene)
+  {
+    Renderer renderer = findRenderer();
+    Object settings = scene.getMetadata(renderer.getClass().getName()+" settings");
+    if (settings instanceof Map)
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) settings).entrySet())
+        if (entry.getKey() instanceof String)
+          renderer.setConfiguration((String) entry.getKey(), entry.getValue());
+    for (Map.Entry<String, Object> entry : configuration.entrySet())
+      renderer.setConfiguration(entry.getKey(), entry.getValue());
+    return renderer;
+  }
+
+  /**
+   * Render one subimage of a frame, and apply the camera's filters to it.  This blocks until rendering is
+   * complete.
+   *
+   * @param scene        the scene to render
+   * @param cameraInfo   the camera to render from
+   * @param renderer     the renderer to use, as returned by createRenderer()
+   * @param frame        the frame to render
+   * @param subimage     the subimage of the frame to render
+   * @param status       if this is not null, status messages from the renderer are printed to it
+   * @return the rendered image, or null if rendering was canceled
+   */
+
+  public ComplexImage renderImage(Scene scene, ObjectInfo cameraInfo, Renderer renderer, int frame, int subimage, PrintStream status)
+  {
+    scene.setTime(getTime(frame, subimage));
+    SceneCamera sceneCamera = (SceneCamera) cameraInfo.getObject();
+    Camera camera = sceneCamera.createCamera(width, height, cameraInfo.getCoords());
+
+    // Use the same listener for every image, so the renderer can tell they are frames of one animation.
+
+    if (collector == null)
+      collector = new ImageCollector();
+    collector.start(status);
+    renderer.renderScene(scene, camera, collector, sceneCamera);
+    ComplexImage image = collector.waitForImage();
+    if (image != null)
+      sceneCamera.applyImageFilters(image, scene, cameraInfo.getCoords());
+    return image;
+  }
+
+  /**
+   * Render a frame, averaging all of its subimages.  This blocks until rendering is complete.
+   *
+   * @param scene        the scene to render
+   * @param cameraInfo   the camera to render from
+   * @param renderer     the renderer to use, as returned by createRenderer()
+   * @param frame        the frame to render
+   * @param status       if this is not null, status messages from the renderer are printed to it
+   * @return the rendered image, or null if rendering was canceled
+   */
+
+  public ComplexImage renderFrame(Scene scene, ObjectInfo cameraInfo, Renderer renderer, int frame, PrintStream status)
+  {
+    if (subimages == 1)
+      return renderImage(scene, cameraInfo, renderer, frame, 0, status);
+    ImageAverager averager = new ImageAverager(width, height);
+    for (int subimage = 0; subimage < subimages; subimage++)
+    {
+      ComplexImage image = renderImage(scene, cameraInfo, renderer, frame, subimage, status);
+      if (image == null)
+        return null;
+      averager.addImage(image);
+    }
+    return averager.getAverageImage();
+  }
+
+  /** Save this job to a properties file. */
+
+  public void save(File file) throws IOException
+  {
+    Properties props = new Properties();
+    props.setProperty("scene", sceneFile.getAbsolutePath());
+    props.setProperty("output", output.getAbsolutePath());
+    if (cameraName != null)
+      props.setProperty("camera", cameraName);
+    if (rendererName != null)
+      props.setProperty("renderer", rendererName);
+    props.setProperty("width", Integer.toString(width));
+    props.setProperty("height", Integer.toString(height));
+    props.setProperty("fps", Integer.toString(fps));
+    props.setProperty("subimages", Integer.toString(subimages));
+    props.setProperty("startFrame", Integer.toString(startFrame));
+    props.setProperty("endFrame", Integer.toString(endFrame));
+    props.setProperty("quality", Integer.toString(quality));
+    for (Map.Entry<String, Object> entry : configuration.entrySet())
+      props.setProperty("config."+entry.getKey(), encodeValue(entry.getValue()));
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+    try
+    {
+      props.store(out, "Art of Illusion render job");
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  /** Load a job from a properties file created by save(). */
+
+  public static BatchRenderJob load(File file) throws IOException
+  {
+    Properties props = new Properties();
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try
+    {
+      props.load(in);
+    }
+    finally
+    {
+      in.close();
+    }
+    BatchRenderJob job = new BatchRenderJob();
+    try
+    {
+      job.setSceneFile(new File(props.getProperty("scene")));
+      job.setOutput(new File(props.getProperty("output")));
+      job.setCameraName(props.getProperty("camera"));
+      job.setRendererName(props.getProperty("renderer"));
+      job.setSize(Integer.parseInt(props.getProperty("width")), Integer.parseInt(props.getProperty("height")));
+      job.setFramesPerSecond(Integer.parseInt(props.getProperty("fps")));
+      job.setSubimages(Integer.parseInt(props.getProperty("subimages")));
+      job.setFrameRange(Integer.parseInt(props.getProperty("startFrame")), Integer.parseInt(props.getProperty("endFrame")));
+      job.setQuality(Integer.parseInt(props.getProperty("quality")));
+      for (String key : props.stringPropertyNames())
+        if (key.startsWith("config."))
+          job.configuration.put(key.substring("config.".length()), decodeValue(props.getProperty(key)));
+    }
+    catch (RuntimeException ex)
+    {
+      throw new IOException("Invalid render job file "+file+": "+ex.getMessage());
+    }
+    return job;
+  }
+
+  /** Convert a configuration value to a string that records its type. */
+
+  private static String encodeValue(Object value)
+  {
+    if (value instanceof Boolean)
+      return "boolean:"+value;
+    if (value instanceof Integer)
+      return "int:"+value;
+    if (value instanceof Long)
+      return "long:"+value;
+    if (value instanceof Float)
+      return "float:"+value;
+    if (value instanceof Number)
+      return "double:"+((Number) value).doubleValue();
+    if (value instanceof String)
+      return "string:"+value;
+    throw new IllegalArgumentException("Unsupported configuration value: "+value);
+  }
+
+  /** Convert a string created by encodeValue() back to the original value. */
+
+  private static Object decodeValue(String value)
+  {
+    int colon = value.indexOf(':');
+    String type = (colon == -1 ? "" : value.substring(0, colon));
+    value = value.substring(colon+1);
+    if (type.equals("boolean"))
+      return Boolean.valueOf(value);
+    if (type.equals("int"))
+      return Integer.valueOf(value);
+    if (type.equals("long"))
+      return Long.valueOf(value);
+    if (type.equals("float"))
+      return Float.valueOf(value);
+    if (type.equals("double"))
+      return Double.valueOf(value);
+    if (type.equals("string"))
+      return value;
+    throw new IllegalArgumentException("Unsupported configuration value: "+value);
+  }
+
+  /**
+   * A RenderListener that waits for an image to be completed, and optionally prints status messages.  It can be
+   * reused for any number of images, one at a time.
+   */
+
+  private static class ImageCollector implements RenderListener
+  {
+    private PrintStream status;
+    private String lastStatus;
+    private ComplexImage image;
+    private boolean finished;
+
+    /** Prepare to collect the next image. */
+
+    synchronized void start(PrintStream status)
+    {
+      this.status = status;
+      lastStatus = null;
+      image = null;
+      finished = false;
+    }
+
+    /** Wait until rendering finishes, and return the image, or null if rendering was canceled. */
+
+    synchronized ComplexImage waitForImage()
+    {
+      while (!finished)
+      {
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException ex)
+        {
+          return null;
+        }
+      }
+      return image;
+    }
+
+    @Override
+    public void imageUpdated(java.awt.Image image)
+    {
+    }
+
+    @Override
+    public synchronized void statusChanged(String message)
+    {
+      if (status != null && !message.equals(lastStatus))
+        status.println("  "+message);
+      lastStatus = message;
+    }
+
+    @Override
+    public synchronized void imageComplete(ComplexImage image)
+    {
+      this.image = image;
+      finished = true;
+      notifyAll();
+    }
+
+    @Override
+    public synchronized void renderingCanceled()
+    {
+      finished = true;
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.batch;
+
+import artofillusion.*;
+import artofillusion.image.*;
+import artofillusion.object.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * CommandLineRenderer renders a scene from the command line, without opening any windows.  It can be run
+ * directly, or by passing -render as the first argument to ArtOfIllusion.main().  For example,
+ * <pre>
+ * java -jar ArtOfIllusion.jar -render -renderer Raytracer -set antialiasing=2 -frames 1-100 -output frames/image####.png scene.aoi
+ * </pre>
+ * Run it with no arguments to print a description of the options.  By default frames are rendered one at a
+ * time in this process.  The -workers option instead divides them among several processes with a
+ * RenderCoordinator.
+ */
+
+public class CommandLineRenderer
+{
+  private static final String USAGE[] = new String [] {
+    "Usage: CommandLineRenderer [options] <scene file>",
+    "Options:",
+    "  -output <file>         the file to save images to (required).  A sequence of #",
+    "                         characters is replaced by the frame number.  The format",
+    "                         is chosen from the extension: jpg, tif, png, bmp, or hdr.",
+    "  -camera <name>         the camera to render from (default: the first camera)",
+    "  -renderer <name>       the renderer to use (default: the default renderer)",
+    "  -set <option>=<value>  set a renderer option.  This may be repeated.",
+    "  -frames <start>[-<end>] the range of frames to render (default: 1)",
+    "  -size <width>x<height> the size of the images (default: 640x480)",
+    "  -fps <rate>            the number of frames per second (default: 30)",
+    "  -subimages <number>    the number of subimages per frame for motion blur (default: 1)",
+    "  -quality <number>      the quality of JPEG images, from 0 to 100 (default: 90)",
+    "  -workers <number>      render in this many separate processes",
+    "  -options               list the options supported by the renderer and exit"
+  };
+
+  /**
+   * Render a scene.  See the class description for the arguments.  The process exits with status 0 if
+   * every frame was saved, 1 if rendering failed, or 2 if the arguments were invalid.
+   */
+
+  public static void main(String args[])
+  {
+    ArtOfIllusion.initHeadless();
+    System.exit(run(args, System.out));
+  }
+
+  /**
+   * Render a scene, printing progress messages to a stream.  This assumes the application has already been
+   * initialized.
+   *
+   * @return 0 if every frame was saved, 1 if rendering failed, or 2 if the arguments were invalid
+   */
+
+  public static int run(String args[], PrintStream out)
+  {
+    BatchRenderJob job = new BatchRenderJob();
+    Map<String, String> options = new LinkedHashMap<String, String>();
+    int workers = 0;
+    boolean listOptions = false;
+    try
+    {
+      for (int i = 0; i < args.length; i++)
+      {
+        String arg = args[i];
+        if (arg.equals("-options"))
+        {
+          listOptions = true;
+          continue;
+        }
+        if (!arg.startsWith("-"))
+        {
+          if (job.getSceneFile() != null)
+            throw new IllegalArgumentException("Only one scene file may be specified");
+          job.setSceneFile(new File(arg));
+          continue;
+        }
+        if (i == args.length-1)
+          throw new IllegalArgumentException("Missing value for "+arg);
+        String value = args[++i];
+        if (arg.equals("-output"))
+          job.setOutput(new File(value));
+        else if (arg.equals("-camera"))
+          job.setCameraName(value);
+        else if (arg.equals("-renderer"))
+          job.setRendererName(value);
+        else if (arg.equals("-set"))
+        {
+          int equals = value.indexOf('=');
+          if (equals < 1)
+            throw new IllegalArgumentException("Renderer options must be of the form <option>=<value>: "+value);
+          options.put(value.substring(0, equals), value.substring(equals+1));
+        }
+        else if (arg.equals("-frames"))
+        {
+          int dash = value.indexOf('-', 1);
+          if (dash == -1)
+            job.setFrameRange(Integer.parseInt(value), Integer.parseInt(value));
+          else
+            job.setFrameRange(Integer.parseInt(value.substring(0, dash)), Integer.parseInt(value.substring(dash+1)));
+        }
+        else if (arg.equals("-size"))
+        {
+          int x = value.toLowerCase().indexOf('x');
+          if (x == -1)
+            throw new IllegalArgumentException("The size must be of the form <width>x<height>: "+value);
+          job.setSize(Integer.parseInt(value.substring(0, x)), Integer.parseInt(value.substring(x+1)));
+        }
+        else if (arg.equals("-fps"))
+          job.setFramesPerSecond(Integer.parseInt(value));
+        else if (arg.equals("-subimages"))
+          job.setSubimages(Integer.parseInt(value));
+        else if (arg.equals("-quality"))
+          job.setQuality(Integer.parseInt(value));
+        else if (arg.equals("-workers"))
+        {
+          workers = Integer.parseInt(value);
+          if (workers < 1)
+            throw new IllegalArgumentException("Invalid number of workers: "+value);
+        }
+        else
+          throw new IllegalArgumentException("Unknown option: "+arg);
+      }
+      Renderer renderer = job.findRenderer();
+      if (listOptions)
+      {
+        out.println("Options for "+renderer.getName()+":");
+        for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(renderer.getConfiguration()).entrySet())
+          out.println("  "+entry.getKey()+" = "+entry.getValue());
+        return 0;
+      }
+      if (job.getSceneFile() == null || job.getOutput() == null)
+      {
+        for (String line : USAGE)
+          out.println(line);
+        return 2;
+      }
+      job.getOutputFormat();
+      Map<String, Object> current = renderer.getConfiguration();
+      for (Map.Entry<String, String> entry : options.entrySet())
+        job.getConfiguration().put(entry.getKey(), parseOption(entry.getKey(), entry.getValue(), current));
+    }
+    catch (IllegalArgumentException ex)
+    {
+      // This includes NumberFormatException.
+
+      out.println(ex.getMessage());
+      return 2;
+    }
+    try
+    {
+      boolean success;
+      if (workers > 0)
+      {
+        RenderCoordinator coordinator = new RenderCoordinator(job, workers);
+        coordinator.setLog(out);
+        success = coordinator.render();
+      }
+      else
+        success = render(job, out);
+      return (success ? 0 : 1);
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+      return 1;
+    }
+  }
+
+  /** Render every frame of a job in this process. */
+
+  private static boolean render(BatchRenderJob job, PrintStream out) throws IOException, InterruptedException
+  {
+    long startTime = System.currentTimeMillis();
+    out.println("Loading "+job.getSceneFile());
+    Scene scene = new Scene(job.getSceneFile(), true);
+    if (scene.errorsOccurredInLoading())
+      out.println("Warning: some objects could not be loaded.\n"+scene.getLoadingErrors());
+    ObjectInfo cameraInfo = job.findCamera(scene);
+    Renderer renderer = job.createRenderer(scene);
+    int format = job.getOutputFormat();
+    int saved = 0;
+    for (int frame = job.getStartFrame(); frame <= job.getEndFrame(); frame++)
+    {
+      out.println("Rendering frame "+frame+" ("+(frame-job.getStartFrame()+1)+" of "+job.getNumFrames()+")");
+      long frameStart = System.currentTimeMillis();
+      ComplexImage image = job.renderFrame(scene, cameraInfo, renderer, frame, out);
+      if (image == null)
+      {
+        out.println("Rendering was canceled");
+        return false;
+      }
+      long renderTime = System.currentTimeMillis()-frameStart;
+      File output = job.getOutputFile(frame);
+      if (!ImageSaver.saveImage(image, output, format, job.getQuality()))
+      {
+        out.println("Failed to save frame "+frame+" to "+output);
+        continue;
+      }
+      saved++;
+      out.println("Saved frame "+frame+" to "+output+" (rendered in "+renderTime/1000.0+" seconds)");
+    }
+    double totalTime = (System.currentTimeMillis()-startTime)/1000.0;
+    out.println("Rendered "+saved+" of "+job.getNumFrames()+" frames in "+totalTime+" seconds ("+
+        String.format("%.3f", saved/totalTime)+" frames per second)");
+    return (saved == job.getNumFrames());
+  }
+
+  /**
+   * Convert the value of a renderer option from a string to an object of the same type as the option's
+   * current value.
+   */
+
+  static Object parseOption(String option, String value, Map<String, Object> current)
+  {
+    Object oldValue = current.get(option);
+    if (oldValue == null)
+    {
+      if (!current.containsKey(option))
+        throw new IllegalArgumentException("Unknown renderer option: "+option);
+      return value;
+    }
+    try
+    {
+      if (oldValue instanceof Boolean)
+      {
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+          throw new IllegalArgumentException();
+        return Boolean.valueOf(value);
+      }
+      if (oldValue instanceof Integer)
+        return Integer.valueOf(value);
+      if (oldValue instanceof Long)
+        return Long.valueOf(value);
+      if (oldValue instanceof Float)
+        return Float.valueOf(value);
+      if (oldValue instanceof Double)
+        return Double.valueOf(value);
+    }
+    catch (IllegalArgumentException ex)
+    {
+      throw new IllegalArgumentException("Invalid value for "+option+": "+value);
+    }
+    return value;
+  }
+}
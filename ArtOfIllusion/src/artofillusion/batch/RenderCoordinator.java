@@ -0,0 +1,387 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.batch;
+
+import artofillusion.image.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A RenderCoordinator renders a BatchRenderJob by dividing it among several worker processes running on
+ * the same computer.  Each worker is a separate JVM running RenderWorker, so a crash in one of them (for
+ * example, running out of memory) does not affect the others.  Separate processes also let the operating
+ * system spread the work over all the processors of a large machine more effectively than threads in a
+ * single JVM.
+ * <p>
+ * The coordinator and workers communicate through files in a spool directory.  The job is divided into
+ * tasks, each of which renders one subimage of one frame.  Workers claim tasks, render them, and write the
+ * images to the result directory.  The coordinator averages the subimages of each frame and saves it.
+ * If a worker dies, any tasks it had claimed are returned to the queue and a new worker is started in its
+ * place.  A task that has caused too many workers to die is abandoned, and its frame is not saved.
+ * <p>
+ * A single frame cannot be split between workers unless it has multiple subimages, since renderers
+ * always render the complete field of view of the camera.
+ */
+
+public class RenderCoordinator
+{
+  private final BatchRenderJob job;
+  private final int numWorkers;
+  private List<String> javaOptions;
+  private String classPath;
+  private PrintStream log;
+  private int maxAttempts;
+
+  static final String JOB_FILE = "job.properties";
+  static final String TASK_DIRECTORY = "tasks";
+  static final String CLAIMED_DIRECTORY = "claimed";
+  static final String RESULT_DIRECTORY = "results";
+
+  /**
+   * Create a RenderCoordinator.
+   *
+   * @param job          the job to render
+   * @param numWorkers   the number of worker processes to run at once
+   */
+
+  public RenderCoordinator(BatchRenderJob job, int numWorkers)
+  {
+    if (numWorkers < 1)
+      throw new IllegalArgumentException("Invalid number of workers: "+numWorkers);
+    this.job = job;
+    this.numWorkers = numWorkers;
+    javaOptions = new ArrayList<String>();
+    classPath = System.getProperty("java.class.path");
+    log = System.out;
+    maxAttempts = 3;
+  }
+
+  /** Set additional options (such as -Xmx) to pass to the JVM of each worker process. */
+
+  public void setJavaOptions(List<String> options)
+  {
+    javaOptions = new ArrayList<String>(options);
+  }
+
+  /** Set the class path for worker processes.  By default, this is the class path of the current process. */
+
+  public void setClassPath(String path)
+  {
+    classPath = path;
+  }
+
+  /** Set the stream to which progress messages are printed.  By default, this is System.out. */
+
+  public void setLog(PrintStream log)
+  {
+    this.log = log;
+  }
+
+  /** Set the number of times to try rendering a task before abandoning it. */
+
+  public void setMaxAttempts(int attempts)
+  {
+    maxAttempts = attempts;
+  }
+
+  /**
+   * Render the job.  This blocks until every frame has either been saved or abandoned.
+   *
+   * @return true if every frame was saved, false if any failed
+   */
+
+  public boolean render() throws IOException, InterruptedException
+  {
+    File spoolDir = Files.createTempDirectory("aoirender").toFile();
+    ArrayList<Worker> workers = new ArrayList<Worker>();
+    try
+    {
+      return render(spoolDir, workers);
+    }
+    finally
+    {
+      for (Worker worker : workers)
+        worker.process.destroy();
+      for (Worker worker : workers)
+        worker.process.waitFor();
+      deleteRecursively(spoolDir);
+    }
+  }
+
+  private boolean render(File spoolDir, List<Worker> workers) throws IOException, InterruptedException
+  {
+    // Create the spool directory and the tasks.
+
+    int format = job.getOutputFormat();
+    job.save(new File(spoolDir, JOB_FILE));
+    File taskDir = new File(spoolDir, TASK_DIRECTORY);
+    File resultDir = new File(spoolDir, RESULT_DIRECTORY);
+    taskDir.mkdir();
+    resultDir.mkdir();
+    new File(spoolDir, CLAIMED_DIRECTORY).mkdir();
+    int subimages = job.getSubimages();
+    int totalTasks = job.getNumFrames()*subimages;
+    for (int frame = job.getStartFrame(); frame <= job.getEndFrame(); frame++)
+      for (int subimage = 0; subimage < subimages; subimage++)
+        new File(taskDir, getTaskName(frame, subimage)).createNewFile();
+
+    // Start the workers, and wait for results.
+
+    HashMap<String, Integer> attempts = new HashMap<String, Integer>();
+    HashSet<String> finishedTasks = new HashSet<String>();
+    HashMap<Integer, ImageAverager> averagers = new HashMap<Integer, ImageAverager>();
+    HashMap<Integer, Integer> completedSubimages = new HashMap<Integer, Integer>();
+    HashSet<Integer> failedFrames = new HashSet<Integer>();
+    int nextWorkerId = 0, crashes = 0, savedFrames = 0;
+    long startTime = System.currentTimeMillis();
+    while (finishedTasks.size() < totalTasks)
+    {
+      // Collect any completed images.
+
+      for (String name : sortedList(resultDir))
+      {
+        if (name.endsWith(".tmp") || finishedTasks.contains(name))
+          continue;
+        File file = new File(resultDir, name);
+        ComplexImage image;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+          image = new ComplexImage(in);
+        }
+        finally
+        {
+          in.close();
+        }
+        file.delete();
+        finishedTasks.add(name);
+        int frame = getTaskFrame(name);
+        if (failedFrames.contains(frame))
+          continue;
+        if (subimages > 1)
+        {
+          ImageAverager averager = averagers.get(frame);
+          if (averager == null)
+            averagers.put(frame, averager = new ImageAverager(job.getWidth(), job.getHeight()));
+          averager.addImage(image);
+          int completed = completedSubimages.containsKey(frame) ? completedSubimages.get(frame)+1 : 1;
+          completedSubimages.put(frame, completed);
+          if (completed < subimages)
+            continue;
+          image = averager.getAverageImage();
+          averagers.remove(frame);
+        }
+        File output = job.getOutputFile(frame);
+        if (ImageSaver.saveImage(image, output, format, job.getQuality()))
+        {
+          savedFrames++;
+          log.println("Saved frame "+frame+" to "+output+" ("+savedFrames+" of "+job.getNumFrames()+", "+formatTime(System.currentTimeMillis()-startTime)+" elapsed)");
+        }
+        else
+        {
+          failedFrames.add(frame);
+          log.println("Failed to save frame "+frame+" to "+output);
+        }
+      }
+
+      // Check for workers that have exited, and recover any tasks they had claimed.
+
+      for (Iterator<Worker> iter = workers.iterator(); iter.hasNext(); )
+      {
+        Worker worker = iter.next();
+        if (worker.process.isAlive())
+          continue;
+        iter.remove();
+        int exitCode = worker.process.exitValue();
+        if (exitCode != 0)
+        {
+          crashes++;
+          log.println("Worker "+worker.id+" exited with code "+exitCode+".  Its output was:");
+          printLog(worker.logFile);
+        }
+        for (String name : sortedList(worker.claimDir))
+        {
+          new File(worker.claimDir, name).delete();
+          if (finishedTasks.contains(name) || new File(resultDir, name).exists())
+            continue;
+          int count = (attempts.containsKey(name) ? attempts.get(name)+1 : 1);
+          attempts.put(name, count);
+          int frame = getTaskFrame(name);
+          if (count < maxAttempts)
+          {
+            new File(taskDir, name).createNewFile();
+            continue;
+          }
+          finishedTasks.add(name);
+          if (failedFrames.add(frame))
+            log.println("Giving up on frame "+frame+" after "+count+" failed attempts");
+          averagers.remove(frame);
+        }
+      }
+
+      // Start new workers if there is work for them to do.
+
+      if (finishedTasks.size() == totalTasks)
+        break;
+      int unclaimed = sortedList(taskDir).size();
+      if (workers.isEmpty() && unclaimed == 0 && sortedList(resultDir).isEmpty())
+        throw new IOException("All workers exited without finishing the job");
+      while (workers.size() < numWorkers && workers.size() < unclaimed)
+      {
+        if (crashes >= numWorkers*maxAttempts)
+        {
+          if (workers.isEmpty())
+          {
+            log.println("Too many workers have failed.  Stopping.");
+            return false;
+          }
+          break;
+        }
+        workers.add(new Worker(Integer.toString(++nextWorkerId), spoolDir));
+      }
+      Thread.sleep(100);
+    }
+    log.println("Rendered "+savedFrames+" of "+job.getNumFrames()+" frames in "+formatTime(System.currentTimeMillis()-startTime));
+    return failedFrames.isEmpty();
+  }
+
+  /**
+   * Render a job from the command line.  The arguments are a job file in the format written by
+   * BatchRenderJob.save(), and the number of worker processes to use.
+   */
+
+  public static void main(String args[])
+  {
+    if (args.length != 2)
+    {
+      System.err.println("Usage: RenderCoordinator <job file> <number of workers>");
+      System.exit(2);
+    }
+    try
+    {
+      BatchRenderJob job = BatchRenderJob.load(new File(args[0]));
+      boolean success = new RenderCoordinator(job, Integer.parseInt(args[1])).render();
+      System.exit(success ? 0 : 1);
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  /** Print the contents of a worker's log file. */
+
+  private void printLog(File file)
+  {
+    try
+    {
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try
+      {
+        String line;
+        while ((line = in.readLine()) != null)
+          log.println("  "+line);
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+    catch (IOException ex)
+    {
+      // The worker never got as far as creating it.
+    }
+  }
+
+  /** Get the names of the files in a directory, in sorted order. */
+
+  private static List<String> sortedList(File dir)
+  {
+    String names[] = dir.list();
+    if (names == null)
+      return Collections.emptyList();
+    Arrays.sort(names);
+    return Arrays.asList(names);
+  }
+
+  /** Format a time given in milliseconds as hours, minutes, and seconds. */
+
+  private static String formatTime(long millis)
+  {
+    long sec = millis/1000;
+    long hour = sec/3600, min = (sec/60)%60;
+    sec %= 60;
+    return (hour > 0 ? hour+":"+(min < 10 ? "0" : "") : "")+min+":"+(sec < 10 ? "0" : "")+sec;
+  }
+
+  /** Delete a directory and everything in it. */
+
+  private static void deleteRecursively(File file)
+  {
+    File children[] = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        deleteRecursively(child);
+    file.delete();
+  }
+
+  /** Get the name of the task that renders one subimage of a frame. */
+
+  static String getTaskName(int frame, int subimage)
+  {
+    return String.format("%+09d_%03d", frame, subimage);
+  }
+
+  /** Get the frame a task renders. */
+
+  static int getTaskFrame(String name)
+  {
+    return Integer.parseInt(name.substring(0, name.indexOf('_')));
+  }
+
+  /** Get the subimage a task renders. */
+
+  static int getTaskSubimage(String name)
+  {
+    return Integer.parseInt(name.substring(name.indexOf('_')+1));
+  }
+
+  /** This records information about a worker process. */
+
+  private class Worker
+  {
+    final String id;
+    final File claimDir, logFile;
+    final Process process;
+
+    Worker(String id, File spoolDir) throws IOException
+    {
+      this.id = id;
+      claimDir = new File(new File(spoolDir, CLAIMED_DIRECTORY), id);
+      logFile = new File(spoolDir, "worker"+id+".log");
+      ArrayList<String> command = new ArrayList<String>();
+      command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+      command.add("-Djava.awt.headless=true");
+      command.addAll(javaOptions);
+      command.add("-cp");
+      command.add(classPath);
+      command.add(RenderWorker.class.getName());
+      command.add(spoolDir.getAbsolutePath());
+      command.add(id);
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.redirectErrorStream(true);
+      builder.redirectOutput(logFile);
+      process = builder.start();
+    }
+  }
+}
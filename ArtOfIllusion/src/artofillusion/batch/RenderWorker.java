@@ -0,0 +1,137 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.batch;
+
+import artofillusion.*;
+import artofillusion.image.*;
+import artofillusion.object.*;
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * A RenderWorker runs in a separate process started by a RenderCoordinator.  It loads the job and scene
+ * from the coordinator's spool directory, then repeatedly claims a task (one subimage of one frame),
+ * renders it, and writes the image back to the spool directory, until no tasks remain.
+ * <p>
+ * A task is claimed by moving its file from the task directory into the worker's own directory, which only
+ * one worker can succeed at.  If the worker dies, the coordinator finds any tasks still in its directory
+ * and returns them to the task directory for another worker to render.
+ */
+
+public class RenderWorker
+{
+  private final File spoolDir, claimDir;
+  private final BatchRenderJob job;
+
+  /**
+   * Create a RenderWorker.
+   *
+   * @param spoolDir    the coordinator's spool directory
+   * @param id          a name identifying this worker, which is unique within the job
+   */
+
+  public RenderWorker(File spoolDir, String id) throws IOException
+  {
+    this.spoolDir = spoolDir;
+    claimDir = new File(new File(spoolDir, RenderCoordinator.CLAIMED_DIRECTORY), id);
+    if (!claimDir.isDirectory() && !claimDir.mkdirs())
+      throw new IOException("Cannot create directory "+claimDir);
+    job = BatchRenderJob.load(new File(spoolDir, RenderCoordinator.JOB_FILE));
+  }
+
+  /** Render tasks until there are none left. */
+
+  public void run() throws IOException
+  {
+    Scene scene = new Scene(job.getSceneFile(), true);
+    ObjectInfo cameraInfo = job.findCamera(scene);
+    Renderer renderer = job.createRenderer(scene);
+    File resultDir = new File(spoolDir, RenderCoordinator.RESULT_DIRECTORY);
+    File task;
+    while ((task = claimTask()) != null)
+    {
+      int frame = RenderCoordinator.getTaskFrame(task.getName());
+      int subimage = RenderCoordinator.getTaskSubimage(task.getName());
+      long startTime = System.currentTimeMillis();
+      ComplexImage image = job.renderImage(scene, cameraInfo, renderer, frame, subimage, null);
+      if (image == null)
+        throw new IOException("Rendering was canceled");
+
+      // Write the image to a temporary file, then rename it so the coordinator never sees a partial file.
+
+      File temp = new File(resultDir, task.getName()+".tmp");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try
+      {
+        image.writeToStream(out);
+      }
+      finally
+      {
+        out.close();
+      }
+      Files.move(temp.toPath(), new File(resultDir, task.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+      task.delete();
+      System.out.println("Rendered frame "+frame+(job.getSubimages() > 1 ? " subimage "+(subimage+1) : "")+" in "+(System.currentTimeMillis()-startTime)/1000.0+" seconds");
+    }
+  }
+
+  /** Claim the next unclaimed task.  This returns the task's file in this worker's directory, or null if none remain. */
+
+  private File claimTask()
+  {
+    File taskDir = new File(spoolDir, RenderCoordinator.TASK_DIRECTORY);
+    while (true)
+    {
+      String tasks[] = taskDir.list();
+      if (tasks == null || tasks.length == 0)
+        return null;
+      java.util.Arrays.sort(tasks);
+      for (String name : tasks)
+      {
+        File claimed = new File(claimDir, name);
+        try
+        {
+          Files.move(new File(taskDir, name).toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+          return claimed;
+        }
+        catch (IOException ex)
+        {
+          // Another worker claimed it first.
+        }
+      }
+    }
+  }
+
+  /**
+   * This is the entry point for worker processes.  The arguments are the spool directory and the worker's
+   * name.
+   */
+
+  public static void main(String args[])
+  {
+    if (args.length != 2)
+    {
+      System.err.println("Usage: RenderWorker <spool directory> <worker name>");
+      System.exit(2);
+    }
+    try
+    {
+      ArtOfIllusion.initHeadless();
+      new RenderWorker(new File(args[0]), args[1]).run();
+    }
+    catch (Throwable ex)
+    {
+      ex.printStackTrace();
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+}
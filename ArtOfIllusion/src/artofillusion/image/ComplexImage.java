@@ -12,6 +12,7 @@ package artofillusion.image;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.io.*;
 
 /** This class stores an image, with optional additional floating point values for each pixel.
     It is intended to be extensible, so that as features are added to the renderers, the amount
@@ -42,6 +43,48 @@ public class ComplexImage
     pixelData = new float [7][];
   }
 
+  /** Construct a ComplexImage by reading the binary representation written by writeToStream(). */
+
+  public ComplexImage(DataInputStream in) throws IOException
+  {
+    short version = in.readShort();
+    if (version != 0)
+      throw new InvalidObjectException("");
+    width = in.readInt();
+    height = in.readInt();
+    intImage = new int [width*height];
+    for (int i = 0; i < intImage.length; i++)
+      intImage[i] = in.readInt();
+    img = Toolkit.getDefaultToolkit().createImage(new MemoryImageSource(width, height, intImage, 0, width));
+    pixelData = new float [7][];
+    for (int i = 0; i < pixelData.length; i++)
+      if (in.readBoolean())
+      {
+        pixelData[i] = new float [width*height];
+        for (int j = 0; j < pixelData[i].length; j++)
+          pixelData[i][j] = in.readFloat();
+      }
+  }
+
+  /** Write a binary representation of this image, including the floating point values of all components that
+      have them, to a stream. */
+
+  public void writeToStream(DataOutputStream out) throws IOException
+  {
+    out.writeShort(0);
+    out.writeInt(width);
+    out.writeInt(height);
+    for (int pixel : getIntImage())
+      out.writeInt(pixel);
+    for (float values[] : pixelData)
+    {
+      out.writeBoolean(values != null);
+      if (values != null)
+        for (float value : values)
+          out.writeFloat(value);
+    }
+  }
+
   /** Set the floating point values of a particular component for each pixel.  The length of the value array
       should be equal to the number of pixels in the image, and the values should be ordered by rows. */
   
@@ -85,6 +128,13 @@ public class ComplexImage
     int index = getComponentIndex(component);
     if (pixelData[index] != null)
       return pixelData[index][x+y*width];
+    return ((getIntImage()[x+y*width]>>(index*8))&0xFF)*(1.0f/255.0f);
+  }
+
+  /** Get the ARGB value of every pixel in the image, ordered by rows. */
+
+  private int [] getIntImage()
+  {
     if (intImage == null)
     {
       try
@@ -98,7 +148,7 @@ public class ComplexImage
         ex.printStackTrace();
       }
     }
-    return ((intImage[x+y*width]>>(index*8))&0xFF)*(1.0f/255.0f);
+    return intImage;
   }
   
   /** Create a duplicate of this object.  The new ComplexImage will refer to the same Image object as the
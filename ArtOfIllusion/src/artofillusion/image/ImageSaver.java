@@ -170,6 +170,23 @@ public class ImageSaver
     }
   }
 
+  /** Get the format (one of the FORMAT constants) whose standard file extension is given, or -1 if there is
+      no such format.  Quicktime is not included, since movies cannot be written one frame at a time with the
+      static saveImage() methods. */
+
+  public static int getFormatForExtension(String extension)
+  {
+    extension = extension.toLowerCase();
+    if (extension.equals("jpeg"))
+      return FORMAT_JPEG;
+    if (extension.equals("tiff"))
+      return FORMAT_TIFF;
+    for (int i = 0; i < FORMAT_EXTENSION.length; i++)
+      if (i != FORMAT_QUICKTIME && FORMAT_EXTENSION[i].equals(extension))
+        return i;
+    return -1;
+  }
+
   /** Determine whether the user canceled saving the image. */
   
   public boolean clickedOk()
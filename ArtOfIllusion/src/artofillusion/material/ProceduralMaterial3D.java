@@ -28,7 +28,7 @@ public class ProceduralMaterial3D extends Material3D implements ProcedureOwner
   private Procedure proc;
   private boolean shadows;
   private double stepSize, antialiasing;
-  private ThreadLocal renderingProc;
+  private volatile CompiledProcedure compiled;
 
   public ProceduralMaterial3D()
   {
@@ -36,7 +36,6 @@ public class ProceduralMaterial3D extends Material3D implements ProcedureOwner
     shadows = true;
     stepSize = 0.1;
     antialiasing = 1.0;
-    initThreadLocal();
   }
 
   /**
@@ -56,20 +55,30 @@ public class ProceduralMaterial3D extends Material3D implements ProcedureOwner
   }
 
   /**
-   * Reinitialize the ThreadLocal that holds copies of the Procedure during rendering.
+   * Discard the compiled form of the Procedure.  This must be called whenever the Procedure is modified.
    */
 
-  private void initThreadLocal()
+  private void procedureChanged()
   {
-    renderingProc = new ThreadLocal() {
-      @Override
-      protected Object initialValue()
+    compiled = null;
+  }
+
+  /**
+   * Get the compiled form of the Procedure used during rendering.  It is compiled the first time it is
+   * needed, and shared by all threads.
+   */
+
+  private CompiledProcedure getCompiledProcedure()
+  {
+    CompiledProcedure result = compiled;
+    if (result == null)
+      synchronized (this)
       {
-        Procedure localProc = createProcedure();
-        localProc.copy(proc);
-        return localProc;
+        if (compiled == null)
+          compiled = new CompiledProcedure(proc, new int [] {0, 1, 2, 3, 4, 5, 6}, new int [0]);
+        result = compiled;
       }
-    };
+    return result;
   }
 
   public static String getTypeName()
@@ -91,53 +100,60 @@ public class ProceduralMaterial3D extends Material3D implements ProcedureOwner
   @Override
   public void getMaterialSpec(MaterialSpec spec, double x, double y, double z, double xsize, double ysize, double zsize, double t)
   {
-    Procedure pr = (Procedure) renderingProc.get();
-    OutputModule output[] = pr.getOutputModules();
-    PointInfo info = new PointInfo();
-    info.x = x;
-    info.y = y;
-    info.z = z;
-    info.xsize = xsize*stepSize;
-    info.ysize = ysize*stepSize;
-    info.zsize = zsize*stepSize;
-    info.t = t;
-    info.param = null;
-    pr.initForPoint(info);
-    double density = output[5].getAverageValue(0, 0.0);
-    double eccentricity = output[6].getAverageValue(0, 0.0);
-    if (density < 0.0)
-      density = 0.0;
-    if (density > 1.0)
-      density = 1.0;
-    if (eccentricity < -1.0)
-      eccentricity = -1.0;
-    if (eccentricity > 1.0)
-      eccentricity = 1.0;
-    spec.eccentricity = eccentricity;
-    output[0].getColor(0, spec.color, 0.0);
-    if (density == 0.0)
-      {
-        spec.transparency.setRGB(1.0f, 1.0f, 1.0f);
-        spec.scattering.setRGB(0.0f, 0.0f, 0.0f);
-        return;
-      }
-    double scattering = output[4].getAverageValue(0, 0.0);
-    if (scattering < 0.0)
-      scattering = 0.0;
-    if (scattering > 1.0)
-      scattering = 1.0;
-    output[1].getColor(0, spec.transparency, 0.0);
-    spec.transparency.scale(output[3].getAverageValue(0, 0.0));
-    double tr = spec.transparency.getRed(), tg = spec.transparency.getGreen(), tb = spec.transparency.getBlue();
-    if (tr < 0.0)
-      tr = 0.0;
-    if (tg < 0.0)
-      tg = 0.0;
-    if (tb < 0.0)
-      tb = 0.0;
-    spec.transparency.setRGB((float) Math.pow(tr, density), (float) Math.pow(tg, density), (float) Math.pow(tb, density));
-    output[2].getColor(0, spec.scattering, 0.0);
-    spec.scattering.scale(density*scattering);
+    CompiledProcedure program = getCompiledProcedure();
+    CompiledProcedure.Frame frame = program.acquireFrame();
+    try
+    {
+      PointInfo info = new PointInfo();
+      info.x = x;
+      info.y = y;
+      info.z = z;
+      info.xsize = xsize*stepSize;
+      info.ysize = ysize*stepSize;
+      info.zsize = zsize*stepSize;
+      info.t = t;
+      info.param = null;
+      frame.evaluate(info);
+      double density = frame.getOutputValue(5);
+      double eccentricity = frame.getOutputValue(6);
+      if (density < 0.0)
+        density = 0.0;
+      if (density > 1.0)
+        density = 1.0;
+      if (eccentricity < -1.0)
+        eccentricity = -1.0;
+      if (eccentricity > 1.0)
+        eccentricity = 1.0;
+      spec.eccentricity = eccentricity;
+      frame.getOutputColor(0, spec.color);
+      if (density == 0.0)
+        {
+          spec.transparency.setRGB(1.0f, 1.0f, 1.0f);
+          spec.scattering.setRGB(0.0f, 0.0f, 0.0f);
+          return;
+        }
+      double scattering = frame.getOutputValue(4);
+      if (scattering < 0.0)
+        scattering = 0.0;
+      if (scattering > 1.0)
+        scattering = 1.0;
+      frame.getOutputColor(1, spec.transparency);
+      spec.transparency.scale(frame.getOutputValue(3));
+      double tr = spec.transparency.getRed(), tg = spec.transparency.getGreen(), tb = spec.transparency.getBlue();
+      if (tr < 0.0)
+        tr = 0.0;
+      if (tg < 0.0)
+        tg = 0.0;
+      if (tb < 0.0)
+        tb = 0.0;
+      spec.transparency.setRGB((float) Math.pow(tr, density), (float) Math.pow(tg, density), (float) Math.pow(tb, density));
+      frame.getOutputColor(2, spec.scattering);
+      spec.scattering.scale(density*scattering);
+    }
+    finally
+    {
+      program.releaseFrame(frame);
+    }
   }
 
   /** Determine whether this Material uses the specified image. */
@@ -239,7 +255,6 @@ public class ProceduralMaterial3D extends Material3D implements ProcedureOwner
       if (!output[5].inputConnected(0))
         linkModuleToOutput(new NumberModule(new Point(800, 185), 0.5), output[5]);
     }
-    initThreadLocal();
   }
 
   /**
@@ -318,7 +333,7 @@ public class ProceduralMaterial3D extends Material3D implements ProcedureOwner
   @Override
   public void updatePreview(Object preview)
   {
-    initThreadLocal();
+    procedureChanged();
     ((MaterialPreviewer) preview).render();
   }
 
@@ -359,7 +374,7 @@ public class ProceduralMaterial3D extends Material3D implements ProcedureOwner
   @Override
   public void acceptEdits(ProcedureEditor editor)
   {
-    initThreadLocal();
+    procedureChanged();
     int i = editor.getScene().indexOf(this);
     if (i > -1)
       editor.getScene().changeMaterial(i);
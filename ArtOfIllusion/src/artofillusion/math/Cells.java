@@ -28,6 +28,8 @@ public class Cells
   private Vec3 feature, diff;
   private Random random = new FastRandom(0);
   private int metric;
+  private int cachedA, cachedB, cachedC, cellSeed[], cellFeatures[];
+  private double featurePos[][];
 
   private static double prob[];
 
@@ -65,6 +67,10 @@ public class Cells
     feature = new Vec3();
     diff = new Vec3();
     metric = EUCLIDEAN;
+    cellSeed = new int [27];
+    cellFeatures = new int [27];
+    featurePos = new double [27][27];
+    Arrays.fill(cellFeatures, -1);
   }
 
   /** Get which distance metric is being used.  Allowed values are EUCLIDEAN, CITY_BLOCK,
@@ -94,7 +100,7 @@ public class Cells
     int i, j, k, m, num;
     int a, b, c;
     int seed;
-    double x, y, z, r, dist2, rand;
+    double x, y, z, r, dist2;
 
     a = floor(p.x);
     b = floor(p.y);
@@ -105,21 +111,27 @@ public class Cells
     for (i = 0; i < value.length; i++)
       value[i] = Double.MAX_VALUE;
 
-    // Find the number of features in this cell.
+    // The feature points of the cells around the last point are cached, since nearby points
+    // usually lie in the same cell.
 
-    seed = randSeed(a, b, c);
-    random.setSeed(seed);
-    random.nextInt();
-    rand = random.nextDouble();
-    for (num = 1; num < 9 && rand > prob[num]; num++);
+    if (a != cachedA || b != cachedB || c != cachedC)
+      {
+        cachedA = a;
+        cachedB = b;
+        cachedC = c;
+        Arrays.fill(cellFeatures, -1);
+      }
 
     // Find the nearest features in this cell.
 
+    double pos[] = featurePos[13];
+    num = findFeatures(13, a, b, c);
+    seed = cellSeed[13];
     for (i = 0; i < num; i++)
       {
-        feature.x = random.nextDouble();
-        feature.y = random.nextDouble();
-        feature.z = random.nextDouble();
+        feature.x = pos[3*i];
+        feature.y = pos[3*i+1];
+        feature.z = pos[3*i+2];
         diff.x = x-feature.x;
         diff.y = y-feature.y;
         diff.z = z-feature.z;
@@ -143,22 +155,21 @@ public class Cells
         k = cellIndex[cell][2];
         if (r < dx[i]+dy[j]+dz[k])
           continue;
+        int slot = i*9+j*3+k;
         i--;
         j--;
         k--;
-        seed = randSeed(a+i, b+j, c+k);
-        random.setSeed(seed);
-        random.nextInt();
-        rand = random.nextDouble();
-        for (num = 1; num < 9 && rand > prob[num]; num++);
+        num = findFeatures(slot, a+i, b+j, c+k);
+        seed = cellSeed[slot];
+        pos = featurePos[slot];
 
         // Find the nearest features in this cell.
 
         for (m = 0; m < num; m++)
           {
-            feature.x = random.nextDouble() + (double) i;
-            feature.y = random.nextDouble() + (double) j;
-            feature.z = random.nextDouble() + (double) k;
+            feature.x = pos[3*m] + (double) i;
+            feature.y = pos[3*m+1] + (double) j;
+            feature.z = pos[3*m+2] + (double) k;
             diff.x = x-feature.x;
             diff.y = y-feature.y;
             diff.z = z-feature.z;
@@ -177,6 +188,56 @@ public class Cells
         }
   }
 
+  /** Calculate the functions at many points.  This gives the same results as calling
+      {@link #calcFunctions(Vec3, double[], Vec3[], int[])} for each point, but without
+      gradients, and without needing a Vec3 and a set of arrays for every point.
+      @param x       the x coordinates of the points
+      @param y       the y coordinates of the points
+      @param z       the z coordinates of the points
+      @param count   the number of points to evaluate
+      @param value   value[i][n] is set to function i at point n.  The number of functions
+                     to evaluate is determined by the length of this array.
+      @param id      id[i][n] is set to the identifier of the i'th nearest feature point to point n
+  */
+
+  public void calcFunctions(double x[], double y[], double z[], int count, double value[][], int id[][])
+  {
+    int num = value.length;
+    Vec3 p = new Vec3();
+    double pointValue[] = new double [num];
+    int pointId[] = new int [num];
+    for (int n = 0; n < count; n++)
+      {
+        p.set(x[n], y[n], z[n]);
+        calcFunctions(p, pointValue, null, pointId);
+        for (int i = 0; i < num; i++)
+          {
+            value[i][n] = pointValue[i];
+            id[i][n] = pointId[i];
+          }
+      }
+  }
+
+  /** Make sure the feature points of cell (i, j, k) are in the cache, and return how many
+      there are.  The positions are relative to the corner of the cell. */
+
+  private int findFeatures(int slot, int i, int j, int k)
+  {
+    if (cellFeatures[slot] > -1)
+      return cellFeatures[slot];
+    int seed = randSeed(i, j, k), num;
+    random.setSeed(seed);
+    random.nextInt();
+    double rand = random.nextDouble();
+    for (num = 1; num < 9 && rand > prob[num]; num++);
+    double pos[] = featurePos[slot];
+    for (int m = 0; m < 3*num; m++)
+      pos[m] = random.nextDouble();
+    cellSeed[slot] = seed;
+    cellFeatures[slot] = num;
+    return num;
+  }
+
   /** Calculate the random number seed to use for cell (i, j, k). */
 
   private static int randSeed(int i, int j, int k)
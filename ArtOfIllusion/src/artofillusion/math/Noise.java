@@ -34,6 +34,12 @@ public class Noise
       return SimplexNoise.noise(x, y, z);
     }
 
+    @Override
+    public void getValues(double x[], double y[], double z[], double result[], int count)
+    {
+      SimplexNoise.noise(x, y, z, result, count);
+    }
+
     @Override
     public void getGradient(Vec3 gradient, double x, double y, double z)
     {
@@ -55,6 +61,21 @@ public class Noise
     return generator.getValue(x, y, z);
   }
 
+  /** Calculate the value of the scalar noise function at many points.  This gives the same result
+      as calling {@link #value(double, double, double)} for each point, but the generator may be
+      able to do it more quickly.
+      @param x       the x coordinates of the points
+      @param y       the y coordinates of the points
+      @param z       the z coordinates of the points
+      @param result  the noise values are stored in this
+      @param count   the number of points to evaluate
+  */
+
+  public static void value(double x[], double y[], double z[], double result[], int count)
+  {
+    generator.getValues(x, y, z, result, count);
+  }
+
   /** Given a point in 3D space, calculate the gradient of the scalar noise
       function at that point.  This is necessary when using noise for bump mapping. */
 
@@ -97,6 +118,18 @@ public class Noise
   {
     public double getValue(double x, double y, double z);
 
+    /**
+     * Calculate the value of the noise function at the first count points in the arrays, and store
+     * them in result.  The default implementation calls getValue() for each point.  Generators that
+     * can process many points more efficiently should override it.
+     */
+
+    public default void getValues(double x[], double y[], double z[], double result[], int count)
+    {
+      for (int i = 0; i < count; i++)
+        result[i] = getValue(x[i], y[i], z[i]);
+    }
+
     public void getGradient(Vec3 gradient, double x, double y, double z);
 
     public void getVector(Vec3 v, double x, double y, double z);
@@ -55,12 +55,21 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
   // To remove the need for index wrapping, double the permutation table length
   private static short perm[] = new short[512];
   private static short permMod12[] = new short[512];
+  // The 3D gradients stored in flat arrays, for use by the methods that process many points at once
+  private static final double gradX[] = new double[12], gradY[] = new double[12], gradZ[] = new double[12];
+  private static final float gradXf[] = new float[12], gradYf[] = new float[12], gradZf[] = new float[12];
   static {
     for(int i=0; i<512; i++)
     {
       perm[i]=p[i & 255];
       permMod12[i] = (short) (perm[i]%12);
     }
+    for(int i=0; i<12; i++)
+    {
+      gradXf[i] = (float) (gradX[i] = grad3[i].x);
+      gradYf[i] = (float) (gradY[i] = grad3[i].y);
+      gradZf[i] = (float) (gradZ[i] = grad3[i].z);
+    }
   }
   // A lookup table to traverse the simplex around a given point in 4D.
   // Details can be found where this table is used, in the 4D noise method.
@@ -78,12 +87,17 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
   private static final double G2 = (3.0-Math.sqrt(3.0))/6.0;
   private static final double F3 = 1.0/3.0;
   private static final double G3 = 1.0/6.0;
+  private static final float F3f = 1.0f/3.0f;
+  private static final float G3f = 1.0f/6.0f;
   private static final double F4 = (Math.sqrt(5.0)-1.0)/4.0;
   private static final double G4 = (5.0-Math.sqrt(5.0))/20.0;
   // This method is a *lot* faster than using (int)Math.floor(x)
   private static int fastfloor(double x) {
     return x>0 ? (int)x : (int)x-1;
   }
+  private static int fastfloor(float x) {
+    return x>0 ? (int)x : (int)x-1;
+  }
   private static double dot(Grad g, double x, double y) {
     return g.x*x + g.y*y; }
   private static double dot(Grad g, double x, double y, double z) {
@@ -296,6 +310,124 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
     // The result is scaled to stay just inside [-1,1]
     return 32.0*(n0 + n1 + n2 + n3);
   }
+  /**
+   * Calculate the noise value at many points in 3D space.  This gives exactly the same result as calling
+   * {@link #noise(double, double, double)} for each point, but is faster.  It looks up the gradients in
+   * flat arrays, and chooses the simplex with comparisons instead of nested branches.
+   *
+   * @param xin       the x coordinates of the points
+   * @param yin       the y coordinates of the points
+   * @param zin       the z coordinates of the points
+   * @param result    the noise values are stored in this
+   * @param count     the number of points to evaluate
+   */
+  public static void noise(double xin[], double yin[], double zin[], double result[], int count) {
+    for (int n = 0; n < count; n++) {
+      double xn = xin[n], yn = yin[n], zn = zin[n];
+      double s = (xn+yn+zn)*F3;
+      int i = fastfloor(xn+s);
+      int j = fastfloor(yn+s);
+      int k = fastfloor(zn+s);
+      double t = (i+j+k)*G3;
+      double x0 = xn-(i-t);
+      double y0 = yn-(j-t);
+      double z0 = zn-(k-t);
+      // These select the same simplex as the branches in noise(double, double, double).
+      boolean xy = x0>=y0, yz = y0>=z0, xz = x0>=z0;
+      int i1 = (xy && xz ? 1 : 0), j1 = (!xy && yz ? 1 : 0), k1 = (!yz && !xz ? 1 : 0);
+      int i2 = (xy || xz ? 1 : 0), j2 = (!xy || yz ? 1 : 0), k2 = (yz && xz ? 0 : 1);
+      double x1 = x0 - i1 + G3;
+      double y1 = y0 - j1 + G3;
+      double z1 = z0 - k1 + G3;
+      double x2 = x0 - i2 + 2.0*G3;
+      double y2 = y0 - j2 + 2.0*G3;
+      double z2 = z0 - k2 + 2.0*G3;
+      double x3 = x0 - 1.0 + 3.0*G3;
+      double y3 = y0 - 1.0 + 3.0*G3;
+      double z3 = z0 - 1.0 + 3.0*G3;
+      int ii = i & 255;
+      int jj = j & 255;
+      int kk = k & 255;
+      int gi0 = permMod12[ii+perm[jj+perm[kk]]];
+      int gi1 = permMod12[ii+i1+perm[jj+j1+perm[kk+k1]]];
+      int gi2 = permMod12[ii+i2+perm[jj+j2+perm[kk+k2]]];
+      int gi3 = permMod12[ii+1+perm[jj+1+perm[kk+1]]];
+      double t0 = 0.6 - x0*x0 - y0*y0 - z0*z0;
+      double t1 = 0.6 - x1*x1 - y1*y1 - z1*z1;
+      double t2 = 0.6 - x2*x2 - y2*y2 - z2*z2;
+      double t3 = 0.6 - x3*x3 - y3*y3 - z3*z3;
+      // Clamping t to 0 removes the corners that are too far away to contribute.
+      t0 = (t0 < 0 ? 0.0 : t0*t0);
+      t1 = (t1 < 0 ? 0.0 : t1*t1);
+      t2 = (t2 < 0 ? 0.0 : t2*t2);
+      t3 = (t3 < 0 ? 0.0 : t3*t3);
+      double n0 = t0*t0*(gradX[gi0]*x0 + gradY[gi0]*y0 + gradZ[gi0]*z0);
+      double n1 = t1*t1*(gradX[gi1]*x1 + gradY[gi1]*y1 + gradZ[gi1]*z1);
+      double n2 = t2*t2*(gradX[gi2]*x2 + gradY[gi2]*y2 + gradZ[gi2]*z2);
+      double n3 = t3*t3*(gradX[gi3]*x3 + gradY[gi3]*y3 + gradZ[gi3]*z3);
+      result[n] = 32.0*(n0 + n1 + n2 + n3);
+    }
+  }
+
+  /**
+   * Calculate the noise value at many points in 3D space using single precision arithmetic.  This is
+   * faster than {@link #noise(double[], double[], double[], double[], int)}, but the results are only
+   * accurate to about six digits, and they lose precision more quickly for points far from the origin.
+   *
+   * @param xin       the x coordinates of the points
+   * @param yin       the y coordinates of the points
+   * @param zin       the z coordinates of the points
+   * @param result    the noise values are stored in this
+   * @param count     the number of points to evaluate
+   */
+  public static void noise(float xin[], float yin[], float zin[], float result[], int count) {
+    for (int n = 0; n < count; n++) {
+      float xn = xin[n], yn = yin[n], zn = zin[n];
+      float s = (xn+yn+zn)*F3f;
+      int i = fastfloor(xn+s);
+      int j = fastfloor(yn+s);
+      int k = fastfloor(zn+s);
+      float t = (i+j+k)*G3f;
+      float x0 = xn-(i-t);
+      float y0 = yn-(j-t);
+      float z0 = zn-(k-t);
+      // These select the same simplex as the branches in noise(double, double, double).
+      boolean xy = x0>=y0, yz = y0>=z0, xz = x0>=z0;
+      int i1 = (xy && xz ? 1 : 0), j1 = (!xy && yz ? 1 : 0), k1 = (!yz && !xz ? 1 : 0);
+      int i2 = (xy || xz ? 1 : 0), j2 = (!xy || yz ? 1 : 0), k2 = (yz && xz ? 0 : 1);
+      float x1 = x0 - i1 + G3f;
+      float y1 = y0 - j1 + G3f;
+      float z1 = z0 - k1 + G3f;
+      float x2 = x0 - i2 + 2*G3f;
+      float y2 = y0 - j2 + 2*G3f;
+      float z2 = z0 - k2 + 2*G3f;
+      float x3 = x0 - 1 + 3*G3f;
+      float y3 = y0 - 1 + 3*G3f;
+      float z3 = z0 - 1 + 3*G3f;
+      int ii = i & 255;
+      int jj = j & 255;
+      int kk = k & 255;
+      int gi0 = permMod12[ii+perm[jj+perm[kk]]];
+      int gi1 = permMod12[ii+i1+perm[jj+j1+perm[kk+k1]]];
+      int gi2 = permMod12[ii+i2+perm[jj+j2+perm[kk+k2]]];
+      int gi3 = permMod12[ii+1+perm[jj+1+perm[kk+1]]];
+      float t0 = 0.6f - x0*x0 - y0*y0 - z0*z0;
+      float t1 = 0.6f - x1*x1 - y1*y1 - z1*z1;
+      float t2 = 0.6f - x2*x2 - y2*y2 - z2*z2;
+      float t3 = 0.6f - x3*x3 - y3*y3 - z3*z3;
+      // Clamping t to 0 removes the corners that are too far away to contribute.
+      t0 = (t0 < 0 ? 0 : t0*t0);
+      t1 = (t1 < 0 ? 0 : t1*t1);
+      t2 = (t2 < 0 ? 0 : t2*t2);
+      t3 = (t3 < 0 ? 0 : t3*t3);
+      float n0 = t0*t0*(gradXf[gi0]*x0 + gradYf[gi0]*y0 + gradZf[gi0]*z0);
+      float n1 = t1*t1*(gradXf[gi1]*x1 + gradYf[gi1]*y1 + gradZf[gi1]*z1);
+      float n2 = t2*t2*(gradXf[gi2]*x2 + gradYf[gi2]*y2 + gradZf[gi2]*z2);
+      float n3 = t3*t3*(gradXf[gi3]*x3 + gradYf[gi3]*y3 + gradZf[gi3]*z3);
+      result[n] = 32*(n0 + n1 + n2 + n3);
+    }
+  }
+
   /**
    * Calculate the gradient of the noise function at a point in 3D space.
    *
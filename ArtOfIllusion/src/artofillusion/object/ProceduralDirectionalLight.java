@@ -28,7 +28,7 @@ import java.util.*;
 public class ProceduralDirectionalLight extends DirectionalLight
 {
   private Procedure procedure;
-  private ThreadLocal renderingProc;
+  private volatile CompiledProcedure compiled;
   private double currentTime;
   private TextureParameter parameters[];
   private double parameterValues[];
@@ -43,7 +43,6 @@ public class ProceduralDirectionalLight extends DirectionalLight
     super(new RGBColor(), 1.0f, theRadius);
     procedure = createProcedure();
     findParameters();
-    initThreadLocal();
   }
 
   /**
@@ -58,20 +57,30 @@ public class ProceduralDirectionalLight extends DirectionalLight
   }
 
   /**
-   * Reinitialize the ThreadLocal that holds copies of the Procedure during rendering.
+   * Discard the compiled form of the Procedure.  This must be called whenever the Procedure is modified.
    */
 
-  private void initThreadLocal()
+  private void procedureChanged()
   {
-    renderingProc = new ThreadLocal() {
-      @Override
-      protected Object initialValue()
+    compiled = null;
+  }
+
+  /**
+   * Get the compiled form of the Procedure used during rendering.  It is compiled the first time it is
+   * needed, and shared by all threads.
+   */
+
+  private CompiledProcedure getCompiledProcedure()
+  {
+    CompiledProcedure result = compiled;
+    if (result == null)
+      synchronized (this)
       {
-        Procedure localProc = createProcedure();
-        localProc.copy(procedure);
-        return localProc;
+        if (compiled == null)
+          compiled = new CompiledProcedure(procedure, new int [] {0, 1}, new int [0]);
+        result = compiled;
       }
-    };
+    return result;
   }
 
   /**
@@ -120,6 +129,7 @@ public class ProceduralDirectionalLight extends DirectionalLight
     ProceduralDirectionalLight lt = (ProceduralDirectionalLight) obj;
     setRadius(lt.getRadius());
     procedure.copy(lt.procedure);
+    procedureChanged();
   }
 
   @Override
@@ -141,11 +151,18 @@ public class ProceduralDirectionalLight extends DirectionalLight
     point.z = position.z;
     point.t = currentTime;
     point.param = parameterValues;
-    Procedure pr = (Procedure) renderingProc.get();
-    pr.initForPoint(point);
-    OutputModule output[] = pr.getOutputModules();
-    output[0].getColor(0, light, 0.0);
-    light.scale(output[1].getAverageValue(0, 0.0));
+    CompiledProcedure program = getCompiledProcedure();
+    CompiledProcedure.Frame frame = program.acquireFrame();
+    try
+    {
+      frame.evaluate(point);
+      frame.getOutputColor(0, light);
+      light.scale(frame.getOutputValue(1));
+    }
+    finally
+    {
+      program.releaseFrame(frame);
+    }
   }
 
   /* The following two methods are used for reading and writing files.  The first is a
@@ -162,7 +179,6 @@ public class ProceduralDirectionalLight extends DirectionalLight
     procedure.readFromStream(in, theScene);
     bounds = new BoundingBox(-0.15, 0.15, -0.15, 0.15, -0.15, 0.25);
     findParameters();
-    initThreadLocal();
   }
 
   @Override
@@ -518,7 +534,7 @@ public class ProceduralDirectionalLight extends DirectionalLight
     public void updatePreview(Object preview)
     {
       findParameters();
-      initThreadLocal();
+      procedureChanged();
       ((MaterialPreviewer) preview).render();
     }
 
@@ -561,7 +577,7 @@ public class ProceduralDirectionalLight extends DirectionalLight
     public void acceptEdits(ProcedureEditor editor)
     {
       findParameters();
-      initThreadLocal();
+      procedureChanged();
       callback.run();
     }
 
@@ -28,7 +28,7 @@ import java.util.*;
 public class ProceduralPointLight extends PointLight
 {
   private Procedure procedure;
-  private ThreadLocal renderingProc;
+  private volatile CompiledProcedure compiled;
   private double currentTime;
   private TextureParameter parameters[];
   private double parameterValues[];
@@ -43,7 +43,6 @@ public class ProceduralPointLight extends PointLight
     super(new RGBColor(), 1.0f, theRadius);
     procedure = createProcedure();
     findParameters();
-    initThreadLocal();
   }
 
   /**
@@ -58,20 +57,30 @@ public class ProceduralPointLight extends PointLight
   }
 
   /**
-   * Reinitialize the ThreadLocal that holds copies of the Procedure during rendering.
+   * Discard the compiled form of the Procedure.  This must be called whenever the Procedure is modified.
    */
 
-  private void initThreadLocal()
+  private void procedureChanged()
   {
-    renderingProc = new ThreadLocal() {
-      @Override
-      protected Object initialValue()
+    compiled = null;
+  }
+
+  /**
+   * Get the compiled form of the Procedure used during rendering.  It is compiled the first time it is
+   * needed, and shared by all threads.
+   */
+
+  private CompiledProcedure getCompiledProcedure()
+  {
+    CompiledProcedure result = compiled;
+    if (result == null)
+      synchronized (this)
       {
-        Procedure localProc = createProcedure();
-        localProc.copy(procedure);
-        return localProc;
+        if (compiled == null)
+          compiled = new CompiledProcedure(procedure, new int [] {0, 1}, new int [0]);
+        result = compiled;
       }
-    };
+    return result;
   }
 
   /**
@@ -120,6 +129,7 @@ public class ProceduralPointLight extends PointLight
     ProceduralPointLight lt = (ProceduralPointLight) obj;
     setRadius(lt.getRadius());
     procedure.copy(lt.procedure);
+    procedureChanged();
   }
 
   @Override
@@ -141,16 +151,23 @@ public class ProceduralPointLight extends PointLight
     point.z = position.z;
     point.t = currentTime;
     point.param = parameterValues;
-    Procedure pr = (Procedure) renderingProc.get();
-    pr.initForPoint(point);
-    OutputModule output[] = pr.getOutputModules();
-    output[0].getColor(0, light, 0.0);
-    double intensity;
-    if (output[1].inputConnected(0))
-      intensity = output[1].getAverageValue(0, 0.0);
-    else
-      intensity = 1.0/position.length2();
-    light.scale(intensity);
+    CompiledProcedure program = getCompiledProcedure();
+    CompiledProcedure.Frame frame = program.acquireFrame();
+    try
+    {
+      frame.evaluate(point);
+      frame.getOutputColor(0, light);
+      double intensity;
+      if (procedure.getOutputModules()[1].inputConnected(0))
+        intensity = frame.getOutputValue(1);
+      else
+        intensity = 1.0/position.length2();
+      light.scale(intensity);
+    }
+    finally
+    {
+      program.releaseFrame(frame);
+    }
   }
 
   /* The following two methods are used for reading and writing files.  The first is a
@@ -167,7 +184,6 @@ public class ProceduralPointLight extends PointLight
     procedure.readFromStream(in, theScene);
     bounds = new BoundingBox(-0.15, 0.15, -0.15, 0.15, -0.15, 0.25);
     findParameters();
-    initThreadLocal();
   }
 
   @Override
@@ -526,7 +542,7 @@ public class ProceduralPointLight extends PointLight
     public void updatePreview(Object preview)
     {
       findParameters();
-      initThreadLocal();
+      procedureChanged();
       ((MaterialPreviewer) preview).render();
     }
 
@@ -569,7 +585,7 @@ public class ProceduralPointLight extends PointLight
     public void acceptEdits(ProcedureEditor editor)
     {
       findParameters();
-      initThreadLocal();
+      procedureChanged();
       callback.run();
     }
 
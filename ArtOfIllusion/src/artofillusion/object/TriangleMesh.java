@@ -18,6 +18,7 @@ import artofillusion.material.*;
 import artofillusion.math.*;
 import artofillusion.texture.*;
 import artofillusion.ui.*;
+import artofillusion.util.*;
 import buoy.widget.*;
 import java.awt.*;
 import java.io.*;
@@ -213,6 +214,7 @@ public class TriangleMesh extends Object3D implements FacetedMesh
 
   private static double LOOP_BETA[], BUTTERFLY_COEFF[][];
   private static final int MAX_SUBDIVISIONS = 20;
+  private static final int PARALLEL_CHUNK_SIZE = 1024;
   private static final Property PROPERTIES[] = new Property [] {
     new Property(Translate.text("menu.smoothingMethod"), new Object[] {
       Translate.text("menu.none"), Translate.text("menu.shading"), Translate.text("menu.interpolating"), Translate.text("menu.approximating")
@@ -1360,16 +1362,13 @@ groups:     do
   public static TriangleMesh subdivideLoop(TriangleMesh mesh, boolean refineEdge[], double tol)
   {
     Vertex vertex[] = mesh.vertex, newvert[];
-    Edge edge[] = mesh.edge, newedge[], tempEdge;
-    Face face[] = mesh.face, newface[], tempFace;
+    Edge edge[] = mesh.edge, newedge[];
+    Face face[] = mesh.face, newface[];
     TriangleMesh newmesh = new TriangleMesh();
-    int i, j, e[];
+    int i;
     int numVert, numEdge, numFace;
-    Vertex creasePos = newmesh.new Vertex(new Vec3()), smoothPos = newmesh.new Vertex(new Vec3()), temp = newmesh.new Vertex(new Vec3());
-    Vec3 finalPos = new Vec3(), tempVec = new Vec3();
-    double cornerWeight, creaseWeight, smoothWeight, s1, s2, s3, beta;
     boolean refineVert[], notconverged[], done;
-    double tol2 = tol*tol, error;
+    double tol2 = tol*tol;
 
     if (refineEdge == null)
       {
@@ -1416,17 +1415,12 @@ groups:     do
         paramType[i] = PER_FACE_VERTEX;
       }
     }
-    double creaseParam[] = new double [paramType.length];
-    double smoothParam[] = new double [paramType.length];
-    double tempParam[] = new double [paramType.length];
-    double finalParam[] = new double [paramType.length];
 
     // Repeatedly subdivide until all portions of the mesh have converged.
 
     int iterations = 0;
     do
       {
-        done = true;
         notconverged = new boolean [vertex.length];
 
         // Determine how many vertices, faces, and edges will be in the new mesh, and
@@ -1435,9 +1429,11 @@ groups:     do
         numVert = vertex.length;
         numEdge = edge.length;
         numFace = face.length;
+        int newVertIndex[] = new int [edge.length];
         for (i = 0; i < edge.length; i++)
           if (refineEdge[i])
             {
+              newVertIndex[i] = numVert;
               numVert++;
               numEdge += 2;
               numFace++;
@@ -1466,269 +1462,27 @@ groups:     do
         // weighted average of these three positions, depending on the smoothness values of the
         // vertex and all incident edges.
 
-        s2 = s3 = 0.0;
-        for (i = 0; i < vertex.length; i++)
+        final LoopStep step = new LoopStep(newmesh, vertex, edge, face, refineVert, refineEdge, newVertIndex, newvert, notconverged, oldParamValue, newParamValue, paramType, tol2);
+        ThreadManager.runInChunks(vertex.length, PARALLEL_CHUNK_SIZE, new ThreadManager.RangeTask() {
+          @Override
+          public void execute(int start, int end)
           {
-            if (!refineVert[i])
-              {
-                // This vertex is already converged, so just copy it over.
-
-                newvert[i] = newmesh.new Vertex(vertex[i]);
-                for (j = 0; j < paramType.length; j++)
-                  if (paramType[j] == PER_VERTEX)
-                    newParamValue[j][0][i] = oldParamValue[j][0][i];
-                continue;
-              }
-
-            // First determine the weights.
-
-            e = vertex[i].getEdges();
-            if (edge[e[0]].f2 == -1) // On the mesh boundary, so use crease rule
-              {
-                cornerWeight = 1.0 - vertex[i].smoothness;
-                creaseWeight = 1.0 - cornerWeight;
-                smoothWeight = 0.0;
-              }
-            else
-              {
-                s1 = s2 = s3 = vertex[i].smoothness;
-                for (j = 0; j < e.length; j++)
-                  {
-                    if (edge[e[j]].smoothness < s1)
-                      {
-                        s3 = s2;
-                        s2 = s1;
-                        s1 = edge[e[j]].smoothness;
-                      }
-                    else if (edge[e[j]].smoothness < s2)
-                      {
-                        s3 = s2;
-                        s2 = edge[e[j]].smoothness;
-                      }
-                    else if (edge[e[j]].smoothness < s3)
-                      s3 = edge[e[j]].smoothness;
-                  }
-                cornerWeight = 1.0 - s3;
-                creaseWeight = 1.0 - s2 - cornerWeight;
-                smoothWeight = 1.0 - cornerWeight - creaseWeight;
-              }
-
-            // Now determine any of the three positions (corner, crease, and smooth) that are
-            // necessary.  Also determine the "final" position (limit position using either
-            // the smooth or crease rule), which is used for judging convergence to the
-            // limit surface.
-
-            temp.clear();
-            for (j = 0; j < tempParam.length; j++)
-              tempParam[j] = 0.0;
-            if (e.length < LOOP_BETA.length)
-              beta = LOOP_BETA[e.length];
-            else
-              {
-                beta = 0.375+0.25*Math.cos(2.0*Math.PI/e.length);
-                beta = (0.625-beta*beta)/e.length;
-              }
-            for (j = 0; j < e.length; j++)
-              {
-                tempEdge = edge[e[j]];
-                if (tempEdge.v1 == i)
-                {
-                  setBlend(temp, temp, vertex[tempEdge.v2], 1.0, 1.0);
-                  setBlendParams(tempParam, tempParam, tempEdge.v2, 1.0, 1.0, oldParamValue, paramType);
-                }
-                else
-                {
-                  setBlend(temp, temp, vertex[tempEdge.v1], 1.0, 1.0);
-                  setBlendParams(tempParam, tempParam, tempEdge.v1, 1.0, 1.0, oldParamValue, paramType);
-                }
-              }
-            if (smoothWeight > 0.0)
-              {
-                // Determine the smooth position.
-
-                setBlend(smoothPos, vertex[i], temp, beta*(1.0/beta-e.length), beta);
-                setBlendParams(smoothParam, tempParam, i, beta*(1.0/beta-e.length), beta, oldParamValue, paramType);
-              }
-            if (edge[e[0]].f2 == -1)
-              {
-                // This is a boundary edge, so use the crease rule.
-
-                tempEdge = edge[e[0]];
-                if (tempEdge.v1 == i)
-                {
-                  setBlend(creasePos, vertex[i], vertex[tempEdge.v2], 0.75, 0.125);
-                  setBlendParams(creaseParam, i, tempEdge.v2, 0.75, 0.125, oldParamValue, paramType);
-                }
-                else
-                {
-                  setBlend(creasePos, vertex[i], vertex[tempEdge.v1], 0.75, 0.125);
-                  setBlendParams(creaseParam, i, tempEdge.v1, 0.75, 0.125, oldParamValue, paramType);
-                }
-                tempEdge = edge[e[e.length-1]];
-                if (tempEdge.v1 == i)
-                {
-                  setBlend(creasePos, creasePos, vertex[tempEdge.v2], 1.0, 0.125);
-                  setBlendParams(creaseParam, creaseParam, tempEdge.v2, 1.0, 0.125, oldParamValue, paramType);
-                }
-                else
-                {
-                  setBlend(creasePos, creasePos, vertex[tempEdge.v1], 1.0, 0.125);
-                  setBlendParams(creaseParam, creaseParam, tempEdge.v1, 1.0, 0.125, oldParamValue, paramType);
-                }
-              }
-            else if (creaseWeight > 0.0)
-              {
-                // Determine the crease position.
-
-                creasePos.copy(vertex[i]);
-                creasePos.scale(0.75);
-                for (j = 0; j < paramType.length; j++)
-                  if (paramType[j] == PER_VERTEX)
-                    creaseParam[j] = 0.75*oldParamValue[j][0][i];
-                for (j = 0; j < e.length; j++)
-                  {
-                    tempEdge = edge[e[j]];
-                    if (tempEdge.smoothness < s3)
-                      {
-                        if (tempEdge.v1 == i)
-                        {
-                          setBlend(creasePos, creasePos, vertex[tempEdge.v2], 1.0, 0.125);
-                          setBlendParams(creaseParam, creaseParam, tempEdge.v2, 1.0, 0.125, oldParamValue, paramType);
-                        }
-                        else
-                        {
-                          setBlend(creasePos, creasePos, vertex[tempEdge.v1], 1.0, 0.125);
-                          setBlendParams(creaseParam, creaseParam, tempEdge.v1, 1.0, 0.125, oldParamValue, paramType);
-                        }
-                      }
-                  }
-              }
-            if (smoothWeight+cornerWeight > 0.0)
-              {
-                // Calculate final position with smooth rule.
-
-                beta = 1.0/(.375/beta + e.length);
-                double w1 = (smoothWeight+cornerWeight)*beta;
-                double w2 = 1.0/beta-e.length;
-                finalPos.set(vertex[i].r);
-                finalPos.scale(w2);
-                finalPos.add(temp.r);
-                finalPos.scale(w1);
-                for (j = 0; j < paramType.length; j++)
-                  if (paramType[j] == PER_VERTEX)
-                    finalParam[j] = w1*(tempParam[j]+w2*oldParamValue[j][0][i]);
-              }
-            else
-            {
-              finalPos.set(0.0, 0.0, 0.0);
-              for (j = 0; j < paramType.length; j++)
-                finalParam[j] = 0.0;
-            }
-            if (creaseWeight > 0.0)
-              {
-                // Calculate final position with crease rule.
-
-                double w1 = creaseWeight/3.0;
-                tempVec.set(creasePos.r);
-                tempVec.scale(4.0);
-                tempVec.subtract(vertex[i].r);
-                tempVec.scale(w1);
-                finalPos.add(tempVec);
-                for (j = 0; j < paramType.length; j++)
-                  if (paramType[j] == PER_VERTEX)
-                    finalParam[j] += w1*(4.0*creaseParam[j]-oldParamValue[j][0][i]);
-              }
-
-            // Construct the new vertex.
-
-            newvert[i] = newmesh.blend(vertex[i], creasePos, smoothPos, cornerWeight, creaseWeight, smoothWeight);
-            newvert[i].smoothness = Math.min(2.0f*vertex[i].smoothness, 1.0f);
-            newvert[i].ikJoint = vertex[i].ikJoint;
-            newvert[i].ikWeight = vertex[i].ikWeight;
-            for (j = 0; j < paramType.length; j++)
-              if (paramType[j] == PER_VERTEX)
-                newParamValue[j][0][i] = finalParam[j];
-            finalPos.subtract(newvert[i].r);
-            error = finalPos.length2();
-            if (error > tol2)
-              {
-                notconverged[i] = true;
-                done = false;
-              }
+            step.refineVertices(start, end);
           }
+        });
+        done = step.converged;
 
         // Step 2: Determine the positions for the new vertices (one for each edge that gets
         // split).  Depending on the smoothness value of the edge, this position can be determined
         // by the smooth rule, the crease rule, or a weighted average of the two.
 
-        j = vertex.length;
-        for (i = 0; i < edge.length; i++)
+        ThreadManager.runInChunks(edge.length, PARALLEL_CHUNK_SIZE, new ThreadManager.RangeTask() {
+          @Override
+          public void execute(int start, int end)
           {
-            if (!refineEdge[i])
-              continue;
-            tempEdge = edge[i];
-            setBlend(creasePos, vertex[tempEdge.v1], vertex[tempEdge.v2], 1.0, 1.0);
-            for (int pm = 0; pm < paramType.length; pm++)
-              if (paramType[pm] == PER_VERTEX)
-                creaseParam[pm] = oldParamValue[pm][0][tempEdge.v1]+oldParamValue[pm][0][tempEdge.v2];
-            if (tempEdge.f2 == -1 || tempEdge.smoothness == 0.0f)
-              {
-                // Use the crease rule.
-
-                newvert[j] = newmesh.new Vertex(creasePos);
-                newvert[j].scale(0.5);
-                for (int pm = 0; pm < paramType.length; pm++)
-                  if (paramType[pm] == PER_VERTEX)
-                    newParamValue[pm][0][j] = 0.5*creaseParam[pm];
-              }
-            else
-              {
-                // Use the smooth rule, or a blend of the two.
-
-                tempFace = face[tempEdge.f1];
-                if (tempFace.e1 == i)
-                {
-                  smoothPos.copy(vertex[tempFace.v3]);
-                  recordParamValues(smoothParam, tempFace.v3, oldParamValue, paramType);
-                }
-                else if (tempFace.e2 == i)
-                {
-                  smoothPos.copy(vertex[tempFace.v1]);
-                  recordParamValues(smoothParam, tempFace.v1, oldParamValue, paramType);
-                }
-                else
-                {
-                  smoothPos.copy(vertex[tempFace.v2]);
-                  recordParamValues(smoothParam, tempFace.v2, oldParamValue, paramType);
-                }
-                tempFace = face[tempEdge.f2];
-                if (tempFace.e1 == i)
-                {
-                  setBlend(smoothPos, smoothPos, vertex[tempFace.v3], 1.0, 1.0);
-                  setBlendParams(smoothParam, smoothParam, tempFace.v3, 1.0, 1.0, oldParamValue, paramType);
-                }
-                else if (tempFace.e2 == i)
-                {
-                  setBlend(smoothPos, smoothPos, vertex[tempFace.v1], 1.0, 1.0);
-                  setBlendParams(smoothParam, smoothParam, tempFace.v1, 1.0, 1.0, oldParamValue, paramType);
-                }
-                else
-                {
-                  setBlend(smoothPos, smoothPos, vertex[tempFace.v2], 1.0, 1.0);
-                  setBlendParams(smoothParam, smoothParam, tempFace.v2, 1.0, 1.0, oldParamValue, paramType);
-                }
-                s1 = 1.0-tempEdge.smoothness;
-                creaseWeight = 0.125*s1+0.375;
-                smoothWeight = 0.125*(1.0-s1);
-                    newvert[j] = newmesh.blend(creasePos, smoothPos, creaseWeight, smoothWeight);
-                for (int pm = 0; pm < paramType.length; pm++)
-                  if (paramType[pm] == PER_VERTEX)
-                    newParamValue[pm][0][j] = creaseWeight*creaseParam[pm] + smoothWeight*smoothParam[pm];
-              }
-            newvert[j].smoothness = 1.0f;
-            blendIKParams(newvert[j], vertex[tempEdge.v1], vertex[tempEdge.v2]);
-            j++;
+            step.splitEdges(start, end);
           }
+        });
 
         // Step 3: Subdivide the mesh.
 
@@ -1779,6 +1533,326 @@ groups:     do
     return newmesh;
   }
 
+  /** This holds the data for one iteration of Loop subdivision.  The work is divided into ranges of vertices
+      and edges, which may be processed in parallel since each one writes only its own elements of the new mesh. */
+
+  private static class LoopStep
+  {
+    final TriangleMesh newmesh;
+    final Vertex vertex[], newvert[];
+    final Edge edge[];
+    final Face face[];
+    final boolean refineVert[], refineEdge[], notconverged[];
+    final int newVertIndex[], paramType[];
+    final double oldParamValue[][][], newParamValue[][][], tol2;
+    volatile boolean converged = true;
+
+    LoopStep(TriangleMesh newmesh, Vertex vertex[], Edge edge[], Face face[], boolean refineVert[], boolean refineEdge[], int newVertIndex[], Vertex newvert[], boolean notconverged[], double oldParamValue[][][], double newParamValue[][][], int paramType[], double tol2)
+    {
+      this.newmesh = newmesh;
+      this.vertex = vertex;
+      this.edge = edge;
+      this.face = face;
+      this.refineVert = refineVert;
+      this.refineEdge = refineEdge;
+      this.newVertIndex = newVertIndex;
+      this.newvert = newvert;
+      this.notconverged = notconverged;
+      this.oldParamValue = oldParamValue;
+      this.newParamValue = newParamValue;
+      this.paramType = paramType;
+      this.tol2 = tol2;
+    }
+
+    /** Find the new positions for the existing vertices from start (inclusive) to end (exclusive).  If any of
+        them has not yet converged to the limit surface, it is marked in notconverged and converged is set to false. */
+
+    void refineVertices(int start, int end)
+    {
+      Vertex creasePos = newmesh.new Vertex(new Vec3()), smoothPos = newmesh.new Vertex(new Vec3()), temp = newmesh.new Vertex(new Vec3());
+      Vec3 finalPos = new Vec3(), tempVec = new Vec3();
+      double creaseParam[] = new double [paramType.length];
+      double smoothParam[] = new double [paramType.length];
+      double tempParam[] = new double [paramType.length];
+      double finalParam[] = new double [paramType.length];
+      double cornerWeight, creaseWeight, smoothWeight, s1, s2, s3, beta, error;
+      Edge tempEdge;
+      int j, e[];
+
+      s2 = s3 = 0.0;
+      for (int i = start; i < end; i++)
+        {
+          if (!refineVert[i])
+            {
+              // This vertex is already converged, so just copy it over.
+
+              newvert[i] = newmesh.new Vertex(vertex[i]);
+              for (j = 0; j < paramType.length; j++)
+                if (paramType[j] == PER_VERTEX)
+                  newParamValue[j][0][i] = oldParamValue[j][0][i];
+              continue;
+            }
+
+          // First determine the weights.
+
+          e = vertex[i].getEdges();
+          if (edge[e[0]].f2 == -1) // On the mesh boundary, so use crease rule
+            {
+              cornerWeight = 1.0 - vertex[i].smoothness;
+              creaseWeight = 1.0 - cornerWeight;
+              smoothWeight = 0.0;
+            }
+          else
+            {
+              s1 = s2 = s3 = vertex[i].smoothness;
+              for (j = 0; j < e.length; j++)
+                {
+                  if (edge[e[j]].smoothness < s1)
+                    {
+                      s3 = s2;
+                      s2 = s1;
+                      s1 = edge[e[j]].smoothness;
+                    }
+                  else if (edge[e[j]].smoothness < s2)
+                    {
+                      s3 = s2;
+                      s2 = edge[e[j]].smoothness;
+                    }
+                  else if (edge[e[j]].smoothness < s3)
+                    s3 = edge[e[j]].smoothness;
+                }
+              cornerWeight = 1.0 - s3;
+              creaseWeight = 1.0 - s2 - cornerWeight;
+              smoothWeight = 1.0 - cornerWeight - creaseWeight;
+            }
+
+          // Now determine any of the three positions (corner, crease, and smooth) that are
+          // necessary.  Also determine the "final" position (limit position using either
+          // the smooth or crease rule), which is used for judging convergence to the
+          // limit surface.
+
+          temp.clear();
+          for (j = 0; j < tempParam.length; j++)
+            tempParam[j] = 0.0;
+          if (e.length < LOOP_BETA.length)
+            beta = LOOP_BETA[e.length];
+          else
+            {
+              beta = 0.375+0.25*Math.cos(2.0*Math.PI/e.length);
+              beta = (0.625-beta*beta)/e.length;
+            }
+          for (j = 0; j < e.length; j++)
+            {
+              tempEdge = edge[e[j]];
+              if (tempEdge.v1 == i)
+              {
+                setBlend(temp, temp, vertex[tempEdge.v2], 1.0, 1.0);
+                setBlendParams(tempParam, tempParam, tempEdge.v2, 1.0, 1.0, oldParamValue, paramType);
+              }
+              else
+              {
+                setBlend(temp, temp, vertex[tempEdge.v1], 1.0, 1.0);
+                setBlendParams(tempParam, tempParam, tempEdge.v1, 1.0, 1.0, oldParamValue, paramType);
+              }
+            }
+          if (smoothWeight > 0.0)
+            {
+              // Determine the smooth position.
+
+              setBlend(smoothPos, vertex[i], temp, beta*(1.0/beta-e.length), beta);
+              setBlendParams(smoothParam, tempParam, i, beta*(1.0/beta-e.length), beta, oldParamValue, paramType);
+            }
+          if (edge[e[0]].f2 == -1)
+            {
+              // This is a boundary edge, so use the crease rule.
+
+              tempEdge = edge[e[0]];
+              if (tempEdge.v1 == i)
+              {
+                setBlend(creasePos, vertex[i], vertex[tempEdge.v2], 0.75, 0.125);
+                setBlendParams(creaseParam, i, tempEdge.v2, 0.75, 0.125, oldParamValue, paramType);
+              }
+              else
+              {
+                setBlend(creasePos, vertex[i], vertex[tempEdge.v1], 0.75, 0.125);
+                setBlendParams(creaseParam, i, tempEdge.v1, 0.75, 0.125, oldParamValue, paramType);
+              }
+              tempEdge = edge[e[e.length-1]];
+              if (tempEdge.v1 == i)
+              {
+                setBlend(creasePos, creasePos, vertex[tempEdge.v2], 1.0, 0.125);
+                setBlendParams(creaseParam, creaseParam, tempEdge.v2, 1.0, 0.125, oldParamValue, paramType);
+              }
+              else
+              {
+                setBlend(creasePos, creasePos, vertex[tempEdge.v1], 1.0, 0.125);
+                setBlendParams(creaseParam, creaseParam, tempEdge.v1, 1.0, 0.125, oldParamValue, paramType);
+              }
+            }
+          else if (creaseWeight > 0.0)
+            {
+              // Determine the crease position.
+
+              creasePos.copy(vertex[i]);
+              creasePos.scale(0.75);
+              for (j = 0; j < paramType.length; j++)
+                if (paramType[j] == PER_VERTEX)
+                  creaseParam[j] = 0.75*oldParamValue[j][0][i];
+              for (j = 0; j < e.length; j++)
+                {
+                  tempEdge = edge[e[j]];
+                  if (tempEdge.smoothness < s3)
+                    {
+                      if (tempEdge.v1 == i)
+                      {
+                        setBlend(creasePos, creasePos, vertex[tempEdge.v2], 1.0, 0.125);
+                        setBlendParams(creaseParam, creaseParam, tempEdge.v2, 1.0, 0.125, oldParamValue, paramType);
+                      }
+                      else
+                      {
+                        setBlend(creasePos, creasePos, vertex[tempEdge.v1], 1.0, 0.125);
+                        setBlendParams(creaseParam, creaseParam, tempEdge.v1, 1.0, 0.125, oldParamValue, paramType);
+                      }
+                    }
+                }
+            }
+          if (smoothWeight+cornerWeight > 0.0)
+            {
+              // Calculate final position with smooth rule.
+
+              beta = 1.0/(.375/beta + e.length);
+              double w1 = (smoothWeight+cornerWeight)*beta;
+              double w2 = 1.0/beta-e.length;
+              finalPos.set(vertex[i].r);
+              finalPos.scale(w2);
+              finalPos.add(temp.r);
+              finalPos.scale(w1);
+              for (j = 0; j < paramType.length; j++)
+                if (paramType[j] == PER_VERTEX)
+                  finalParam[j] = w1*(tempParam[j]+w2*oldParamValue[j][0][i]);
+            }
+          else
+          {
+            finalPos.set(0.0, 0.0, 0.0);
+            for (j = 0; j < paramType.length; j++)
+              finalParam[j] = 0.0;
+          }
+          if (creaseWeight > 0.0)
+            {
+              // Calculate final position with crease rule.
+
+              double w1 = creaseWeight/3.0;
+              tempVec.set(creasePos.r);
+              tempVec.scale(4.0);
+              tempVec.subtract(vertex[i].r);
+              tempVec.scale(w1);
+              finalPos.add(tempVec);
+              for (j = 0; j < paramType.length; j++)
+                if (paramType[j] == PER_VERTEX)
+                  finalParam[j] += w1*(4.0*creaseParam[j]-oldParamValue[j][0][i]);
+            }
+
+          // Construct the new vertex.
+
+          newvert[i] = newmesh.blend(vertex[i], creasePos, smoothPos, cornerWeight, creaseWeight, smoothWeight);
+          newvert[i].smoothness = Math.min(2.0f*vertex[i].smoothness, 1.0f);
+          newvert[i].ikJoint = vertex[i].ikJoint;
+          newvert[i].ikWeight = vertex[i].ikWeight;
+          for (j = 0; j < paramType.length; j++)
+            if (paramType[j] == PER_VERTEX)
+              newParamValue[j][0][i] = finalParam[j];
+          finalPos.subtract(newvert[i].r);
+          error = finalPos.length2();
+          if (error > tol2)
+            {
+              notconverged[i] = true;
+              converged = false;
+            }
+        }
+    }
+
+    /** Find the positions of the new vertices for the edges from start (inclusive) to end (exclusive). */
+
+    void splitEdges(int start, int end)
+    {
+      Vertex creasePos = newmesh.new Vertex(new Vec3()), smoothPos = newmesh.new Vertex(new Vec3());
+      double creaseParam[] = new double [paramType.length];
+      double smoothParam[] = new double [paramType.length];
+      double creaseWeight, smoothWeight, s1;
+      Edge tempEdge;
+      Face tempFace;
+      int j;
+
+      for (int i = start; i < end; i++)
+        {
+          if (!refineEdge[i])
+            continue;
+          j = newVertIndex[i];
+          tempEdge = edge[i];
+          setBlend(creasePos, vertex[tempEdge.v1], vertex[tempEdge.v2], 1.0, 1.0);
+          for (int pm = 0; pm < paramType.length; pm++)
+            if (paramType[pm] == PER_VERTEX)
+              creaseParam[pm] = oldParamValue[pm][0][tempEdge.v1]+oldParamValue[pm][0][tempEdge.v2];
+          if (tempEdge.f2 == -1 || tempEdge.smoothness == 0.0f)
+            {
+              // Use the crease rule.
+
+              newvert[j] = newmesh.new Vertex(creasePos);
+              newvert[j].scale(0.5);
+              for (int pm = 0; pm < paramType.length; pm++)
+                if (paramType[pm] == PER_VERTEX)
+                  newParamValue[pm][0][j] = 0.5*creaseParam[pm];
+            }
+          else
+            {
+              // Use the smooth rule, or a blend of the two.
+
+              tempFace = face[tempEdge.f1];
+              if (tempFace.e1 == i)
+              {
+                smoothPos.copy(vertex[tempFace.v3]);
+                recordParamValues(smoothParam, tempFace.v3, oldParamValue, paramType);
+              }
+              else if (tempFace.e2 == i)
+              {
+                smoothPos.copy(vertex[tempFace.v1]);
+                recordParamValues(smoothParam, tempFace.v1, oldParamValue, paramType);
+              }
+              else
+              {
+                smoothPos.copy(vertex[tempFace.v2]);
+                recordParamValues(smoothParam, tempFace.v2, oldParamValue, paramType);
+              }
+              tempFace = face[tempEdge.f2];
+              if (tempFace.e1 == i)
+              {
+                setBlend(smoothPos, smoothPos, vertex[tempFace.v3], 1.0, 1.0);
+                setBlendParams(smoothParam, smoothParam, tempFace.v3, 1.0, 1.0, oldParamValue, paramType);
+              }
+              else if (tempFace.e2 == i)
+              {
+                setBlend(smoothPos, smoothPos, vertex[tempFace.v1], 1.0, 1.0);
+                setBlendParams(smoothParam, smoothParam, tempFace.v1, 1.0, 1.0, oldParamValue, paramType);
+              }
+              else
+              {
+                setBlend(smoothPos, smoothPos, vertex[tempFace.v2], 1.0, 1.0);
+                setBlendParams(smoothParam, smoothParam, tempFace.v2, 1.0, 1.0, oldParamValue, paramType);
+              }
+              s1 = 1.0-tempEdge.smoothness;
+              creaseWeight = 0.125*s1+0.375;
+              smoothWeight = 0.125*(1.0-s1);
+                  newvert[j] = newmesh.blend(creasePos, smoothPos, creaseWeight, smoothWeight);
+              for (int pm = 0; pm < paramType.length; pm++)
+                if (paramType[pm] == PER_VERTEX)
+                  newParamValue[pm][0][j] = creaseWeight*creaseParam[pm] + smoothWeight*smoothParam[pm];
+            }
+          newvert[j].smoothness = 1.0f;
+          blendIKParams(newvert[j], vertex[tempEdge.v1], vertex[tempEdge.v2]);
+        }
+    }
+  }
+
   /** This method subdivides the mesh using interpolating (modified Butterfly) subdivision, and returns
       a new TriangleMesh which approximates the limit surface to within the specified tolerance.
       The subdivision coefficients are taken from Zorin et al. "Interpolating Subdivision for
@@ -1797,17 +1871,14 @@ groups:     do
   public static TriangleMesh subdivideButterfly(TriangleMesh mesh, boolean refineEdge[], double tol)
   {
     Vertex vertex[] = mesh.vertex, newvert[];
-    Edge edge[] = mesh.edge, newedge[], tempEdge;
-    Face face[] = mesh.face, newface[], tempFace;
+    Edge edge[] = mesh.edge, newedge[];
+    Face face[] = mesh.face, newface[];
     TriangleMesh newmesh = new TriangleMesh();
-    int i, j, k, n, e[], vertEdge[][];
+    int i;
     int numVert, numEdge, numFace;
-    int v1, v2, v3, e2, e3;
-    Vertex creasePos = newmesh.new Vertex(new Vec3()), smoothPos = newmesh.new Vertex(new Vec3()), cornerPos = newmesh.new Vertex(new Vec3()), temp = newmesh.new Vertex(new Vec3());
-    Vec3 axis = new Vec3(), tempVec = new Vec3();
-    double cornerWeight, creaseWeight, smoothWeight, s1, s2[], s3[], edgeSmoothness[], vertSmoothness[], coeff[];
-    boolean refineVert[], notconverged[], regular[], done;
-    double tol2 = tol*tol*9.0, error;
+    double edgeSmoothness[];
+    boolean refineVert[], notconverged[], done;
+    double tol2 = tol*tol*9.0;
 
     if (refineEdge == null)
       {
@@ -1847,11 +1918,6 @@ groups:     do
         paramType[i] = PER_FACE_VERTEX;
       }
     }
-    double creaseParam[] = new double [paramType.length];
-    double smoothParam[] = new double [paramType.length];
-    double cornerParam[] = new double [paramType.length];
-    double tempParam[] = new double [paramType.length];
-
     // Determine which vertices need to be refined.
 
     refineVert = new boolean [vertex.length];
@@ -1864,7 +1930,6 @@ groups:     do
     int iterations = 0;
     do
       {
-        done = true;
         notconverged = new boolean [edge.length];
 
         // Determine how many vertices, faces, and edges will be in the new mesh, and
@@ -1873,9 +1938,11 @@ groups:     do
         numVert = vertex.length;
         numEdge = edge.length;
         numFace = face.length;
+        int newVertIndex[] = new int [edge.length];
         for (i = 0; i < edge.length; i++)
           if (refineEdge[i])
             {
+              newVertIndex[i] = numVert;
               numVert++;
               numEdge += 2;
               numFace++;
@@ -1899,46 +1966,7 @@ groups:     do
             newParamValue[i] = new double [3][numFace];
         }
 
-        // Record the list of edges intersecting each vertex.
-
-        vertEdge = new int [vertex.length][];
-        for (i = 0; i < vertex.length; i++)
-          vertEdge[i] = vertex[i].getEdges();
-
-        // Determine the three sharpest edges intersecting each vertex.
-
-        s2 = new double [vertex.length];
-        s3 = new double [vertex.length];
-        for (i = 0; i < vertex.length; i++)
-          {
-            s1 = s2[i] = s3[i] = 1.0;
-            e = vertEdge[i];
-            for (j = 0; j < e.length; j++)
-              {
-                if (edge[e[j]].f2 == -1)
-                  {
-                    s3[i] = s2[i];
-                    s2[i] = s1;
-                    s1 = 0.0;
-                  }
-                else if (edge[e[j]].smoothness < s1)
-                  {
-                    s3[i] = s2[i];
-                    s2[i] = s1;
-                    s1 = edge[e[j]].smoothness;
-                  }
-                else if (edge[e[j]].smoothness < s2[i])
-                  {
-                    s3[i] = s2[i];
-                    s2[i] = edge[e[j]].smoothness;
-                  }
-                else if (edge[e[j]].smoothness < s3[i])
-                  s3[i] = edge[e[j]].smoothness;
-              }
-          }
-
-        // Determine the smoothness value for each edge and vertex, and mark which edges
-        // are regular.
+        // Determine the smoothness value for each edge.
 
         edgeSmoothness = new double [edge.length];
         for (i = 0; i < edge.length; i++)
@@ -1948,241 +1976,32 @@ groups:     do
             else
               edgeSmoothness[i] = edge[i].smoothness;
           }
-        vertSmoothness = new double [vertex.length];
-        regular = new boolean [vertex.length];
-        for (i = 0; i < vertex.length; i++)
+
+        // Record the list of edges intersecting each vertex, determine the three sharpest ones,
+        // and use them to find the smoothness value for each vertex and whether it is regular.
+
+        final ButterflyStep step = new ButterflyStep(newmesh, vertex, edge, face, refineEdge, newVertIndex, newvert, notconverged, edgeSmoothness, oldParamValue, newParamValue, paramType, tol2);
+        ThreadManager.runInChunks(vertex.length, PARALLEL_CHUNK_SIZE, new ThreadManager.RangeTask() {
+          @Override
+          public void execute(int start, int end)
           {
-            vertSmoothness[i] = Math.min(vertex[i].smoothness, s3[i]);
-            regular[i] = (vertEdge[i].length == 6) || (s2[i] < s3[i]);
-            newvert[i] = newmesh.new Vertex(vertex[i]);
-            newvert[i].smoothness = Math.min(2.0f*vertex[i].smoothness, 1.0f);
-            for (j = 0; j < paramType.length; j++)
-              if (paramType[j] == PER_VERTEX)
-                newParamValue[j][0][i] = oldParamValue[j][0][i];
+            step.prepareVertices(start, end);
           }
+        });
 
         // First, determine the positions for the new vertices (one for each edge that gets
         // split).  Depending on the smoothness values of the edge and the vertices it connects,
         // this position can be determined by the smooth rule, the crease rule, the corner
         // rule, or a weighted average of the three.
 
-        j = vertex.length;
-        for (i = 0; i < edge.length; i++)
+        ThreadManager.runInChunks(edge.length, PARALLEL_CHUNK_SIZE, new ThreadManager.RangeTask() {
+          @Override
+          public void execute(int start, int end)
           {
-            if (!refineEdge[i])
-              continue;
-            tempEdge = edge[i];
-            v1 = tempEdge.v1;
-            v2 = tempEdge.v2;
-            cornerWeight = 1.0-Math.min(vertSmoothness[v1], vertSmoothness[v2]);
-            if (tempEdge.f2 == -1)
-              creaseWeight = 1.0-cornerWeight;
-            else
-              creaseWeight = Math.max(1.0-edgeSmoothness[i]-cornerWeight, 0.0);
-            smoothWeight = 1.0-cornerWeight-creaseWeight;
-
-            // The corner rule simply places the new point midway between the endpoint.
-
-            setBlend(cornerPos, vertex[v1], vertex[v2], 0.5, 0.5);
-            setBlendParams(cornerParam, v1, v2, 0.5, 0.5, oldParamValue, paramType);
-
-            // The crease rule uses the four-point rule (-1, 9, 9, -1).  Depending on the
-            // smoothness values for the second and third points, these weights may be modified.
-
-            if (creaseWeight > 0.0)
-              {
-                creasePos.copy(vertex[v1]);
-                recordParamValues(creaseParam, v1, oldParamValue, paramType);
-                if (s2[v1] < 1.0)
-                  {
-                    e = vertEdge[v1];
-                    if (tempEdge.f2 == -1)
-                      {
-                        if (e[0] == i)
-                          k = e.length-1;
-                        else
-                          k = 0;
-                      }
-                    else
-                      for (k = 0; e[k] == i || edgeSmoothness[e[k]] > s2[v1]; k++);
-                    int whichVert = (edge[e[k]].v1 == v1 ? edge[e[k]].v2 : edge[e[k]].v1);
-                    double w2 = -0.125*vertex[v1].smoothness;
-                    double w1 = 1.0-w2;
-                    setBlend(creasePos, creasePos, vertex[whichVert], w1, w2);
-                    setBlendParams(creaseParam, creaseParam, whichVert, w1, w2, oldParamValue, paramType);
-                  }
-                temp.copy(vertex[v2]);
-                recordParamValues(tempParam, v2, oldParamValue, paramType);
-                if (s2[v2] < 1.0)
-                  {
-                    e = vertEdge[v2];
-                    if (tempEdge.f2 == -1)
-                      {
-                        if (e[0] == i)
-                          k = e.length-1;
-                        else
-                          k = 0;
-                      }
-                    else
-                      for (k = 0; e[k] == i || edgeSmoothness[e[k]] > s2[v2]; k++);
-                    int whichVert = (edge[e[k]].v1 == v2 ? edge[e[k]].v2 : edge[e[k]].v1);
-                    double w2 = -0.125*vertex[v2].smoothness;
-                    double w1 = 1.0-w2;
-                    setBlend(temp, temp, vertex[whichVert], w1, w2);
-                    setBlendParams(tempParam, tempParam, whichVert, w1, w2, oldParamValue, paramType);
-                  }
-                setBlend(creasePos, creasePos, temp, 0.5, 0.5);
-                for (k = 0; k < paramType.length; k++)
-                  if (paramType[k] == PER_VERTEX)
-                    creaseParam[k] = 0.5*(creaseParam[k]+tempParam[k]);
-              }
-
-            // The smooth rule uses the modified Butterfly coefficients.
-
-            if (smoothWeight > 0.0)
-              {
-                if (regular[v1] && regular[v2])
-                  {
-                    // Both vertices are regular, so use the standard Butterfly coefficients.
-
-                    smoothPos.copy(cornerPos);
-                    for (k = 0; k < smoothParam.length; k++)
-                      smoothParam[k] = cornerParam[k];
-                    tempFace = face[tempEdge.f1];
-                    if (tempFace.e1 == i)
-                      {
-                        v3 = tempFace.v3;
-                        e2 = tempFace.e2;
-                        e3 = tempFace.e3;
-                      }
-                    else if (tempFace.e2 == i)
-                      {
-                        v3 = tempFace.v1;
-                        e2 = tempFace.e3;
-                        e3 = tempFace.e1;
-                      }
-                    else
-                      {
-                        v3 = tempFace.v2;
-                        e2 = tempFace.e1;
-                        e3 = tempFace.e2;
-                      }
-                    setBlend(smoothPos, smoothPos, vertex[v3], 1.0, 0.125);
-                    setBlendParams(smoothParam, smoothParam, v3, 1.0, 0.125, oldParamValue, paramType);
-                    findOppositeVertex(temp, tempEdge.f1, e2, edgeSmoothness[e2], vertex, edge, face, tempParam, oldParamValue, paramType);
-                    setBlend(smoothPos, smoothPos, temp, 1.0, -0.0625);
-                    for (k = 0; k < paramType.length; k++)
-                      if (paramType[k] == PER_VERTEX)
-                        smoothParam[k] -= 0.0625*tempParam[k];
-                    findOppositeVertex(temp, tempEdge.f1, e3, edgeSmoothness[e3], vertex, edge, face, tempParam, oldParamValue, paramType);
-                    setBlend(smoothPos, smoothPos, temp, 1.0, -0.0625);
-                    for (k = 0; k < paramType.length; k++)
-                      if (paramType[k] == PER_VERTEX)
-                        smoothParam[k] -= 0.0625*tempParam[k];
-                    tempFace = face[tempEdge.f2];
-                    if (tempFace.e1 == i)
-                      {
-                        v3 = tempFace.v3;
-                        e2 = tempFace.e2;
-                        e3 = tempFace.e3;
-                      }
-                    else if (tempFace.e2 == i)
-                      {
-                        v3 = tempFace.v1;
-                        e2 = tempFace.e3;
-                        e3 = tempFace.e1;
-                      }
-                    else
-                      {
-                        v3 = tempFace.v2;
-                        e2 = tempFace.e1;
-                        e3 = tempFace.e2;
-                      }
-                    setBlend(smoothPos, smoothPos, vertex[v3], 1.0, 0.125);
-                    setBlendParams(smoothParam, smoothParam, v3, 1.0, 0.125, oldParamValue, paramType);
-                    findOppositeVertex(temp, tempEdge.f2, e2, edgeSmoothness[e2], vertex, edge, face, tempParam, oldParamValue, paramType);
-                    setBlend(smoothPos, smoothPos, temp, 1.0, -0.0625);
-                    for (k = 0; k < paramType.length; k++)
-                      if (paramType[k] == PER_VERTEX)
-                        smoothParam[k] -= 0.0625*tempParam[k];
-                    findOppositeVertex(temp, tempEdge.f2, e3, edgeSmoothness[e3], vertex, edge, face, tempParam, oldParamValue, paramType);
-                    setBlend(smoothPos, smoothPos, temp, 1.0, -0.0625);
-                    for (k = 0; k < paramType.length; k++)
-                      if (paramType[k] == PER_VERTEX)
-                        smoothParam[k] -= 0.0625*tempParam[k];
-                  }
-                else
-                  {
-                    // At least one of the vertices is extraordinary.  We calculate the smooth
-                    // position based on the extraordinary vertex, or if both vertices are
-                    // extraordinary, an average of the two.
-
-                    smoothPos.clear();
-                    for (k = 0; k < smoothParam.length; k++)
-                      smoothParam[k] = 0.0;
-                    if (!regular[v1])
-                      {
-                        e = vertEdge[v1];
-                        coeff = getButterflyCoeff(e.length);
-                        for (n = 0; e[n] != i; n++);
-                        for (k = 0; k < e.length; k++)
-                          {
-                            tempEdge = edge[e[(n+k)%e.length]];
-                            int whichVert = (tempEdge.v1 == v1 ? tempEdge.v2 : tempEdge.v1);
-                            setBlend(smoothPos, smoothPos, vertex[whichVert], 1.0, coeff[k]);
-                            setBlendParams(smoothParam, smoothParam, whichVert, 1.0, coeff[k], oldParamValue, paramType);
-                          }
-                        setBlend(smoothPos, smoothPos, vertex[v1], 1.0, coeff[k]);
-                        setBlendParams(smoothParam, smoothParam, v1, 1.0, coeff[k], oldParamValue, paramType);
-                      }
-                    if (!regular[v2])
-                      {
-                        e = vertEdge[v2];
-                        coeff = getButterflyCoeff(e.length);
-                        for (n = 0; e[n] != i; n++);
-                        for (k = 0; k < e.length; k++)
-                          {
-                            tempEdge = edge[e[(n+k)%e.length]];
-                            int whichVert = (tempEdge.v1 == v2 ? tempEdge.v2 : tempEdge.v1);
-                            setBlend(smoothPos, smoothPos, vertex[whichVert], 1.0, coeff[k]);
-                            setBlendParams(smoothParam, smoothParam, whichVert, 1.0, coeff[k], oldParamValue, paramType);
-                          }
-                        setBlend(smoothPos, smoothPos, vertex[v2], 1.0, coeff[k]);
-                        setBlendParams(smoothParam, smoothParam, v2, 1.0, coeff[k], oldParamValue, paramType);
-                      }
-                    if (!regular[v1] && !regular[v2])
-                    {
-                      smoothPos.scale(0.5);
-                      for (k = 0; k < smoothParam.length; k++)
-                        smoothParam[k] *= 0.5;
-                    }
-                  }
-              }
-            newvert[j] = newmesh.blend(cornerPos, creasePos, smoothPos, cornerWeight, creaseWeight, smoothWeight);
-            for (k = 0; k < paramType.length; k++)
-              if (paramType[k] == PER_VERTEX)
-                newParamValue[k][0][j] = cornerWeight*cornerParam[k] + creaseWeight*creaseParam[k] + smoothWeight*smoothParam[k];
-            blendIKParams(newvert[j], vertex[tempEdge.v1], vertex[tempEdge.v2]);
-            j++;
-
-            // Determine how far the newly created point is from the edge, and use this to
-            // estimate convergence.
-
-            axis.set(vertex[v2].r);
-            axis.subtract(vertex[v1].r);
-            axis.normalize();
-            tempVec.set(newvert[j-1].r);
-            tempVec.subtract(vertex[v1].r);
-            s1 = tempVec.dot(axis);
-            axis.scale(s1);
-            tempVec.subtract(axis);
-            error = tempVec.length2();
-            if (error > tol2)
-              {
-                notconverged[i] = true;
-                done = false;
-              }
+            step.splitEdges(start, end);
           }
+        });
+        done = step.converged;
 
         // Subdivide the mesh.
 
@@ -2233,6 +2052,325 @@ groups:     do
     return newmesh;
   }
 
+  /** This holds the data for one iteration of Butterfly subdivision.  The work is divided into ranges of vertices
+      and edges, which may be processed in parallel since each one writes only its own elements of the new mesh. */
+
+  private static class ButterflyStep
+  {
+    final TriangleMesh newmesh;
+    final Vertex vertex[], newvert[];
+    final Edge edge[];
+    final Face face[];
+    final boolean refineEdge[], notconverged[], regular[];
+    final int newVertIndex[], paramType[], vertEdge[][];
+    final double edgeSmoothness[], vertSmoothness[], s2[], s3[];
+    final double oldParamValue[][][], newParamValue[][][], tol2;
+    volatile boolean converged = true;
+
+    ButterflyStep(TriangleMesh newmesh, Vertex vertex[], Edge edge[], Face face[], boolean refineEdge[], int newVertIndex[], Vertex newvert[], boolean notconverged[], double edgeSmoothness[], double oldParamValue[][][], double newParamValue[][][], int paramType[], double tol2)
+    {
+      this.newmesh = newmesh;
+      this.vertex = vertex;
+      this.edge = edge;
+      this.face = face;
+      this.refineEdge = refineEdge;
+      this.newVertIndex = newVertIndex;
+      this.newvert = newvert;
+      this.notconverged = notconverged;
+      this.edgeSmoothness = edgeSmoothness;
+      this.oldParamValue = oldParamValue;
+      this.newParamValue = newParamValue;
+      this.paramType = paramType;
+      this.tol2 = tol2;
+      vertEdge = new int [vertex.length][];
+      s2 = new double [vertex.length];
+      s3 = new double [vertex.length];
+      vertSmoothness = new double [vertex.length];
+      regular = new boolean [vertex.length];
+    }
+
+    /** Analyze the vertices from start (inclusive) to end (exclusive), and copy them to the new mesh. */
+
+    void prepareVertices(int start, int end)
+    {
+      for (int i = start; i < end; i++)
+        {
+          // Record the list of edges intersecting the vertex, and find the three sharpest ones.
+
+          int e[] = vertEdge[i] = vertex[i].getEdges();
+          double s1 = s2[i] = s3[i] = 1.0;
+          for (int j = 0; j < e.length; j++)
+            {
+              if (edge[e[j]].f2 == -1)
+                {
+                  s3[i] = s2[i];
+                  s2[i] = s1;
+                  s1 = 0.0;
+                }
+              else if (edge[e[j]].smoothness < s1)
+                {
+                  s3[i] = s2[i];
+                  s2[i] = s1;
+                  s1 = edge[e[j]].smoothness;
+                }
+              else if (edge[e[j]].smoothness < s2[i])
+                {
+                  s3[i] = s2[i];
+                  s2[i] = edge[e[j]].smoothness;
+                }
+              else if (edge[e[j]].smoothness < s3[i])
+                s3[i] = edge[e[j]].smoothness;
+            }
+
+          // Determine the smoothness value for the vertex, and whether it is regular.
+
+          vertSmoothness[i] = Math.min(vertex[i].smoothness, s3[i]);
+          regular[i] = (e.length == 6) || (s2[i] < s3[i]);
+          newvert[i] = newmesh.new Vertex(vertex[i]);
+          newvert[i].smoothness = Math.min(2.0f*vertex[i].smoothness, 1.0f);
+          for (int j = 0; j < paramType.length; j++)
+            if (paramType[j] == PER_VERTEX)
+              newParamValue[j][0][i] = oldParamValue[j][0][i];
+        }
+    }
+
+    /** Find the positions of the new vertices for the edges from start (inclusive) to end (exclusive).  If any
+        of them has not yet converged to the limit surface, it is marked in notconverged and converged is set
+        to false.  This must be called after prepareVertices() has been called for every vertex. */
+
+    void splitEdges(int start, int end)
+    {
+      Vertex creasePos = newmesh.new Vertex(new Vec3()), smoothPos = newmesh.new Vertex(new Vec3()), cornerPos = newmesh.new Vertex(new Vec3()), temp = newmesh.new Vertex(new Vec3());
+      Vec3 axis = new Vec3(), tempVec = new Vec3();
+      double creaseParam[] = new double [paramType.length];
+      double smoothParam[] = new double [paramType.length];
+      double cornerParam[] = new double [paramType.length];
+      double tempParam[] = new double [paramType.length];
+      double cornerWeight, creaseWeight, smoothWeight, s1, coeff[], error;
+      Edge tempEdge;
+      Face tempFace;
+      int j, k, n, e[], v1, v2, v3, e2, e3;
+
+      for (int i = start; i < end; i++)
+        {
+          if (!refineEdge[i])
+            continue;
+          j = newVertIndex[i];
+          tempEdge = edge[i];
+          v1 = tempEdge.v1;
+          v2 = tempEdge.v2;
+          cornerWeight = 1.0-Math.min(vertSmoothness[v1], vertSmoothness[v2]);
+          if (tempEdge.f2 == -1)
+            creaseWeight = 1.0-cornerWeight;
+          else
+            creaseWeight = Math.max(1.0-edgeSmoothness[i]-cornerWeight, 0.0);
+          smoothWeight = 1.0-cornerWeight-creaseWeight;
+
+          // The corner rule simply places the new point midway between the endpoint.
+
+          setBlend(cornerPos, vertex[v1], vertex[v2], 0.5, 0.5);
+          setBlendParams(cornerParam, v1, v2, 0.5, 0.5, oldParamValue, paramType);
+
+          // The crease rule uses the four-point rule (-1, 9, 9, -1).  Depending on the
+          // smoothness values for the second and third points, these weights may be modified.
+
+          if (creaseWeight > 0.0)
+            {
+              creasePos.copy(vertex[v1]);
+              recordParamValues(creaseParam, v1, oldParamValue, paramType);
+              if (s2[v1] < 1.0)
+                {
+                  e = vertEdge[v1];
+                  if (tempEdge.f2 == -1)
+                    {
+                      if (e[0] == i)
+                        k = e.length-1;
+                      else
+                        k = 0;
+                    }
+                  else
+                    for (k = 0; e[k] == i || edgeSmoothness[e[k]] > s2[v1]; k++);
+                  int whichVert = (edge[e[k]].v1 == v1 ? edge[e[k]].v2 : edge[e[k]].v1);
+                  double w2 = -0.125*vertex[v1].smoothness;
+                  double w1 = 1.0-w2;
+                  setBlend(creasePos, creasePos, vertex[whichVert], w1, w2);
+                  setBlendParams(creaseParam, creaseParam, whichVert, w1, w2, oldParamValue, paramType);
+                }
+              temp.copy(vertex[v2]);
+              recordParamValues(tempParam, v2, oldParamValue, paramType);
+              if (s2[v2] < 1.0)
+                {
+                  e = vertEdge[v2];
+                  if (tempEdge.f2 == -1)
+                    {
+                      if (e[0] == i)
+                        k = e.length-1;
+                      else
+                        k = 0;
+                    }
+                  else
+                    for (k = 0; e[k] == i || edgeSmoothness[e[k]] > s2[v2]; k++);
+                  int whichVert = (edge[e[k]].v1 == v2 ? edge[e[k]].v2 : edge[e[k]].v1);
+                  double w2 = -0.125*vertex[v2].smoothness;
+                  double w1 = 1.0-w2;
+                  setBlend(temp, temp, vertex[whichVert], w1, w2);
+                  setBlendParams(tempParam, tempParam, whichVert, w1, w2, oldParamValue, paramType);
+                }
+              setBlend(creasePos, creasePos, temp, 0.5, 0.5);
+              for (k = 0; k < paramType.length; k++)
+                if (paramType[k] == PER_VERTEX)
+                  creaseParam[k] = 0.5*(creaseParam[k]+tempParam[k]);
+            }
+
+          // The smooth rule uses the modified Butterfly coefficients.
+
+          if (smoothWeight > 0.0)
+            {
+              if (regular[v1] && regular[v2])
+                {
+                  // Both vertices are regular, so use the standard Butterfly coefficients.
+
+                  smoothPos.copy(cornerPos);
+                  for (k = 0; k < smoothParam.length; k++)
+                    smoothParam[k] = cornerParam[k];
+                  tempFace = face[tempEdge.f1];
+                  if (tempFace.e1 == i)
+                    {
+                      v3 = tempFace.v3;
+                      e2 = tempFace.e2;
+                      e3 = tempFace.e3;
+                    }
+                  else if (tempFace.e2 == i)
+                    {
+                      v3 = tempFace.v1;
+                      e2 = tempFace.e3;
+                      e3 = tempFace.e1;
+                    }
+                  else
+                    {
+                      v3 = tempFace.v2;
+                      e2 = tempFace.e1;
+                      e3 = tempFace.e2;
+                    }
+                  setBlend(smoothPos, smoothPos, vertex[v3], 1.0, 0.125);
+                  setBlendParams(smoothParam, smoothParam, v3, 1.0, 0.125, oldParamValue, paramType);
+                  findOppositeVertex(temp, tempEdge.f1, e2, edgeSmoothness[e2], vertex, edge, face, tempParam, oldParamValue, paramType);
+                  setBlend(smoothPos, smoothPos, temp, 1.0, -0.0625);
+                  for (k = 0; k < paramType.length; k++)
+                    if (paramType[k] == PER_VERTEX)
+                      smoothParam[k] -= 0.0625*tempParam[k];
+                  findOppositeVertex(temp, tempEdge.f1, e3, edgeSmoothness[e3], vertex, edge, face, tempParam, oldParamValue, paramType);
+                  setBlend(smoothPos, smoothPos, temp, 1.0, -0.0625);
+                  for (k = 0; k < paramType.length; k++)
+                    if (paramType[k] == PER_VERTEX)
+                      smoothParam[k] -= 0.0625*tempParam[k];
+                  tempFace = face[tempEdge.f2];
+                  if (tempFace.e1 == i)
+                    {
+                      v3 = tempFace.v3;
+                      e2 = tempFace.e2;
+                      e3 = tempFace.e3;
+                    }
+                  else if (tempFace.e2 == i)
+                    {
+                      v3 = tempFace.v1;
+                      e2 = tempFace.e3;
+                      e3 = tempFace.e1;
+                    }
+                  else
+                    {
+                      v3 = tempFace.v2;
+                      e2 = tempFace.e1;
+                      e3 = tempFace.e2;
+                    }
+                  setBlend(smoothPos, smoothPos, vertex[v3], 1.0, 0.125);
+                  setBlendParams(smoothParam, smoothParam, v3, 1.0, 0.125, oldParamValue, paramType);
+                  findOppositeVertex(temp, tempEdge.f2, e2, edgeSmoothness[e2], vertex, edge, face, tempParam, oldParamValue, paramType);
+                  setBlend(smoothPos, smoothPos, temp, 1.0, -0.0625);
+                  for (k = 0; k < paramType.length; k++)
+                    if (paramType[k] == PER_VERTEX)
+                      smoothParam[k] -= 0.0625*tempParam[k];
+                  findOppositeVertex(temp, tempEdge.f2, e3, edgeSmoothness[e3], vertex, edge, face, tempParam, oldParamValue, paramType);
+                  setBlend(smoothPos, smoothPos, temp, 1.0, -0.0625);
+                  for (k = 0; k < paramType.length; k++)
+                    if (paramType[k] == PER_VERTEX)
+                      smoothParam[k] -= 0.0625*tempParam[k];
+                }
+              else
+                {
+                  // At least one of the vertices is extraordinary.  We calculate the smooth
+                  // position based on the extraordinary vertex, or if both vertices are
+                  // extraordinary, an average of the two.
+
+                  smoothPos.clear();
+                  for (k = 0; k < smoothParam.length; k++)
+                    smoothParam[k] = 0.0;
+                  if (!regular[v1])
+                    {
+                      e = vertEdge[v1];
+                      coeff = getButterflyCoeff(e.length);
+                      for (n = 0; e[n] != i; n++);
+                      for (k = 0; k < e.length; k++)
+                        {
+                          tempEdge = edge[e[(n+k)%e.length]];
+                          int whichVert = (tempEdge.v1 == v1 ? tempEdge.v2 : tempEdge.v1);
+                          setBlend(smoothPos, smoothPos, vertex[whichVert], 1.0, coeff[k]);
+                          setBlendParams(smoothParam, smoothParam, whichVert, 1.0, coeff[k], oldParamValue, paramType);
+                        }
+                      setBlend(smoothPos, smoothPos, vertex[v1], 1.0, coeff[k]);
+                      setBlendParams(smoothParam, smoothParam, v1, 1.0, coeff[k], oldParamValue, paramType);
+                    }
+                  if (!regular[v2])
+                    {
+                      e = vertEdge[v2];
+                      coeff = getButterflyCoeff(e.length);
+                      for (n = 0; e[n] != i; n++);
+                      for (k = 0; k < e.length; k++)
+                        {
+                          tempEdge = edge[e[(n+k)%e.length]];
+                          int whichVert = (tempEdge.v1 == v2 ? tempEdge.v2 : tempEdge.v1);
+                          setBlend(smoothPos, smoothPos, vertex[whichVert], 1.0, coeff[k]);
+                          setBlendParams(smoothParam, smoothParam, whichVert, 1.0, coeff[k], oldParamValue, paramType);
+                        }
+                      setBlend(smoothPos, smoothPos, vertex[v2], 1.0, coeff[k]);
+                      setBlendParams(smoothParam, smoothParam, v2, 1.0, coeff[k], oldParamValue, paramType);
+                    }
+                  if (!regular[v1] && !regular[v2])
+                  {
+                    smoothPos.scale(0.5);
+                    for (k = 0; k < smoothParam.length; k++)
+                      smoothParam[k] *= 0.5;
+                  }
+                }
+            }
+          newvert[j] = newmesh.blend(cornerPos, creasePos, smoothPos, cornerWeight, creaseWeight, smoothWeight);
+          for (k = 0; k < paramType.length; k++)
+            if (paramType[k] == PER_VERTEX)
+              newParamValue[k][0][j] = cornerWeight*cornerParam[k] + creaseWeight*creaseParam[k] + smoothWeight*smoothParam[k];
+          blendIKParams(newvert[j], vertex[tempEdge.v1], vertex[tempEdge.v2]);
+          j++;
+
+          // Determine how far the newly created point is from the edge, and use this to
+          // estimate convergence.
+
+          axis.set(vertex[v2].r);
+          axis.subtract(vertex[v1].r);
+          axis.normalize();
+          tempVec.set(newvert[j-1].r);
+          tempVec.subtract(vertex[v1].r);
+          s1 = tempVec.dot(axis);
+          axis.scale(s1);
+          tempVec.subtract(axis);
+          error = tempVec.length2();
+          if (error > tol2)
+            {
+              notconverged[i] = true;
+              converged = false;
+            }
+        }
+    }
+  }
+
   /** This method is used for Butterfly subdivision.  Given a face and an edge, it finds the
       other face which is across the edge from the specified one, finds the vertex of that face
       which is opposite the specified edge, and returns its position in pos.  The position of
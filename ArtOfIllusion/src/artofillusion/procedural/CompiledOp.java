@@ -0,0 +1,1358 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.procedural;
+
+import artofillusion.math.*;
+import java.util.*;
+
+/**
+ * This is one step of a {@link CompiledProcedure}.  It reads its inputs from the slots of a
+ * {@link CompiledProcedure.Frame} and writes its outputs to other slots.  An output port of type
+ * NUMBER occupies five slots (the value, the error, and the three components of the gradient), and
+ * an output port of type COLOR occupies three (the red, green, and blue components).
+ * <p>
+ * Each subclass reproduces the calculation performed by one kind of module, evaluated with a blur
+ * of 0.  An op is shared by every thread using the procedure, so it must not store anything while
+ * being evaluated.  Any working storage it needs is created by {@link #createState()}, and each Frame
+ * keeps its own copy.
+ * <p>
+ * An op can also be evaluated for many points at once with a {@link CompiledProcedure.Batch}, which
+ * holds an array of values for each slot.  By default this copies the slots for one point at a time
+ * into a Frame and evaluates it there.  The most common ops override it with loops over the arrays.
+ */
+
+abstract class CompiledOp
+{
+  /** Flags describing which parts of a port's value are needed.  The value itself is always calculated. */
+
+  static final int VALUE = 1;
+  static final int ERROR = 2;
+  static final int GRADIENT = 4;
+  static final int ALL = VALUE+ERROR+GRADIENT;
+
+  /** The first slot of each input. */
+
+  int input[];
+
+  /** The first slot of each output. */
+
+  int output[];
+
+  /** Which parts of each output are needed. */
+
+  int demand[];
+
+  /** Every slot this op reads, and every slot it writes.  These are used when evaluating a Batch one point at a time. */
+
+  int read[], write[];
+
+  /** The position of this op in the CompiledProcedure.  Each Frame stores the state of an op at the same position. */
+
+  int position;
+
+  CompiledOp(int inputs, int outputs)
+  {
+    input = new int [inputs];
+    output = new int [outputs];
+    demand = new int [outputs];
+  }
+
+  /** Evaluate this op for a point. */
+
+  abstract void evaluate(CompiledProcedure.Frame frame, PointInfo point);
+
+  /** Evaluate this op for the first count points of a Batch. */
+
+  void evaluate(CompiledProcedure.Batch batch, int count)
+  {
+    CompiledProcedure.Frame frame = batch.frame;
+    double v[] = frame.slot, column[][] = batch.column;
+    int read[] = this.read, write[] = this.write;
+    for (int i = 0; i < count; i++)
+    {
+      for (int j = 0; j < read.length; j++)
+        v[read[j]] = column[read[j]][i];
+      evaluate(frame, batch.getPoint(i));
+      for (int j = 0; j < write.length; j++)
+        column[write[j]][i] = v[write[j]];
+    }
+  }
+
+  /** Create an object to hold any working storage this op needs while being evaluated, or null if it needs none. */
+
+  Object createState()
+  {
+    return null;
+  }
+
+  /**
+   * Determine which parts of an input are needed to calculate the parts of the outputs described by
+   * the demand field.  The default implementation assumes the value and error of every input are
+   * needed, and the gradients are needed to calculate gradients.
+   */
+
+  int getInputDemand(int which)
+  {
+    int needed = 0;
+    for (int i = 0; i < demand.length; i++)
+      needed |= demand[i];
+    if (needed == 0)
+      return 0;
+    return (VALUE+ERROR) | (needed & GRADIENT);
+  }
+
+  /**
+   * Determine whether this op depends only on its inputs.  If so, it can be evaluated when the
+   * procedure is compiled if all of its inputs are constant.
+   */
+
+  boolean isPure()
+  {
+    return true;
+  }
+
+  /** Get the number of scratch slots this op needs. */
+
+  int getScratchSize()
+  {
+    return 0;
+  }
+
+  /** Set the first scratch slot for this op. */
+
+  void setScratch(int slot)
+  {
+  }
+
+  /**
+   * Combine the derivatives of an output with respect to the first three inputs with the gradients of
+   * those inputs, and store the result in the output's gradient.
+   */
+
+  void chainGradient(double v[], int out, double dx, double dy, double dz)
+  {
+    int inx = input[0], iny = input[1], inz = input[2];
+    double gx = 0.0, gy = 0.0, gz = 0.0;
+    if (dx != 0.0)
+    {
+      gx = dx*v[inx+2];
+      gy = dx*v[inx+3];
+      gz = dx*v[inx+4];
+    }
+    if (dy != 0.0)
+    {
+      gx += dy*v[iny+2];
+      gy += dy*v[iny+3];
+      gz += dy*v[iny+4];
+    }
+    if (dz != 0.0)
+    {
+      gx += dz*v[inz+2];
+      gy += dz*v[inz+3];
+      gz += dz*v[inz+4];
+    }
+    v[out+2] = gx;
+    v[out+3] = gy;
+    v[out+4] = gz;
+  }
+
+  /** This is identical to chainGradient(), but for one point of a Batch. */
+
+  void chainGradient(double c[][], int p, int out, double dx, double dy, double dz)
+  {
+    int inx = input[0], iny = input[1], inz = input[2];
+    double gx = 0.0, gy = 0.0, gz = 0.0;
+    if (dx != 0.0)
+    {
+      gx = dx*c[inx+2][p];
+      gy = dx*c[inx+3][p];
+      gz = dx*c[inx+4][p];
+    }
+    if (dy != 0.0)
+    {
+      gx += dy*c[iny+2][p];
+      gy += dy*c[iny+3][p];
+      gz += dy*c[iny+4][p];
+    }
+    if (dz != 0.0)
+    {
+      gx += dz*c[inz+2][p];
+      gy += dz*c[inz+3][p];
+      gz += dz*c[inz+4][p];
+    }
+    c[out+2][p] = gx;
+    c[out+3][p] = gy;
+    c[out+4][p] = gz;
+  }
+
+  /** Combine two errors in quadrature.  This is the approximation used by SumModule and DifferenceModule. */
+
+  static double addErrors(double error1, double error2)
+  {
+    double min, max, ratio;
+
+    if (error1 < error2)
+    {
+      min = error1;
+      max = error2;
+    }
+    else
+    {
+      min = error2;
+      max = error1;
+    }
+    if (min == 0.0)
+      return max;
+    ratio = min/max;
+    return max*(1.0+0.5*ratio*ratio);
+  }
+
+  /** This outputs one coordinate of the point, like a CoordinateModule. */
+
+  static class Coordinate extends CompiledOp
+  {
+    private final int coordinate;
+
+    Coordinate(int coordinate)
+    {
+      super(0, 1);
+      this.coordinate = coordinate;
+    }
+
+    /** The gradient never changes, so it is stored in the constant slots when the procedure is compiled. */
+
+    void setGradient(double v[])
+    {
+      int out = output[0];
+      v[out+2] = (coordinate == CoordinateModule.X ? 1.0 : 0.0);
+      v[out+3] = (coordinate == CoordinateModule.Y ? 1.0 : 0.0);
+      v[out+4] = (coordinate == CoordinateModule.Z ? 1.0 : 0.0);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int out = output[0];
+      switch (coordinate)
+      {
+        case CoordinateModule.X:
+          v[out] = point.x;
+          v[out+1] = 0.5*point.xsize;
+          break;
+        case CoordinateModule.Y:
+          v[out] = point.y;
+          v[out+1] = 0.5*point.ysize;
+          break;
+        case CoordinateModule.Z:
+          v[out] = point.z;
+          v[out+1] = 0.5*point.zsize;
+          break;
+        default:
+          v[out] = point.t;
+          v[out+1] = 0.0;
+      }
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double value[] = batch.column[output[0]], error[] = batch.column[output[0]+1];
+      double coord[], size[];
+      switch (coordinate)
+      {
+        case CoordinateModule.X:
+          coord = batch.x;
+          size = batch.xsize;
+          break;
+        case CoordinateModule.Y:
+          coord = batch.y;
+          size = batch.ysize;
+          break;
+        case CoordinateModule.Z:
+          coord = batch.z;
+          size = batch.zsize;
+          break;
+        default:
+          System.arraycopy(batch.t, 0, value, 0, count);
+          return;
+      }
+      System.arraycopy(coord, 0, value, 0, count);
+      for (int i = 0; i < count; i++)
+        error[i] = 0.5*size[i];
+    }
+
+    @Override
+    boolean isPure()
+    {
+      return false;
+    }
+  }
+
+  /** This is equivalent to a SumModule. */
+
+  static class Sum extends CompiledOp
+  {
+    Sum()
+    {
+      super(2, 1);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int in1 = input[0], in2 = input[1], out = output[0], need = demand[0];
+      v[out] = v[in1]+v[in2];
+      if ((need & ERROR) != 0)
+        v[out+1] = addErrors(v[in1+1], v[in2+1]);
+      if ((need & GRADIENT) != 0)
+      {
+        v[out+2] = v[in1+2]+v[in2+2];
+        v[out+3] = v[in1+3]+v[in2+3];
+        v[out+4] = v[in1+4]+v[in2+4];
+      }
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      int in1 = input[0], in2 = input[1], out = output[0], need = demand[0];
+      add(c[in1], c[in2], c[out], count);
+      if ((need & ERROR) != 0)
+      {
+        double e1[] = c[in1+1], e2[] = c[in2+1], e[] = c[out+1];
+        for (int i = 0; i < count; i++)
+          e[i] = addErrors(e1[i], e2[i]);
+      }
+      if ((need & GRADIENT) != 0)
+        for (int j = 2; j < 5; j++)
+          add(c[in1+j], c[in2+j], c[out+j], count);
+    }
+
+    private static void add(double a[], double b[], double result[], int count)
+    {
+      for (int i = 0; i < count; i++)
+        result[i] = a[i]+b[i];
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return demand[0];
+    }
+  }
+
+  /** This is equivalent to a DifferenceModule. */
+
+  static class Difference extends CompiledOp
+  {
+    Difference()
+    {
+      super(2, 1);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int in1 = input[0], in2 = input[1], out = output[0], need = demand[0];
+      v[out] = v[in1]-v[in2];
+      if ((need & ERROR) != 0)
+        v[out+1] = addErrors(v[in1+1], v[in2+1]);
+      if ((need & GRADIENT) != 0)
+      {
+        v[out+2] = v[in1+2]-v[in2+2];
+        v[out+3] = v[in1+3]-v[in2+3];
+        v[out+4] = v[in1+4]-v[in2+4];
+      }
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      int in1 = input[0], in2 = input[1], out = output[0], need = demand[0];
+      subtract(c[in1], c[in2], c[out], count);
+      if ((need & ERROR) != 0)
+      {
+        double e1[] = c[in1+1], e2[] = c[in2+1], e[] = c[out+1];
+        for (int i = 0; i < count; i++)
+          e[i] = addErrors(e1[i], e2[i]);
+      }
+      if ((need & GRADIENT) != 0)
+        for (int j = 2; j < 5; j++)
+          subtract(c[in1+j], c[in2+j], c[out+j], count);
+    }
+
+    private static void subtract(double a[], double b[], double result[], int count)
+    {
+      for (int i = 0; i < count; i++)
+        result[i] = a[i]-b[i];
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return demand[0];
+    }
+  }
+
+  /** This is equivalent to a ProductModule whose inputs are both connected. */
+
+  static class Product extends CompiledOp
+  {
+    Product()
+    {
+      super(2, 1);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int in1 = input[0], in2 = input[1], out = output[0], need = demand[0];
+      double value1 = v[in1], value2 = v[in2];
+      v[out] = value1*value2;
+      if ((need & ERROR) != 0)
+        v[out+1] = Math.abs(value1*v[in2+1]) + Math.abs(value2*v[in1+1]);
+      if ((need & GRADIENT) != 0)
+      {
+        v[out+2] = v[in1+2]*value2 + v[in2+2]*value1;
+        v[out+3] = v[in1+3]*value2 + v[in2+3]*value1;
+        v[out+4] = v[in1+4]*value2 + v[in2+4]*value1;
+      }
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      int in1 = input[0], in2 = input[1], out = output[0], need = demand[0];
+      double value1[] = c[in1], value2[] = c[in2], value[] = c[out];
+      for (int i = 0; i < count; i++)
+        value[i] = value1[i]*value2[i];
+      if ((need & ERROR) != 0)
+      {
+        double e1[] = c[in1+1], e2[] = c[in2+1], e[] = c[out+1];
+        for (int i = 0; i < count; i++)
+          e[i] = Math.abs(value1[i]*e2[i]) + Math.abs(value2[i]*e1[i]);
+      }
+      if ((need & GRADIENT) != 0)
+        for (int j = 2; j < 5; j++)
+        {
+          double g1[] = c[in1+j], g2[] = c[in2+j], g[] = c[out+j];
+          for (int i = 0; i < count; i++)
+            g[i] = g1[i]*value2[i] + g2[i]*value1[i];
+        }
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return VALUE | demand[0];
+    }
+  }
+
+  /** This is equivalent to a RatioModule whose inputs are both connected. */
+
+  static class Ratio extends CompiledOp
+  {
+    Ratio()
+    {
+      super(2, 1);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int in1 = input[0], in2 = input[1], out = output[0], need = demand[0];
+      double value1 = v[in1], value2 = v[in2];
+      if (value2 == 0.0)
+      {
+        v[out] = (value1 < 0.0 ? -Double.MAX_VALUE : Double.MAX_VALUE);
+        v[out+1] = Double.MAX_VALUE;
+      }
+      else
+      {
+        v[out] = value1/value2;
+        if ((need & ERROR) != 0)
+          v[out+1] = Math.abs(v[in1+1]/value2) + Math.abs(value1*v[in2+1]/(value2*value2));
+      }
+      if ((need & GRADIENT) != 0)
+      {
+        double d1 = 1.0/value2, d2 = value1/(value2*value2);
+        v[out+2] = v[in1+2]*d1 - v[in2+2]*d2;
+        v[out+3] = v[in1+3]*d1 - v[in2+3]*d2;
+        v[out+4] = v[in1+4]*d1 - v[in2+4]*d2;
+      }
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      int in1 = input[0], in2 = input[1], out = output[0], need = demand[0];
+      double value1[] = c[in1], value2[] = c[in2], value[] = c[out];
+      for (int i = 0; i < count; i++)
+        value[i] = value1[i]/value2[i];
+      if ((need & ERROR) != 0)
+      {
+        double e1[] = c[in1+1], e2[] = c[in2+1], e[] = c[out+1];
+        for (int i = 0; i < count; i++)
+          e[i] = Math.abs(e1[i]/value2[i]) + Math.abs(value1[i]*e2[i]/(value2[i]*value2[i]));
+      }
+      if ((need & GRADIENT) != 0)
+        for (int j = 2; j < 5; j++)
+        {
+          double g1[] = c[in1+j], g2[] = c[in2+j], g[] = c[out+j];
+          for (int i = 0; i < count; i++)
+            g[i] = g1[i]*(1.0/value2[i]) - g2[i]*(value1[i]/(value2[i]*value2[i]));
+        }
+
+      // Division by zero is rare, so fix those points afterward rather than testing inside the loops.
+
+      for (int i = 0; i < count; i++)
+        if (value2[i] == 0.0)
+        {
+          value[i] = (value1[i] < 0.0 ? -Double.MAX_VALUE : Double.MAX_VALUE);
+          c[out+1][i] = Double.MAX_VALUE;
+        }
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return VALUE | demand[0];
+    }
+  }
+
+  /** This is equivalent to a ScaleShiftModule whose input is connected. */
+
+  static class ScaleShift extends CompiledOp
+  {
+    private final double scale, shift;
+
+    ScaleShift(double scale, double shift)
+    {
+      super(1, 1);
+      this.scale = scale;
+      this.shift = shift;
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int in = input[0], out = output[0], need = demand[0];
+      v[out] = v[in]*scale + shift;
+      if ((need & ERROR) != 0)
+        v[out+1] = v[in+1]*Math.abs(scale);
+      if ((need & GRADIENT) != 0)
+      {
+        // ScaleShiftModule adds the shift to the gradient as well.
+
+        v[out+2] = v[in+2]*scale+shift;
+        v[out+3] = v[in+3]*scale+shift;
+        v[out+4] = v[in+4]*scale+shift;
+      }
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      int in = input[0], out = output[0], need = demand[0];
+      scaleShift(c[in], c[out], scale, shift, count);
+      if ((need & ERROR) != 0)
+        scaleShift(c[in+1], c[out+1], Math.abs(scale), 0.0, count);
+      if ((need & GRADIENT) != 0)
+        for (int j = 2; j < 5; j++)
+          scaleShift(c[in+j], c[out+j], scale, shift, count);
+    }
+
+    private static void scaleShift(double a[], double result[], double scale, double shift, int count)
+    {
+      for (int i = 0; i < count; i++)
+        result[i] = a[i]*scale+shift;
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return demand[0];
+    }
+  }
+
+  /**
+   * This is equivalent to a NoiseModule.  Unconnected coordinate inputs should be replaced by
+   * Coordinate ops, and an unconnected persistence input by a constant 0.5.
+   */
+
+  static class Noise extends CompiledOp
+  {
+    final int octaves;
+    final double amplitude;
+
+    Noise(int octaves, double amplitude)
+    {
+      super(4, 1);
+      this.octaves = octaves;
+      this.amplitude = amplitude;
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int inx = input[0], iny = input[1], inz = input[2], out = output[0];
+      double x = v[inx], y = v[iny], z = v[inz], persistence = v[input[3]];
+      double amp = 0.5*amplitude, scale = 1.0;
+      double cutoff = 0.5/Math.max(Math.max(v[inx+1], v[iny+1]), v[inz+1]);
+      double value = 0.0;
+
+      for (int i = 0; i < octaves && cutoff > scale; i++)
+      {
+        if (scale > 0.5*cutoff)
+          amp *= 2.0*(1.0-scale/cutoff);
+        value += amp*artofillusion.math.Noise.value(x*scale+123.456, y*scale+123.456, z*scale+123.456);
+        amp *= persistence;
+        scale *= 2.0;
+      }
+      v[out] = 0.5*value + 0.5;
+      evaluateDerivatives(frame);
+    }
+
+    /**
+     * Evaluate the op for a Batch.  This adds up each octave for every point before moving on to the next
+     * one, which gives the same result as evaluate(Frame, PointInfo) but lets the noise function be evaluated
+     * for all points that still need the octave with a single call.
+     */
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      double persistence[] = c[input[3]], value[] = c[output[0]], amp[] = batch.temp[1], noise[] = batch.temp[5];
+      int index[] = batch.index;
+      startOctaves(batch, count);
+      double scale = 1.0;
+      for (int i = 0; i < octaves; i++, scale *= 2.0)
+      {
+        int active = startOctave(batch, count, scale);
+        if (active == 0)
+          break;
+        for (int n = 0; n < active; n++)
+        {
+          int p = index[n];
+          value[p] += amp[p]*noise[n];
+          amp[p] *= persistence[p];
+        }
+      }
+      for (int p = 0; p < count; p++)
+        value[p] = 0.5*value[p] + 0.5;
+      if ((demand[0] & (ERROR+GRADIENT)) == 0)
+        return;
+      for (int p = 0; p < count; p++)
+        evaluateDerivatives(batch, p);
+    }
+
+    /** Initialize the arrays used by evaluate(Batch, int). */
+
+    void startOctaves(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      double xsize[] = c[input[0]+1], ysize[] = c[input[1]+1], zsize[] = c[input[2]+1];
+      double value[] = c[output[0]], cutoff[] = batch.temp[0], amp[] = batch.temp[1];
+      for (int p = 0; p < count; p++)
+        cutoff[p] = 0.5/Math.max(Math.max(xsize[p], ysize[p]), zsize[p]);
+      Arrays.fill(amp, 0, count, 0.5*amplitude);
+      Arrays.fill(value, 0, count, 0.0);
+    }
+
+    /**
+     * Find the points of a Batch that still need the octave with the specified scale, and evaluate the
+     * noise function for them.  On exit, batch.index holds the indices of those points and batch.temp[5]
+     * the noise values, and their amplitudes in batch.temp[1] have been reduced near the cutoff.
+     *
+     * @return the number of points that need the octave
+     */
+
+    int startOctave(CompiledProcedure.Batch batch, int count, double scale)
+    {
+      double c[][] = batch.column;
+      double x[] = c[input[0]], y[] = c[input[1]], z[] = c[input[2]];
+      double cutoff[] = batch.temp[0], amp[] = batch.temp[1];
+      double sx[] = batch.temp[2], sy[] = batch.temp[3], sz[] = batch.temp[4];
+      int index[] = batch.index, active = 0;
+      for (int p = 0; p < count; p++)
+        if (cutoff[p] > scale)
+        {
+          if (scale > 0.5*cutoff[p])
+            amp[p] *= 2.0*(1.0-scale/cutoff[p]);
+          index[active] = p;
+          sx[active] = x[p]*scale+123.456;
+          sy[active] = y[p]*scale+123.456;
+          sz[active] = z[p]*scale+123.456;
+          active++;
+        }
+      if (active > 0)
+        artofillusion.math.Noise.value(sx, sy, sz, batch.temp[5], active);
+      return active;
+    }
+
+    /** Calculate the error and gradient of the output, if they are needed. */
+
+    void evaluateDerivatives(CompiledProcedure.Frame frame)
+    {
+      int need = demand[0];
+      if ((need & (ERROR+GRADIENT)) == 0)
+        return;
+      double v[] = frame.slot;
+      int inx = input[0], iny = input[1], inz = input[2], out = output[0];
+      Vec3 deriv = frame.tempDeriv;
+      double error = calcDerivatives(v[inx], v[iny], v[inz], v[inx+1], v[iny+1], v[inz+1], v[input[3]], v, deriv, frame.tempVec);
+      v[out+1] = error*0.5;
+      if ((need & GRADIENT) != 0)
+        chainGradient(v, out, deriv.x*0.5, deriv.y*0.5, deriv.z*0.5);
+    }
+
+    /** Calculate the error and gradient of the output for one point of a Batch. */
+
+    void evaluateDerivatives(CompiledProcedure.Batch batch, int p)
+    {
+      int need = demand[0];
+      double c[][] = batch.column;
+      int inx = input[0], iny = input[1], inz = input[2], out = output[0];
+      CompiledProcedure.Frame frame = batch.frame;
+      Vec3 deriv = frame.tempDeriv;
+      double error = calcDerivatives(c[inx][p], c[iny][p], c[inz][p], c[inx+1][p], c[iny+1][p], c[inz+1][p], c[input[3]][p], frame.slot, deriv, frame.tempVec);
+      c[out+1][p] = error*0.5;
+      if ((need & GRADIENT) != 0)
+        chainGradient(c, p, out, deriv.x*0.5, deriv.y*0.5, deriv.z*0.5);
+    }
+
+    /**
+     * Estimate the error from the derivative of the function, and calculate the derivatives of the function
+     * with respect to x, y, and z.
+     *
+     * @param v       the slots of the Frame being evaluated
+     * @param deriv   the derivatives are stored in this
+     * @param temp    used as working storage
+     * @return the estimated error
+     */
+
+    double calcDerivatives(double x, double y, double z, double xsize, double ysize, double zsize, double persistence, double v[], Vec3 deriv, Vec3 temp)
+    {
+      double amp = 0.5*amplitude, scale = 1.0;
+      double cutoff = 0.5/Math.max(Math.max(xsize, ysize), zsize);
+      double error = 0.0, dx = 0.0, dy = 0.0, dz = 0.0;
+      int i;
+      for (i = 0; i < octaves && cutoff > scale; i++)
+      {
+        artofillusion.math.Noise.calcGradient(temp, x*scale+123.456, y*scale+123.456, z*scale+123.456);
+        temp.scale(amp*scale*getSign(v, i));
+        error += Math.abs(xsize*temp.x) + Math.abs(ysize*temp.y) + Math.abs(zsize*temp.z);
+        if (scale > 0.5*cutoff)
+          temp.scale(2.0*(1.0-scale/cutoff));
+        dx += temp.x;
+        dy += temp.y;
+        dz += temp.z;
+        amp *= persistence;
+        scale *= 2.0;
+      }
+      for (; i < octaves; i++)
+      {
+        error += amp;
+        amp *= persistence;
+        scale *= 2.0;
+      }
+      deriv.set(dx, dy, dz);
+      return error;
+    }
+
+    /** Get the factor by which the gradient of an octave should be multiplied. */
+
+    double getSign(double v[], int octave)
+    {
+      return 1.0;
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      if (which == 3)
+        return VALUE;
+      return (VALUE+ERROR) | (demand[0] & GRADIENT);
+    }
+  }
+
+  /**
+   * This is equivalent to a TurbulenceModule.  Unconnected coordinate inputs should be replaced by
+   * Coordinate ops, and an unconnected persistence input by a constant 0.5.
+   */
+
+  static class Turbulence extends Noise
+  {
+    private int sign;
+
+    Turbulence(int octaves, double amplitude)
+    {
+      super(octaves, amplitude);
+    }
+
+    @Override
+    int getScratchSize()
+    {
+      return octaves;
+    }
+
+    @Override
+    void setScratch(int slot)
+    {
+      sign = slot;
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int inx = input[0], iny = input[1], inz = input[2], out = output[0];
+      double x = v[inx], y = v[iny], z = v[inz], persistence = v[input[3]];
+      double amp = 0.5*amplitude, scale = 1.0, d;
+      double cutoff = 0.5/Math.max(Math.max(v[inx+1], v[iny+1]), v[inz+1]);
+      double value = 0.0;
+
+      for (int i = 0; i < octaves && cutoff > scale; i++)
+      {
+        if (scale > 0.5*cutoff)
+          amp *= 2.0*(1.0-scale/cutoff);
+        d = amp*artofillusion.math.Noise.value(x*scale+123.456, y*scale+123.456, z*scale+123.456);
+        v[sign+i] = d > 0.0 ? 1.0 : -1.0;
+        value += Math.abs(d);
+        amp *= persistence;
+        scale *= 2.0;
+      }
+      v[out] = value;
+      evaluateDerivatives(frame);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      double persistence[] = c[input[3]];
+      double value[] = c[output[0]], amp[] = batch.temp[1], noise[] = batch.temp[5];
+      int index[] = batch.index;
+      startOctaves(batch, count);
+      double scale = 1.0;
+      for (int i = 0; i < octaves; i++, scale *= 2.0)
+      {
+        int active = startOctave(batch, count, scale);
+        if (active == 0)
+          break;
+        double octaveSign[] = c[sign+i];
+        for (int n = 0; n < active; n++)
+        {
+          int p = index[n];
+          double d = amp[p]*noise[n];
+          octaveSign[p] = d > 0.0 ? 1.0 : -1.0;
+          value[p] += Math.abs(d);
+          amp[p] *= persistence[p];
+        }
+      }
+      if ((demand[0] & (ERROR+GRADIENT)) == 0)
+        return;
+      double v[] = batch.frame.slot;
+      for (int p = 0; p < count; p++)
+      {
+        for (int i = 0; i < octaves; i++)
+          v[sign+i] = c[sign+i][p];
+        evaluateDerivatives(batch, p);
+      }
+    }
+
+    @Override
+    void evaluateDerivatives(CompiledProcedure.Frame frame)
+    {
+      int need = demand[0];
+      if ((need & (ERROR+GRADIENT)) == 0)
+        return;
+      double v[] = frame.slot;
+      int inx = input[0], iny = input[1], inz = input[2], out = output[0];
+      Vec3 deriv = frame.tempDeriv;
+      v[out+1] = calcDerivatives(v[inx], v[iny], v[inz], v[inx+1], v[iny+1], v[inz+1], v[input[3]], v, deriv, frame.tempVec);
+      if ((need & GRADIENT) != 0)
+        chainGradient(v, out, deriv.x, deriv.y, deriv.z);
+    }
+
+    @Override
+    void evaluateDerivatives(CompiledProcedure.Batch batch, int p)
+    {
+      int need = demand[0];
+      double c[][] = batch.column;
+      int inx = input[0], iny = input[1], inz = input[2], out = output[0];
+      CompiledProcedure.Frame frame = batch.frame;
+      Vec3 deriv = frame.tempDeriv;
+      c[out+1][p] = calcDerivatives(c[inx][p], c[iny][p], c[inz][p], c[inx+1][p], c[iny+1][p], c[inz+1][p], c[input[3]][p], frame.slot, deriv, frame.tempVec);
+      if ((need & GRADIENT) != 0)
+        chainGradient(c, p, out, deriv.x, deriv.y, deriv.z);
+    }
+
+    @Override
+    double getSign(double v[], int octave)
+    {
+      return v[sign+octave];
+    }
+  }
+
+  /** This is equivalent to an RGBModule.  Unconnected inputs should be replaced by constant 0. */
+
+  static class RGB extends CompiledOp
+  {
+    RGB()
+    {
+      super(3, 1);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int out = output[0];
+      v[out] = (float) v[input[0]];
+      v[out+1] = (float) v[input[1]];
+      v[out+2] = (float) v[input[2]];
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      for (int j = 0; j < 3; j++)
+      {
+        double in[] = c[input[j]], out[] = c[output[0]+j];
+        for (int i = 0; i < count; i++)
+          out[i] = (float) in[i];
+      }
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return VALUE;
+    }
+  }
+
+  /**
+   * This is equivalent to a ColorSumModule, ColorDifferenceModule, or ColorProductModule.  Unconnected
+   * inputs should be replaced by the default color of the module.
+   */
+
+  static class ColorArithmetic extends CompiledOp
+  {
+    static final int SUM = 0;
+    static final int DIFFERENCE = 1;
+    static final int PRODUCT = 2;
+
+    private final int operation;
+
+    ColorArithmetic(int operation)
+    {
+      super(2, 1);
+      this.operation = operation;
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int in1 = input[0], in2 = input[1], out = output[0];
+      for (int i = 0; i < 3; i++)
+      {
+        float c1 = (float) v[in1+i], c2 = (float) v[in2+i];
+        if (operation == SUM)
+          v[out+i] = c1+c2;
+        else if (operation == DIFFERENCE)
+          v[out+i] = c1-c2;
+        else
+          v[out+i] = c1*c2;
+      }
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      for (int j = 0; j < 3; j++)
+      {
+        double in1[] = c[input[0]+j], in2[] = c[input[1]+j], out[] = c[output[0]+j];
+        if (operation == SUM)
+          for (int i = 0; i < count; i++)
+            out[i] = (float) in1[i] + (float) in2[i];
+        else if (operation == DIFFERENCE)
+          for (int i = 0; i < count; i++)
+            out[i] = (float) in1[i] - (float) in2[i];
+        else
+          for (int i = 0; i < count; i++)
+            out[i] = (float) in1[i] * (float) in2[i];
+      }
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return VALUE;
+    }
+  }
+
+  /**
+   * This is equivalent to a ColorScaleModule.  An unconnected color should be replaced by white, and
+   * an unconnected scale by 1.
+   */
+
+  static class ColorScale extends CompiledOp
+  {
+    ColorScale()
+    {
+      super(2, 1);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int in = input[0], out = output[0];
+      float scale = (float) v[input[1]];
+      v[out] = ((float) v[in])*scale;
+      v[out+1] = ((float) v[in+1])*scale;
+      v[out+2] = ((float) v[in+2])*scale;
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column, scale[] = c[input[1]];
+      for (int j = 0; j < 3; j++)
+      {
+        double in[] = c[input[0]+j], out[] = c[output[0]+j];
+        for (int i = 0; i < count; i++)
+          out[i] = ((float) in[i])*(float) scale[i];
+      }
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return VALUE;
+    }
+  }
+
+  /**
+   * This is equivalent to a BlendModule.  Unconnected colors should be replaced by black and white,
+   * and an unconnected fraction by 0.5.
+   */
+
+  static class Blend extends CompiledOp
+  {
+    Blend()
+    {
+      super(3, 1);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int in1 = input[0], in2 = input[1], out = output[0];
+      double fract = v[input[2]];
+      double error = v[input[2]+1];
+      double min = fract-error, max = fract+error;
+      if (min < 1.0 && max > 0.0)
+        if (min < 0.0 || max > 1.0)
+        {
+          fract = 0.0;
+          if (min < 0.0)
+            min = 0.0;
+          if (max > 1.0)
+          {
+            fract = max-1.0;
+            max = 1.0;
+          }
+          fract += 0.5*(max+min)*(max-min);
+          fract /= 2.0*error;
+        }
+      if (fract <= 0.0)
+      {
+        v[out] = v[in1];
+        v[out+1] = v[in1+1];
+        v[out+2] = v[in1+2];
+        return;
+      }
+      if (fract >= 1.0)
+      {
+        v[out] = v[in2];
+        v[out+1] = v[in2+1];
+        v[out+2] = v[in2+2];
+        return;
+      }
+      float f1 = (float) (1.0-fract), f2 = (float) fract;
+      for (int i = 0; i < 3; i++)
+        v[out+i] = ((float) v[in1+i])*f1 + ((float) v[in2+i])*f2;
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return (which == 2 ? VALUE+ERROR : VALUE);
+    }
+  }
+
+  /** This is equivalent to a CellsModule.  Unconnected coordinate inputs should be replaced by Coordinate ops. */
+
+  static class Cells extends CompiledOp
+  {
+    private final int metric;
+
+    /** The working storage for one Frame. */
+
+    private static class State
+    {
+      final artofillusion.math.Cells cells = new artofillusion.math.Cells();
+      final Random random = new FastRandom(0);
+      final Vec3 point = new Vec3();
+      final double value1[] = new double [1], value2[] = new double [2];
+      final Vec3 grad1[] = new Vec3 [] {new Vec3()}, grad2[] = new Vec3 [] {new Vec3(), new Vec3()};
+      final int id1[] = new int [1], id2[] = new int [2];
+      final double result[] = new double [3], error[] = new double [3];
+      Vec3 grad[];
+    }
+
+    Cells(int metric)
+    {
+      super(3, 3);
+      this.metric = metric;
+    }
+
+    @Override
+    Object createState()
+    {
+      State state = new State();
+      state.cells.setMetric(metric);
+      return state;
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      double v[] = frame.slot;
+      int inx = input[0], iny = input[1], inz = input[2];
+      State state = (State) frame.state[position];
+      calculate(state, v[inx], v[iny], v[inz], Math.max(Math.max(v[inx+1], v[iny+1]), v[inz+1]));
+      for (int i = 0; i < 3; i++)
+      {
+        int need = demand[i], out = output[i];
+        if (need == 0)
+          continue;
+        v[out] = state.result[i];
+        v[out+1] = state.error[i];
+        if (i > 0 && (need & GRADIENT) != 0)
+        {
+          Vec3 g = state.grad[i-1];
+          chainGradient(v, out, g.x, g.y, g.z);
+        }
+      }
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+      double c[][] = batch.column;
+      int inx = input[0], iny = input[1], inz = input[2];
+      double x[] = c[inx], y[] = c[iny], z[] = c[inz], xsize[] = c[inx+1], ysize[] = c[iny+1], zsize[] = c[inz+1];
+      State state = (State) batch.frame.state[position];
+      for (int p = 0; p < count; p++)
+      {
+        calculate(state, x[p], y[p], z[p], Math.max(Math.max(xsize[p], ysize[p]), zsize[p]));
+        for (int i = 0; i < 3; i++)
+        {
+          int need = demand[i], out = output[i];
+          if (need == 0)
+            continue;
+          c[out][p] = state.result[i];
+          c[out+1][p] = state.error[i];
+          if (i > 0 && (need & GRADIENT) != 0)
+          {
+            Vec3 g = state.grad[i-1];
+            chainGradient(c, p, out, g.x, g.y, g.z);
+          }
+        }
+      }
+    }
+
+    /**
+     * Calculate the value and error of every output, and the derivatives of the distances with respect to
+     * the coordinates.  Only the nearest feature point is found unless the second one is needed.
+     */
+
+    private void calculate(State state, double x, double y, double z, double error)
+    {
+      boolean both = (demand[0] != 0 || demand[2] != 0);
+      boolean gradient = ((demand[1] | demand[2]) & GRADIENT) != 0;
+      double value[] = (both ? state.value2 : state.value1);
+      int id[] = (both ? state.id2 : state.id1);
+      state.grad = (both ? state.grad2 : state.grad1);
+      state.point.set(x, y, z);
+      state.cells.calcFunctions(state.point, value, gradient ? state.grad : null, id);
+      double result[] = state.result;
+      result[1] = value[0];
+      state.error[1] = state.error[2] = error;
+      if (!both)
+        return;
+      result[2] = value[1];
+      Random random = state.random;
+      random.setSeed(id[0]);
+      random.nextDouble();
+      double cell = random.nextDouble();
+      double diff = value[1]-value[0];
+      if (diff >= error)
+      {
+        result[0] = cell;
+        state.error[0] = 0.0;
+        return;
+      }
+      random.setSeed(id[1]);
+      random.nextDouble();
+      double cell2 = random.nextDouble();
+      double weight = 0.5+0.5*diff/error;
+      result[0] = weight*cell+(1.0-weight)*cell2;
+      state.error[0] = 0.5*Math.abs(cell-cell2);
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return (VALUE+ERROR) | ((demand[1] | demand[2]) & GRADIENT);
+    }
+
+    /** This needs its State, which does not exist while the procedure is being compiled. */
+
+    @Override
+    boolean isPure()
+    {
+      return false;
+    }
+  }
+
+  /**
+   * This evaluates a module directly.  The Frame holds a copy of the module for each thread, whose inputs
+   * read the values of other ops from the Frame's slots.
+   */
+
+  static class ModuleOp extends CompiledOp
+  {
+    private final boolean color[];
+
+    /** The index of the module's copy in the Frame.  This is set once the procedure has been compiled. */
+
+    int index;
+
+    ModuleOp(Module module)
+    {
+      super(module.getInputPorts().length, module.getOutputPorts().length);
+      IOPort ports[] = module.getOutputPorts();
+      color = new boolean [ports.length];
+      for (int i = 0; i < ports.length; i++)
+        color[i] = (ports[i].getValueType() == IOPort.COLOR);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      Module module = frame.module[index];
+      module.init(point);
+      readOutputs(module, frame);
+    }
+
+    /** Copy the requested outputs of a module to the Frame. */
+
+    void readOutputs(Module module, CompiledProcedure.Frame frame)
+    {
+      double v[] = frame.slot;
+      for (int i = 0; i < output.length; i++)
+      {
+        int need = demand[i], out = output[i];
+        if (need == 0)
+          continue;
+        if (color[i])
+        {
+          RGBColor c = frame.tempColor;
+          module.getColor(i, c, 0.0);
+          v[out] = c.getRed();
+          v[out+1] = c.getGreen();
+          v[out+2] = c.getBlue();
+          continue;
+        }
+        v[out] = module.getAverageValue(i, 0.0);
+        if ((need & ERROR) != 0)
+          v[out+1] = module.getValueError(i, 0.0);
+        if ((need & GRADIENT) != 0)
+        {
+          Vec3 grad = frame.tempVec;
+          module.getValueGradient(i, grad, 0.0);
+          v[out+2] = grad.x;
+          v[out+3] = grad.y;
+          v[out+4] = grad.z;
+        }
+      }
+    }
+
+    @Override
+    boolean isPure()
+    {
+      return false;
+    }
+  }
+
+  /**
+   * This reads the outputs of a module that is evaluated by the interpreter.  Such a module, and every
+   * module it depends on, is copied into the Frame with its links intact.
+   */
+
+  static class Interpreted extends ModuleOp
+  {
+    Interpreted(Module module)
+    {
+      super(module);
+    }
+
+    @Override
+    void evaluate(CompiledProcedure.Frame frame, PointInfo point)
+    {
+      readOutputs(frame.interpreted[index], frame);
+    }
+
+    /** A Batch evaluates all the interpreted modules for each point before evaluating any ops. */
+
+    @Override
+    void evaluate(CompiledProcedure.Batch batch, int count)
+    {
+    }
+
+    @Override
+    int getInputDemand(int which)
+    {
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,424 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.procedural;
+
+import artofillusion.math.*;
+import java.awt.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A CompiledProcedure is a form of a {@link Procedure} that can be evaluated more quickly.  Evaluating a
+ * Procedure calls init() on every module, then pulls values from the output modules, which request values
+ * from the modules connected to them, and so on.  A CompiledProcedure instead sorts the modules so that
+ * each one comes after all the modules it depends on, and evaluates them once each in that order, storing
+ * their outputs in an array of doubles.  While compiling it,
+ * <ul>
+ * <li>number and color modules, and any calculation whose inputs are all constant, are evaluated in advance,</li>
+ * <li>modules whose outputs are not used by any of the requested outputs are discarded, and errors and
+ * gradients are only calculated where something needs them,</li>
+ * <li>the modules an expression module is built from are evaluated directly, as if they had been part of
+ * the procedure.</li>
+ * </ul>
+ * The most common modules are replaced by specialized code.  Other built in modules are evaluated by calling
+ * their normal methods, but with inputs that read from the array.  Modules from plugins, and anything
+ * they depend on, are evaluated exactly as a Procedure would, since they might request values from their
+ * inputs with a different blur.
+ * <p>
+ * A CompiledProcedure is a snapshot of the Procedure at the time it was created, and never changes, so
+ * one instance can be shared by any number of threads.  Each thread must call {@link #createFrame()}
+ * to create its own Frame, which evaluates the procedure and holds the values calculated for a point.
+ * Code that evaluates the procedure from many threads, such as a texture during rendering, should
+ * instead call {@link #acquireFrame()} and {@link #releaseFrame(Frame)} each time it evaluates it.
+ * Frames are then reused without belonging to any particular thread.
+ * To evaluate it for many points at once, call {@link #createBatch(int)} instead.  A Batch holds arrays
+ * of coordinates and outputs, and evaluates each step of the procedure for all the points before moving
+ * on to the next one.
+ */
+
+public class CompiledProcedure
+{
+  CompiledOp op[];
+  double initial[];
+  Module module[], interpreted[];
+  int moduleInput[][], interpretedLink[][];
+  int outputSlot[];
+  private final AtomicReferenceArray<Frame> idleFrame;
+
+  /**
+   * Compile a Procedure.
+   *
+   * @param proc        the procedure to compile
+   * @param values      the indices of the output modules whose values or colors will be requested
+   * @param gradients   the indices of the output modules whose gradients will be requested
+   */
+
+  public CompiledProcedure(Procedure proc, int values[], int gradients[])
+  {
+    new ProcedureCompiler(proc).compile(this, values, gradients);
+    int size = 1;
+    while (size < 2*Runtime.getRuntime().availableProcessors())
+      size *= 2;
+    idleFrame = new AtomicReferenceArray<Frame>(size);
+  }
+
+  /**
+   * Get a Frame for evaluating this procedure.  This reuses a Frame that was previously passed to
+   * {@link #releaseFrame(Frame)} if one is available, or creates a new one otherwise.  The calling thread
+   * may use it until it releases it.  Failing to release it is harmless, but means the next call will
+   * need to create a new one.
+   */
+
+  public Frame acquireFrame()
+  {
+    int mask = idleFrame.length()-1, start = getFrameIndex();
+    for (int i = 0; i <= mask; i++)
+    {
+      int index = (start+i) & mask;
+      if (idleFrame.get(index) != null)
+      {
+        Frame frame = idleFrame.getAndSet(index, null);
+        if (frame != null)
+          return frame;
+      }
+    }
+    return new Frame(this);
+  }
+
+  /**
+   * Release a Frame that was returned by {@link #acquireFrame()} so it can be reused.  If every slot
+   * for idle Frames is already full, it is discarded.
+   */
+
+  public void releaseFrame(Frame frame)
+  {
+    int mask = idleFrame.length()-1, start = getFrameIndex();
+    for (int i = 0; i <= mask; i++)
+    {
+      int index = (start+i) & mask;
+      if (idleFrame.get(index) == null && idleFrame.compareAndSet(index, null, frame))
+        return;
+    }
+  }
+
+  /**
+   * Idle Frames are kept in a small array.  Each thread starts looking at the element selected by its ID,
+   * and moves on to the following ones if that element is empty (when acquiring) or full (when releasing).
+   * Since there are twice as many elements as processors, a thread nearly always finds the Frame it
+   * released last time in its own element.
+   */
+
+  private int getFrameIndex()
+  {
+    return (int) Thread.currentThread().getId() & (idleFrame.length()-1);
+  }
+
+  /** Create a new Frame for evaluating this procedure.  Each thread must use a different Frame. */
+
+  public Frame createFrame()
+  {
+    return new Frame(this);
+  }
+
+  /**
+   * Create a new Batch for evaluating this procedure at many points.  Each thread must use a different Batch.
+   *
+   * @param size    the maximum number of points the Batch can hold
+   */
+
+  public Batch createBatch(int size)
+  {
+    return new Batch(this, size);
+  }
+
+  /**
+   * A Frame holds the values calculated while evaluating a CompiledProcedure, along with copies of any
+   * modules that are evaluated by calling their normal methods.
+   */
+
+  public static class Frame
+  {
+    final CompiledProcedure procedure;
+    final double slot[];
+    final Module module[], interpreted[];
+    final Object state[];
+    final Vec3 tempVec, tempDeriv;
+    final RGBColor tempColor;
+
+    private Frame(CompiledProcedure procedure)
+    {
+      this.procedure = procedure;
+      slot = procedure.initial.clone();
+      tempVec = new Vec3();
+      tempDeriv = new Vec3();
+      tempColor = new RGBColor();
+      state = new Object [procedure.op.length];
+      for (int i = 0; i < state.length; i++)
+        state[i] = procedure.op[i].createState();
+      SlotModule slotModule = new SlotModule(slot);
+      module = new Module [procedure.module.length];
+      for (int i = 0; i < module.length; i++)
+      {
+        module[i] = procedure.module[i].duplicate();
+        int input[] = procedure.moduleInput[i];
+        for (int j = 0; j < input.length; j++)
+          if (input[j] > -1)
+          {
+            module[i].linkFrom[j] = slotModule;
+            module[i].linkFromIndex[j] = input[j];
+          }
+      }
+      interpreted = new Module [procedure.interpreted.length];
+      for (int i = 0; i < interpreted.length; i++)
+        interpreted[i] = procedure.interpreted[i].duplicate();
+      for (int link[] : procedure.interpretedLink)
+      {
+        Module to = interpreted[link[0]], from = interpreted[link[2]];
+        to.setInput(to.getInputPorts()[link[1]], from.getOutputPorts()[link[3]]);
+      }
+    }
+
+    /** Evaluate the procedure at a point.  The results are stored in this Frame. */
+
+    public void evaluate(PointInfo point)
+    {
+      Module init[] = interpreted;
+      for (int i = 0; i < init.length; i++)
+        init[i].init(point);
+      CompiledOp ops[] = procedure.op;
+      for (int i = 0; i < ops.length; i++)
+        ops[i].evaluate(this, point);
+    }
+
+    /** This is used while compiling the procedure to evaluate constant expressions. */
+
+    Frame(double slot[])
+    {
+      procedure = null;
+      this.slot = slot;
+      module = interpreted = new Module [0];
+      state = new Object [0];
+      tempVec = new Vec3();
+      tempDeriv = new Vec3();
+      tempColor = new RGBColor();
+    }
+
+    /** Get the value of an output module whose input has type NUMBER. */
+
+    public double getOutputValue(int which)
+    {
+      return slot[procedure.outputSlot[which]];
+    }
+
+    /** Get the gradient of an output module whose input has type NUMBER. */
+
+    public void getOutputGradient(int which, Vec3 grad)
+    {
+      int index = procedure.outputSlot[which];
+      grad.set(slot[index+2], slot[index+3], slot[index+4]);
+    }
+
+    /** Get the color of an output module whose input has type COLOR. */
+
+    public void getOutputColor(int which, RGBColor color)
+    {
+      int index = procedure.outputSlot[which];
+      color.setRGB((float) slot[index], (float) slot[index+1], (float) slot[index+2]);
+    }
+  }
+
+  /**
+   * A Batch evaluates a CompiledProcedure at many points at once.  Fill in the arrays describing the points,
+   * call {@link #evaluate(int)}, and then read the results.  Each value in the procedure is stored in an array
+   * with one element for each point, so the most common steps can be performed by simple loops over the arrays.
+   */
+
+  public static class Batch
+  {
+    final CompiledProcedure procedure;
+    final Frame frame;
+    final double column[][];
+    private final PointInfo point;
+
+    /** Working storage for ops, with one element for each point. */
+
+    final double temp[][];
+    final int index[];
+    private final int size;
+
+    /** The properties of each point.  These correspond to the fields of {@link PointInfo}. */
+
+    public final double x[], y[], z[], xsize[], ysize[], zsize[], viewangle[], t[];
+
+    /** The parameter values for each point.  These correspond to the param field of {@link PointInfo}. */
+
+    public final double param[][];
+
+    private Batch(CompiledProcedure procedure, int size)
+    {
+      this.procedure = procedure;
+      this.size = size;
+      frame = procedure.createFrame();
+      point = new PointInfo();
+      double initial[] = procedure.initial;
+      column = new double [initial.length][size];
+      for (int i = 0; i < initial.length; i++)
+        if (initial[i] != 0.0)
+          Arrays.fill(column[i], initial[i]);
+      temp = new double [6][size];
+      index = new int [size];
+      x = new double [size];
+      y = new double [size];
+      z = new double [size];
+      xsize = new double [size];
+      ysize = new double [size];
+      zsize = new double [size];
+      viewangle = new double [size];
+      t = new double [size];
+      param = new double [size][];
+    }
+
+    /** Get the maximum number of points the Batch can hold. */
+
+    public int getSize()
+    {
+      return size;
+    }
+
+    /** Evaluate the procedure at the first count points.  The results are stored in this Batch. */
+
+    public void evaluate(int count)
+    {
+      if (count > size)
+        throw new IllegalArgumentException("count exceeds the size of the batch");
+      if (frame.interpreted.length > 0)
+        evaluateInterpreted(count);
+      CompiledOp ops[] = procedure.op;
+      for (int i = 0; i < ops.length; i++)
+        ops[i].evaluate(this, count);
+    }
+
+    /**
+     * Evaluate the modules that are evaluated by the interpreter.  They do not depend on any other ops, so
+     * this is done first, one point at a time, requesting their outputs in the same order as a Frame would.
+     */
+
+    private void evaluateInterpreted(int count)
+    {
+      CompiledOp ops[] = procedure.op;
+      Module init[] = frame.interpreted;
+      double v[] = frame.slot;
+      for (int i = 0; i < count; i++)
+      {
+        PointInfo p = getPoint(i);
+        for (int j = 0; j < init.length; j++)
+          init[j].init(p);
+        for (int j = 0; j < ops.length; j++)
+          if (ops[j] instanceof CompiledOp.Interpreted)
+          {
+            ops[j].evaluate(frame, p);
+            int write[] = ops[j].write;
+            for (int k = 0; k < write.length; k++)
+              column[write[k]][i] = v[write[k]];
+          }
+      }
+    }
+
+    /** Get a PointInfo describing one point.  The same object is returned every time this is called. */
+
+    PointInfo getPoint(int index)
+    {
+      point.x = x[index];
+      point.y = y[index];
+      point.z = z[index];
+      point.xsize = xsize[index];
+      point.ysize = ysize[index];
+      point.zsize = zsize[index];
+      point.viewangle = viewangle[index];
+      point.t = t[index];
+      point.param = param[index];
+      return point;
+    }
+
+    /**
+     * Get the values of an output module whose input has type NUMBER.  This returns the array used internally
+     * by the Batch, which is overwritten each time the procedure is evaluated.
+     */
+
+    public double[] getOutputValues(int which)
+    {
+      return column[procedure.outputSlot[which]];
+    }
+
+    /** Get the value of an output module whose input has type NUMBER at one point. */
+
+    public double getOutputValue(int which, int index)
+    {
+      return column[procedure.outputSlot[which]][index];
+    }
+
+    /** Get the gradient of an output module whose input has type NUMBER at one point. */
+
+    public void getOutputGradient(int which, int index, Vec3 grad)
+    {
+      int slot = procedure.outputSlot[which];
+      grad.set(column[slot+2][index], column[slot+3][index], column[slot+4][index]);
+    }
+
+    /** Get the color of an output module whose input has type COLOR at one point. */
+
+    public void getOutputColor(int which, int index, RGBColor color)
+    {
+      int slot = procedure.outputSlot[which];
+      color.setRGB((float) column[slot][index], (float) column[slot+1][index], (float) column[slot+2][index]);
+    }
+  }
+
+  /**
+   * This is connected to the inputs of modules that are evaluated by calling their normal methods.  The
+   * index of the output port is the first slot of the value to read.
+   */
+
+  private static class SlotModule extends Module
+  {
+    private final double slot[];
+
+    SlotModule(double slot[])
+    {
+      super("", new IOPort [0], new IOPort [0], new Point());
+      this.slot = slot;
+    }
+
+    @Override
+    public double getAverageValue(int which, double blur)
+    {
+      return slot[which];
+    }
+
+    @Override
+    public double getValueError(int which, double blur)
+    {
+      return slot[which+1];
+    }
+
+    @Override
+    public void getValueGradient(int which, Vec3 grad, double blur)
+    {
+      grad.set(slot[which+2], slot[which+3], slot[which+4]);
+    }
+
+    @Override
+    public void getColor(int which, RGBColor color, double blur)
+    {
+      color.setRGB((float) slot[which], (float) slot[which+1], (float) slot[which+2]);
+    }
+  }
+}
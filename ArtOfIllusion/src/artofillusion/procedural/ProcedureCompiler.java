@@ -0,0 +1,453 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.procedural;
+
+import artofillusion.math.*;
+import java.util.*;
+
+/**
+ * This class builds a {@link CompiledProcedure} from a {@link Procedure}.  Each module (or synthetic input,
+ * such as the default value of an unconnected port) becomes a node, and the nodes are recorded in an order
+ * where every node comes after the nodes it reads from.  Nodes whose inputs are all constant are evaluated
+ * immediately.  The nodes are then visited in reverse order to work out which parts of each output are
+ * needed, and the ones that are needed become the ops of the compiled procedure.
+ */
+
+class ProcedureCompiler
+{
+  /**
+   * The modules that can be evaluated by a ModuleOp.  They must only depend on the PointInfo and their inputs,
+   * and must evaluate their inputs with the same blur they were asked for.
+   */
+
+  private static final Set<Class<?>> COMPILABLE = new HashSet<Class<?>>(Arrays.<Class<?>>asList(AbsModule.class,
+      BiasModule.class, BlendModule.class, BrickModule.class, CellsModule.class, CheckerModule.class, ClipModule.class,
+      ColorDarkenModule.class, ColorDifferenceModule.class, ColorLightenModule.class, ColorModule.class,
+      ColorProductModule.class, ColorScaleModule.class, ColorSumModule.class, CompareModule.class,
+      CoordinateModule.class, CosineModule.class, DifferenceModule.class, ExpModule.class, ExprModule.class,
+      FunctionModule.class, GainModule.class, GridModule.class, HLSModule.class, HSVModule.class, ImageModule.class,
+      InterpModule.class, JitterModule.class, LogModule.class, MarbleModule.class, MaxModule.class, MinModule.class,
+      ModModule.class, NoiseModule.class, NumberModule.class, ParameterModule.class, PolarModule.class,
+      PowerModule.class, ProductModule.class, RGBModule.class, RandomModule.class, RatioModule.class,
+      ScaleShiftModule.class, SineModule.class, SpectrumModule.class, SphericalModule.class, SqrtModule.class,
+      SumModule.class, TransformModule.class, TurbulenceModule.class, ViewAngleModule.class, WoodModule.class));
+
+  private final Procedure proc;
+  private final Set<Module> fallback;
+  private final Map<Module, Node> nodes;
+  private final List<Node> order;
+  private final Node coordinate[];
+  private double slot[];
+  private int numSlots;
+
+  /** This represents one module, or one synthetic input. */
+
+  private static class Node
+  {
+    final CompiledOp op;
+    final Module module;
+    final Node source[];
+    final int sourcePort[], slot[], width[], demand[];
+    int scratch;
+    boolean constant;
+
+    Node(CompiledOp op, Module module, int inputs, int outputs)
+    {
+      this.op = op;
+      this.module = module;
+      source = new Node [inputs];
+      sourcePort = new int [inputs];
+      slot = new int [outputs];
+      width = new int [outputs];
+      demand = new int [outputs];
+    }
+  }
+
+  ProcedureCompiler(Procedure proc)
+  {
+    this.proc = proc;
+    nodes = new IdentityHashMap<Module, Node>();
+    order = new ArrayList<Node>();
+    coordinate = new Node [4];
+    slot = new double [32];
+
+    // Any module that cannot be compiled must be evaluated by the interpreter, along with everything it depends on.
+
+    fallback = Collections.newSetFromMap(new IdentityHashMap<Module, Boolean>());
+    for (Module module : proc.getModules())
+      if (!COMPILABLE.contains(module.getClass()))
+        addUpstream(module, fallback);
+  }
+
+  /** Add a module and every module it depends on to a set. */
+
+  private static void addUpstream(Module module, Set<Module> modules)
+  {
+    if (!modules.add(module))
+      return;
+    for (Module input : module.linkFrom)
+      if (input != null)
+        addUpstream(input, modules);
+  }
+
+  /**
+   * Fill in the fields of a CompiledProcedure.
+   *
+   * @param compiled    the object to initialize
+   * @param values      the indices of the output modules whose values or colors will be requested
+   * @param gradients   the indices of the output modules whose gradients will be requested
+   */
+
+  void compile(CompiledProcedure compiled, int values[], int gradients[])
+  {
+    // Build the nodes for the requested outputs.
+
+    OutputModule output[] = proc.getOutputModules();
+    Node outputNode[] = new Node [output.length];
+    int outputPort[] = new int [output.length];
+    int outputDemand[] = new int [output.length];
+    for (int i : values)
+      outputDemand[i] |= CompiledOp.VALUE;
+    for (int i : gradients)
+      outputDemand[i] |= CompiledOp.VALUE+CompiledOp.GRADIENT;
+    for (int i = 0; i < output.length; i++)
+    {
+      if (outputDemand[i] == 0)
+        continue;
+      Node defaultNode;
+      if (output[i].getInputPorts()[0].getValueType() == IOPort.COLOR)
+        defaultNode = constant(output[i].defaultColor);
+      else
+        defaultNode = constant(output[i].defaultValue);
+      Node node = new Node(null, output[i], 1, 0);
+      connect(node, 0, output[i], defaultNode);
+      outputNode[i] = node.source[0];
+      outputPort[i] = node.sourcePort[0];
+      outputNode[i].demand[outputPort[i]] |= outputDemand[i];
+    }
+
+    // Work out which parts of each node are needed.
+
+    for (int i = order.size()-1; i >= 0; i--)
+    {
+      Node node = order.get(i);
+      if (node.constant)
+        continue;
+      System.arraycopy(node.demand, 0, node.op.demand, 0, node.demand.length);
+      for (int j = 0; j < node.source.length; j++)
+        if (node.source[j] != null)
+          node.source[j].demand[node.sourcePort[j]] |= node.op.getInputDemand(j);
+    }
+
+    // Create the list of ops, along with the modules that will be copied into each Frame.
+
+    ArrayList<CompiledOp> ops = new ArrayList<CompiledOp>();
+    ArrayList<Module> modules = new ArrayList<Module>();
+    ArrayList<int[]> moduleInputs = new ArrayList<int[]>();
+    Set<Module> interpretedSet = Collections.newSetFromMap(new LinkedHashMap<Module, Boolean>());
+    ArrayList<Node> interpretedNodes = new ArrayList<Node>();
+    for (Node node : order)
+    {
+      if (node.constant || !isNeeded(node))
+        continue;
+      setSlots(node);
+      setBatchSlots(node);
+      node.op.position = ops.size();
+      if (node.op instanceof CompiledOp.Interpreted)
+      {
+        addUpstream(node.module, interpretedSet);
+        interpretedNodes.add(node);
+      }
+      else if (node.op instanceof CompiledOp.ModuleOp)
+      {
+        ((CompiledOp.ModuleOp) node.op).index = modules.size();
+        modules.add(node.module.duplicate());
+        moduleInputs.add(node.op.input.clone());
+      }
+      ops.add(node.op);
+    }
+    compiled.op = ops.toArray(new CompiledOp [ops.size()]);
+    compiled.initial = Arrays.copyOf(slot, numSlots);
+    compiled.module = modules.toArray(new Module [modules.size()]);
+    compiled.moduleInput = moduleInputs.toArray(new int [moduleInputs.size()][]);
+
+    // Record the modules that must be evaluated by the interpreter, and the links between them.
+
+    ArrayList<Module> interpreted = new ArrayList<Module>(interpretedSet);
+    for (Node node : interpretedNodes)
+      ((CompiledOp.Interpreted) node.op).index = interpreted.indexOf(node.module);
+    compiled.interpreted = new Module [interpreted.size()];
+    ArrayList<int[]> links = new ArrayList<int[]>();
+    for (int i = 0; i < compiled.interpreted.length; i++)
+    {
+      Module module = interpreted.get(i);
+      compiled.interpreted[i] = module.duplicate();
+      for (int j = 0; j < module.linkFrom.length; j++)
+        if (module.linkFrom[j] != null)
+          links.add(new int [] {i, j, interpreted.indexOf(module.linkFrom[j]), module.linkFromIndex[j]});
+    }
+    compiled.interpretedLink = links.toArray(new int [links.size()][]);
+    compiled.outputSlot = new int [output.length];
+    for (int i = 0; i < output.length; i++)
+      compiled.outputSlot[i] = (outputNode[i] == null ? -1 : outputNode[i].slot[outputPort[i]]);
+  }
+
+  /** Determine whether any output of a node is needed. */
+
+  private static boolean isNeeded(Node node)
+  {
+    for (int need : node.demand)
+      if (need != 0)
+        return true;
+    return false;
+  }
+
+  /** Set the input and output slots of a node's op. */
+
+  private static void setSlots(Node node)
+  {
+    CompiledOp op = node.op;
+    for (int i = 0; i < node.source.length; i++)
+      op.input[i] = (node.source[i] == null ? -1 : node.source[i].slot[node.sourcePort[i]]);
+    System.arraycopy(node.slot, 0, op.output, 0, node.slot.length);
+  }
+
+  /** Record every slot a node's op reads and writes. */
+
+  private static void setBatchSlots(Node node)
+  {
+    ArrayList<Integer> read = new ArrayList<Integer>(), write = new ArrayList<Integer>();
+    for (int i = 0; i < node.source.length; i++)
+    {
+      Node source = node.source[i];
+      if (source != null)
+        for (int j = 0; j < source.width[node.sourcePort[i]]; j++)
+          read.add(source.slot[node.sourcePort[i]]+j);
+    }
+    for (int i = 0; i < node.slot.length; i++)
+      for (int j = 0; j < node.width[i]; j++)
+        write.add(node.slot[i]+j);
+    for (int j = 0; j < node.op.getScratchSize(); j++)
+      write.add(node.scratch+j);
+    node.op.read = toArray(read);
+    node.op.write = toArray(write);
+  }
+
+  private static int[] toArray(List<Integer> list)
+  {
+    int array[] = new int [list.size()];
+    for (int i = 0; i < array.length; i++)
+      array[i] = list.get(i);
+    return array;
+  }
+
+  /** Allocate space in the slot array. */
+
+  private int allocate(int size)
+  {
+    int first = numSlots;
+    numSlots += size;
+    if (numSlots > slot.length)
+      slot = Arrays.copyOf(slot, Math.max(numSlots, slot.length*2));
+    return first;
+  }
+
+  /** Allocate the slots for every output of a node, and add it to the list of nodes. */
+
+  private Node addNode(Node node, int types[])
+  {
+    for (int i = 0; i < types.length; i++)
+    {
+      node.width[i] = (types[i] == IOPort.COLOR ? 3 : 5);
+      node.slot[i] = allocate(node.width[i]);
+    }
+    if (node.op != null && node.op.getScratchSize() > 0)
+    {
+      node.scratch = allocate(node.op.getScratchSize());
+      node.op.setScratch(node.scratch);
+    }
+    order.add(node);
+    return node;
+  }
+
+  /** Create a node with a constant numeric value. */
+
+  private Node constant(double value)
+  {
+    Node node = addNode(new Node(null, null, 0, 1), new int [] {IOPort.NUMBER});
+    node.constant = true;
+    slot[node.slot[0]] = value;
+    return node;
+  }
+
+  /** Create a node with a constant color. */
+
+  private Node constant(RGBColor color)
+  {
+    Node node = addNode(new Node(null, null, 0, 1), new int [] {IOPort.COLOR});
+    node.constant = true;
+    slot[node.slot[0]] = color.getRed();
+    slot[node.slot[0]+1] = color.getGreen();
+    slot[node.slot[0]+2] = color.getBlue();
+    return node;
+  }
+
+  /** Get the node for one of the coordinates of the point. */
+
+  private Node coordinate(int which)
+  {
+    if (coordinate[which] == null)
+    {
+      CompiledOp.Coordinate op = new CompiledOp.Coordinate(which);
+      coordinate[which] = addNode(new Node(op, null, 0, 1), new int [] {IOPort.NUMBER});
+      op.output[0] = coordinate[which].slot[0];
+      op.setGradient(slot);
+    }
+    return coordinate[which];
+  }
+
+  /**
+   * Set one input of a node.
+   *
+   * @param node          the node whose input to set
+   * @param which         the index of the input
+   * @param module        the module the input belongs to
+   * @param defaultNode   the node to use if the input is not connected
+   */
+
+  private void connect(Node node, int which, Module module, Node defaultNode)
+  {
+    Module from = module.linkFrom[which];
+    int port = module.linkFromIndex[which];
+    if (from == null)
+    {
+      node.source[which] = defaultNode;
+      return;
+    }
+
+    // An expression module is replaced by the modules it was built from.
+
+    while (from instanceof ExprModule && !fallback.contains(from))
+    {
+      ExprModule expr = (ExprModule) from;
+      from = expr.compiled.module;
+      port = expr.compiled.oport;
+    }
+    Node source = nodes.get(from);
+    if (source == null)
+    {
+      source = createNode(from);
+      nodes.put(from, source);
+    }
+    node.source[which] = source;
+    node.sourcePort[which] = port;
+  }
+
+  /**
+   * Create a node whose op evaluates a module.
+   *
+   * @param op         the op to evaluate the module
+   * @param module     the module
+   * @param defaults   the nodes to use for any inputs that are not connected.  For a ModuleOp, these are null.
+   */
+
+  private Node opNode(CompiledOp op, Module module, Node... defaults)
+  {
+    IOPort outputs[] = module.getOutputPorts();
+    Node node = new Node(op, module, defaults.length, outputs.length);
+    boolean constant = op.isPure();
+    for (int i = 0; i < defaults.length; i++)
+    {
+      connect(node, i, module, defaults[i]);
+      constant &= (node.source[i] != null && node.source[i].constant);
+    }
+    int types[] = new int [outputs.length];
+    for (int i = 0; i < types.length; i++)
+      types[i] = outputs[i].getValueType();
+    addNode(node, types);
+    if (constant)
+    {
+      // Evaluate it now.
+
+      setSlots(node);
+      Arrays.fill(op.demand, CompiledOp.ALL);
+      op.evaluate(new CompiledProcedure.Frame(slot), null);
+      node.constant = true;
+    }
+    return node;
+  }
+
+  /** Create the node for a module. */
+
+  private Node createNode(Module module)
+  {
+    Class<?> cls = module.getClass();
+    if (!COMPILABLE.contains(cls) || fallback.contains(module))
+    {
+      CompiledOp op = new CompiledOp.Interpreted(module);
+      return opNode(op, module);
+    }
+    if (cls == NumberModule.class)
+      return constant(((NumberModule) module).getValue());
+    if (cls == ColorModule.class)
+      return constant(((ColorModule) module).getColor());
+    if (cls == CoordinateModule.class)
+      return coordinate(((CoordinateModule) module).coordinate);
+    if (cls == SumModule.class)
+      return opNode(new CompiledOp.Sum(), module, constant(0.0), constant(0.0));
+    if (cls == DifferenceModule.class)
+      return opNode(new CompiledOp.Difference(), module, constant(0.0), constant(0.0));
+    if (cls == ProductModule.class)
+    {
+      if (!module.inputConnected(0) || !module.inputConnected(1))
+        return constant(0.0);
+      return opNode(new CompiledOp.Product(), module, null, null);
+    }
+    if (cls == RatioModule.class && module.inputConnected(0) && module.inputConnected(1))
+      return opNode(new CompiledOp.Ratio(), module, null, null);
+    if (cls == ScaleShiftModule.class)
+    {
+      ScaleShiftModule scaleShift = (ScaleShiftModule) module;
+      if (!module.inputConnected(0))
+        return constant(scaleShift.getShift());
+      return opNode(new CompiledOp.ScaleShift(scaleShift.getScale(), scaleShift.getShift()), module, (Node) null);
+    }
+    if (cls == NoiseModule.class)
+    {
+      NoiseModule noise = (NoiseModule) module;
+      return opNode(new CompiledOp.Noise(noise.getOctaves(), noise.getAmplitude()), module,
+          coordinate(CoordinateModule.X), coordinate(CoordinateModule.Y), coordinate(CoordinateModule.Z), constant(0.5));
+    }
+    if (cls == TurbulenceModule.class)
+    {
+      TurbulenceModule turbulence = (TurbulenceModule) module;
+      return opNode(new CompiledOp.Turbulence(turbulence.getOctaves(), turbulence.getAmplitude()), module,
+          coordinate(CoordinateModule.X), coordinate(CoordinateModule.Y), coordinate(CoordinateModule.Z), constant(0.5));
+    }
+    if (cls == CellsModule.class)
+      return opNode(new CompiledOp.Cells(((CellsModule) module).getMetric()), module,
+          coordinate(CoordinateModule.X), coordinate(CoordinateModule.Y), coordinate(CoordinateModule.Z));
+    RGBColor black = new RGBColor(0.0f, 0.0f, 0.0f), white = new RGBColor(1.0f, 1.0f, 1.0f);
+    if (cls == RGBModule.class)
+      return opNode(new CompiledOp.RGB(), module, constant(0.0), constant(0.0), constant(0.0));
+    if (cls == ColorSumModule.class)
+      return opNode(new CompiledOp.ColorArithmetic(CompiledOp.ColorArithmetic.SUM), module, constant(black), constant(black));
+    if (cls == ColorDifferenceModule.class)
+      return opNode(new CompiledOp.ColorArithmetic(CompiledOp.ColorArithmetic.DIFFERENCE), module, constant(black), constant(black));
+    if (cls == ColorProductModule.class)
+      return opNode(new CompiledOp.ColorArithmetic(CompiledOp.ColorArithmetic.PRODUCT), module, constant(white), constant(white));
+    if (cls == ColorScaleModule.class)
+      return opNode(new CompiledOp.ColorScale(), module, constant(white), constant(1.0));
+    if (cls == BlendModule.class)
+      return opNode(new CompiledOp.Blend(), module, constant(black), constant(white), constant(0.5));
+    return opNode(new CompiledOp.ModuleOp(module), module, new Node [module.getInputPorts().length]);
+  }
+}
@@ -27,13 +27,62 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
 {
   private Procedure proc;
   private double antialiasing;
-  private ThreadLocal renderingProc;
+  private volatile CompiledProcedure compiled[];
+  private int bakeSize;
+  private volatile Baked baked;
+  private volatile boolean bakeCurrent;
+
+  /** The images a texture has been baked into. */
+
+  private static class Baked
+  {
+    ImageMapTexture texture;
+    ImageOrValue bumpX, bumpY;
+    double bumpOffset, displacementOffset;
+
+    Baked()
+    {
+    }
+
+    Baked(DataInputStream in, Scene theScene) throws IOException, InvalidObjectException
+    {
+      texture = new ImageMapTexture(in, theScene);
+      bumpX = new ImageOrValue(in, theScene);
+      bumpY = new ImageOrValue(in, theScene);
+      bumpOffset = in.readDouble();
+      displacementOffset = in.readDouble();
+    }
+
+    void writeToFile(DataOutputStream out, Scene theScene) throws IOException
+    {
+      texture.writeToFile(out, theScene);
+      bumpX.writeToFile(out, theScene);
+      bumpY.writeToFile(out, theScene);
+      out.writeDouble(bumpOffset);
+      out.writeDouble(displacementOffset);
+    }
+
+    Baked duplicate()
+    {
+      Baked b = new Baked();
+      b.texture = (ImageMapTexture) texture.duplicate();
+      b.bumpX = bumpX.duplicate();
+      b.bumpY = bumpY.duplicate();
+      b.bumpOffset = bumpOffset;
+      b.displacementOffset = displacementOffset;
+      return b;
+    }
+
+    boolean usesImage(ImageMap image)
+    {
+      return (texture.usesImage(image) || bumpX.getImage() == image || bumpY.getImage() == image);
+    }
+  }
 
   public ProceduralTexture2D()
   {
     proc = createProcedure();
     antialiasing = 1.0;
-    initThreadLocal();
   }
 
   /**
@@ -57,20 +106,173 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
   }
 
   /**
-   * Reinitialize the ThreadLocal that holds copies of the Procedure during rendering.
+   * Discard the compiled form of the Procedure.  This must be called whenever the Procedure is modified.
+   */
+
+  private void procedureChanged()
+  {
+    compiled = null;
+    bakeCurrent = false;
+  }
+
+  /**
+   * Get the width and height of the images this texture is baked into, or 0 if it is not baked.
+   */
+
+  public int getBakeSize()
+  {
+    return bakeSize;
+  }
+
+  /**
+   * Set the width and height of the images this texture is baked into, or 0 if it should not be baked.
+   * The images are not created until {@link #updateBakedImages(Scene)} is called.
+   */
+
+  public void setBakeSize(int size)
+  {
+    bakeSize = size;
+  }
+
+  /**
+   * Determine whether this texture is currently being looked up in baked images instead of evaluating
+   * the procedure.
+   */
+
+  public boolean isBaked()
+  {
+    return (baked != null && bakeCurrent);
+  }
+
+  /**
+   * Bake the texture into images.  The procedure is evaluated on a grid covering the unit square, and the
+   * results are stored as images in the scene.  Renderers then look up the images for points inside the
+   * unit square, and only evaluate the procedure for points outside it.  Any images this texture was
+   * previously baked into are removed from the scene.
+   * <p>
+   * The images record the texture at the scene's current time, as seen head on, so baking is only
+   * appropriate for textures which do not vary with time or view angle.  Textures with parameters are
+   * never baked, since their appearance differs between objects.  Nothing is baked if the bake size is 0.
+   */
+
+  public void updateBakedImages(Scene scene)
+  {
+    Baked old = baked;
+    bakeCurrent = false;
+    baked = null;
+    if (old != null)
+      for (int i = scene.getNumImages()-1; i >= 0; i--)
+        if (old.usesImage(scene.getImage(i)))
+          scene.removeImage(i);
+    if (bakeSize == 0 || getParameters().length > 0)
+      return;
+    OutputModule output[] = proc.getOutputModules();
+    boolean bump = output[9].inputConnected(0);
+    TextureBaker baker = new TextureBaker(proc, new int [] {0, 1, 2, 3, 4, 5, 6, 7, 8, 10}, (bump ? new int [] {9} : new int [0]),
+        bakeSize, bakeSize, antialiasing, scene.getTime());
+    Baked b = new Baked();
+    ImageMapTexture tex = b.texture = new ImageMapTexture();
+    tex.tileX = tex.tileY = false;
+    try
+    {
+      tex.diffuseColor = bakeColor(baker, 0, scene);
+      tex.specularColor = bakeColor(baker, 1, scene);
+      tex.transparentColor = bakeColor(baker, 2, scene);
+      tex.emissiveColor = bakeColor(baker, 3, scene);
+      tex.transparency = bakeValue(baker, 4, scene);
+      tex.specularity = bakeValue(baker, 5, scene);
+      tex.shininess = bakeValue(baker, 6, scene);
+      tex.roughness = bakeValue(baker, 7, scene);
+      tex.cloudiness = bakeValue(baker, 8, scene);
+
+      // The bump map is baked as the two components of its gradient, since differentiating an 8 bit
+      // image of the height would be very inaccurate.
+
+      double bound = (bump ? baker.getGradientBound(9) : 0.0);
+      b.bumpX = b.bumpY = new ImageOrValue(0.0f);
+      if (bound > 0.0)
+      {
+        b.bumpX = new ImageOrValue((float) (2.0*bound), addBakedImage(baker.createGradientImage(9, 0, bound), output[9], " X", scene), 0);
+        b.bumpY = new ImageOrValue((float) (2.0*bound), addBakedImage(baker.createGradientImage(9, 1, bound), output[9], " Y", scene), 0);
+        b.bumpOffset = bound;
+      }
+
+      // The displacement is baked relative to its minimum value, since ImageOrValue cannot represent an offset.
+
+      double min = baker.getMinimum(10), max = baker.getMaximum(10);
+      b.displacementOffset = min;
+      if (max > min)
+        tex.displacement = new ImageOrValue((float) (max-min), addBakedImage(baker.createValueImage(10, min, max), output[10], "", scene), 0);
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    baked = b;
+    bakeCurrent = true;
+  }
+
+  /** Create the baked version of a color output.  If it is not connected, it is simply a constant. */
+
+  private ImageOrColor bakeColor(TextureBaker baker, int which, Scene scene) throws InterruptedException
+  {
+    OutputModule output = proc.getOutputModules()[which];
+    if (!output.inputConnected(0))
+    {
+      RGBColor color = new RGBColor();
+      baker.getColor(which, 0, 0, color);
+      return new ImageOrColor(color);
+    }
+    ImageMap image = addBakedImage(baker.createColorImage(which), output, "", scene);
+    return new ImageOrColor(new RGBColor(1.0f, 1.0f, 1.0f), image);
+  }
+
+  /**
+   * Create the baked version of a numeric output whose value is clamped to the range [0, 1].  If it is not
+   * connected, it is simply a constant.
    */
 
-  private void initThreadLocal()
+  private ImageOrValue bakeValue(TextureBaker baker, int which, Scene scene) throws InterruptedException
   {
-    renderingProc = new ThreadLocal() {
-      @Override
-      protected Object initialValue()
+    OutputModule output = proc.getOutputModules()[which];
+    if (!output.inputConnected(0))
+      return new ImageOrValue((float) Math.max(0.0, Math.min(1.0, baker.getValue(which, 0, 0))));
+    ImageMap image = addBakedImage(baker.createValueImage(which, 0.0, 1.0), output, "", scene);
+    return new ImageOrValue(1.0f, image, 0);
+  }
+
+  /** Add a newly baked image to the scene. */
+
+  private ImageMap addBakedImage(ImageMap image, OutputModule output, String suffix, Scene scene)
+  {
+    image.setName(getName()+" ("+output.getName()+suffix+")");
+    scene.addImage(image);
+    return image;
+  }
+
+  /**
+   * Get one of the compiled forms of the Procedure used during rendering.  The Procedure is compiled three
+   * times: once for getTextureSpec(), once for getTransparency(), and once for getDisplacement(), so each one
+   * only calculates the outputs it uses.  This is done the first time any of them is needed, and the results
+   * are shared by all threads.
+   */
+
+  private CompiledProcedure getCompiledProcedure(int which)
+  {
+    CompiledProcedure result[] = compiled;
+    if (result == null)
+      synchronized (this)
       {
-        Procedure localProc = createProcedure();
-        localProc.copy(proc);
-        return localProc;
+        if (compiled == null)
+          compiled = new CompiledProcedure [] {
+            new CompiledProcedure(proc, new int [] {0, 1, 2, 3, 4, 5, 6, 7, 8}, new int [] {9}),
+            new CompiledProcedure(proc, new int [] {2, 4}, new int [0]),
+            new CompiledProcedure(proc, new int [] {10}, new int [0])
+          };
+        result = compiled;
       }
-    };
+    return result[which];
   }
 
   public static String getTypeName()
@@ -81,86 +283,128 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
   @Override
   public void getAverageSpec(TextureSpec spec, double time, double param[])
   {
+    Baked b = baked;
+    if (b != null && bakeCurrent)
+    {
+      b.texture.getAverageSpec(spec, time, param);
+      return;
+    }
     getTextureSpec(spec, 0.0, 0.0, 1e3, 1e3, 1.0, time, param);
   }
 
   @Override
   public void getTextureSpec(TextureSpec spec, double x, double y, double xsize, double ysize, double angle, double t, double param[])
   {
-    Procedure pr = (Procedure) renderingProc.get();
-    OutputModule output[] = pr.getOutputModules();
-    PointInfo info = new PointInfo();
-    info.x = x;
-    info.y = y;
-    info.z = 0.0;
-    info.xsize = xsize*antialiasing;
-    info.ysize = ysize*antialiasing;
-    info.zsize = 0.0;
-    info.viewangle = angle;
-    info.t = t;
-    info.param = param;
-    pr.initForPoint(info);
-    double transparency = output[4].getAverageValue(0, 0.0);
-    double specularity = output[5].getAverageValue(0, 0.0);
-    double shininess = output[6].getAverageValue(0, 0.0);
-    if (transparency < 0.0)
-      transparency = 0.0;
-    if (transparency > 1.0)
-      transparency = 1.0;
-    if (specularity < 0.0)
-      specularity = 0.0;
-    if (specularity > 1.0)
-      specularity = 1.0;
-    if (shininess < 0.0)
-      shininess = 0.0;
-    if (shininess > 1.0)
-      shininess = 1.0;
-    output[0].getColor(0, spec.diffuse, 0.0);
-    output[1].getColor(0, spec.specular, 0.0);
-    output[2].getColor(0, spec.transparent, 0.0);
-    output[3].getColor(0, spec.emissive, 0.0);
-    spec.hilight.copy(spec.specular);
-    spec.diffuse.scale((1.0f-transparency)*(1.0f-specularity));
-    spec.specular.scale((1.0f-transparency)*specularity);
-    spec.hilight.scale((1.0f-transparency)*shininess);
-    spec.transparent.scale(transparency);
-    spec.roughness = output[7].getAverageValue(0, 0.0);
-    spec.cloudiness = output[8].getAverageValue(0, 0.0);
-    if (spec.roughness < 0.0)
-      spec.roughness = 0.0;
-    if (spec.roughness > 1.0)
-      spec.roughness = 1.0;
-    if (spec.cloudiness < 0.0)
-      spec.cloudiness = 0.0;
-    if (spec.cloudiness > 1.0)
-      spec.cloudiness = 1.0;
-    output[9].getValueGradient(0, spec.bumpGrad, 0.0);
-    spec.bumpGrad.scale(0.04);
+    Baked b = baked;
+    if (b != null && bakeCurrent && isInUnitSquare(x, y))
+    {
+      b.texture.getTextureSpec(spec, x, y, xsize, ysize, angle, t, param);
+      double bumpX = b.bumpX.getValue(false, false, x, y, xsize, ysize)-b.bumpOffset;
+      double bumpY = b.bumpY.getValue(false, false, x, y, xsize, ysize)-b.bumpOffset;
+      spec.bumpGrad.set(bumpX*0.04, bumpY*0.04, 0.0);
+      return;
+    }
+    CompiledProcedure program = getCompiledProcedure(0);
+    CompiledProcedure.Frame frame = program.acquireFrame();
+    try
+    {
+      PointInfo info = new PointInfo();
+      info.x = x;
+      info.y = y;
+      info.z = 0.0;
+      info.xsize = xsize*antialiasing;
+      info.ysize = ysize*antialiasing;
+      info.zsize = 0.0;
+      info.viewangle = angle;
+      info.t = t;
+      info.param = param;
+      frame.evaluate(info);
+      double transparency = frame.getOutputValue(4);
+      double specularity = frame.getOutputValue(5);
+      double shininess = frame.getOutputValue(6);
+      if (transparency < 0.0)
+        transparency = 0.0;
+      if (transparency > 1.0)
+        transparency = 1.0;
+      if (specularity < 0.0)
+        specularity = 0.0;
+      if (specularity > 1.0)
+        specularity = 1.0;
+      if (shininess < 0.0)
+        shininess = 0.0;
+      if (shininess > 1.0)
+        shininess = 1.0;
+      frame.getOutputColor(0, spec.diffuse);
+      frame.getOutputColor(1, spec.specular);
+      frame.getOutputColor(2, spec.transparent);
+      frame.getOutputColor(3, spec.emissive);
+      spec.hilight.copy(spec.specular);
+      spec.diffuse.scale((1.0f-transparency)*(1.0f-specularity));
+      spec.specular.scale((1.0f-transparency)*specularity);
+      spec.hilight.scale((1.0f-transparency)*shininess);
+      spec.transparent.scale(transparency);
+      spec.roughness = frame.getOutputValue(7);
+      spec.cloudiness = frame.getOutputValue(8);
+      if (spec.roughness < 0.0)
+        spec.roughness = 0.0;
+      if (spec.roughness > 1.0)
+        spec.roughness = 1.0;
+      if (spec.cloudiness < 0.0)
+        spec.cloudiness = 0.0;
+      if (spec.cloudiness > 1.0)
+        spec.cloudiness = 1.0;
+      frame.getOutputGradient(9, spec.bumpGrad);
+      spec.bumpGrad.scale(0.04);
+    }
+    finally
+    {
+      program.releaseFrame(frame);
+    }
   }
 
   @Override
   public void getTransparency(RGBColor trans, double x, double y, double xsize, double ysize, double angle, double t, double param[])
   {
-    Procedure pr = (Procedure) renderingProc.get();
-    OutputModule output[] = pr.getOutputModules();
-    PointInfo info = new PointInfo();
-    info.x = x;
-    info.y = y;
-    info.z = 0.0;
-    info.xsize = xsize*antialiasing;
-    info.ysize = ysize*antialiasing;
-    info.zsize = 0.0;
-    info.viewangle = angle;
-    info.t = t;
-    info.param = param;
-    pr.initForPoint(info);
-    double transparency = output[4].getAverageValue(0, 0.0);
-    if (transparency < 0.0)
-      transparency = 0.0;
-    if (transparency > 1.0)
-      transparency = 1.0;
-    output[2].getColor(0, trans, 0.0);
-    trans.scale(transparency);
+    Baked b = baked;
+    if (b != null && bakeCurrent && isInUnitSquare(x, y))
+    {
+      b.texture.getTransparency(trans, x, y, xsize, ysize, angle, t, param);
+      return;
+    }
+    CompiledProcedure program = getCompiledProcedure(1);
+    CompiledProcedure.Frame frame = program.acquireFrame();
+    try
+    {
+      PointInfo info = new PointInfo();
+      info.x = x;
+      info.y = y;
+      info.z = 0.0;
+      info.xsize = xsize*antialiasing;
+      info.ysize = ysize*antialiasing;
+      info.zsize = 0.0;
+      info.viewangle = angle;
+      info.t = t;
+      info.param = param;
+      frame.evaluate(info);
+      double transparency = frame.getOutputValue(4);
+      if (transparency < 0.0)
+        transparency = 0.0;
+      if (transparency > 1.0)
+        transparency = 1.0;
+      frame.getOutputColor(2, trans);
+      trans.scale(transparency);
+    }
+    finally
+    {
+      program.releaseFrame(frame);
+    }
+  }
+
+  /** Determine whether a point lies in the region covered by the baked images. */
+
+  private static boolean isInUnitSquare(double x, double y)
+  {
+    return (x >= 0.0 && x <= 1.0 && y >= 0.0 && y <= 1.0);
   }
 
   /** Get the procedure used by this texture. */
@@ -180,26 +424,36 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
     for (int i = 0; i < modules.length; i++)
       if (modules[i] instanceof ImageModule && ((ImageModule) modules[i]).getMap() == image)
         return true;
-    return false;
+    return (baked != null && baked.usesImage(image));
   }
 
   @Override
   public double getDisplacement(double x, double y, double xsize, double ysize, double t, double param[])
   {
-    Procedure pr = (Procedure) renderingProc.get();
-    OutputModule output[] = pr.getOutputModules();
-    PointInfo info = new PointInfo();
-    info.x = x;
-    info.y = y;
-    info.z = 0.0;
-    info.xsize = xsize*antialiasing;
-    info.ysize = ysize*antialiasing;
-    info.zsize = 0.0;
-    info.viewangle = 1.0;
-    info.t = t;
-    info.param = param;
-    pr.initForPoint(info);
-    return output[10].getAverageValue(0, 0.0);
+    Baked b = baked;
+    if (b != null && bakeCurrent && isInUnitSquare(x, y))
+      return b.displacementOffset+b.texture.getDisplacement(x, y, xsize, ysize, t, param);
+    CompiledProcedure program = getCompiledProcedure(2);
+    CompiledProcedure.Frame frame = program.acquireFrame();
+    try
+    {
+      PointInfo info = new PointInfo();
+      info.x = x;
+      info.y = y;
+      info.z = 0.0;
+      info.xsize = xsize*antialiasing;
+      info.ysize = ysize*antialiasing;
+      info.zsize = 0.0;
+      info.viewangle = 1.0;
+      info.t = t;
+      info.param = param;
+      frame.evaluate(info);
+      return frame.getOutputValue(10);
+    }
+    finally
+    {
+      program.releaseFrame(frame);
+    }
   }
 
   @Override
@@ -210,6 +464,12 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
     tex.proc.copy(proc);
     tex.setName(getName());
     tex.antialiasing = antialiasing;
+    tex.bakeSize = bakeSize;
+    if (baked != null)
+    {
+      tex.baked = baked.duplicate();
+      tex.bakeCurrent = bakeCurrent;
+    }
     return tex;
   }
 
@@ -273,7 +533,7 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
   {
     short version = in.readShort();
 
-    if (version < 0 || version > 1)
+    if (version < 0 || version > 2)
       throw new InvalidObjectException("");
     setName(in.readUTF());
     antialiasing = in.readDouble();
@@ -308,16 +568,28 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
             proc.addLink(new Link(from, to));
           }
     }
-    initThreadLocal();
+    if (version > 1)
+    {
+      bakeSize = in.readInt();
+      if (in.readBoolean())
+      {
+        baked = new Baked(in, theScene);
+        bakeCurrent = true;
+      }
+    }
   }
 
   @Override
   public void writeToFile(DataOutputStream out, Scene theScene) throws IOException
   {
-    out.writeShort(1);
+    out.writeShort(2);
     out.writeUTF(getName());
     out.writeDouble(antialiasing);
     proc.writeToStream(out, theScene);
+    out.writeInt(bakeSize);
+    out.writeBoolean(isBaked());
+    if (isBaked())
+      baked.writeToFile(out, theScene);
   }
 
   /** Get the title of the procedure's editing window. */
@@ -373,7 +645,7 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
   @Override
   public void updatePreview(Object preview)
   {
-    initThreadLocal();
+    procedureChanged();
     ((MaterialPreviewer) preview).render();
   }
 
@@ -414,7 +686,9 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
   @Override
   public void acceptEdits(ProcedureEditor editor)
   {
-    initThreadLocal();
+    procedureChanged();
+    if (bakeSize > 0 || baked != null)
+      updateBakedImages(editor.getScene());
     int i = editor.getScene().indexOf(this);
     if (i > -1)
       editor.getScene().changeTexture(i);
@@ -426,13 +700,15 @@ public class ProceduralTexture2D extends Texture2D implements ProcedureOwner
   public void editProperties(ProcedureEditor editor)
   {
     ValueField aliasField = new ValueField(antialiasing, ValueField.POSITIVE);
+    ValueField bakeField = new ValueField(bakeSize, ValueField.NONNEGATIVE+ValueField.INTEGER);
     ComponentsDialog dlg = new ComponentsDialog(editor.getParentFrame(), Translate.text("editTextureTitle"),
-      new Widget [] {aliasField,},
-      new String [] {Translate.text("Antialiasing")});
+      new Widget [] {aliasField, bakeField},
+      new String [] {Translate.text("Antialiasing"), Translate.text("bakeResolution")});
     if (!dlg.clickedOk())
       return;
     editor.saveState(false);
     antialiasing = aliasField.getValue();
+    bakeSize = (int) bakeField.getValue();
     editor.updatePreview();
   }
 }
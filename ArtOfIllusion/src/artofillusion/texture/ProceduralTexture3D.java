@@ -27,13 +27,12 @@ public class ProceduralTexture3D extends Texture3D implements ProcedureOwner
 {
   private Procedure proc;
   private double antialiasing;
-  private ThreadLocal renderingProc;
+  private volatile CompiledProcedure compiled[];
 
   public ProceduralTexture3D()
   {
     proc = createProcedure();
     antialiasing = 1.0;
-    initThreadLocal();
   }
 
   /**
@@ -58,20 +57,36 @@ public class ProceduralTexture3D extends Texture3D implements ProcedureOwner
   }
 
   /**
-   * Reinitialize the ThreadLocal that holds copies of the Procedure during rendering.
+   * Discard the compiled form of the Procedure.  This must be called whenever the Procedure is modified.
    */
 
-  private void initThreadLocal()
+  private void procedureChanged()
   {
-    renderingProc = new ThreadLocal() {
-      @Override
-      protected Object initialValue()
+    compiled = null;
+  }
+
+  /**
+   * Get one of the compiled forms of the Procedure used during rendering.  The Procedure is compiled three
+   * times: once for getTextureSpec(), once for getTransparency(), and once for getDisplacement(), so each one
+   * only calculates the outputs it uses.  This is done the first time any of them is needed, and the results
+   * are shared by all threads.
+   */
+
+  private CompiledProcedure getCompiledProcedure(int which)
+  {
+    CompiledProcedure result[] = compiled;
+    if (result == null)
+      synchronized (this)
       {
-        Procedure localProc = createProcedure();
-        localProc.copy(proc);
-        return localProc;
+        if (compiled == null)
+          compiled = new CompiledProcedure [] {
+            new CompiledProcedure(proc, new int [] {0, 1, 2, 3, 4, 5, 6, 7, 8}, new int [] {9}),
+            new CompiledProcedure(proc, new int [] {2, 4}, new int [0]),
+            new CompiledProcedure(proc, new int [] {10}, new int [0])
+          };
+        result = compiled;
       }
-    };
+    return result[which];
   }
 
   public static String getTypeName()
@@ -88,80 +103,94 @@ public class ProceduralTexture3D extends Texture3D implements ProcedureOwner
   @Override
   public void getTextureSpec(TextureSpec spec, double x, double y, double z, double xsize, double ysize, double zsize, double angle, double t, double param[])
   {
-    Procedure pr = (Procedure) renderingProc.get();
-    OutputModule output[] = pr.getOutputModules();
-    PointInfo info = new PointInfo();
-    info.x = x;
-    info.y = y;
-    info.z = z;
-    info.xsize = xsize*antialiasing;
-    info.ysize = ysize*antialiasing;
-    info.zsize = zsize*antialiasing;
-    info.viewangle = angle;
-    info.t = t;
-    info.param = param;
-    pr.initForPoint(info);
-    double transparency = output[4].getAverageValue(0, 0.0);
-    double specularity = output[5].getAverageValue(0, 0.0);
-    double shininess = output[6].getAverageValue(0, 0.0);
-    if (transparency < 0.0)
-      transparency = 0.0;
-    if (transparency > 1.0)
-      transparency = 1.0;
-    if (specularity < 0.0)
-      specularity = 0.0;
-    if (specularity > 1.0)
-      specularity = 1.0;
-    if (shininess < 0.0)
-      shininess = 0.0;
-    if (shininess > 1.0)
-      shininess = 1.0;
-    output[0].getColor(0, spec.diffuse, 0.0);
-    output[1].getColor(0, spec.specular, 0.0);
-    output[2].getColor(0, spec.transparent, 0.0);
-    output[3].getColor(0, spec.emissive, 0.0);
-    spec.hilight.copy(spec.specular);
-    spec.diffuse.scale((1.0f-transparency)*(1.0f-specularity));
-    spec.specular.scale((1.0f-transparency)*specularity);
-    spec.hilight.scale((1.0f-transparency)*shininess);
-    spec.transparent.scale(transparency);
-    spec.roughness = output[7].getAverageValue(0, 0.0);
-    spec.cloudiness = output[8].getAverageValue(0, 0.0);
-    if (spec.roughness < 0.0)
-      spec.roughness = 0.0;
-    if (spec.roughness > 1.0)
-      spec.roughness = 1.0;
-    if (spec.cloudiness < 0.0)
-      spec.cloudiness = 0.0;
-    if (spec.cloudiness > 1.0)
-      spec.cloudiness = 1.0;
-    output[9].getValueGradient(0, spec.bumpGrad, 0.0);
-    spec.bumpGrad.scale(0.04);
+    CompiledProcedure program = getCompiledProcedure(0);
+    CompiledProcedure.Frame frame = program.acquireFrame();
+    try
+    {
+      PointInfo info = new PointInfo();
+      info.x = x;
+      info.y = y;
+      info.z = z;
+      info.xsize = xsize*antialiasing;
+      info.ysize = ysize*antialiasing;
+      info.zsize = zsize*antialiasing;
+      info.viewangle = angle;
+      info.t = t;
+      info.param = param;
+      frame.evaluate(info);
+      double transparency = frame.getOutputValue(4);
+      double specularity = frame.getOutputValue(5);
+      double shininess = frame.getOutputValue(6);
+      if (transparency < 0.0)
+        transparency = 0.0;
+      if (transparency > 1.0)
+        transparency = 1.0;
+      if (specularity < 0.0)
+        specularity = 0.0;
+      if (specularity > 1.0)
+        specularity = 1.0;
+      if (shininess < 0.0)
+        shininess = 0.0;
+      if (shininess > 1.0)
+        shininess = 1.0;
+      frame.getOutputColor(0, spec.diffuse);
+      frame.getOutputColor(1, spec.specular);
+      frame.getOutputColor(2, spec.transparent);
+      frame.getOutputColor(3, spec.emissive);
+      spec.hilight.copy(spec.specular);
+      spec.diffuse.scale((1.0f-transparency)*(1.0f-specularity));
+      spec.specular.scale((1.0f-transparency)*specularity);
+      spec.hilight.scale((1.0f-transparency)*shininess);
+      spec.transparent.scale(transparency);
+      spec.roughness = frame.getOutputValue(7);
+      spec.cloudiness = frame.getOutputValue(8);
+      if (spec.roughness < 0.0)
+        spec.roughness = 0.0;
+      if (spec.roughness > 1.0)
+        spec.roughness = 1.0;
+      if (spec.cloudiness < 0.0)
+        spec.cloudiness = 0.0;
+      if (spec.cloudiness > 1.0)
+        spec.cloudiness = 1.0;
+      frame.getOutputGradient(9, spec.bumpGrad);
+      spec.bumpGrad.scale(0.04);
+    }
+    finally
+    {
+      program.releaseFrame(frame);
+    }
   }
 
   @Override
   public void getTransparency(RGBColor trans, double x, double y, double z, double xsize, double ysize, double zsize, double angle, double t, double param[])
   {
-    Procedure pr = (Procedure) renderingProc.get();
-    OutputModule output[] = pr.getOutputModules();
-    PointInfo info = new PointInfo();
-    info.x = x;
-    info.y = y;
-    info.z = z;
-    info.xsize = xsize*antialiasing;
-    info.ysize = ysize*antialiasing;
-    info.zsize = zsize*antialiasing;
-    info.viewangle = angle;
-    info.t = t;
-    info.param = param;
-    pr.initForPoint(info);
-    double transparency = output[4].getAverageValue(0, 0.0);
-    if (transparency < 0.0)
-      transparency = 0.0;
-    if (transparency > 1.0)
-      transparency = 1.0;
-    output[2].getColor(0, trans, 0.0);
-    trans.scale(transparency);
+    CompiledProcedure program = getCompiledProcedure(1);
+    CompiledProcedure.Frame frame = program.acquireFrame();
+    try
+    {
+      PointInfo info = new PointInfo();
+      info.x = x;
+      info.y = y;
+      info.z = z;
+      info.xsize = xsize*antialiasing;
+      info.ysize = ysize*antialiasing;
+      info.zsize = zsize*antialiasing;
+      info.viewangle = angle;
+      info.t = t;
+      info.param = param;
+      frame.evaluate(info);
+      double transparency = frame.getOutputValue(4);
+      if (transparency < 0.0)
+        transparency = 0.0;
+      if (transparency > 1.0)
+        transparency = 1.0;
+      frame.getOutputColor(2, trans);
+      trans.scale(transparency);
+    }
+    finally
+    {
+      program.releaseFrame(frame);
+    }
   }
 
   /** Get the procedure used by this texture. */
@@ -187,20 +216,27 @@ public class ProceduralTexture3D extends Texture3D implements ProcedureOwner
   @Override
   public double getDisplacement(double x, double y, double z, double xsize, double ysize, double zsize, double t, double param[])
   {
-    Procedure pr = (Procedure) renderingProc.get();
-    OutputModule output[] = pr.getOutputModules();
-    PointInfo info = new PointInfo();
-    info.x = x;
-    info.y = y;
-    info.z = z;
-    info.xsize = xsize*antialiasing;
-    info.ysize = ysize*antialiasing;
-    info.zsize = zsize*antialiasing;
-    info.viewangle = 1.0;
-    info.t = t;
-    info.param = param;
-    pr.initForPoint(info);
-    return output[10].getAverageValue(0, 0.0);
+    CompiledProcedure program = getCompiledProcedure(2);
+    CompiledProcedure.Frame frame = program.acquireFrame();
+    try
+    {
+      PointInfo info = new PointInfo();
+      info.x = x;
+      info.y = y;
+      info.z = z;
+      info.xsize = xsize*antialiasing;
+      info.ysize = ysize*antialiasing;
+      info.zsize = zsize*antialiasing;
+      info.viewangle = 1.0;
+      info.t = t;
+      info.param = param;
+      frame.evaluate(info);
+      return frame.getOutputValue(10);
+    }
+    finally
+    {
+      program.releaseFrame(frame);
+    }
   }
 
   /** Get the list of parameters for this texture. */
@@ -309,7 +345,6 @@ public class ProceduralTexture3D extends Texture3D implements ProcedureOwner
             proc.addLink(new Link(from, to));
           }
     }
-    initThreadLocal();
   }
 
   @Override
@@ -374,7 +409,7 @@ public class ProceduralTexture3D extends Texture3D implements ProcedureOwner
   @Override
   public void updatePreview(Object preview)
   {
-    initThreadLocal();
+    procedureChanged();
     ((MaterialPreviewer) preview).render();
   }
 
@@ -415,7 +450,7 @@ public class ProceduralTexture3D extends Texture3D implements ProcedureOwner
   @Override
   public void acceptEdits(ProcedureEditor editor)
   {
-    initThreadLocal();
+    procedureChanged();
     int i = editor.getScene().indexOf(this);
     if (i > -1)
       editor.getScene().changeTexture(i);
@@ -0,0 +1,266 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.texture;
+
+import artofillusion.image.*;
+import artofillusion.math.*;
+import artofillusion.procedural.*;
+import artofillusion.util.*;
+import java.awt.image.*;
+
+/**
+ * A TextureBaker evaluates outputs of a Procedure on a grid of points covering the unit square, and
+ * converts them to images.  This allows a 2D procedural texture to be replaced by images, which are
+ * much faster to look up while rendering than a complicated procedure is to evaluate.
+ * <p>
+ * Pixel (i, j) of each image holds the value at x = i/width and y = 1-j/height, so that looking up the
+ * images at (x, y) with {@link ImageMap} interpolates between the baked values.  The rows are evaluated
+ * in parallel on all available processors.
+ */
+
+public class TextureBaker
+{
+  private final int width, height;
+  private final float value[][], gradient[][];
+  private final boolean color[];
+
+  /**
+   * Evaluate a procedure.
+   *
+   * @param proc           the procedure to evaluate
+   * @param outputs        the indices of the output modules to evaluate
+   * @param gradients      the indices of the numeric output modules whose gradients should also be evaluated
+   * @param width          the width of the grid, in pixels
+   * @param height         the height of the grid, in pixels
+   * @param antialiasing   the width of the region each value should be averaged over, in pixels
+   * @param time           the time at which to evaluate the procedure
+   */
+
+  public TextureBaker(Procedure proc, int outputs[], int gradients[], int width, int height, final double antialiasing, final double time)
+  {
+    this.width = width;
+    this.height = height;
+    OutputModule output[] = proc.getOutputModules();
+    value = new float [output.length][];
+    color = new boolean [output.length];
+    for (int which : outputs)
+    {
+      color[which] = (output[which].getInputPorts()[0].getValueType() == IOPort.COLOR);
+      value[which] = new float [width*height*(color[which] ? 3 : 1)];
+    }
+    gradient = new float [output.length][];
+    for (int which : gradients)
+      gradient[which] = new float [width*height*2];
+    final CompiledProcedure program = new CompiledProcedure(proc, outputs, gradients);
+    ThreadManager.runInChunks(height, 4, new ThreadManager.RangeTask() {
+      @Override
+      public void execute(int start, int end)
+      {
+        evaluateRows(program, start, end, antialiasing, time);
+      }
+    });
+  }
+
+  /** Evaluate the procedure for a range of rows. */
+
+  private void evaluateRows(CompiledProcedure program, int start, int end, double antialiasing, double time)
+  {
+    CompiledProcedure.Batch batch = program.createBatch(width);
+    RGBColor c = new RGBColor();
+    Vec3 grad = new Vec3();
+    for (int i = 0; i < width; i++)
+    {
+      batch.x[i] = i/(double) width;
+      batch.xsize[i] = antialiasing/width;
+      batch.ysize[i] = antialiasing/height;
+      batch.viewangle[i] = 1.0;
+      batch.t[i] = time;
+    }
+    for (int j = start; j < end; j++)
+    {
+      double y = 1.0-j/(double) height;
+      for (int i = 0; i < width; i++)
+        batch.y[i] = y;
+      batch.evaluate(width);
+      int base = j*width;
+      for (int which = 0; which < value.length; which++)
+      {
+        float v[] = value[which];
+        if (v != null && color[which])
+          for (int i = 0; i < width; i++)
+          {
+            batch.getOutputColor(which, i, c);
+            v[3*(base+i)] = c.getRed();
+            v[3*(base+i)+1] = c.getGreen();
+            v[3*(base+i)+2] = c.getBlue();
+          }
+        else if (v != null)
+        {
+          double output[] = batch.getOutputValues(which);
+          for (int i = 0; i < width; i++)
+            v[base+i] = (float) output[i];
+        }
+        float g[] = gradient[which];
+        if (g != null)
+          for (int i = 0; i < width; i++)
+          {
+            batch.getOutputGradient(which, i, grad);
+            g[2*(base+i)] = (float) grad.x;
+            g[2*(base+i)+1] = (float) grad.y;
+          }
+      }
+    }
+  }
+
+  /** Get the width of the grid, in pixels. */
+
+  public int getWidth()
+  {
+    return width;
+  }
+
+  /** Get the height of the grid, in pixels. */
+
+  public int getHeight()
+  {
+    return height;
+  }
+
+  /** Get the value of a numeric output at pixel (i, j). */
+
+  public double getValue(int which, int i, int j)
+  {
+    return value[which][i+j*width];
+  }
+
+  /** Get the value of a color output at pixel (i, j). */
+
+  public void getColor(int which, int i, int j, RGBColor c)
+  {
+    int index = 3*(i+j*width);
+    c.setRGB(value[which][index], value[which][index+1], value[which][index+2]);
+  }
+
+  /** Get the smallest value of an output over the grid.  For a color output, this is the smallest component. */
+
+  public double getMinimum(int which)
+  {
+    float v[] = value[which], min = Float.MAX_VALUE;
+    for (int i = 0; i < v.length; i++)
+      if (v[i] < min)
+        min = v[i];
+    return min;
+  }
+
+  /** Get the largest value of an output over the grid.  For a color output, this is the largest component. */
+
+  public double getMaximum(int which)
+  {
+    float v[] = value[which], max = -Float.MAX_VALUE;
+    for (int i = 0; i < v.length; i++)
+      if (v[i] > max)
+        max = v[i];
+    return max;
+  }
+
+  /** Get the largest magnitude of either component of an output's gradient over the grid. */
+
+  public double getGradientBound(int which)
+  {
+    float g[] = gradient[which], max = 0.0f;
+    for (int i = 0; i < g.length; i++)
+      max = Math.max(max, Math.abs(g[i]));
+    return max;
+  }
+
+  /**
+   * Create an image from a color output.  If every component lies between 0 and 1, this is a MIPMappedImage.
+   * Otherwise it is an HDRImage, which can represent colors brighter than white.  Negative components are
+   * set to 0.
+   */
+
+  public ImageMap createColorImage(int which) throws InterruptedException
+  {
+    float v[] = value[which];
+    int pixels = width*height;
+    RGBColor c = new RGBColor();
+    if (getMaximum(which) <= 1.0)
+    {
+      int rgb[] = new int [pixels];
+      for (int i = 0; i < pixels; i++)
+      {
+        c.setRGB(v[3*i], v[3*i+1], v[3*i+2]);
+        rgb[i] = c.getARGB();
+      }
+      return createImage(rgb);
+    }
+    byte r[] = new byte [pixels], g[] = new byte [pixels], b[] = new byte [pixels], e[] = new byte [pixels];
+    for (int i = 0; i < pixels; i++)
+    {
+      c.setRGB(Math.max(v[3*i], 0.0f), Math.max(v[3*i+1], 0.0f), Math.max(v[3*i+2], 0.0f));
+      int ergb = c.getERGB();
+      r[i] = (byte) (ergb>>16);
+      g[i] = (byte) (ergb>>8);
+      b[i] = (byte) ergb;
+      e[i] = (byte) (ergb>>24);
+    }
+    return new HDRImage(r, g, b, e, width, height);
+  }
+
+  /**
+   * Create a grayscale image from a numeric output.  Values are mapped linearly so that min becomes
+   * black and max becomes white, and values outside that range are clamped.
+   */
+
+  public ImageMap createValueImage(int which, double min, double max) throws InterruptedException
+  {
+    return createGrayImage(value[which], 0, 1, min, max);
+  }
+
+  /**
+   * Create a grayscale image from one component of a numeric output's gradient.  Values are mapped linearly
+   * so that -bound becomes black and bound becomes white, and values outside that range are clamped.
+   *
+   * @param which   the index of the output
+   * @param axis    0 for the x component of the gradient, or 1 for the y component
+   * @param bound   the largest magnitude to represent
+   */
+
+  public ImageMap createGradientImage(int which, int axis, double bound) throws InterruptedException
+  {
+    return createGrayImage(gradient[which], axis, 2, -bound, bound);
+  }
+
+  /** Create a grayscale image from every stride'th element of an array, starting at offset. */
+
+  private ImageMap createGrayImage(float v[], int offset, int stride, double min, double max) throws InterruptedException
+  {
+    int pixels = width*height;
+    double scale = (max > min ? 255.0/(max-min) : 0.0);
+    int rgb[] = new int [pixels];
+    for (int i = 0; i < pixels; i++)
+    {
+      int gray = (int) Math.round((v[offset+i*stride]-min)*scale);
+      gray = Math.max(0, Math.min(255, gray));
+      rgb[i] = 0xFF000000 + (gray<<16) + (gray<<8) + gray;
+    }
+    return createImage(rgb);
+  }
+
+  /** Create a MIPMappedImage from an array of ARGB pixels. */
+
+  private ImageMap createImage(int rgb[]) throws InterruptedException
+  {
+    BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    im.setRGB(0, 0, width, height, rgb, 0, width);
+    return new MIPMappedImage(im);
+  }
+}
@@ -10,6 +10,7 @@
 
 package artofillusion.util;
 
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.util.*;
 
@@ -208,6 +209,31 @@ public class ThreadManager
     }
   }
 
+  /**
+   * Execute a task over the indices 0 to numIndices-1, splitting them into contiguous chunks which are
+   * processed in parallel.  Unlike run(), this does not create any threads of its own.  The chunks are
+   * executed by the common ForkJoinPool, so it may safely be called from inside another parallel operation
+   * (for example, while building one of many objects at once) without creating more threads than there are
+   * processors.  If there are no more than minChunkSize indices, the task is simply executed on the calling
+   * thread.  This method blocks until every chunk has been processed.
+   *
+   * @param numIndices      the number of values the index should take on (from 0 to numIndices-1)
+   * @param minChunkSize    the smallest number of indices that is worth processing as a separate chunk
+   * @param task            the task to perform
+   */
+
+  public static void runInChunks(int numIndices, int minChunkSize, RangeTask task)
+  {
+    if (numIndices <= minChunkSize)
+    {
+      if (numIndices > 0)
+        task.execute(0, numIndices);
+      return;
+    }
+    int chunkSize = Math.max(minChunkSize, numIndices/(4*Runtime.getRuntime().availableProcessors()));
+    ForkJoinPool.commonPool().invoke(new RangeAction(0, numIndices, chunkSize, task));
+  }
+
   private int nextIndex() throws InterruptedException
   {
     int index;
@@ -252,4 +278,50 @@ public class ThreadManager
 
     public void cleanup();
   }
+
+  /**
+   * This interface defines a task to be performed over a range of indices by
+   * {@link ThreadManager#runInChunks(int, int, RangeTask)}.
+   */
+
+  public static interface RangeTask
+  {
+    /**
+     * Execute the task for every index from start (inclusive) to end (exclusive).
+     */
+
+    public void execute(int start, int end);
+  }
+
+  /**
+   * This splits a range of indices in half until the pieces are small enough, then executes a RangeTask on each one.
+   */
+
+  private static class RangeAction extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int start, end, chunkSize;
+    private final RangeTask task;
+
+    RangeAction(int start, int end, int chunkSize, RangeTask task)
+    {
+      this.start = start;
+      this.end = end;
+      this.chunkSize = chunkSize;
+      this.task = task;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (end-start <= chunkSize)
+        task.execute(start, end);
+      else
+      {
+        int mid = (start+end)>>>1;
+        invokeAll(new RangeAction(start, mid, chunkSize, task), new RangeAction(mid, end, chunkSize, task));
+      }
+    }
+  }
 }
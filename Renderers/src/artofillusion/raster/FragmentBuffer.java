@@ -0,0 +1,471 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raster;
+
+import artofillusion.math.*;
+import java.util.*;
+
+/**
+ * A FragmentBuffer holds the fragments (pieces of rasterized polygons covering single pixels) that have
+ * been rendered into an image.  Each fragment defines a color by which anything behind it should be
+ * multiplied, and a color which should be added to anything behind it.
+ * <p>
+ * Every pixel ends with an opaque fragment, which is either the frontmost opaque surface or, if there is
+ * none, the background.  It is stored directly in per-pixel arrays.  In front of it there may be a list of
+ * transparent fragments sorted from front to back.  To avoid creating an object for every fragment, these
+ * are kept in primitive arrays.  The image is divided into square tiles, each of which has its own pool of
+ * fragments.  A transparent fragment is identified by its index within the pool of the tile containing its
+ * pixel, and the pool records the index of the next fragment behind it.  Fragments that are hidden by a new
+ * opaque fragment are returned to the pool for reuse.
+ * <p>
+ * Only one thread may add fragments to a tile at a time.  Either synchronize on the object returned by
+ * getTile(), or make sure no other thread is drawing into that tile.
+ * <p>
+ * The buffer also keeps a hierarchical depth map for occlusion culling.  Each level halves the resolution
+ * of the one below it, and each cell records the greatest opaque depth of any pixel it contains.  Opaque
+ * depths only ever decrease, so a cell that has not yet been updated still gives an upper bound.  That lets
+ * the levels be updated lazily, one tile at a time, when isHidden() is called.
+ */
+
+public class FragmentBuffer
+{
+  private final int width, height, tileSize, tilesX;
+  private final int first[], opaqueColor[];
+  private final float opaqueDepth[], maxDepth[][];
+  private final int levelWidth[], levelHeight[];
+  private final Tile tile[];
+
+  /** This is returned by getFirstFragment() and Tile.getNext() when there are no more transparent fragments. */
+  public static final int END = -1;
+
+  /** The depth of the background. */
+  public static final float BACKGROUND_DEPTH = Float.MAX_VALUE;
+
+  private static final int WHITE_ERGB = new RGBColor(1.0f, 1.0f, 1.0f).getERGB();
+
+  /**
+   * Create an empty FragmentBuffer, in which every pixel shows the background.
+   *
+   * @param width      the width of the image in pixels
+   * @param height     the height of the image in pixels
+   * @param tileSize   the width and height of each tile
+   */
+
+  public FragmentBuffer(int width, int height, int tileSize)
+  {
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    tilesX = (width+tileSize-1)/tileSize;
+    int tilesY = (height+tileSize-1)/tileSize;
+    first = new int [width*height];
+    opaqueColor = new int [width*height];
+    opaqueDepth = new float [width*height];
+    Arrays.fill(first, END);
+    Arrays.fill(opaqueDepth, BACKGROUND_DEPTH);
+    tile = new Tile [tilesX*tilesY];
+    for (int i = 0; i < tile.length; i++)
+      tile[i] = new Tile();
+
+    // Level 0 of the depth map is the opaque depth of each pixel, and the last level is a single cell.
+
+    int levels = 1;
+    while (((width-1)|(height-1))>>(levels-1) > 0)
+      levels++;
+    maxDepth = new float [levels][];
+    levelWidth = new int [levels];
+    levelHeight = new int [levels];
+    maxDepth[0] = opaqueDepth;
+    levelWidth[0] = width;
+    levelHeight[0] = height;
+    for (int i = 1; i < levels; i++)
+    {
+      levelWidth[i] = ((width-1)>>i)+1;
+      levelHeight[i] = ((height-1)>>i)+1;
+      maxDepth[i] = new float [levelWidth[i]*levelHeight[i]];
+      Arrays.fill(maxDepth[i], BACKGROUND_DEPTH);
+    }
+  }
+
+  /** Get the width of the image. */
+
+  public int getWidth()
+  {
+    return width;
+  }
+
+  /** Get the height of the image. */
+
+  public int getHeight()
+  {
+    return height;
+  }
+
+  /** Get the width and height of each tile. */
+
+  public int getTileSize()
+  {
+    return tileSize;
+  }
+
+  /** Get the tile containing a pixel. */
+
+  public Tile getTile(int x, int y)
+  {
+    return tile[(y/tileSize)*tilesX+x/tileSize];
+  }
+
+  /**
+   * Get the depth of the frontmost opaque fragment in a pixel.  Anything beyond this depth has no effect
+   * on the final color.
+   *
+   * @param index    the index of the pixel (y*width+x)
+   */
+
+  public float getOpaqueDepth(int index)
+  {
+    return opaqueDepth[index];
+  }
+
+  /**
+   * Get the additive color of the frontmost opaque fragment in a pixel, in ERGB format.
+   *
+   * @param index    the index of the pixel (y*width+x)
+   */
+
+  public int getOpaqueColor(int index)
+  {
+    return opaqueColor[index];
+  }
+
+  /**
+   * Get whether a pixel has no opaque fragment, so its list of fragments ends with the background.
+   *
+   * @param index    the index of the pixel (y*width+x)
+   */
+
+  public boolean isBackground(int index)
+  {
+    return opaqueDepth[index] == BACKGROUND_DEPTH;
+  }
+
+  /**
+   * Get the frontmost transparent fragment in a pixel, or END if there are none.  The fragment is an index
+   * into the pool of the Tile containing the pixel.
+   *
+   * @param index    the index of the pixel (y*width+x)
+   */
+
+  public int getFirstFragment(int index)
+  {
+    return first[index];
+  }
+
+  /**
+   * Get the depth of the frontmost fragment in a pixel, whether it is transparent or opaque.
+   *
+   * @param x        the x coordinate of the pixel
+   * @param y        the y coordinate of the pixel
+   */
+
+  public float getFrontDepth(int x, int y)
+  {
+    int index = y*width+x;
+    int f = first[index];
+    if (f == END)
+      return opaqueDepth[index];
+    return getTile(x, y).depth[f];
+  }
+
+  /**
+   * Get the additive color of the frontmost fragment in a pixel, whether it is transparent or opaque, in
+   * ERGB format.
+   *
+   * @param x        the x coordinate of the pixel
+   * @param y        the y coordinate of the pixel
+   */
+
+  public int getFrontColor(int x, int y)
+  {
+    int index = y*width+x;
+    int f = first[index];
+    if (f == END)
+      return opaqueColor[index];
+    return getTile(x, y).addColor[f];
+  }
+
+  /**
+   * Add a fragment to a pixel.  It is inserted into the list at the correct depth.  If it is opaque,
+   * everything behind it is discarded.  If it is behind the frontmost opaque fragment, or if it is fully
+   * transparent and not part of an object with a material, it is ignored.
+   *
+   * @param x           the x coordinate of the pixel
+   * @param y           the y coordinate of the pixel
+   * @param addColor    the additive color, in ERGB format
+   * @param multColor   the multiplicative color, in ERGB format.  If this is 0, the fragment is opaque.
+   * @param depth       the depth of the fragment
+   * @param material    a description of the material for the object the fragment is part of.  This may be null.
+   * @param isEntering  true if the material is being entered, false if it is being exited
+   */
+
+  public void addFragment(int x, int y, int addColor, int multColor, float depth, ObjectMaterialInfo material, boolean isEntering)
+  {
+    int index = y*width+x;
+    if (depth >= opaqueDepth[index])
+      return;
+    Tile t = getTile(x, y);
+    if (multColor == 0)
+    {
+      // It is opaque, so it replaces the current opaque fragment and hides any transparent ones behind it.
+
+      int prev = END, f = first[index];
+      while (f != END && t.depth[f] <= depth)
+      {
+        prev = f;
+        f = t.next[f];
+      }
+      if (prev == END)
+        first[index] = END;
+      else
+        t.next[prev] = END;
+      t.release(f);
+      opaqueColor[index] = addColor;
+      opaqueDepth[index] = depth;
+      t.depthChanged = true;
+      return;
+    }
+    if (addColor == 0 && multColor == WHITE_ERGB && material == null)
+      return; // This is a fully transparent fragment, so we can just discard it.
+
+    // Find where to insert it.  A fragment entering a material goes in front of one exiting the same
+    // material at the same depth.
+
+    int prev = END, f = first[index];
+    while (f != END && depth >= t.depth[f] && !(material != null && isEntering && depth == t.depth[f] && material == t.material[f] && !t.entering[f]))
+    {
+      prev = f;
+      f = t.next[f];
+    }
+    int newFragment = t.allocate();
+    t.addColor[newFragment] = addColor;
+    t.multColor[newFragment] = multColor;
+    t.depth[newFragment] = depth;
+    t.material[newFragment] = material;
+    t.entering[newFragment] = isEntering;
+    t.next[newFragment] = f;
+    if (prev == END)
+      first[index] = newFragment;
+    else
+      t.next[prev] = newFragment;
+  }
+
+  /**
+   * Determine whether every pixel in a rectangle is covered by an opaque fragment in front of a given depth.
+   * If so, nothing at or beyond that depth inside the rectangle can affect the image.  This may be called
+   * while other threads are adding fragments.  It is conservative: it may return false for a rectangle that
+   * has just become hidden, but it never returns true for one that is not.
+   *
+   * @param xmin     the first column of the rectangle
+   * @param ymin     the first row of the rectangle
+   * @param xmax     the last column of the rectangle
+   * @param ymax     the last row of the rectangle
+   * @param depth    the depth to check
+   */
+
+  public boolean isHidden(int xmin, int ymin, int xmax, int ymax, float depth)
+  {
+    xmin = Math.max(xmin, 0);
+    ymin = Math.max(ymin, 0);
+    xmax = Math.min(xmax, width-1);
+    ymax = Math.min(ymax, height-1);
+    if (xmin > xmax || ymin > ymax)
+      return true;
+    for (int ty = ymin/tileSize; ty <= ymax/tileSize; ty++)
+      for (int tx = xmin/tileSize; tx <= xmax/tileSize; tx++)
+        if (tile[ty*tilesX+tx].depthChanged)
+          updateDepthMap(ty*tilesX+tx);
+
+    // Start from the finest level at which the rectangle covers no more than 2 by 2 cells.
+
+    int level = 0;
+    while (level < maxDepth.length-1 && ((xmax>>level)-(xmin>>level) > 1 || (ymax>>level)-(ymin>>level) > 1))
+      level++;
+    return isHidden(level, xmin>>level, ymin>>level, xmax>>level, ymax>>level, xmin, ymin, xmax, ymax, depth);
+  }
+
+  /**
+   * This is called by isHidden() to check a range of cells at one level of the depth map.  Any cell which is
+   * not hidden is subdivided, and the part of it that lies inside the rectangle is checked at the next level.
+   */
+
+  private boolean isHidden(int level, int x1, int y1, int x2, int y2, int xmin, int ymin, int xmax, int ymax, float depth)
+  {
+    float levelDepth[] = maxDepth[level];
+    int levelWidth = this.levelWidth[level];
+    for (int y = y1; y <= y2; y++)
+      for (int x = x1; x <= x2; x++)
+      {
+        if (levelDepth[y*levelWidth+x] < depth)
+          continue;
+        if (level == 0)
+          return false;
+        int child = level-1;
+        if (!isHidden(child, Math.max(2*x, xmin>>child), Math.max(2*y, ymin>>child), Math.min(2*x+1, xmax>>child), Math.min(2*y+1, ymax>>child), xmin, ymin, xmax, ymax, depth))
+          return false;
+      }
+    return true;
+  }
+
+  /**
+   * Recalculate every cell of the depth map that contains part of a tile.  The cells of the coarser levels
+   * also contain parts of other tiles, which may be updated at the same time by other threads.  That is safe,
+   * since whichever value ends up being stored is still an upper bound on the depths in the cell.
+   */
+
+  private void updateDepthMap(int tileIndex)
+  {
+    Tile t = tile[tileIndex];
+    synchronized (t)
+    {
+      if (!t.depthChanged)
+        return;
+      t.depthChanged = false;
+      int x1 = (tileIndex%tilesX)*tileSize, y1 = (tileIndex/tilesX)*tileSize;
+      int x2 = Math.min(x1+tileSize, width)-1, y2 = Math.min(y1+tileSize, height)-1;
+      for (int level = 1; level < maxDepth.length; level++)
+      {
+        x1 >>= 1;
+        y1 >>= 1;
+        x2 >>= 1;
+        y2 >>= 1;
+        float parent[] = maxDepth[level], child[] = maxDepth[level-1];
+        int parentWidth = levelWidth[level], childWidth = levelWidth[level-1], childHeight = levelHeight[level-1];
+        for (int y = y1; y <= y2; y++)
+        {
+          int row1 = 2*y*childWidth, row2 = Math.min(2*y+1, childHeight-1)*childWidth;
+          for (int x = x1; x <= x2; x++)
+          {
+            int col1 = 2*x, col2 = Math.min(2*x+1, childWidth-1);
+            parent[y*parentWidth+x] = Math.max(Math.max(child[row1+col1], child[row1+col2]), Math.max(child[row2+col1], child[row2+col2]));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A Tile holds the pool of transparent fragments for one square region of the image.
+   */
+
+  public static class Tile
+  {
+    private int addColor[], multColor[], next[];
+    private float depth[];
+    private ObjectMaterialInfo material[];
+    private boolean entering[];
+    private int size, free;
+    private volatile boolean depthChanged;
+
+    private Tile()
+    {
+      free = END;
+    }
+
+    /** Get the additive color of a fragment, in ERGB format. */
+
+    public int getAdditiveColor(int fragment)
+    {
+      return addColor[fragment];
+    }
+
+    /** Get the multiplicative color of a fragment, in ERGB format. */
+
+    public int getMultiplicativeColor(int fragment)
+    {
+      return multColor[fragment];
+    }
+
+    /** Get the depth of a fragment. */
+
+    public float getDepth(int fragment)
+    {
+      return depth[fragment];
+    }
+
+    /** Get the material for the object a fragment is part of.  This may return null. */
+
+    public ObjectMaterialInfo getMaterialMapping(int fragment)
+    {
+      return material[fragment];
+    }
+
+    /** Get whether the object is being entered or exited in a fragment. */
+
+    public boolean isEntering(int fragment)
+    {
+      return entering[fragment];
+    }
+
+    /** Get the next fragment behind a fragment, or END if it is the last transparent one. */
+
+    public int getNext(int fragment)
+    {
+      return next[fragment];
+    }
+
+    /** Get the number of fragments in this tile's pool that are currently in use. */
+
+    public int getNumFragments()
+    {
+      int count = size;
+      for (int f = free; f != END; f = next[f])
+        count--;
+      return count;
+    }
+
+    /** Get an unused fragment from the pool, growing it if necessary. */
+
+    private int allocate()
+    {
+      if (free != END)
+      {
+        int f = free;
+        free = next[f];
+        return f;
+      }
+      if (addColor == null || size == addColor.length)
+      {
+        int capacity = (addColor == null ? 64 : 2*addColor.length);
+        addColor = (addColor == null ? new int [capacity] : Arrays.copyOf(addColor, capacity));
+        multColor = (multColor == null ? new int [capacity] : Arrays.copyOf(multColor, capacity));
+        next = (next == null ? new int [capacity] : Arrays.copyOf(next, capacity));
+        depth = (depth == null ? new float [capacity] : Arrays.copyOf(depth, capacity));
+        material = (material == null ? new ObjectMaterialInfo [capacity] : Arrays.copyOf(material, capacity));
+        entering = (entering == null ? new boolean [capacity] : Arrays.copyOf(entering, capacity));
+      }
+      return size++;
+    }
+
+    /** Return a list of fragments to the pool. */
+
+    private void release(int f)
+    {
+      while (f != END)
+      {
+        int following = next[f];
+        material[f] = null;
+        next[f] = free;
+        free = f;
+        f = following;
+      }
+    }
+  }
+}
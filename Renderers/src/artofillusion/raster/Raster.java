@@ -31,12 +31,13 @@ public class Raster implements Renderer, Runnable
 {
   private ObjectInfo light[];
   private BTabbedPane configPanel;
-  private BCheckBox transparentBox, adaptiveBox, hideBackfaceBox, hdrBox;
+  private BCheckBox transparentBox, adaptiveBox, hideBackfaceBox, hdrBox, tiledBox, shadowBox;
   private BComboBox shadeChoice, aliasChoice, sampleChoice;
-  private ValueField errorField, smoothField;
+  private ValueField errorField, smoothField, shadowSizeField;
   private int imagePixel[], width, height, envMode, imageWidth, imageHeight;
-  private int shadingMode = PHONG, samplesPerPixel = 1, subsample = 1;
-  private Fragment fragment[];
+  private int shadingMode = PHONG, samplesPerPixel = 1, subsample = 1, shadowMapSize = 1024;
+  private FragmentBuffer fragments;
+  private ShadowMap shadowMap[];
   private long updateTime;
   private MemoryImageSource imageSource;
   private Scene theScene;
@@ -47,11 +48,10 @@ public class Raster implements Renderer, Runnable
   private RGBColor ambColor, envColor, fogColor;
   private TextureMapping envMapping;
   private ThreadLocal threadRasterContext, threadCompositingContext;
-  private RowLock lock[];
   private double envParamValue[];
   private double time, smoothing = 1.0, smoothScale, focalDist, surfaceError = 0.02, fogDist;
   private boolean fog, transparentBackground = false, adaptive = true, hideBackfaces = true, generateHDR = false, positionNeeded, depthNeeded, needCopyToUI = true;
-  private boolean isPreview;
+  private boolean isPreview, tiled, shadows;
 
   public static final int GOURAUD = 0;
   public static final int HYBRID = 1;
@@ -59,9 +59,8 @@ public class Raster implements Renderer, Runnable
 
   public static final double TOL = 1e-12;
   public static final float INTENSITY_CUTOFF = 0.005f;
+  public static final int TILE_SIZE = 32;
 
-  public static final Fragment BACKGROUND_FRAGMENT = new OpaqueFragment(0, Float.MAX_VALUE);
-  private static final int WHITE_ERGB = new RGBColor(1.0f, 1.0f, 1.0f).getERGB();
 
   public Raster()
   {
@@ -69,7 +68,7 @@ public class Raster implements Renderer, Runnable
       @Override
       protected Object initialValue()
       {
-        return new RasterContext(theCamera, width);
+        return new RasterContext(theCamera, width, height);
       }
     };
     threadCompositingContext = new ThreadLocal() {
@@ -172,7 +171,7 @@ public class Raster implements Renderer, Runnable
     {
       // General options panel.
 
-      FormContainer generalPanel = new FormContainer(3, 4);
+      FormContainer generalPanel = new FormContainer(3, 5);
       LayoutInfo leftLayout = new LayoutInfo(LayoutInfo.EAST, LayoutInfo.NONE, new Insets(0, 0, 0, 5), null);
       LayoutInfo rightLayout = new LayoutInfo(LayoutInfo.WEST, LayoutInfo.NONE, null, null);
       generalPanel.add(Translate.label("surfaceAccuracy"), 0, 0, leftLayout);
@@ -192,6 +191,7 @@ public class Raster implements Renderer, Runnable
       generalPanel.add(sampleChoice = new BComboBox(new String[]{"2x2", "3x3"}), 2, 2, rightLayout);
       sampleChoice.setEnabled(false);
       generalPanel.add(transparentBox = new BCheckBox(Translate.text("transparentBackground"), transparentBackground), 0, 3, 3, 1);
+      generalPanel.add(shadowBox = new BCheckBox(Translate.text("shadowMaps"), shadows), 0, 4, 3, 1);
       aliasChoice.addEventLink(ValueChangedEvent.class, new Object() {
         void processEvent()
         {
@@ -201,12 +201,15 @@ public class Raster implements Renderer, Runnable
 
       // Advanced options panel.
 
-      FormContainer advancedPanel = new FormContainer(new double [] {0.0, 1.0}, new double [4]);
+      FormContainer advancedPanel = new FormContainer(new double [] {0.0, 1.0}, new double [6]);
       advancedPanel.add(Translate.label("texSmoothing"), 0, 0, leftLayout);
       advancedPanel.add(smoothField = new ValueField(smoothing, ValueField.NONNEGATIVE), 1, 0, rightLayout);
       advancedPanel.add(adaptiveBox = new BCheckBox(Translate.text("reduceAccuracyForDistant"), adaptive), 0, 1, 2, 1, rightLayout);
       advancedPanel.add(hideBackfaceBox = new BCheckBox(Translate.text("eliminateBackfaces"), hideBackfaces), 0, 2, 2, 1, rightLayout);
       advancedPanel.add(hdrBox = new BCheckBox(Translate.text("generateHDR"), generateHDR), 0, 3, 2, 1, rightLayout);
+      advancedPanel.add(tiledBox = new BCheckBox(Translate.text("renderInTiles"), tiled), 0, 4, 2, 1, rightLayout);
+      advancedPanel.add(Translate.label("shadowMapSize"), 0, 5, leftLayout);
+      advancedPanel.add(shadowSizeField = new ValueField(shadowMapSize, ValueField.POSITIVE+ValueField.INTEGER, 6), 1, 5, rightLayout);
 
       // Create the tabbed pane.
 
@@ -230,9 +233,12 @@ public class Raster implements Renderer, Runnable
     adaptiveBox.setState(adaptive);
     hideBackfaceBox.setState(hideBackfaces);
     hdrBox.setState(generateHDR);
+    tiledBox.setState(tiled);
     errorField.setValue(surfaceError);
     shadeChoice.setSelectedIndex(shadingMode);
     transparentBox.setState(transparentBackground);
+    shadowBox.setState(shadows);
+    shadowSizeField.setValue(shadowMapSize);
     if (samplesPerPixel == 1)
     {
       aliasChoice.setSelectedIndex(0);
@@ -257,9 +263,12 @@ public class Raster implements Renderer, Runnable
     adaptive = adaptiveBox.getState();
     hideBackfaces = hideBackfaceBox.getState();
     generateHDR = hdrBox.getState();
+    tiled = tiledBox.getState();
     surfaceError = errorField.getValue();
     shadingMode = shadeChoice.getSelectedIndex();
     transparentBackground = transparentBox.getState();
+    shadows = shadowBox.getState();
+    shadowMapSize = (int) shadowSizeField.getValue();
     if (aliasChoice.getSelectedIndex() == 0)
       samplesPerPixel = subsample = 1;
     else if (aliasChoice.getSelectedIndex() == 1)
@@ -282,9 +291,12 @@ public class Raster implements Renderer, Runnable
     map.put("reduceAccuracyForDistant", adaptive);
     map.put("hideBackfaces", hideBackfaces);
     map.put("highDynamicRange", generateHDR);
+    map.put("renderInTiles", tiled);
     map.put("maxSurfaceError", surfaceError);
     map.put("shadingMethod", shadingMode);
     map.put("transparentBackground", transparentBackground);
+    map.put("shadows", shadows);
+    map.put("shadowMapSize", shadowMapSize);
     int antialiasLevel = 0;
     if (samplesPerPixel == 2)
       antialiasLevel = subsample;
@@ -307,12 +319,18 @@ public class Raster implements Renderer, Runnable
       hideBackfaces = (Boolean) value;
     else if ("highDynamicRange".equals(property))
       generateHDR = (Boolean) value;
+    else if ("renderInTiles".equals(property))
+      tiled = (Boolean) value;
     else if ("maxSurfaceError".equals(property))
       surfaceError = ((Number) value).doubleValue();
     else if ("shadingMethod".equals(property))
       shadingMode = (Integer) value;
     else if ("transparentBackground".equals(property))
       transparentBackground = (Boolean) value;
+    else if ("shadows".equals(property))
+      shadows = (Boolean) value;
+    else if ("shadowMapSize".equals(property))
+      shadowMapSize = ((Number) value).intValue();
     else if ("antialiasing".equals(property))
     {
       int antialiasLevel = (Integer) value;
@@ -363,7 +381,7 @@ public class Raster implements Renderer, Runnable
     Vector<ObjectInfo> lt = new Vector<ObjectInfo>();
     int i;
 
-    positionNeeded = false;
+    positionNeeded = shadows; // Shadow maps are looked up by position.
     for (ObjectInfo info: theScene.getObjects())
     {
       if (info.getObject() instanceof Light && info.isVisible())
@@ -386,11 +404,7 @@ public class Raster implements Renderer, Runnable
     final Thread thisThread = Thread.currentThread();
     if (renderThread != thisThread)
       return;
-    fragment = new Fragment [width*height];
-    Arrays.fill(fragment, BACKGROUND_FRAGMENT);
-    lock = new RowLock[height];
-    for (int i = 0; i < lock.length; i++)
-      lock[i] = new RowLock();
+    fragments = new FragmentBuffer(width, height, TILE_SIZE);
     updateTime = System.currentTimeMillis();
 
     // Record information about the scene.
@@ -425,28 +439,220 @@ public class Raster implements Renderer, Runnable
     // Render the objects.
 
     final ObjectInfo sortedObjects[] = sortObjects();
+    shadowMap = (shadows ? createShadowMaps(sortedObjects, orig, thisThread) : null);
+    if (thisThread != renderThread)
+      return;
+    if (tiled)
+      renderTiles(sortedObjects, orig, viewdir, thisThread);
+    else
+    {
+      ThreadManager threads = new ThreadManager(sortedObjects.length, new ThreadManager.Task() {
+            @Override
+        public void execute(int index)
+        {
+          RasterContext context = (RasterContext) threadRasterContext.get();
+          ObjectInfo obj = sortedObjects[index];
+          context.camera.setObjectTransform(obj.getCoords().fromLocal());
+          renderObject(obj, orig, viewdir, obj.getCoords().toLocal(), context, thisThread, null);
+          if (thisThread != renderThread)
+            return;
+          if (System.currentTimeMillis()-updateTime > 5000)
+            updateImage();
+        }
+            @Override
+        public void cleanup()
+        {
+          ((RasterContext) threadRasterContext.get()).cleanup();
+        }
+      });
+      threads.run();
+      threads.finish();
+    }
+    if (thisThread != renderThread)
+      return;
+    finish(createFinalImage(center, orig, hvec, vvec));
+  }
+
+  /**
+   * Create a shadow map for every light that casts shadows.  The objects are tessellated in parallel, and
+   * then the faces of all the maps are rendered in parallel.  Objects whose textures are transparent do not
+   * cast shadows, and displacement is ignored.
+   *
+   * @return an array with one element for each light, which is null if that light casts no shadows
+   */
+
+  private ShadowMap [] createShadowMaps(ObjectInfo sortedObjects[], final Vec3 orig, final Thread mainThread)
+  {
+    // Find every object that might cast shadows, expanding collections into their members.
+
+    final ArrayList<ObjectInfo> objects = new ArrayList<ObjectInfo>();
+    final ArrayList<CoordinateSystem> coords = new ArrayList<CoordinateSystem>();
+    for (ObjectInfo obj : sortedObjects)
+      findShadowCasters(obj, obj.getCoords(), objects, coords);
+
+    // Tessellate them.
+
+    final ShadowMap.Caster caster[] = new ShadowMap.Caster [objects.size()];
+    ThreadManager threads = new ThreadManager(caster.length, new ThreadManager.Task() {
+      @Override
+      public void execute(int index)
+      {
+        if (mainThread != renderThread)
+          return;
+        ObjectInfo obj = objects.get(index);
+        double tol = getTolerance(obj, coords.get(index).toLocal(), orig);
+        RenderingMesh mesh = (isPreview ? obj.getPreviewMesh() : obj.getRenderingMesh(tol));
+        if (mesh != null)
+          caster[index] = new ShadowMap.Caster(mesh, coords.get(index).fromLocal());
+      }
+      @Override
+      public void cleanup()
+      {
+      }
+    });
+    threads.run();
+    final ArrayList<ShadowMap.Caster> casters = new ArrayList<ShadowMap.Caster>();
+    for (ShadowMap.Caster c : caster)
+      if (c != null)
+        casters.add(c);
+
+    // Create the maps and render their faces.
+
+    ShadowMap maps[] = new ShadowMap [light.length];
+    final ArrayList<ShadowMap> faceMap = new ArrayList<ShadowMap>();
+    final ArrayList<Integer> faceIndex = new ArrayList<Integer>();
+    for (int i = 0; i < light.length; i++)
+    {
+      Light lt = (Light) light[i].getObject();
+      if (lt.getType() != Light.TYPE_NORMAL)
+        continue;
+      maps[i] = new ShadowMap(lt, light[i].getCoords(), shadowMapSize, 1, casters, theCamera);
+      for (int j = 0; j < maps[i].getNumFaces(); j++)
+      {
+        faceMap.add(maps[i]);
+        faceIndex.add(j);
+      }
+    }
+    threads.setTask(new ThreadManager.Task() {
+      @Override
+      public void execute(int index)
+      {
+        if (mainThread == renderThread)
+          faceMap.get(index).renderFace(faceIndex.get(index), casters);
+      }
+      @Override
+      public void cleanup()
+      {
+      }
+    });
+    threads.setNumIndices(faceMap.size());
+    threads.run();
+    threads.finish();
+    return maps;
+  }
+
+  /** Add an object to the list of objects that cast shadows, or if it is a collection, add its members. */
+
+  private void findShadowCasters(ObjectInfo obj, CoordinateSystem coords, java.util.List<ObjectInfo> objects, java.util.List<CoordinateSystem> objectCoords)
+  {
+    if (!obj.isVisible())
+      return;
+    Object3D theObject = obj.getObject();
+    while (theObject instanceof ObjectWrapper)
+      theObject = ((ObjectWrapper) theObject).getWrappedObject();
+    if (theObject instanceof ObjectCollection)
+    {
+      Enumeration<ObjectInfo> elements = ((ObjectCollection) theObject).getObjects(obj, false, theScene);
+      while (elements.hasMoreElements())
+      {
+        ObjectInfo elem = elements.nextElement();
+        CoordinateSystem elemCoords = elem.getCoords().duplicate();
+        elemCoords.transformCoordinates(coords.fromLocal());
+        findShadowCasters(elem, elemCoords, objects, objectCoords);
+      }
+      return;
+    }
+    if (theObject instanceof Light || theObject.getTexture() == null || theObject.getTexture().hasComponent(Texture.TRANSPARENT_COLOR_COMPONENT))
+      return;
+    objects.add(obj);
+    objectCoords.add(coords);
+  }
+
+  /**
+   * Render the objects by dividing the image into tiles.  This happens in two passes.  First the objects are
+   * processed in parallel: each one is tessellated, its vertices are projected onto the screen, and its triangles
+   * are sorted into the tiles they overlap.  Then the tiles are rendered in parallel.  Each tile is drawn by a
+   * single thread which clips every triangle to it, so no locking is needed, and the work is divided evenly no
+   * matter how the triangles are distributed among objects.
+   * <p>
+   * Displacement mapped objects are subdivided as they are drawn, so their final triangles are not known in
+   * advance.  They are rendered directly during the first pass instead.
+   */
+
+  private void renderTiles(final ObjectInfo sortedObjects[], final Vec3 orig, final Vec3 viewdir, final Thread mainThread)
+  {
+    final BinnedMesh binned[][] = new BinnedMesh [sortedObjects.length][];
+    final int tilesX = (width+TILE_SIZE-1)/TILE_SIZE, tilesY = (height+TILE_SIZE-1)/TILE_SIZE;
     ThreadManager threads = new ThreadManager(sortedObjects.length, new ThreadManager.Task() {
-          @Override
+      @Override
       public void execute(int index)
       {
         RasterContext context = (RasterContext) threadRasterContext.get();
         ObjectInfo obj = sortedObjects[index];
+        ArrayList<BinnedMesh> meshes = new ArrayList<BinnedMesh>();
         context.camera.setObjectTransform(obj.getCoords().fromLocal());
-        renderObject(obj, orig, viewdir, obj.getCoords().toLocal(), context, thisThread);
-        if (thisThread != renderThread)
+        renderObject(obj, orig, viewdir, obj.getCoords().toLocal(), context, mainThread, meshes);
+        binned[index] = meshes.toArray(new BinnedMesh [meshes.size()]);
+      }
+      @Override
+      public void cleanup()
+      {
+        ((RasterContext) threadRasterContext.get()).cleanup();
+      }
+    });
+    threads.run();
+    if (mainThread != renderThread)
+    {
+      threads.finish();
+      return;
+    }
+    threads.setTask(new ThreadManager.Task() {
+      @Override
+      public void execute(int index)
+      {
+        if (mainThread != renderThread)
           return;
+        RasterContext context = (RasterContext) threadRasterContext.get();
+        int tileX = index%tilesX, tileY = index/tilesX;
+        context.setBounds(tileX*TILE_SIZE, Math.min(width, (tileX+1)*TILE_SIZE), tileY*TILE_SIZE, Math.min(height, (tileY+1)*TILE_SIZE), true);
+        for (BinnedMesh meshes[] : binned)
+        {
+          if (meshes == null)
+            continue;
+          for (BinnedMesh mesh : meshes)
+          {
+            int tile = mesh.getTileIndex(tileX, tileY);
+            if (tile < 0 || mesh.tileStart[tile] == mesh.tileStart[tile+1])
+              continue;
+            context.camera.setObjectTransform(mesh.fromLocal);
+            findLightPositions(mesh.toLocal, context);
+            renderMesh(mesh.mesh, mesh.pos, mesh.z, mesh.triangles, mesh.tileStart[tile], mesh.tileStart[tile+1],
+                mesh.viewdir, mesh.cullBackfaces, mesh.bumpMap, mesh.material, context);
+          }
+        }
+        context.setBounds(0, width, 0, height, false);
         if (System.currentTimeMillis()-updateTime > 5000)
           updateImage();
       }
-          @Override
+      @Override
       public void cleanup()
       {
         ((RasterContext) threadRasterContext.get()).cleanup();
       }
     });
+    threads.setNumIndices(tilesX*tilesY);
     threads.run();
     threads.finish();
-    finish(createFinalImage(center, orig, hvec, vvec));
   }
 
   /**
@@ -514,7 +720,7 @@ public class Raster implements Renderer, Runnable
       for (int i1 = 0, i2 = 0; i1 < imageHeight; i1++, i2 += samplesPerPixel)
         for (int j1 = 0, j2 = 0; j1 < imageWidth; j1++, j2 += samplesPerPixel)
         {
-          fragment[i2*width+j2].getAdditiveColor(frontColor);
+          frontColor.setERGB(fragments.getFrontColor(j2, i2));
           imagePixel[i1*imageWidth+j1] = frontColor.getARGB();
         }
     imageSource.newPixels();
@@ -570,32 +776,35 @@ public class Raster implements Renderer, Runnable
 
               subpixelColor.setRGB(0.0f, 0.0f, 0.0f);
               subpixelMult.setRGB(1.0f, 1.0f, 1.0f);
-              Fragment f = fragment[base+m];
+              FragmentBuffer.Tile tile = fragments.getTile(j2+m, i2+k);
+              int f = fragments.getFirstFragment(base+m);
+              boolean isBackground = fragments.isBackground(base+m);
               float lastDepth = 0;
               while (true)
               {
                 // Factor in materials.
 
-                ObjectMaterialInfo fragmentMaterial = f.getMaterialMapping();
+                ObjectMaterialInfo fragmentMaterial = (f == FragmentBuffer.END ? null : tile.getMaterialMapping(f));
+                float depth = (f == FragmentBuffer.END ? fragments.getOpaqueDepth(base+m) : tile.getDepth(f));
                 ObjectMaterialInfo currentMaterial = null;
                 if (materialStack.size() > 0)
                   currentMaterial = materialStack.get(materialStack.size()-1);
-                adjustColorsForMaterial(currentMaterial, j2+m, i2+k, lastDepth, f.getDepth(), addColor, context.multColor, context);
+                adjustColorsForMaterial(currentMaterial, j2+m, i2+k, lastDepth, depth, addColor, context.multColor, context);
                 addColor.multiply(subpixelMult);
                 subpixelColor.add(addColor);
                 subpixelMult.multiply(multColor);
                 if (fragmentMaterial != null)
                 {
-                  if (f.isEntering())
+                  if (tile.isEntering(f))
                     materialStack.add(fragmentMaterial);
                   else
                     materialStack.remove(fragmentMaterial);
                 }
-                lastDepth = f.getDepth();
+                lastDepth = depth;
 
                 // If we've reached the end, factor in the background.
 
-                if (f == BACKGROUND_FRAGMENT)
+                if (f == FragmentBuffer.END && isBackground)
                 {
                   if (transparentBackground)
                   {
@@ -623,21 +832,21 @@ public class Raster implements Renderer, Runnable
                   }
                 }
                 else
-                  f.getAdditiveColor(addColor);
+                  addColor.setERGB(f == FragmentBuffer.END ? fragments.getOpaqueColor(base+m) : tile.getAdditiveColor(f));
 
                 // Factor in the fragment color.
 
                 addColor.multiply(subpixelMult);
                 subpixelColor.add(addColor);
-                if (f.isOpaque())
+                if (f == FragmentBuffer.END)
                 {
-                  if (f != BACKGROUND_FRAGMENT || !transparentBackground)
+                  if (!isBackground || !transparentBackground)
                     subpixelMult.setRGB(0.0f, 0.0f, 0.0f);
                   break;
                 }
-                f.getMultiplicativeColor(multColor);
+                multColor.setERGB(tile.getMultiplicativeColor(f));
                 subpixelMult.multiply(multColor);
-                f = f.getNextFragment();
+                f = tile.getNext(f);
               }
               totalColor.add(subpixelColor);
               totalTransparency.add(subpixelMult);
@@ -687,10 +896,9 @@ public class Raster implements Renderer, Runnable
           float minDepth = Float.MAX_VALUE;
           for (int k = 0; k < samplesPerPixel; k++)
           {
-            int base = width*(i2+k)+j2;
             for (int m = 0; m < samplesPerPixel; m++)
             {
-              float z = fragment[base+m].getDepth();
+              float z = fragments.getFrontDepth(j2+m, i2+k);
               if (z < minDepth)
                 minDepth = z;
             }
@@ -798,7 +1006,8 @@ public class Raster implements Renderer, Runnable
     img = null;
     imageSource = null;
     imagePixel = null;
-    fragment = null;
+    fragments = null;
+    shadowMap = null;
     RenderListener rl = listener;
     listener = null;
     renderThread = null;
@@ -831,9 +1040,11 @@ public class Raster implements Renderer, Runnable
   }
 
   /** Render a single object into the scene.  viewdir is the direction from
-     which the object is being viewed in world coordinates. */
+     which the object is being viewed in world coordinates.  If binned is not null, the
+     object is not rendered immediately.  Instead its triangles are sorted into tiles, and
+     the result is added to the list. */
 
-  private void renderObject(ObjectInfo obj, Vec3 orig, Vec3 viewdir, Mat4 toLocal, RasterContext context, Thread mainThread)
+  private void renderObject(ObjectInfo obj, Vec3 orig, Vec3 viewdir, Mat4 toLocal, RasterContext context, Thread mainThread, java.util.List<BinnedMesh> binned)
   {
     RenderingMesh mesh;
     Object3D theObject;
@@ -845,7 +1056,7 @@ public class Raster implements Renderer, Runnable
     if (!obj.isVisible())
       return;
     theObject = obj.getObject();
-    if (context.camera.visibility(obj.getBounds()) == Camera.NOT_VISIBLE)
+    if (context.camera.visibility(obj.getBounds()) == Camera.NOT_VISIBLE || isOccluded(obj, context))
       return;
     while (theObject instanceof ObjectWrapper)
       theObject = ((ObjectWrapper) theObject).getWrappedObject();
@@ -859,51 +1070,128 @@ public class Raster implements Renderer, Runnable
             CoordinateSystem coords = elem.getCoords().duplicate();
             coords.transformCoordinates(fromLocal);
             context.camera.setObjectTransform(coords.fromLocal());
-            renderObject(elem, orig, viewdir, coords.toLocal(), context, mainThread);
+            renderObject(elem, orig, viewdir, coords.toLocal(), context, mainThread, binned);
           }
         return;
       }
-    if (adaptive)
-      {
-        double dist = obj.getBounds().distanceToPoint(toLocal.times(orig));
-        double distToScreen = context.camera.getDistToScreen();
-        if (dist < distToScreen)
-          tol = surfaceError;
-        else
-          tol = surfaceError*dist/distToScreen;
-      }
-    else
-      tol = surfaceError;
+    tol = getTolerance(obj, toLocal, orig);
     mesh = (isPreview ? obj.getPreviewMesh() : obj.getRenderingMesh(tol));
     if (mesh == null)
       return;
     if (mainThread != renderThread)
       return;
     viewdir = toLocal.timesDirection(viewdir);
+    findLightPositions(toLocal, context);
+    boolean bumpMap = theObject.getTexture().hasComponent(Texture.BUMP_COMPONENT);
+    boolean cullBackfaces = (hideBackfaces && theObject.isClosed() && !theObject.getTexture().hasComponent(Texture.TRANSPARENT_COLOR_COMPONENT));
+    ObjectMaterialInfo material = null;
+    if (theObject.getMaterialMapping() != null)
+      material = new ObjectMaterialInfo(theObject.getMaterialMapping(), toLocal);
+    if (theObject.getTexture().hasComponent(Texture.DISPLACEMENT_COMPONENT))
+    {
+      renderMeshDisplaced(mesh, viewdir, tol, cullBackfaces, bumpMap, material, context);
+      return;
+    }
+
+    // Find the screen position and depth of every vertex.
+
+    Vec3 vert[] = mesh.vert;
+    Vec2 pos[] = new Vec2 [vert.length];
+    float z[] = new float [vert.length];
+    Mat4 toView = context.camera.getObjectToView(), toScreen = context.camera.getObjectToScreen();
+    for (i = vert.length-1; i >= 0; i--)
+      {
+        pos[i] = toScreen.timesXY(vert[i]);
+        z[i] = (float) toView.timesZ(vert[i]);
+      }
+    if (binned != null)
+      binned.add(new BinnedMesh(mesh, pos, z, viewdir, context.camera.getObjectToWorld(), toLocal, cullBackfaces, bumpMap, material, context));
+    else
+      renderMesh(mesh, pos, z, null, 0, mesh.triangle.length, viewdir, cullBackfaces, bumpMap, material, context);
+  }
+
+  /**
+   * Determine whether an object is certainly hidden behind opaque surfaces that have already been drawn, so
+   * there is no need to tessellate it.  Objects are rendered from front to back, so this is often true of
+   * objects at the back of crowded scenes.  The camera's object transform must already be set for it.
+   */
+
+  private boolean isOccluded(ObjectInfo obj, RasterContext context)
+  {
+    Mat4 toView = context.camera.getObjectToView(), toScreen = context.camera.getObjectToScreen();
+    double clip = context.camera.getClipDistance();
+    double minx = Double.MAX_VALUE, maxx = -Double.MAX_VALUE, miny = Double.MAX_VALUE, maxy = -Double.MAX_VALUE;
+    double depth = Double.MAX_VALUE;
+    for (Vec3 corner : obj.getBounds().getCorners())
+    {
+      double z = toView.timesZ(corner);
+      if (z < clip)
+        return false; // It crosses the clipping plane, so its extent on screen is unknown.
+      Vec2 screen = toScreen.timesXY(corner);
+      minx = Math.min(minx, screen.x);
+      maxx = Math.max(maxx, screen.x);
+      miny = Math.min(miny, screen.y);
+      maxy = Math.max(maxy, screen.y);
+      depth = Math.min(depth, z);
+    }
+    return fragments.isHidden((int) Math.floor(minx), (int) Math.floor(miny), (int) Math.ceil(maxx), (int) Math.ceil(maxy), (float) depth);
+  }
+
+  /** Find the surface accuracy to use when tessellating an object. */
+
+  private double getTolerance(ObjectInfo obj, Mat4 toLocal, Vec3 orig)
+  {
+    if (!adaptive)
+      return surfaceError;
+    double dist = obj.getBounds().distanceToPoint(toLocal.times(orig));
+    double distToScreen = theCamera.getDistToScreen();
+    if (dist < distToScreen)
+      return surfaceError;
+    return surfaceError*dist/distToScreen;
+  }
+
+  /** Find the positions and directions of the lights in an object's local coordinate system. */
+
+  private void findLightPositions(Mat4 toLocal, RasterContext context)
+  {
     if (context.lightPosition == null)
     {
       context.lightPosition = new Vec3 [light.length];
       context.lightDirection = new Vec3 [light.length];
     }
-    for (i = light.length-1; i >= 0; i--)
+    for (int i = light.length-1; i >= 0; i--)
     {
       context.lightPosition[i] = toLocal.times(light[i].getCoords().getOrigin());
       if (!(light[i].getObject() instanceof PointLight))
         context.lightDirection[i] = toLocal.timesDirection(light[i].getCoords().getZDirection());
     }
-    boolean bumpMap = theObject.getTexture().hasComponent(Texture.BUMP_COMPONENT);
-    boolean cullBackfaces = (hideBackfaces && theObject.isClosed() && !theObject.getTexture().hasComponent(Texture.TRANSPARENT_COLOR_COMPONENT));
-    ObjectMaterialInfo material = null;
-    if (theObject.getMaterialMapping() != null)
-      material = new ObjectMaterialInfo(theObject.getMaterialMapping(), toLocal);
-    if (theObject.getTexture().hasComponent(Texture.DISPLACEMENT_COMPONENT))
-      renderMeshDisplaced(mesh, viewdir, tol, cullBackfaces, bumpMap, material, context);
-    else if (shadingMode == GOURAUD)
-      renderMeshGouraud(mesh, viewdir, cullBackfaces, material, context);
+  }
+
+  /**
+   * Render some or all of the triangles in a mesh, using the current shading method.
+   *
+   * @param mesh          the mesh to render
+   * @param pos           the screen position of each vertex
+   * @param z             the depth of each vertex
+   * @param triangles     the indices of the triangles to render.  If this is null, triangles start through end-1
+   *                      are rendered.
+   * @param start         the first element of triangles to render
+   * @param end           one past the last element of triangles to render
+   * @param viewdir       the direction from which the object is being viewed, in its local coordinates
+   * @param cullBackfaces true if triangles facing away from the camera should be skipped
+   * @param bumpMap       true if the object's texture includes a bump map
+   * @param material      a description of the material for the object being rendered
+   * @param context       the RasterContext for the current thread
+   */
+
+  private void renderMesh(RenderingMesh mesh, Vec2 pos[], float z[], int triangles[], int start, int end, Vec3 viewdir, boolean cullBackfaces, boolean bumpMap, ObjectMaterialInfo material, RasterContext context)
+  {
+    if (shadingMode == GOURAUD)
+      renderMeshGouraud(mesh, pos, z, triangles, start, end, viewdir, cullBackfaces, material, context);
     else if (shadingMode == HYBRID && !bumpMap)
-      renderMeshHybrid(mesh, viewdir, cullBackfaces, material, context);
+      renderMeshHybrid(mesh, pos, z, triangles, start, end, viewdir, cullBackfaces, material, context);
     else
-      renderMeshPhong(mesh, viewdir, cullBackfaces, bumpMap, material, context);
+      renderMeshPhong(mesh, pos, z, triangles, start, end, viewdir, cullBackfaces, bumpMap, material, context);
   }
 
   /** Calculate the lighting model at a point on a surface.  If diffuse, specular, or highlight
@@ -914,6 +1202,7 @@ public class Raster implements Renderer, Runnable
     Vec3 reflectDir = context.tempVec[0], lightDir = context.tempVec[1];
     double viewDot = viewdir.dot(norm), faceDot = viewdir.dot(faceNorm);
     RGBColor outputColor = context.tempColor[0];
+    boolean foundWorldPos = false;
 
     if (diffuse != null)
       diffuse.copy(ambColor);
@@ -980,6 +1269,24 @@ public class Raster implements Renderer, Runnable
         lightDot = lightDir.dot(norm);
         if ((lightDot >= 0.0 && viewDot <= 0.0) || (lightDot <= 0.0 && viewDot >= 0.0))
           continue;
+        if (shadowMap != null && shadowMap[i] != null)
+          {
+            // Find how much of the light is blocked by other objects.
+
+            if (!foundWorldPos)
+              {
+                Mat4 toWorld = context.camera.getObjectToWorld();
+                context.shadowPos.set(pos);
+                toWorld.transform(context.shadowPos);
+                context.shadowNormal.set(norm);
+                toWorld.transformDirection(context.shadowNormal);
+                foundWorldPos = true;
+              }
+            float lit = shadowMap[i].getLitFraction(context.shadowPos, context.shadowNormal);
+            if (lit == 0.0f)
+              continue;
+            outputColor.scale(lit);
+          }
         if (diffuse != null)
           {
             float dot = (float) (lightDot < 0.0 ? -lightDot : lightDot);
@@ -998,64 +1305,45 @@ public class Raster implements Renderer, Runnable
   }
 
   /**
-   * Create a Fragment object.
-   *
-   * @param addColor   the additive color in ERGB format
-   * @param multColor  the multiplicative color in ERGB format
-   * @param depth      the depth of the fragment
-   * @param material   a description of the material for the object being rendered
-   * @param isBackface true if this triangle faces away from the camera
-   */
-
-  private Fragment createFragment(int addColor, int multColor, float depth, ObjectMaterialInfo material, boolean isBackface)
-  {
-    if (multColor == 0)
-    {
-      // It is fully opaque.
-
-      return new OpaqueFragment(addColor, depth);
-    }
-    else if (addColor == 0 && multColor == WHITE_ERGB && material == null)
-      return null; // This is a fully transparent fragment, so we can just discard it.
-    else
-    {
-      if (material == null)
-        return new TransparentFragment(addColor, multColor, depth, BACKGROUND_FRAGMENT);
-      return new MaterialFragment(addColor, multColor, depth, BACKGROUND_FRAGMENT, material, !isBackface);
-    }
-  }
-
-  /**
-   * Record a row of Fragment objects into the buffer.
+   * Record a row of fragments into the buffer.
    *
    * @param row      the index of the row
    * @param xstart   the starting position along the row
    * @param xend     the ending position along the row
-   * @param context  the RasterContext from which to copy the Fragments
+   * @param context  the RasterContext from which to copy the fragments
    */
 
   private void recordRow(int row, int xstart, int xend, RasterContext context)
   {
-    Fragment source[] = context.fragment;
-    int indexBase = row*width;
+    if (context.exclusive)
+    {
+      copyRow(row, xstart, xend, context);
+      return;
+    }
+
+    // Lock each tile the row passes through while copying the part that lies inside it.
 
-    synchronized (lock[row])
+    while (xstart < xend)
     {
-      for (int x = xstart; x < xend; x++)
+      int tileEnd = Math.min(xend, (xstart/TILE_SIZE+1)*TILE_SIZE);
+      synchronized (fragments.getTile(xstart, row))
       {
-        Fragment f = source[x];
-        if (f == null)
-          continue;
-        int index = indexBase+x;
-        Fragment current = fragment[index];
-        if (f.getDepth() < current.getDepth())
-          fragment[index] = f.insertNextFragment(current);
-        else
-          fragment[index] = current.insertNextFragment(f);
+        copyRow(row, xstart, tileEnd, context);
       }
+      xstart = tileEnd;
     }
   }
 
+  /** This is called by recordRow() to copy fragments into the buffer, once the tiles are safe to modify. */
+
+  private void copyRow(int row, int xstart, int xend, RasterContext context)
+  {
+    boolean hasFragment[] = context.hasFragment;
+    for (int x = xstart; x < xend; x++)
+      if (hasFragment[x])
+        fragments.addFragment(x, row, context.fragmentAddColor[x], context.fragmentMultColor[x], context.fragmentDepth[x], context.fragmentMaterial[x], context.fragmentEntering[x]);
+  }
+
   /** Clip a triangle to the region in front of the z clipping plane. */
 
   private Vec3 [] clipTriangle(Vec3 v1, Vec3 v2, Vec3 v3, float z1, float z2, float z3, float newz[], double newu[], double newv[], RasterContext context)
@@ -1200,17 +1488,17 @@ public class Raster implements Renderer, Runnable
     return new Vec3 [] {u1, u2, u3, u4};
   }
 
-  /** Render a triangle mesh with Gouraud shading. */
+  /** Render some or all of the triangles in a mesh with Gouraud shading.  See renderMesh() for a description
+      of the arguments. */
 
-  private void renderMeshGouraud(RenderingMesh mesh, Vec3 viewdir, boolean cullBackfaces, ObjectMaterialInfo material, RasterContext context)
+  private void renderMeshGouraud(RenderingMesh mesh, Vec2 pos[], float z[], int triangles[], int start, int end, Vec3 viewdir, boolean cullBackfaces, ObjectMaterialInfo material, RasterContext context)
   {
     Vec3 vert[] = mesh.vert, norm[] = mesh.norm;
-    Vec2 pos[] = new Vec2 [vert.length];
-    float z[] = new float [vert.length], clip = (float) context.camera.getClipDistance(), clipz[] = new float [4];
+    float clip = (float) context.camera.getClipDistance(), clipz[] = new float [4];
     double clipu[] = new double [4], clipv[] = new double [4];
     double distToScreen = context.camera.getDistToScreen(), tol = smoothScale;
     RGBColor diffuse[] = new RGBColor [4], specular[] = new RGBColor [4], highlight[] = new RGBColor [4];
-    Mat4 toView = context.camera.getObjectToView(), toScreen = context.camera.getObjectToScreen();
+    Mat4 toScreen = context.camera.getObjectToScreen();
     RenderingTriangle tri;
     int i, v1, v2, v3, n1, n2, n3;
     boolean backface;
@@ -1221,13 +1509,9 @@ public class Raster implements Renderer, Runnable
         specular[i] = new RGBColor();
         highlight[i] = new RGBColor();
       }
-    for (i = vert.length-1; i >= 0; i--)
-      {
-        pos[i] = toScreen.timesXY(vert[i]);
-        z[i] = (float) toView.timesZ(vert[i]);
-      }
-    for (i = mesh.triangle.length-1; i >= 0; i--)
+    for (int k = end-1; k >= start; k--)
       {
+        i = (triangles == null ? k : triangles[k]);
         tri = mesh.triangle[i];
         v1 = tri.v1;
         v2 = tri.v2;
@@ -1531,7 +1815,7 @@ public class Raster implements Renderer, Runnable
         mspecred2 = dspecred2*denom;
         mspecgreen2 = dspecgreen2*denom;
         mspecblue2 = dspecblue2*denom;
-        if (y2 < 0)
+        if (y2 < context.miny)
           {
             xstart += mx1*dy2;
             xend += mx2*dy2;
@@ -1555,33 +1839,34 @@ public class Raster implements Renderer, Runnable
             specblueend += mspecblue2*dy2;
             y = FastMath.round(y2);
           }
-        else if (y < 0)
+        else if (y < context.miny)
           {
-            xstart -= mx1*y;
-            xend -= mx2*y;
-            zstart -= mz1*y;
-            zend -= mz2*y;
-            ustart -= mu1*y;
-            uend -= mu2*y;
-            vstart -= mv1*y;
-            vend -= mv2*y;
-            difredstart -= mdifred1*y;
-            difredend -= mdifred2*y;
-            difgreenstart -= mdifgreen1*y;
-            difgreenend -= mdifgreen2*y;
-            difbluestart -= mdifblue1*y;
-            difblueend -= mdifblue2*y;
-            specredstart -= mspecred1*y;
-            specredend -= mspecred2*y;
-            specgreenstart -= mspecgreen1*y;
-            specgreenend -= mspecgreen2*y;
-            specbluestart -= mspecblue1*y;
-            specblueend -= mspecblue2*y;
-            y = 0;
+            int skipRows = context.miny-y;
+            xstart += mx1*skipRows;
+            xend += mx2*skipRows;
+            zstart += mz1*skipRows;
+            zend += mz2*skipRows;
+            ustart += mu1*skipRows;
+            uend += mu2*skipRows;
+            vstart += mv1*skipRows;
+            vend += mv2*skipRows;
+            difredstart += mdifred1*skipRows;
+            difredend += mdifred2*skipRows;
+            difgreenstart += mdifgreen1*skipRows;
+            difgreenend += mdifgreen2*skipRows;
+            difbluestart += mdifblue1*skipRows;
+            difblueend += mdifblue2*skipRows;
+            specredstart += mspecred1*skipRows;
+            specredend += mspecred2*skipRows;
+            specgreenstart += mspecgreen1*skipRows;
+            specgreenend += mspecgreen2*skipRows;
+            specbluestart += mspecblue1*skipRows;
+            specblueend += mspecblue2*skipRows;
+            y = context.miny;
           }
         yend = FastMath.round(y2);
-        if (yend > height)
-          yend = height;
+        if (yend > context.maxy)
+          yend = context.maxy;
         index = y*width;
 
         // Rasterize the top half of the triangle,
@@ -1651,26 +1936,27 @@ public class Raster implements Renderer, Runnable
                 dspecred *= denom;
                 dspecgreen *= denom;
                 dspecblue *= denom;
-                if (left < 0)
+                if (left < context.minx)
                 {
-                  z -= dz*left;
-                  u -= du*left;
-                  v -= dv*left;
-                  difred -= ddifred*left;
-                  difgreen -= ddifgreen*left;
-                  difblue -= ddifblue*left;
-                  specred -= dspecred*left;
-                  specgreen -= dspecgreen*left;
-                  specblue -= dspecblue*left;
-                  left = 0;
+                  int skipPixels = context.minx-left;
+                  z += dz*skipPixels;
+                  u += du*skipPixels;
+                  v += dv*skipPixels;
+                  difred += ddifred*skipPixels;
+                  difgreen += ddifgreen*skipPixels;
+                  difblue += ddifblue*skipPixels;
+                  specred += dspecred*skipPixels;
+                  specgreen += dspecgreen*skipPixels;
+                  specblue += dspecblue*skipPixels;
+                  left = context.minx;
                 }
-                if (right > width)
-                  right = width;
+                if (right > context.maxx)
+                  right = context.maxx;
                 repeat = false;
                 for (i = left; i < right; i++)
                   {
                     zl = 1.0f/z;
-                    if (zl < fragment[index+i].getOpaqueDepth() && zl > clip)
+                    if (zl < fragments.getOpaqueDepth(index+i) && zl > clip)
                       {
                         if (!repeat || (i%subsample == 0))
                           {
@@ -1684,12 +1970,12 @@ public class Raster implements Renderer, Runnable
                             lastAddColor = context.tempColor[0].getERGB();
                             lastMultColor = surfSpec.transparent.getERGB();
                           }
-                        context.fragment[i] = createFragment(lastAddColor, lastMultColor, zl, material, isBackface);
+                        context.setFragment(i, lastAddColor, lastMultColor, zl, material, !isBackface);
                         repeat = doSubsample;
                       }
                     else
                     {
-                      context.fragment[i] = null;
+                      context.clearFragment(i);
                       repeat = false;
                     }
                     z += dz;
@@ -1765,31 +2051,32 @@ public class Raster implements Renderer, Runnable
         specredend = spec2.getRed();
         specgreenend = spec2.getGreen();
         specblueend = spec2.getBlue();
-        if (y < 0)
+        if (y < context.miny)
           {
-            xstart -= mx1*y;
-            xend -= mx2*y;
-            zstart -= mz1*y;
-            zend -= mz2*y;
-            ustart -= mu1*y;
-            uend -= mu2*y;
-            vstart -= mv1*y;
-            vend -= mv2*y;
-            difredstart -= mdifred1*y;
-            difredend -= mdifred2*y;
-            difgreenstart -= mdifgreen1*y;
-            difgreenend -= mdifgreen2*y;
-            difbluestart -= mdifblue1*y;
-            difblueend -= mdifblue2*y;
-            specredstart -= mspecred1*y;
-            specredend -= mspecred2*y;
-            specgreenstart -= mspecgreen1*y;
-            specgreenend -= mspecgreen2*y;
-            specbluestart -= mspecblue1*y;
-            specblueend -= mspecblue2*y;
-            y = 0;
+            int skipRows = context.miny-y;
+            xstart += mx1*skipRows;
+            xend += mx2*skipRows;
+            zstart += mz1*skipRows;
+            zend += mz2*skipRows;
+            ustart += mu1*skipRows;
+            uend += mu2*skipRows;
+            vstart += mv1*skipRows;
+            vend += mv2*skipRows;
+            difredstart += mdifred1*skipRows;
+            difredend += mdifred2*skipRows;
+            difgreenstart += mdifgreen1*skipRows;
+            difgreenend += mdifgreen2*skipRows;
+            difbluestart += mdifblue1*skipRows;
+            difblueend += mdifblue2*skipRows;
+            specredstart += mspecred1*skipRows;
+            specredend += mspecred2*skipRows;
+            specgreenstart += mspecgreen1*skipRows;
+            specgreenend += mspecgreen2*skipRows;
+            specbluestart += mspecblue1*skipRows;
+            specblueend += mspecblue2*skipRows;
+            y = context.miny;
           }
-        yend = FastMath.round(y3 < height ? y3 : height);
+        yend = FastMath.round(y3 < context.maxy ? y3 : context.maxy);
         index = y*width;
 
         // Rasterize the bottom half of the triangle,
@@ -1859,26 +2146,27 @@ public class Raster implements Renderer, Runnable
                 dspecred *= denom;
                 dspecgreen *= denom;
                 dspecblue *= denom;
-                if (left < 0)
+                if (left < context.minx)
                 {
-                  z -= dz*left;
-                  u -= du*left;
-                  v -= dv*left;
-                  difred -= ddifred*left;
-                  difgreen -= ddifgreen*left;
-                  difblue -= ddifblue*left;
-                  specred -= dspecred*left;
-                  specgreen -= dspecgreen*left;
-                  specblue -= dspecblue*left;
-                  left = 0;
+                  int skipPixels = context.minx-left;
+                  z += dz*skipPixels;
+                  u += du*skipPixels;
+                  v += dv*skipPixels;
+                  difred += ddifred*skipPixels;
+                  difgreen += ddifgreen*skipPixels;
+                  difblue += ddifblue*skipPixels;
+                  specred += dspecred*skipPixels;
+                  specgreen += dspecgreen*skipPixels;
+                  specblue += dspecblue*skipPixels;
+                  left = context.minx;
                 }
-                if (right > width)
-                  right = width;
+                if (right > context.maxx)
+                  right = context.maxx;
                 repeat = false;
                 for (i = left; i < right; i++)
                   {
                     zl = 1.0f/z;
-                    if (zl < fragment[index+i].getOpaqueDepth() && zl > clip)
+                    if (zl < fragments.getOpaqueDepth(index+i) && zl > clip)
                       {
                         if (!repeat || (i%subsample == 0))
                           {
@@ -1892,12 +2180,12 @@ public class Raster implements Renderer, Runnable
                             lastAddColor = context.tempColor[0].getERGB();
                             lastMultColor = surfSpec.transparent.getERGB();
                           }
-                        context.fragment[i] = createFragment(lastAddColor, lastMultColor, zl, material, isBackface);
+                        context.setFragment(i, lastAddColor, lastMultColor, zl, material, !isBackface);
                         repeat = doSubsample;
                       }
                     else
                     {
-                      context.fragment[i] = null;
+                      context.clearFragment(i);
                       repeat = false;
                     }
                     z += dz;
@@ -1938,17 +2226,17 @@ public class Raster implements Renderer, Runnable
       }
   }
 
-  /** Render a triangle mesh with hybrid Gouraud/Phong shading. */
+  /** Render some or all of the triangles in a mesh with hybrid Gouraud/Phong shading.  See renderMesh() for a description
+      of the arguments. */
 
-  private void renderMeshHybrid(RenderingMesh mesh, Vec3 viewdir, boolean cullBackfaces, ObjectMaterialInfo material, RasterContext context)
+  private void renderMeshHybrid(RenderingMesh mesh, Vec2 pos[], float z[], int triangles[], int start, int end, Vec3 viewdir, boolean cullBackfaces, ObjectMaterialInfo material, RasterContext context)
   {
     Vec3 vert[] = mesh.vert, norm[] = mesh.norm, clipNorm[] = new Vec3 [4];
-    Vec2 pos[] = new Vec2 [vert.length];
-    float z[] = new float [vert.length], clip = (float) context.camera.getClipDistance(), clipz[] = new float [4];
+    float clip = (float) context.camera.getClipDistance(), clipz[] = new float [4];
     double clipu[] = new double [4], clipv[] = new double [4];
     double distToScreen = context.camera.getDistToScreen(), tol = smoothScale;
     RGBColor diffuse[] = new RGBColor [4];
-    Mat4 toView = context.camera.getObjectToView(), toScreen = context.camera.getObjectToScreen();
+    Mat4 toScreen = context.camera.getObjectToScreen();
     RenderingTriangle tri;
     int i, v1, v2, v3, n1, n2, n3;
     boolean backface;
@@ -1958,13 +2246,9 @@ public class Raster implements Renderer, Runnable
         diffuse[i] = new RGBColor();
         clipNorm[i] = new Vec3();
       }
-    for (i = vert.length-1; i >= 0; i--)
-      {
-        pos[i] = toScreen.timesXY(vert[i]);
-        z[i] = (float) toView.timesZ(vert[i]);
-      }
-    for (i = mesh.triangle.length-1; i >= 0; i--)
+    for (int k = end-1; k >= start; k--)
       {
+        i = (triangles == null ? k : triangles[k]);
         tri = mesh.triangle[i];
         v1 = tri.v1;
         v2 = tri.v2;
@@ -2265,7 +2549,7 @@ public class Raster implements Renderer, Runnable
         mnormx2 = dnormx2*denom;
         mnormy2 = dnormy2*denom;
         mnormz2 = dnormz2*denom;
-        if (y2 < 0)
+        if (y2 < context.miny)
           {
             xstart += mx1*dy2;
             xend += mx2*dy2;
@@ -2289,33 +2573,34 @@ public class Raster implements Renderer, Runnable
             normzend += mnormz2*dy2;
             y = FastMath.round(y2);
           }
-        else if (y < 0)
+        else if (y < context.miny)
           {
-            xstart -= mx1*y;
-            xend -= mx2*y;
-            zstart -= mz1*y;
-            zend -= mz2*y;
-            ustart -= mu1*y;
-            uend -= mu2*y;
-            vstart -= mv1*y;
-            vend -= mv2*y;
-            difredstart -= mdifred1*y;
-            difredend -= mdifred2*y;
-            difgreenstart -= mdifgreen1*y;
-            difgreenend -= mdifgreen2*y;
-            difbluestart -= mdifblue1*y;
-            difblueend -= mdifblue2*y;
-            normxstart -= mnormx1*y;
-            normxend -= mnormx2*y;
-            normystart -= mnormy1*y;
-            normyend -= mnormy2*y;
-            normzstart -= mnormz1*y;
-            normzend -= mnormz2*y;
-            y = 0;
+            int skipRows = context.miny-y;
+            xstart += mx1*skipRows;
+            xend += mx2*skipRows;
+            zstart += mz1*skipRows;
+            zend += mz2*skipRows;
+            ustart += mu1*skipRows;
+            uend += mu2*skipRows;
+            vstart += mv1*skipRows;
+            vend += mv2*skipRows;
+            difredstart += mdifred1*skipRows;
+            difredend += mdifred2*skipRows;
+            difgreenstart += mdifgreen1*skipRows;
+            difgreenend += mdifgreen2*skipRows;
+            difbluestart += mdifblue1*skipRows;
+            difblueend += mdifblue2*skipRows;
+            normxstart += mnormx1*skipRows;
+            normxend += mnormx2*skipRows;
+            normystart += mnormy1*skipRows;
+            normyend += mnormy2*skipRows;
+            normzstart += mnormz1*skipRows;
+            normzend += mnormz2*skipRows;
+            y = context.miny;
           }
         yend = FastMath.round(y2);
-        if (yend > height)
-          yend = height;
+        if (yend > context.maxy)
+          yend = context.maxy;
         index = y*width;
 
         // Rasterize the top half of the triangle,
@@ -2385,26 +2670,27 @@ public class Raster implements Renderer, Runnable
                 dnormx *= denom;
                 dnormy *= denom;
                 dnormz *= denom;
-                if (left < 0)
+                if (left < context.minx)
                 {
-                  z -= dz*left;
-                  u -= du*left;
-                  v -= dv*left;
-                  difred -= ddifred*left;
-                  difgreen -= ddifgreen*left;
-                  difblue -= ddifblue*left;
-                  normx -= dnormx*left;
-                  normy -= dnormy*left;
-                  normz -= dnormz*left;
-                  left = 0;
+                  int skipPixels = context.minx-left;
+                  z += dz*skipPixels;
+                  u += du*skipPixels;
+                  v += dv*skipPixels;
+                  difred += ddifred*skipPixels;
+                  difgreen += ddifgreen*skipPixels;
+                  difblue += ddifblue*skipPixels;
+                  normx += dnormx*skipPixels;
+                  normy += dnormy*skipPixels;
+                  normz += dnormz*skipPixels;
+                  left = context.minx;
                 }
-                if (right > width)
-                  right = width;
+                if (right > context.maxx)
+                  right = context.maxx;
                 repeat = false;
                 for (i = left; i < right; i++)
                   {
                     zl = 1.0f/z;
-                    if (zl < fragment[index+i].getOpaqueDepth() && zl > clip)
+                    if (zl < fragments.getOpaqueDepth(index+i) && zl > clip)
                       {
                         if (!repeat || (i%subsample == 0))
                           {
@@ -2431,12 +2717,12 @@ public class Raster implements Renderer, Runnable
                             lastAddColor = context.tempColor[0].getERGB();
                             lastMultColor = surfSpec.transparent.getERGB();
                           }
-                        context.fragment[i] = createFragment(lastAddColor, lastMultColor, zl, material, isBackface);
+                        context.setFragment(i, lastAddColor, lastMultColor, zl, material, !isBackface);
                         repeat = doSubsample;
                       }
                     else
                     {
-                      context.fragment[i] = null;
+                      context.clearFragment(i);
                       repeat = false;
                     }
                     z += dz;
@@ -2512,31 +2798,32 @@ public class Raster implements Renderer, Runnable
         normxend = norm2.x;
         normyend = norm2.y;
         normzend = norm2.z;
-        if (y < 0)
+        if (y < context.miny)
           {
-            xstart -= mx1*y;
-            xend -= mx2*y;
-            zstart -= mz1*y;
-            zend -= mz2*y;
-            ustart -= mu1*y;
-            uend -= mu2*y;
-            vstart -= mv1*y;
-            vend -= mv2*y;
-            difredstart -= mdifred1*y;
-            difredend -= mdifred2*y;
-            difgreenstart -= mdifgreen1*y;
-            difgreenend -= mdifgreen2*y;
-            difbluestart -= mdifblue1*y;
-            difblueend -= mdifblue2*y;
-            normxstart -= mnormx1*y;
-            normxend -= mnormx2*y;
-            normystart -= mnormy1*y;
-            normyend -= mnormy2*y;
-            normzstart -= mnormz1*y;
-            normzend -= mnormz2*y;
-            y = 0;
+            int skipRows = context.miny-y;
+            xstart += mx1*skipRows;
+            xend += mx2*skipRows;
+            zstart += mz1*skipRows;
+            zend += mz2*skipRows;
+            ustart += mu1*skipRows;
+            uend += mu2*skipRows;
+            vstart += mv1*skipRows;
+            vend += mv2*skipRows;
+            difredstart += mdifred1*skipRows;
+            difredend += mdifred2*skipRows;
+            difgreenstart += mdifgreen1*skipRows;
+            difgreenend += mdifgreen2*skipRows;
+            difbluestart += mdifblue1*skipRows;
+            difblueend += mdifblue2*skipRows;
+            normxstart += mnormx1*skipRows;
+            normxend += mnormx2*skipRows;
+            normystart += mnormy1*skipRows;
+            normyend += mnormy2*skipRows;
+            normzstart += mnormz1*skipRows;
+            normzend += mnormz2*skipRows;
+            y = context.miny;
           }
-        yend = FastMath.round(y3 < height ? y3 : height);
+        yend = FastMath.round(y3 < context.maxy ? y3 : context.maxy);
         index = y*width;
 
         // Rasterize the bottom half of the triangle,
@@ -2606,26 +2893,27 @@ public class Raster implements Renderer, Runnable
                 dnormx *= denom;
                 dnormy *= denom;
                 dnormz *= denom;
-                if (left < 0)
+                if (left < context.minx)
                 {
-                  z -= dz*left;
-                  u -= du*left;
-                  v -= dv*left;
-                  difred -= ddifred*left;
-                  difgreen -= ddifgreen*left;
-                  difblue -= ddifblue*left;
-                  normx -= dnormx*left;
-                  normy -= dnormy*left;
-                  normz -= dnormz*left;
-                  left = 0;
+                  int skipPixels = context.minx-left;
+                  z += dz*skipPixels;
+                  u += du*skipPixels;
+                  v += dv*skipPixels;
+                  difred += ddifred*skipPixels;
+                  difgreen += ddifgreen*skipPixels;
+                  difblue += ddifblue*skipPixels;
+                  normx += dnormx*skipPixels;
+                  normy += dnormy*skipPixels;
+                  normz += dnormz*skipPixels;
+                  left = context.minx;
                 }
-                if (right > width)
-                  right = width;
+                if (right > context.maxx)
+                  right = context.maxx;
                 repeat = false;
                 for (i = left; i < right; i++)
                   {
                     zl = 1.0f/z;
-                    if (zl < fragment[index+i].getOpaqueDepth() && zl > clip)
+                    if (zl < fragments.getOpaqueDepth(index+i) && zl > clip)
                       {
                         if (!repeat || (i%subsample == 0))
                           {
@@ -2652,12 +2940,12 @@ public class Raster implements Renderer, Runnable
                             lastAddColor = context.tempColor[0].getERGB();
                             lastMultColor = surfSpec.transparent.getERGB();
                           }
-                        context.fragment[i] = createFragment(lastAddColor, lastMultColor, zl, material, isBackface);
+                        context.setFragment(i, lastAddColor, lastMultColor, zl, material, !isBackface);
                         repeat = doSubsample;
                       }
                     else
                     {
-                      context.fragment[i] = null;
+                      context.clearFragment(i);
                       repeat = false;
                     }
                     z += dz;
@@ -2698,28 +2986,24 @@ public class Raster implements Renderer, Runnable
       }
   }
 
-  /** Render a triangle mesh with Phong shading. */
+  /** Render some or all of the triangles in a mesh with Phong shading.  See renderMesh() for a description
+      of the arguments. */
 
-  private void renderMeshPhong(RenderingMesh mesh, Vec3 viewdir, boolean cullBackfaces, boolean bumpMap, ObjectMaterialInfo material, RasterContext context)
+  private void renderMeshPhong(RenderingMesh mesh, Vec2 pos[], float z[], int triangles[], int start, int end, Vec3 viewdir, boolean cullBackfaces, boolean bumpMap, ObjectMaterialInfo material, RasterContext context)
   {
     Vec3 vert[] = mesh.vert, norm[] = mesh.norm, clipNorm[] = new Vec3 [4];
-    Vec2 pos[] = new Vec2 [vert.length];
-    float z[] = new float [vert.length], clip = (float) context.camera.getClipDistance(), clipz[] = new float [4];
+    float clip = (float) context.camera.getClipDistance(), clipz[] = new float [4];
     double clipu[] = new double [4], clipv[] = new double [4];
-    Mat4 toView = context.camera.getObjectToView(), toScreen = context.camera.getObjectToScreen();
+    Mat4 toScreen = context.camera.getObjectToScreen();
     RenderingTriangle tri;
     int i, v1, v2, v3, n1, n2, n3;
     boolean backface;
 
     for (i = 0; i < 4; i++)
       clipNorm[i] = new Vec3();
-    for (i = vert.length-1; i >= 0; i--)
-      {
-        pos[i] = toScreen.timesXY(vert[i]);
-        z[i] = (float) toView.timesZ(vert[i]);
-      }
-    for (i = mesh.triangle.length-1; i >= 0; i--)
+    for (int k = end-1; k >= start; k--)
       {
+        i = (triangles == null ? k : triangles[k]);
         tri = mesh.triangle[i];
         v1 = tri.v1;
         v2 = tri.v2;
@@ -2971,7 +3255,7 @@ public class Raster implements Renderer, Runnable
         mnormx2 = dnormx2*denom;
         mnormy2 = dnormy2*denom;
         mnormz2 = dnormz2*denom;
-        if (y2 < 0)
+        if (y2 < context.miny)
           {
             xstart += mx1*dy2;
             xend += mx2*dy2;
@@ -2989,27 +3273,28 @@ public class Raster implements Renderer, Runnable
             normzend += mnormz2*dy2;
             y = FastMath.round(y2);
           }
-        else if (y < 0)
+        else if (y < context.miny)
           {
-            xstart -= mx1*y;
-            xend -= mx2*y;
-            zstart -= mz1*y;
-            zend -= mz2*y;
-            ustart -= mu1*y;
-            uend -= mu2*y;
-            vstart -= mv1*y;
-            vend -= mv2*y;
-            normxstart -= mnormx1*y;
-            normxend -= mnormx2*y;
-            normystart -= mnormy1*y;
-            normyend -= mnormy2*y;
-            normzstart -= mnormz1*y;
-            normzend -= mnormz2*y;
-            y = 0;
+            int skipRows = context.miny-y;
+            xstart += mx1*skipRows;
+            xend += mx2*skipRows;
+            zstart += mz1*skipRows;
+            zend += mz2*skipRows;
+            ustart += mu1*skipRows;
+            uend += mu2*skipRows;
+            vstart += mv1*skipRows;
+            vend += mv2*skipRows;
+            normxstart += mnormx1*skipRows;
+            normxend += mnormx2*skipRows;
+            normystart += mnormy1*skipRows;
+            normyend += mnormy2*skipRows;
+            normzstart += mnormz1*skipRows;
+            normzend += mnormz2*skipRows;
+            y = context.miny;
           }
         yend = FastMath.round(y2);
-        if (yend > height)
-          yend = height;
+        if (yend > context.maxy)
+          yend = context.maxy;
         index = y*width;
 
         // Rasterize the top half of the triangle,
@@ -3064,23 +3349,24 @@ public class Raster implements Renderer, Runnable
                 dnormx *= denom;
                 dnormy *= denom;
                 dnormz *= denom;
-                if (left < 0)
+                if (left < context.minx)
                 {
-                  z -= dz*left;
-                  u -= du*left;
-                  v -= dv*left;
-                  normx -= dnormx*left;
-                  normy -= dnormy*left;
-                  normz -= dnormz*left;
-                  left = 0;
+                  int skipPixels = context.minx-left;
+                  z += dz*skipPixels;
+                  u += du*skipPixels;
+                  v += dv*skipPixels;
+                  normx += dnormx*skipPixels;
+                  normy += dnormy*skipPixels;
+                  normz += dnormz*skipPixels;
+                  left = context.minx;
                 }
-                if (right > width)
-                  right = width;
+                if (right > context.maxx)
+                  right = context.maxx;
                 repeat = false;
                 for (i = left; i < right; i++)
                   {
                     zl = 1.0f/z;
-                    if (zl < fragment[index+i].getOpaqueDepth() && zl > clip)
+                    if (zl < fragments.getOpaqueDepth(index+i) && zl > clip)
                       {
                         if (!repeat || (i%subsample == 0))
                           {
@@ -3116,12 +3402,12 @@ public class Raster implements Renderer, Runnable
                             lastAddColor = context.tempColor[0].getERGB();
                             lastMultColor = surfSpec.transparent.getERGB();
                           }
-                        context.fragment[i] = createFragment(lastAddColor, lastMultColor, zl, material, isBackface);
+                        context.setFragment(i, lastAddColor, lastMultColor, zl, material, !isBackface);
                         repeat = doSubsample;
                       }
                     else
                     {
-                      context.fragment[i] = null;
+                      context.clearFragment(i);
                       repeat = false;
                     }
                     z += dz;
@@ -3179,25 +3465,26 @@ public class Raster implements Renderer, Runnable
         normxend = norm2.x;
         normyend = norm2.y;
         normzend = norm2.z;
-        if (y < 0)
+        if (y < context.miny)
           {
-            xstart -= mx1*y;
-            xend -= mx2*y;
-            zstart -= mz1*y;
-            zend -= mz2*y;
-            ustart -= mu1*y;
-            uend -= mu2*y;
-            vstart -= mv1*y;
-            vend -= mv2*y;
-            normxstart -= mnormx1*y;
-            normxend -= mnormx2*y;
-            normystart -= mnormy1*y;
-            normyend -= mnormy2*y;
-            normzstart -= mnormz1*y;
-            normzend -= mnormz2*y;
-            y = 0;
+            int skipRows = context.miny-y;
+            xstart += mx1*skipRows;
+            xend += mx2*skipRows;
+            zstart += mz1*skipRows;
+            zend += mz2*skipRows;
+            ustart += mu1*skipRows;
+            uend += mu2*skipRows;
+            vstart += mv1*skipRows;
+            vend += mv2*skipRows;
+            normxstart += mnormx1*skipRows;
+            normxend += mnormx2*skipRows;
+            normystart += mnormy1*skipRows;
+            normyend += mnormy2*skipRows;
+            normzstart += mnormz1*skipRows;
+            normzend += mnormz2*skipRows;
+            y = context.miny;
           }
-        yend = FastMath.round(y3 < height ? y3 : height);
+        yend = FastMath.round(y3 < context.maxy ? y3 : context.maxy);
         index = y*width;
 
         // Rasterize the bottom half of the triangle,
@@ -3252,23 +3539,24 @@ public class Raster implements Renderer, Runnable
                 dnormx *= denom;
                 dnormy *= denom;
                 dnormz *= denom;
-                if (left < 0)
+                if (left < context.minx)
                 {
-                  z -= dz*left;
-                  u -= du*left;
-                  v -= dv*left;
-                  normx -= dnormx*left;
-                  normy -= dnormy*left;
-                  normz -= dnormz*left;
-                  left = 0;
+                  int skipPixels = context.minx-left;
+                  z += dz*skipPixels;
+                  u += du*skipPixels;
+                  v += dv*skipPixels;
+                  normx += dnormx*skipPixels;
+                  normy += dnormy*skipPixels;
+                  normz += dnormz*skipPixels;
+                  left = context.minx;
                 }
-                if (right > width)
-                  right = width;
+                if (right > context.maxx)
+                  right = context.maxx;
                 repeat = false;
                 for (i = left; i < right; i++)
                   {
                     zl = 1.0f/z;
-                    if (zl < fragment[index+i].getOpaqueDepth() && zl > clip)
+                    if (zl < fragments.getOpaqueDepth(index+i) && zl > clip)
                       {
                         if (!repeat || (i%subsample == 0))
                           {
@@ -3304,12 +3592,12 @@ public class Raster implements Renderer, Runnable
                             lastAddColor = context.tempColor[0].getERGB();
                             lastMultColor = surfSpec.transparent.getERGB();
                           }
-                        context.fragment[i] = createFragment(lastAddColor, lastMultColor, zl, material, isBackface);
+                        context.setFragment(i, lastAddColor, lastMultColor, zl, material, !isBackface);
                         repeat = doSubsample;
                       }
                     else
                     {
-                      context.fragment[i] = null;
+                      context.clearFragment(i);
                       repeat = false;
                     }
                     z += dz;
@@ -3604,10 +3892,143 @@ public class Raster implements Renderer, Runnable
   }
 
   /**
-   * This class is used for the lock objects on individual rows.
+   * This is an inner class used when rendering in tiles.  It holds a mesh whose vertices have been projected onto
+   * the screen, and lists the triangles that overlap each tile.  Only tiles inside the rectangle
+   * (minTileX, minTileY)-(maxTileX, maxTileY) have entries.  For a tile whose index is k, as returned by
+   * getTileIndex(), the overlapping triangles are triangles[tileStart[k]] through triangles[tileStart[k+1]-1].
    */
 
-  private static class RowLock
+  private class BinnedMesh
   {
+    final RenderingMesh mesh;
+    final Vec2 pos[];
+    final float z[];
+    final Vec3 viewdir;
+    final Mat4 fromLocal, toLocal;
+    final boolean cullBackfaces, bumpMap;
+    final ObjectMaterialInfo material;
+    int minTileX, maxTileX, minTileY, maxTileY;
+    int tileStart[], triangles[];
+
+    BinnedMesh(RenderingMesh mesh, Vec2 pos[], float z[], Vec3 viewdir, Mat4 fromLocal, Mat4 toLocal, boolean cullBackfaces,
+               boolean bumpMap, ObjectMaterialInfo material, RasterContext context)
+    {
+      this.mesh = mesh;
+      this.pos = pos;
+      this.z = z;
+      this.viewdir = viewdir;
+      this.fromLocal = fromLocal;
+      this.toLocal = toLocal;
+      this.cullBackfaces = cullBackfaces;
+      this.bumpMap = bumpMap;
+      this.material = material;
+
+      // Find the range of tiles overlapped by each triangle.
+
+      int numTriangles = mesh.triangle.length;
+      int range[] = new int [4*numTriangles];
+      minTileX = minTileY = Integer.MAX_VALUE;
+      maxTileX = maxTileY = -1;
+      for (int i = 0; i < numTriangles; i++)
+      {
+        if (!findTileRange(i, range, context))
+        {
+          range[4*i] = -1;
+          continue;
+        }
+        minTileX = Math.min(minTileX, range[4*i]);
+        maxTileX = Math.max(maxTileX, range[4*i+1]);
+        minTileY = Math.min(minTileY, range[4*i+2]);
+        maxTileY = Math.max(maxTileY, range[4*i+3]);
+      }
+      if (maxTileX < 0)
+      {
+        tileStart = new int [] {0};
+        triangles = new int [0];
+        return;
+      }
+
+      // Count the triangles in each tile, then record them.
+
+      int columns = maxTileX-minTileX+1;
+      tileStart = new int [columns*(maxTileY-minTileY+1)+1];
+      for (int i = 0; i < numTriangles; i++)
+        if (range[4*i] != -1)
+          for (int y = range[4*i+2]; y <= range[4*i+3]; y++)
+            for (int x = range[4*i]; x <= range[4*i+1]; x++)
+              tileStart[(y-minTileY)*columns+x-minTileX+1]++;
+      for (int i = 1; i < tileStart.length; i++)
+        tileStart[i] += tileStart[i-1];
+      triangles = new int [tileStart[tileStart.length-1]];
+      int next[] = tileStart.clone();
+      for (int i = 0; i < numTriangles; i++)
+        if (range[4*i] != -1)
+          for (int y = range[4*i+2]; y <= range[4*i+3]; y++)
+            for (int x = range[4*i]; x <= range[4*i+1]; x++)
+              triangles[next[(y-minTileY)*columns+x-minTileX]++] = i;
+    }
+
+    /** Find the range of tiles a triangle may cover, and store it into range[4*which] through range[4*which+3].
+        If the triangle cannot be visible, this returns false. */
+
+    private boolean findTileRange(int which, int range[], RasterContext context)
+    {
+      RenderingTriangle tri = mesh.triangle[which];
+      int v1 = tri.v1, v2 = tri.v2, v3 = tri.v3;
+      float clip = (float) context.camera.getClipDistance();
+      if (z[v1] < clip && z[v2] < clip && z[v3] < clip)
+        return false;
+      double minx, maxx, miny, maxy;
+      if (z[v1] < clip || z[v2] < clip || z[v3] < clip)
+      {
+        // Clip the triangle, and find the bounds of the clipped polygon.
+
+        Vec3 vert[] = mesh.vert;
+        Vec3 clipPos[] = clipTriangle(vert[v1], vert[v2], vert[v3], z[v1], z[v2], z[v3], new float [4], new double [4], new double [4], context);
+        Mat4 toScreen = context.camera.getObjectToScreen();
+        minx = miny = Double.MAX_VALUE;
+        maxx = maxy = -Double.MAX_VALUE;
+        for (Vec3 p : clipPos)
+        {
+          Vec2 screen = toScreen.timesXY(p);
+          minx = Math.min(minx, screen.x);
+          maxx = Math.max(maxx, screen.x);
+          miny = Math.min(miny, screen.y);
+          maxy = Math.max(maxy, screen.y);
+        }
+      }
+      else
+      {
+        if (cullBackfaces && (pos[v2].x-pos[v1].x)*(pos[v3].y-pos[v1].y) - (pos[v2].y-pos[v1].y)*(pos[v3].x-pos[v1].x) > 0.0)
+          return false;
+        minx = Math.min(Math.min(pos[v1].x, pos[v2].x), pos[v3].x);
+        maxx = Math.max(Math.max(pos[v1].x, pos[v2].x), pos[v3].x);
+        miny = Math.min(Math.min(pos[v1].y, pos[v2].y), pos[v3].y);
+        maxy = Math.max(Math.max(pos[v1].y, pos[v2].y), pos[v3].y);
+      }
+
+      // The rasterizer rounds vertex positions to the nearest pixel, then fills the pixels from the first row
+      // or column up to (but not including) the last one.  Clamp the positions first, since points close to the
+      // clipping plane can be too far away to round.
+
+      int left = FastMath.round(Math.max(-1.0, Math.min(minx, width+1.0))), right = FastMath.round(Math.max(-1.0, Math.min(maxx, width+1.0)));
+      int top = FastMath.round(Math.max(-1.0, Math.min(miny, height+1.0))), bottom = FastMath.round(Math.max(-1.0, Math.min(maxy, height+1.0)));
+      if (right <= 0 || left >= width || bottom <= 0 || top >= height || left == right || top == bottom)
+        return false;
+      range[4*which] = Math.max(left, 0)/TILE_SIZE;
+      range[4*which+1] = (Math.min(right, width)-1)/TILE_SIZE;
+      range[4*which+2] = Math.max(top, 0)/TILE_SIZE;
+      range[4*which+3] = (Math.min(bottom, height)-1)/TILE_SIZE;
+      return true;
+    }
+
+    /** Get the index into tileStart for a tile, or -1 if no triangles overlap it. */
+
+    int getTileIndex(int tileX, int tileY)
+    {
+      if (tileX < minTileX || tileX > maxTileX || tileY < minTileY || tileY > maxTileY)
+        return -1;
+      return (tileY-minTileY)*(maxTileX-minTileX+1)+tileX-minTileX;
+    }
   }
 }
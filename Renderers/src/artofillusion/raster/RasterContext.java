@@ -22,12 +22,18 @@ import artofillusion.*;
 public class RasterContext
 {
   public Vec3 tempVec[], lightPosition[], lightDirection[];
+  public Vec3 shadowPos, shadowNormal;
   public RGBColor tempColor[];
   public TextureSpec surfSpec, surfSpec2;
   public Camera camera;
-  public Fragment fragment[];
+  public boolean hasFragment[], fragmentEntering[];
+  public int fragmentAddColor[], fragmentMultColor[];
+  public float fragmentDepth[];
+  public ObjectMaterialInfo fragmentMaterial[];
+  public int minx, maxx, miny, maxy;
+  public boolean exclusive;
 
-  public RasterContext(Camera camera, int width)
+  public RasterContext(Camera camera, int width, int height)
   {
     this.camera = (camera == null ? null : camera.duplicate());
     surfSpec = new TextureSpec();
@@ -38,7 +44,66 @@ public class RasterContext
     tempVec = new Vec3 [4];
     for (int i = 0; i < tempVec.length; i++)
       tempVec[i] = new Vec3();
-    fragment = new Fragment[width];
+    shadowPos = new Vec3();
+    shadowNormal = new Vec3();
+    hasFragment = new boolean [width];
+    fragmentEntering = new boolean [width];
+    fragmentAddColor = new int [width];
+    fragmentMultColor = new int [width];
+    fragmentDepth = new float [width];
+    fragmentMaterial = new ObjectMaterialInfo [width];
+    setBounds(0, width, 0, height, false);
+  }
+
+  /**
+   * Set the region of the image this thread may draw into.  Triangles are clipped to it as they are rasterized.
+   *
+   * @param minx       the first column of the region
+   * @param maxx       one past the last column of the region
+   * @param miny       the first row of the region
+   * @param maxy       one past the last row of the region
+   * @param exclusive  true if no other thread will draw into this region at the same time, so rows need not be locked
+   */
+
+  public void setBounds(int minx, int maxx, int miny, int maxy, boolean exclusive)
+  {
+    this.minx = minx;
+    this.maxx = maxx;
+    this.miny = miny;
+    this.maxy = maxy;
+    this.exclusive = exclusive;
+  }
+
+  /**
+   * Record a fragment in the row currently being drawn.  It will be copied into the image by
+   * Raster.recordRow().
+   *
+   * @param x           the position along the row
+   * @param addColor    the additive color, in ERGB format
+   * @param multColor   the multiplicative color, in ERGB format
+   * @param depth       the depth of the fragment
+   * @param material    a description of the material for the object being rendered
+   * @param isEntering  true if the material is being entered, false if it is being exited
+   */
+
+  public void setFragment(int x, int addColor, int multColor, float depth, ObjectMaterialInfo material, boolean isEntering)
+  {
+    hasFragment[x] = true;
+    fragmentAddColor[x] = addColor;
+    fragmentMultColor[x] = multColor;
+    fragmentDepth[x] = depth;
+    fragmentMaterial[x] = material;
+    fragmentEntering[x] = isEntering;
+  }
+
+  /**
+   * Record that a position in the row currently being drawn has no fragment.
+   */
+
+  public void clearFragment(int x)
+  {
+    hasFragment[x] = false;
+    fragmentMaterial[x] = null;
   }
 
   /**
@@ -54,5 +119,6 @@ public class RasterContext
     surfSpec = null;
     surfSpec2 = null;
     camera = null;
+    fragmentMaterial = null;
   }
 }
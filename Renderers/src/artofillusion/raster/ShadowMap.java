@@ -0,0 +1,473 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raster;
+
+import artofillusion.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * A ShadowMap records how far light from a single light source travels in each direction before it is
+ * blocked by an object.  It is used by the Raster renderer to decide which points are in shadow.
+ * <p>
+ * The map is made of one or more faces, each of which is a depth image of the scene as seen from the light.
+ * A PointLight uses six perspective faces arranged as a cube around it.  A SpotLight uses a single perspective
+ * face covering its cone.  A DirectionalLight uses several orthographic faces, or cascades, each covering a
+ * successively more distant slice of the camera's view, so that texels near the camera are small while the
+ * whole visible scene is still covered.
+ * <p>
+ * To build the map, call getNumFaces() and then renderFace() for each face.  Different faces may be rendered
+ * by different threads at once.  Once they are all complete, getLitFraction() may be called from any thread.
+ * It compares a point against several neighboring texels (percentage closer filtering), so shadow edges are
+ * smooth rather than jagged.
+ */
+
+public class ShadowMap
+{
+  private final Light light;
+  private final Vec3 lightPos, lightDir;
+  private final Face face[];
+  private final Mat4 worldToCamera;
+  private final double cascadeEnd[];
+  private final int size, filterRadius;
+
+  private static final int NUM_CASCADES = 3;
+  private static final double NORMAL_OFFSET = 1.5;
+  private static final double DEPTH_BIAS = 1.0;
+
+  /**
+   * Create a ShadowMap for a light.
+   *
+   * @param light        the light the map is for
+   * @param coords       the light's coordinate system
+   * @param size         the width and height of each face in texels
+   * @param filterRadius the number of neighboring texels in each direction to compare against when looking up
+   *                     a point.  The filter is (2*filterRadius+1) texels wide.
+   * @param casters      the objects that cast shadows
+   * @param camera       the camera from which the scene is being rendered.  This is used to position the cascades
+   *                     of a DirectionalLight.
+   */
+
+  public ShadowMap(Light light, CoordinateSystem coords, int size, int filterRadius, List<Caster> casters, Camera camera)
+  {
+    this.light = light;
+    this.size = size;
+    this.filterRadius = filterRadius;
+    lightPos = coords.getOrigin();
+    lightDir = coords.getZDirection();
+
+    // Find a box enclosing all the objects, in world coordinates.
+
+    BoundingBox bounds = null;
+    for (Caster caster : casters)
+    {
+      BoundingBox b = caster.getBounds();
+      if (b != null)
+        bounds = (bounds == null ? b : bounds.merge(b));
+    }
+    if (bounds == null)
+      bounds = new BoundingBox(0.0, 0.0, 0.0, 0.0, 0.0, 0.0);
+    Vec3 corners[] = bounds.getCorners();
+    double sceneSize = Math.max(bounds.getSize().length(), 1e-6);
+    int margin = filterRadius+2;
+    if (light instanceof DirectionalLight)
+    {
+      worldToCamera = camera.getWorldToView();
+      cascadeEnd = new double [NUM_CASCADES];
+      face = new Face [NUM_CASCADES];
+      Mat4 worldToLight = new CoordinateSystem(new Vec3(), lightDir, coords.getUpDirection()).toLocal();
+
+      // Split the range of depths covered by the scene into slices.  For a perspective camera they are spaced
+      // more closely near the camera, where texels cover more of the image.
+
+      double near = Double.MAX_VALUE, far = -Double.MAX_VALUE;
+      for (Vec3 corner : corners)
+      {
+        double depth = worldToCamera.timesZ(corner);
+        near = Math.min(near, depth);
+        far = Math.max(far, depth);
+      }
+      boolean logSplits = camera.isPerspective();
+      if (logSplits)
+        near = Math.max(near, camera.getClipDistance());
+      far = Math.max(far, near+1e-6*sceneSize);
+      double start = near;
+      Dimension dim = camera.getSize();
+      Vec2 screenCorners[] = new Vec2[] {new Vec2(0.0, 0.0), new Vec2(dim.width, 0.0), new Vec2(0.0, dim.height), new Vec2(dim.width, dim.height)};
+      for (int i = 0; i < NUM_CASCADES; i++)
+      {
+        double fract = (i+1.0)/NUM_CASCADES;
+        double end = near+(far-near)*fract;
+        if (logSplits)
+          end = 0.75*near*Math.pow(far/near, fract) + 0.25*end;
+        if (i == NUM_CASCADES-1)
+          end = far;
+        cascadeEnd[i] = end;
+
+        // Find the region covered by this slice of the view, as seen from the light.
+
+        double minx = Double.MAX_VALUE, maxx = -Double.MAX_VALUE, miny = Double.MAX_VALUE, maxy = -Double.MAX_VALUE;
+        for (Vec2 screenCorner : screenCorners)
+          for (double depth : new double [] {start, end})
+          {
+            Vec3 p = worldToLight.times(camera.convertScreenToWorld(screenCorner, depth, false));
+            minx = Math.min(minx, p.x);
+            maxx = Math.max(maxx, p.x);
+            miny = Math.min(miny, p.y);
+            maxy = Math.max(maxy, p.y);
+          }
+        double extent = Math.max(Math.max(maxx-minx, maxy-miny), 1e-6*sceneSize);
+        double scale = (size-2*margin)/extent;
+        face[i] = new Face(worldToLight, false, scale, size/2.0-0.5*(minx+maxx)*scale, size/2.0-0.5*(miny+maxy)*scale, 0.0, size);
+        start = end;
+      }
+    }
+    else
+    {
+      worldToCamera = null;
+      cascadeEnd = null;
+      double near = 1e-4*sceneSize;
+      if (light instanceof SpotLight)
+      {
+        // A single face covering the cone of the light.
+
+        double halfAngle = Math.min(Math.acos(((SpotLight) light).getAngleCosine()), Math.toRadians(80.0));
+        double scale = (size/2.0-margin)/Math.tan(halfAngle);
+        face = new Face [] {new Face(coords.toLocal(), true, scale, size/2.0, size/2.0, near, size)};
+      }
+      else
+      {
+        // Six faces forming a cube around the light.  Each one covers slightly more than 90 degrees, so points
+        // near the edges can still be filtered.
+
+        Vec3 dir[] = new Vec3[] {Vec3.vx(), Vec3.vx().times(-1.0), Vec3.vy(), Vec3.vy().times(-1.0), Vec3.vz(), Vec3.vz().times(-1.0)};
+        Vec3 up[] = new Vec3[] {Vec3.vy(), Vec3.vy(), Vec3.vz(), Vec3.vz(), Vec3.vy(), Vec3.vy()};
+        double scale = size/2.0-margin;
+        face = new Face [6];
+        for (int i = 0; i < face.length; i++)
+          face[i] = new Face(new CoordinateSystem(lightPos, dir[i], up[i]).toLocal(), true, scale, size/2.0, size/2.0, near, size);
+      }
+    }
+  }
+
+  /** Get the light this map is for. */
+
+  public Light getLight()
+  {
+    return light;
+  }
+
+  /** Get the number of faces in this map. */
+
+  public int getNumFaces()
+  {
+    return face.length;
+  }
+
+  /**
+   * Render the objects into one face of the map.
+   *
+   * @param index     the index of the face to render
+   * @param casters   the objects that cast shadows
+   */
+
+  public void renderFace(int index, List<Caster> casters)
+  {
+    Face f = face[index];
+    for (Caster caster : casters)
+      f.render(caster);
+  }
+
+  /**
+   * Determine how much of the light reaches a point.
+   *
+   * @param pos       the position of the point, in world coordinates
+   * @param normal    the surface normal at the point, in world coordinates.  It need not be normalized, and may
+   *                  point to either side of the surface.
+   * @return the fraction of the light that reaches the point, between 0 (fully shadowed) and 1 (fully lit)
+   */
+
+  public float getLitFraction(Vec3 pos, Vec3 normal)
+  {
+    // Select the face to use.
+
+    Face f;
+    double tx, ty, tz;
+    if (cascadeEnd != null)
+    {
+      double depth = worldToCamera.timesZ(pos);
+      int i = 0;
+      while (i < cascadeEnd.length-1 && depth > cascadeEnd[i])
+        i++;
+      f = face[i];
+      tx = -lightDir.x;
+      ty = -lightDir.y;
+      tz = -lightDir.z;
+    }
+    else
+    {
+      tx = lightPos.x-pos.x;
+      ty = lightPos.y-pos.y;
+      tz = lightPos.z-pos.z;
+      if (face.length == 1)
+        f = face[0];
+      else
+      {
+        double ax = Math.abs(tx), ay = Math.abs(ty), az = Math.abs(tz);
+        if (ax >= ay && ax >= az)
+          f = face[tx < 0.0 ? 0 : 1];
+        else if (ay >= az)
+          f = face[ty < 0.0 ? 2 : 3];
+        else
+          f = face[tz < 0.0 ? 4 : 5];
+      }
+    }
+
+    // Offset the point along the normal toward the light by an amount proportional to the size of a texel,
+    // so that surfaces do not shadow themselves.
+
+    double z = f.toLight.m31*pos.x + f.toLight.m32*pos.y + f.toLight.m33*pos.z + f.toLight.m34;
+    if (f.perspective && z <= f.near)
+      return 1.0f;
+    double texel = (f.perspective ? z/f.scale : 1.0/f.scale);
+    double nlength = normal.length();
+    double offset = (nlength == 0.0 ? 0.0 : NORMAL_OFFSET*texel/nlength);
+    if (normal.x*tx + normal.y*ty + normal.z*tz < 0.0)
+      offset = -offset;
+    double px = pos.x+normal.x*offset, py = pos.y+normal.y*offset, pz = pos.z+normal.z*offset;
+    double x = f.toLight.m11*px + f.toLight.m12*py + f.toLight.m13*pz + f.toLight.m14;
+    double y = f.toLight.m21*px + f.toLight.m22*py + f.toLight.m23*pz + f.toLight.m24;
+    z = f.toLight.m31*px + f.toLight.m32*py + f.toLight.m33*pz + f.toLight.m34;
+    if (f.perspective)
+    {
+      if (z <= f.near)
+        return 1.0f;
+      x /= z;
+      y /= z;
+    }
+    double sx = f.offsetX+x*f.scale-0.5, sy = f.offsetY+y*f.scale-0.5;
+    if (sx < -filterRadius || sy < -filterRadius || sx > size+filterRadius || sy > size+filterRadius)
+      return 1.0f;
+    float compare = (float) (z-DEPTH_BIAS*texel);
+
+    // Compare it to the neighboring texels, weighting those at the edge of the filter by how much of them
+    // it covers.
+
+    int ix = FastMath.floor(sx), iy = FastMath.floor(sy);
+    float fx = (float) (sx-ix), fy = (float) (sy-iy);
+    float lit = 0.0f, blocked = 0.0f;
+    for (int j = -filterRadius; j <= filterRadius+1; j++)
+    {
+      int row = Math.max(0, Math.min(size-1, iy+j))*size;
+      float wy = (j == -filterRadius ? 1.0f-fy : j == filterRadius+1 ? fy : 1.0f);
+      for (int i = -filterRadius; i <= filterRadius+1; i++)
+      {
+        int col = Math.max(0, Math.min(size-1, ix+i));
+        float weight = wy*(i == -filterRadius ? 1.0f-fx : i == filterRadius+1 ? fx : 1.0f);
+        if (f.depth[row+col] >= compare)
+          lit += weight;
+        else
+          blocked += weight;
+      }
+    }
+    if (blocked == 0.0f)
+      return 1.0f;
+    return lit/(lit+blocked);
+  }
+
+  /**
+   * A Caster is an object that casts shadows: a rendering mesh and the transform that places it in the scene.
+   */
+
+  public static class Caster
+  {
+    private final RenderingMesh mesh;
+    private final Mat4 toWorld;
+    private BoundingBox bounds;
+
+    public Caster(RenderingMesh mesh, Mat4 toWorld)
+    {
+      this.mesh = mesh;
+      this.toWorld = toWorld;
+    }
+
+    /** Get a box enclosing the object in world coordinates, or null if it has no vertices. */
+
+    private synchronized BoundingBox getBounds()
+    {
+      if (bounds == null && mesh.vert.length > 0)
+      {
+        Vec3 p = toWorld.times(mesh.vert[0]);
+        double minx = p.x, maxx = p.x, miny = p.y, maxy = p.y, minz = p.z, maxz = p.z;
+        for (Vec3 v : mesh.vert)
+        {
+          p.set(v);
+          toWorld.transform(p);
+          minx = Math.min(minx, p.x);
+          maxx = Math.max(maxx, p.x);
+          miny = Math.min(miny, p.y);
+          maxy = Math.max(maxy, p.y);
+          minz = Math.min(minz, p.z);
+          maxz = Math.max(maxz, p.z);
+        }
+        bounds = new BoundingBox(minx, maxx, miny, maxy, minz, maxz);
+      }
+      return bounds;
+    }
+  }
+
+  /**
+   * A Face is a single depth image.  It stores, for each texel, the depth along the face's z axis of the nearest
+   * object.
+   */
+
+  private static class Face
+  {
+    final Mat4 toLight;
+    final boolean perspective;
+    final double scale, offsetX, offsetY, near;
+    final float depth[];
+    final int size;
+
+    /**
+     * @param toLight      transforms world coordinates to the coordinate system of the face, whose z axis points
+     *                     away from the light
+     * @param perspective  true for a perspective projection, false for an orthographic one
+     * @param scale        the number of texels per unit of x or y (divided by z for a perspective projection)
+     * @param offsetX      the x texel coordinate corresponding to x=0
+     * @param offsetY      the y texel coordinate corresponding to y=0
+     * @param near         for a perspective projection, the depth in front of which objects are ignored
+     * @param size         the width and height of the face in texels
+     */
+
+    Face(Mat4 toLight, boolean perspective, double scale, double offsetX, double offsetY, double near, int size)
+    {
+      this.toLight = toLight;
+      this.perspective = perspective;
+      this.scale = scale;
+      this.offsetX = offsetX;
+      this.offsetY = offsetY;
+      this.near = near;
+      this.size = size;
+      depth = new float [size*size];
+      Arrays.fill(depth, Float.MAX_VALUE);
+    }
+
+    /** Render an object into this face. */
+
+    void render(Caster caster)
+    {
+      Vec3 vert[] = caster.mesh.vert;
+      Mat4 m = toLight.times(caster.toWorld);
+      double x[] = new double [vert.length], y[] = new double [vert.length], z[] = new double [vert.length];
+      for (int i = 0; i < vert.length; i++)
+      {
+        Vec3 v = vert[i];
+        x[i] = m.m11*v.x + m.m12*v.y + m.m13*v.z + m.m14;
+        y[i] = m.m21*v.x + m.m22*v.y + m.m23*v.z + m.m24;
+        z[i] = m.m31*v.x + m.m32*v.y + m.m33*v.z + m.m34;
+      }
+      double px[] = new double [4], py[] = new double [4], pz[] = new double [4];
+      int index[] = new int [3];
+      for (RenderingTriangle tri : caster.mesh.triangle)
+      {
+        int n = 0;
+        if (perspective)
+        {
+          // Clip the triangle to the near plane, which may turn it into a quadrilateral.
+
+          index[0] = tri.v1;
+          index[1] = tri.v2;
+          index[2] = tri.v3;
+          for (int i = 0; i < 3; i++)
+          {
+            int a = index[i], b = index[(i+1)%3];
+            boolean inA = z[a] > near, inB = z[b] > near;
+            if (inA)
+            {
+              px[n] = x[a];
+              py[n] = y[a];
+              pz[n++] = z[a];
+            }
+            if (inA != inB)
+            {
+              double t = (near-z[a])/(z[b]-z[a]);
+              px[n] = x[a]+t*(x[b]-x[a]);
+              py[n] = y[a]+t*(y[b]-y[a]);
+              pz[n++] = near;
+            }
+          }
+          for (int i = 0; i < n; i++)
+          {
+            px[i] = offsetX+px[i]*scale/pz[i];
+            py[i] = offsetY+py[i]*scale/pz[i];
+          }
+        }
+        else
+        {
+          px[0] = offsetX+x[tri.v1]*scale;
+          py[0] = offsetY+y[tri.v1]*scale;
+          pz[0] = z[tri.v1];
+          px[1] = offsetX+x[tri.v2]*scale;
+          py[1] = offsetY+y[tri.v2]*scale;
+          pz[1] = z[tri.v2];
+          px[2] = offsetX+x[tri.v3]*scale;
+          py[2] = offsetY+y[tri.v3]*scale;
+          pz[2] = z[tri.v3];
+          n = 3;
+        }
+        for (int i = 2; i < n; i++)
+          renderTriangle(px[0], py[0], pz[0], px[i-1], py[i-1], pz[i-1], px[i], py[i], pz[i]);
+      }
+    }
+
+    /**
+     * Render a single triangle whose vertices have already been projected onto the face.  Depth is interpolated
+     * linearly for an orthographic projection, and its reciprocal is interpolated for a perspective one.
+     */
+
+    private void renderTriangle(double x1, double y1, double z1, double x2, double y2, double z2, double x3, double y3, double z3)
+    {
+      double area = (x2-x1)*(y3-y1)-(x3-x1)*(y2-y1);
+      if (area == 0.0 || Double.isNaN(area))
+        return;
+      double minx = Math.min(x1, Math.min(x2, x3)), maxx = Math.max(x1, Math.max(x2, x3));
+      double miny = Math.min(y1, Math.min(y2, y3)), maxy = Math.max(y1, Math.max(y2, y3));
+      if (maxx < 0.0 || maxy < 0.0 || minx > size || miny > size)
+        return;
+      int left = Math.max(0, (int) Math.ceil(minx-0.5)), right = Math.min(size-1, (int) Math.floor(maxx-0.5));
+      int top = Math.max(0, (int) Math.ceil(miny-0.5)), bottom = Math.min(size-1, (int) Math.floor(maxy-0.5));
+      double d1 = (perspective ? 1.0/z1 : z1), d2 = (perspective ? 1.0/z2 : z2), d3 = (perspective ? 1.0/z3 : z3);
+      double invArea = 1.0/area;
+      for (int j = top; j <= bottom; j++)
+      {
+        double sy = j+0.5;
+        int row = j*size;
+        for (int i = left; i <= right; i++)
+        {
+          double sx = i+0.5;
+          double w1 = ((x2-sx)*(y3-sy)-(x3-sx)*(y2-sy))*invArea;
+          double w2 = ((x3-sx)*(y1-sy)-(x1-sx)*(y3-sy))*invArea;
+          double w3 = 1.0-w1-w2;
+          if (w1 < 0.0 || w2 < 0.0 || w3 < 0.0)
+            continue;
+          double d = w1*d1+w2*d2+w3*d3;
+          float value = (float) (perspective ? 1.0/d : d);
+          if (value < depth[row+i])
+            depth[row+i] = value;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,659 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.math.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** This class is a bounding volume hierarchy, used as an alternative to the octree for finding
+    which objects a ray intersects.  Unlike an {@link OctreeNode}, every object appears in exactly
+    one leaf, so no object is ever tested more than once for a given ray, and empty space costs
+    nothing to traverse.
+    <p>
+    The hierarchy is built top down using the surface area heuristic, evaluated on a fixed number
+    of bins along each axis.  It is stored as a set of flat primitive arrays rather than as a tree of
+    node objects.  Node 0 is the root.  The two children of an interior node are always stored next
+    to each other, and the objects are reordered so that the contents of every leaf form a contiguous
+    range of the object array.
+    <p>
+    A hierarchy can also be built over arbitrary primitives identified only by index, such as the triangles
+    of an {@link RTTriangleMesh}.  In that case there is no object array, and {@link #getPrimitive(int)} gives
+    the index of the primitive stored at each position.
+    <p>
+    If the hierarchy is constructed from within a ForkJoinPool, large subtrees are built as separate
+    tasks so the work is spread over all the threads in the pool. */
+
+public class BoundingVolumeHierarchy
+{
+  private RTObject obj[];
+  private int prim[];
+  float bounds[];
+  int child[], count[];
+  private int numNodes, maxDepth;
+  private AtomicInteger nextNode, deepest;
+
+  private static final int BINS = 16;
+  private static final int MAX_LEAF_SIZE = 8;
+  private static final float TRAVERSAL_COST = 1.0f;
+  private static final float INTERSECTION_COST = 1.5f;
+  private static final int PARALLEL_THRESHOLD = 4096;
+
+  /** Build a hierarchy containing a set of objects.
+
+      @param objects    the objects to store in the hierarchy
+      @param objBounds  the bounding box of each object
+  */
+
+  public BoundingVolumeHierarchy(RTObject objects[], BoundingBox objBounds[])
+  {
+    int n = objects.length;
+    float box[] = new float [6*n];
+    for (int i = 0; i < n; i++)
+    {
+      BoundingBox b = objBounds[i];
+      box[6*i] = Math.nextAfter((float) b.minx, Double.NEGATIVE_INFINITY);
+      box[6*i+1] = Math.nextAfter((float) b.maxx, Double.POSITIVE_INFINITY);
+      box[6*i+2] = Math.nextAfter((float) b.miny, Double.NEGATIVE_INFINITY);
+      box[6*i+3] = Math.nextAfter((float) b.maxy, Double.POSITIVE_INFINITY);
+      box[6*i+4] = Math.nextAfter((float) b.minz, Double.NEGATIVE_INFINITY);
+      box[6*i+5] = Math.nextAfter((float) b.maxz, Double.POSITIVE_INFINITY);
+    }
+    int order[] = build(box, n);
+
+    // Reorder the objects so that each leaf refers to a contiguous range.
+
+    obj = new RTObject [n];
+    for (int i = 0; i < n; i++)
+      obj[i] = objects[order[i]];
+  }
+
+  /** Build a hierarchy over a set of primitives identified by index.
+
+      @param box    the bounding box of each primitive, stored as six consecutive elements
+                    (minx, maxx, miny, maxy, minz, maxz) per primitive
+      @param n      the number of primitives
+  */
+
+  public BoundingVolumeHierarchy(float box[], int n)
+  {
+    prim = build(box, n);
+  }
+
+  /** Build the tree, and return the primitive indices in the order they are stored in the leaves. */
+
+  private int[] build(float box[], int n)
+  {
+    float center[] = new float [3*n];
+    int order[] = new int [n];
+    for (int i = 0; i < n; i++)
+    {
+      center[3*i] = 0.5f*(box[6*i]+box[6*i+1]);
+      center[3*i+1] = 0.5f*(box[6*i+2]+box[6*i+3]);
+      center[3*i+2] = 0.5f*(box[6*i+4]+box[6*i+5]);
+      order[i] = i;
+    }
+
+    // A binary tree with at least one object per leaf never has more than 2n-1 nodes.
+
+    int capacity = Math.max(1, 2*n-1);
+    bounds = new float [6*capacity];
+    child = new int [capacity];
+    count = new int [capacity];
+    if (n > 0)
+    {
+      nextNode = new AtomicInteger(1);
+      deepest = new AtomicInteger(0);
+      buildNode(0, 0, n, 0, order, box, center, new BuildScratch());
+      numNodes = nextNode.get();
+      maxDepth = deepest.get();
+      nextNode = deepest = null;
+    }
+    return order;
+  }
+
+  /** Build a node, and recursively build all of its children.
+
+      @param node     the index of the node to build
+      @param start    the first element of order[] contained in the node
+      @param end      one past the last element of order[] contained in the node
+      @param depth    the depth of the node in the tree
+      @param order    the object indices, which are rearranged so that each child's objects are contiguous
+      @param box      the bounding boxes of all objects
+      @param center   the centers of all objects' bounding boxes
+      @param scratch  temporary arrays used while building.  Every task building nodes in parallel needs its own.
+  */
+
+  private void buildNode(int node, int start, int end, int depth, final int order[], final float box[], final float center[], BuildScratch scratch)
+  {
+    // Find the bounds of the node, and of the object centers.
+
+    float cmin[] = scratch.cmin, cmax[] = scratch.cmax;
+    float binBox[] = scratch.binBox, cost[] = scratch.cost, leftBox[] = scratch.leftBox, rightBox[] = scratch.rightBox;
+    int binCount[] = scratch.binCount;
+    int base = 6*node;
+    for (int j = 0; j < 3; j++)
+    {
+      bounds[base+2*j] = cmin[j] = Float.MAX_VALUE;
+      bounds[base+2*j+1] = cmax[j] = -Float.MAX_VALUE;
+    }
+    for (int i = start; i < end; i++)
+    {
+      int k = order[i];
+      for (int j = 0; j < 3; j++)
+      {
+        if (box[6*k+2*j] < bounds[base+2*j])
+          bounds[base+2*j] = box[6*k+2*j];
+        if (box[6*k+2*j+1] > bounds[base+2*j+1])
+          bounds[base+2*j+1] = box[6*k+2*j+1];
+        float c = center[3*k+j];
+        if (c < cmin[j])
+          cmin[j] = c;
+        if (c > cmax[j])
+          cmax[j] = c;
+      }
+    }
+    int num = end-start;
+    if (num <= 2)
+    {
+      makeLeaf(node, start, num, depth);
+      return;
+    }
+
+    // Evaluate the surface area heuristic for each candidate plane along each axis.
+
+    float leafCost = INTERSECTION_COST*num;
+    float parentArea = area(bounds, base);
+    float bestCost = Float.MAX_VALUE;
+    int bestAxis = -1, bestBin = -1;
+    for (int j = 0; j < 3; j++)
+    {
+      float width = cmax[j]-cmin[j];
+      if (width <= 0.0f)
+        continue;
+      float scale = BINS/width;
+      for (int b = 0; b < BINS; b++)
+      {
+        binCount[b] = 0;
+        clearBox(binBox, 6*b);
+      }
+      for (int i = start; i < end; i++)
+      {
+        int k = order[i];
+        int b = binIndex(center[3*k+j], cmin[j], scale);
+        binCount[b]++;
+        extendBox(binBox, 6*b, box, 6*k);
+      }
+
+      // Sweep from the right to find the area and count to the right of each plane, then from the
+      // left to complete the cost.
+
+      clearBox(rightBox, 0);
+      int rightCount = 0;
+      for (int b = BINS-1; b > 0; b--)
+      {
+        rightCount += binCount[b];
+        extendBox(rightBox, 0, binBox, 6*b);
+        cost[b-1] = (rightCount == 0 ? 0.0f : rightCount*area(rightBox, 0));
+      }
+      clearBox(leftBox, 0);
+      int leftCount = 0;
+      for (int b = 0; b < BINS-1; b++)
+      {
+        leftCount += binCount[b];
+        extendBox(leftBox, 0, binBox, 6*b);
+        if (leftCount == 0 || leftCount == num)
+          continue;
+        float c = TRAVERSAL_COST + INTERSECTION_COST*(leftCount*area(leftBox, 0)+cost[b])/parentArea;
+        if (c < bestCost)
+        {
+          bestCost = c;
+          bestAxis = j;
+          bestBin = b;
+        }
+      }
+    }
+    if (bestAxis == -1 || (bestCost >= leafCost && num <= MAX_LEAF_SIZE))
+    {
+      makeLeaf(node, start, num, depth);
+      return;
+    }
+
+    // Partition the objects.
+
+    int mid;
+    if (bestCost >= leafCost)
+    {
+      // Splitting doesn't pay for itself, but the node is too large to be a leaf.  Split at the median.
+
+      bestAxis = (cmax[0]-cmin[0] > cmax[1]-cmin[1] ? 0 : 1);
+      if (cmax[2]-cmin[2] > cmax[bestAxis]-cmin[bestAxis])
+        bestAxis = 2;
+      mid = (start+end)/2;
+      selectMedian(order, center, bestAxis, start, end-1, mid);
+    }
+    else
+    {
+      float scale = BINS/(cmax[bestAxis]-cmin[bestAxis]);
+      int i = start, k = end-1;
+      while (i <= k)
+      {
+        if (binIndex(center[3*order[i]+bestAxis], cmin[bestAxis], scale) <= bestBin)
+          i++;
+        else
+        {
+          int temp = order[i];
+          order[i] = order[k];
+          order[k--] = temp;
+        }
+      }
+      mid = i;
+    }
+    final int first = nextNode.getAndAdd(2);
+    child[node] = first;
+    count[node] = 0;
+    if (num > PARALLEL_THRESHOLD && ForkJoinTask.inForkJoinPool())
+    {
+      // Build the left subtree in a separate task while this thread builds the right one.
+
+      final int childStart = start, childEnd = mid, childDepth = depth+1;
+      RecursiveAction left = new RecursiveAction() {
+        @Override
+        protected void compute()
+        {
+          buildNode(first, childStart, childEnd, childDepth, order, box, center, new BuildScratch());
+        }
+      };
+      left.fork();
+      buildNode(first+1, mid, end, depth+1, order, box, center, scratch);
+      left.join();
+    }
+    else
+    {
+      buildNode(first, start, mid, depth+1, order, box, center, scratch);
+      buildNode(first+1, mid, end, depth+1, order, box, center, scratch);
+    }
+  }
+
+  private void makeLeaf(int node, int start, int num, int depth)
+  {
+    child[node] = start;
+    count[node] = num;
+    int d;
+    while ((d = deepest.get()) < depth && !deepest.compareAndSet(d, depth))
+      ;
+  }
+
+  private static int binIndex(float c, float min, float scale)
+  {
+    int b = (int) ((c-min)*scale);
+    return (b < BINS ? b : BINS-1);
+  }
+
+  private static void clearBox(float b[], int base)
+  {
+    b[base] = b[base+2] = b[base+4] = Float.MAX_VALUE;
+    b[base+1] = b[base+3] = b[base+5] = -Float.MAX_VALUE;
+  }
+
+  private static void extendBox(float b[], int base, float src[], int srcBase)
+  {
+    for (int j = 0; j < 6; j += 2)
+    {
+      if (src[srcBase+j] < b[base+j])
+        b[base+j] = src[srcBase+j];
+      if (src[srcBase+j+1] > b[base+j+1])
+        b[base+j+1] = src[srcBase+j+1];
+    }
+  }
+
+  private static float area(float b[], int base)
+  {
+    float dx = b[base+1]-b[base], dy = b[base+3]-b[base+2], dz = b[base+5]-b[base+4];
+    if (dx < 0.0f || dy < 0.0f || dz < 0.0f)
+      return 0.0f;
+    return dx*dy + dy*dz + dz*dx;
+  }
+
+  /** Rearrange a range of order[] so that the element at position k is the one that would be there if the range
+      were sorted by object center along an axis, with smaller elements before it and larger ones after it. */
+
+  private static void selectMedian(int order[], float center[], int axis, int left, int right, int k)
+  {
+    while (right > left)
+    {
+      float pivot = center[3*order[(left+right)/2]+axis];
+      int i = left, j = right;
+      while (i <= j)
+      {
+        while (center[3*order[i]+axis] < pivot)
+          i++;
+        while (center[3*order[j]+axis] > pivot)
+          j--;
+        if (i <= j)
+        {
+          int temp = order[i];
+          order[i++] = order[j];
+          order[j--] = temp;
+        }
+      }
+      if (k <= j)
+        right = j;
+      else if (k >= i)
+        left = i;
+      else
+        return;
+    }
+  }
+
+  /** This class holds the temporary arrays used while evaluating the split cost of a node. */
+
+  private static class BuildScratch
+  {
+    final float binBox[] = new float [6*BINS], cost[] = new float [BINS];
+    final float leftBox[] = new float [6], rightBox[] = new float [6];
+    final float cmin[] = new float [3], cmax[] = new float [3];
+    final int binCount[] = new int [BINS];
+  }
+
+  /** Get the index of the primitive stored at a given position in the leaves, for a hierarchy that was built
+      over primitives rather than objects. */
+
+  public int getPrimitive(int i)
+  {
+    return prim[i];
+  }
+
+  /** Get the number of nodes in the hierarchy. */
+
+  public int getNumNodes()
+  {
+    return numNodes;
+  }
+
+  /** Get the depth of the deepest leaf in the hierarchy.  The root has depth 0. */
+
+  public int getMaxDepth()
+  {
+    return maxDepth;
+  }
+
+  /** Get a bounding box enclosing every object in the hierarchy. */
+
+  public BoundingBox getBounds()
+  {
+    if (numNodes == 0)
+      return new BoundingBox(0.0, 0.0, 0.0, 0.0, 0.0, 0.0);
+    return new BoundingBox(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5]);
+  }
+
+  /** Find the distance along a ray at which it enters a node.  If it misses the node, or only enters it
+      beyond maxDist, this returns Double.MAX_VALUE. */
+
+  double entryDistance(int node, double ox, double oy, double oz, double invx, double invy, double invz, double maxDist)
+  {
+    int base = 6*node;
+    double mint = 0.0, maxt = maxDist, t1, t2;
+    t1 = (bounds[base]-ox)*invx;
+    t2 = (bounds[base+1]-ox)*invx;
+    if (t1 > t2)
+    {
+      double temp = t1;
+      t1 = t2;
+      t2 = temp;
+    }
+    if (t1 > mint)
+      mint = t1;
+    if (t2 < maxt)
+      maxt = t2;
+    t1 = (bounds[base+2]-oy)*invy;
+    t2 = (bounds[base+3]-oy)*invy;
+    if (t1 > t2)
+    {
+      double temp = t1;
+      t1 = t2;
+      t2 = temp;
+    }
+    if (t1 > mint)
+      mint = t1;
+    if (t2 < maxt)
+      maxt = t2;
+    t1 = (bounds[base+4]-oz)*invz;
+    t2 = (bounds[base+5]-oz)*invz;
+    if (t1 > t2)
+    {
+      double temp = t1;
+      t1 = t2;
+      t2 = temp;
+    }
+    if (t1 > mint)
+      mint = t1;
+    if (t2 < maxt)
+      maxt = t2;
+    return (mint > maxt ? Double.MAX_VALUE : mint);
+  }
+
+  /** Find the first object a ray hits (or the first two objects, if they are almost exactly the same
+      distance away).
+
+      @param r          the ray to trace
+      @param intersect  the details of what was hit are returned in this object
+      @return true if the ray hit anything, false otherwise
+  */
+
+  public boolean findFirstIntersection(Ray r, Raytracer.RayIntersection intersect)
+  {
+    RTObject first = null, second = null;
+    double firstDist = Double.MAX_VALUE, secondDist = Double.MAX_VALUE;
+    Vec3 orig = r.getOrigin(), dir = r.getDirection();
+    double ox = orig.x, oy = orig.y, oz = orig.z;
+    double invx = 1.0/dir.x, invy = 1.0/dir.y, invz = 1.0/dir.z;
+    int stack[] = r.rt.bvhStack;
+    double stackDist[] = r.rt.bvhStackDist;
+    int sp = 0, node = 0;
+    if (numNodes == 0 || entryDistance(0, ox, oy, oz, invx, invy, invz, Double.MAX_VALUE) == Double.MAX_VALUE)
+    {
+      intersect.first = SurfaceIntersection.NO_INTERSECTION;
+      return false;
+    }
+    while (true)
+    {
+      int n = count[node];
+      if (n > 0)
+      {
+        for (int i = child[node]+n-1; i >= child[node]; i--)
+        {
+          SurfaceIntersection intersection = r.findIntersection(obj[i]);
+          if (intersection != SurfaceIntersection.NO_INTERSECTION)
+          {
+            double dist = intersection.intersectionDist(0);
+            if (dist < firstDist)
+            {
+              secondDist = firstDist;
+              second = first;
+              firstDist = dist;
+              first = obj[i];
+            }
+            else if (dist < secondDist)
+            {
+              secondDist = dist;
+              second = obj[i];
+            }
+          }
+        }
+      }
+      else
+      {
+        // Visit the nearer child first, and save the other one for later.
+
+        double limit = firstDist+Raytracer.TOL;
+        int left = child[node];
+        double leftDist = entryDistance(left, ox, oy, oz, invx, invy, invz, limit);
+        double rightDist = entryDistance(left+1, ox, oy, oz, invx, invy, invz, limit);
+        if (leftDist != Double.MAX_VALUE)
+        {
+          if (rightDist != Double.MAX_VALUE)
+          {
+            if (rightDist < leftDist)
+            {
+              stack[sp] = left;
+              stackDist[sp++] = leftDist;
+              node = left+1;
+            }
+            else
+            {
+              stack[sp] = left+1;
+              stackDist[sp++] = rightDist;
+              node = left;
+            }
+          }
+          else
+            node = left;
+          continue;
+        }
+        else if (rightDist != Double.MAX_VALUE)
+        {
+          node = left+1;
+          continue;
+        }
+      }
+
+      // Pop the next node off the stack, skipping any that are now known to be too far away.
+
+      do
+      {
+        if (sp == 0)
+        {
+          node = -1;
+          break;
+        }
+        node = stack[--sp];
+      } while (stackDist[sp] > firstDist+Raytracer.TOL);
+      if (node == -1)
+        break;
+    }
+    if (first == null)
+    {
+      intersect.first = SurfaceIntersection.NO_INTERSECTION;
+      return false;
+    }
+    intersect.first = r.rt.lastRayResult[first.index];
+    intersect.distance = firstDist;
+    if (secondDist-firstDist < Raytracer.TOL)
+      intersect.second = r.rt.lastRayResult[second.index];
+    else
+      intersect.second = SurfaceIntersection.NO_INTERSECTION;
+    return true;
+  }
+
+  /** Find the first two objects hit by each ray in a packet.  The rays are traced together, so each node is
+      visited once for the whole packet, and only the rays which actually enter a node are tested against
+      its contents.  The results are stored in the packet.
+
+      @param packet   the rays to trace
+  */
+
+  public void tracePacket(RayPacket packet)
+  {
+    packet.clearHits();
+    int size = packet.getSize();
+    if (numNodes == 0 || size == 0)
+      return;
+    double ox[] = packet.ox, oy[] = packet.oy, oz[] = packet.oz;
+    double invx[] = packet.invx, invy[] = packet.invy, invz[] = packet.invz;
+    double firstDist[] = packet.firstDist;
+    int active[] = packet.active;
+    int stack[] = packet.scratch.rt.bvhStack;
+    if (packet.stackFirst == null || packet.stackFirst.length < stack.length)
+      packet.stackFirst = new int [stack.length];
+    int stackFirst[] = packet.stackFirst;
+    int sp = 0;
+    stack[sp] = 0;
+    stackFirst[sp++] = 0;
+    while (sp > 0)
+    {
+      // Find the first ray that enters this node before reaching the closest object it has already hit.  Any ray
+      // that missed the parent node also misses this one, so the search starts from the first ray that hit the parent.
+
+      int node = stack[--sp];
+      int k = stackFirst[sp];
+      while (k < size && entryDistance(node, ox[k], oy[k], oz[k], invx[k], invy[k], invz[k], firstDist[k]+Raytracer.TOL) == Double.MAX_VALUE)
+        k++;
+      if (k == size)
+        continue;
+      int n = count[node];
+      if (n > 0)
+      {
+        // This is a leaf, so find all the rays that enter it and test them against its objects.
+
+        int numActive = 0;
+        active[numActive++] = k;
+        for (int i = k+1; i < size; i++)
+          if (entryDistance(node, ox[i], oy[i], oz[i], invx[i], invy[i], invz[i], firstDist[i]+Raytracer.TOL) != Double.MAX_VALUE)
+            active[numActive++] = i;
+        for (int i = child[node]+n-1; i >= child[node]; i--)
+          obj[i].checkPacketIntersection(packet, active, numActive);
+        continue;
+      }
+
+      // Use the first active ray to decide which child is nearer, and push it last so it will be visited first.
+
+      int left = child[node];
+      double leftDist = entryDistance(left, ox[k], oy[k], oz[k], invx[k], invy[k], invz[k], Double.MAX_VALUE);
+      double rightDist = entryDistance(left+1, ox[k], oy[k], oz[k], invx[k], invy[k], invz[k], Double.MAX_VALUE);
+      stack[sp] = (rightDist < leftDist ? left : left+1);
+      stackFirst[sp++] = k;
+      stack[sp] = (rightDist < leftDist ? left+1 : left);
+      stackFirst[sp++] = k;
+    }
+  }
+
+  /** Find every object whose bounding box is intersected by a ray between its origin and a maximum distance.
+      The objects are stored into the candidate list of the ray's {@link RaytracerContext}.
+
+      @param r        the ray to trace
+      @param maxDist  the maximum distance along the ray to search
+      @return the number of objects stored in the candidate list
+  */
+
+  public int findObjectsAlongRay(Ray r, double maxDist)
+  {
+    Vec3 orig = r.getOrigin(), dir = r.getDirection();
+    double ox = orig.x, oy = orig.y, oz = orig.z;
+    double invx = 1.0/dir.x, invy = 1.0/dir.y, invz = 1.0/dir.z;
+    RaytracerContext context = r.rt;
+    int stack[] = context.bvhStack;
+    int sp = 0, found = 0;
+    if (numNodes == 0 || entryDistance(0, ox, oy, oz, invx, invy, invz, maxDist) == Double.MAX_VALUE)
+      return 0;
+    stack[sp++] = 0;
+    while (sp > 0)
+    {
+      int node = stack[--sp];
+      int n = count[node];
+      if (n > 0)
+      {
+        if (found+n > context.bvhCandidates.length)
+          context.increaseCandidateLength(found+n);
+        System.arraycopy(obj, child[node], context.bvhCandidates, found, n);
+        found += n;
+        continue;
+      }
+      int left = child[node];
+      if (entryDistance(left, ox, oy, oz, invx, invy, invz, maxDist) != Double.MAX_VALUE)
+        stack[sp++] = left;
+      if (entryDistance(left+1, ox, oy, oz, invx, invy, invz, maxDist) != Double.MAX_VALUE)
+        stack[sp++] = left+1;
+    }
+    return found;
+  }
+}
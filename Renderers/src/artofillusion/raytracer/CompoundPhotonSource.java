@@ -14,8 +14,8 @@ import artofillusion.util.*;
 
 /**
  * This class is a PhotonSource that simply represents a collection of other PhotonSources.
- * It is used to parallelize the generation of photons from sources that are not themselves
- * parallelized.
+ * It is used to group the sources for emissive objects, which are often very numerous and
+ * individually very weak.
  */
 
 public class CompoundPhotonSource implements PhotonSource
@@ -43,25 +43,11 @@ public class CompoundPhotonSource implements PhotonSource
   }
 
   @Override
-  public void generatePhotons(final PhotonMap map, final double intensity, ThreadManager threads)
+  public void generatePhotons(PhotonMap map, double intensity, ThreadManager threads)
   {
-    final Thread currentThread = Thread.currentThread();
-    threads.setNumIndices(source.length);
-    threads.setTask(new ThreadManager.Task()
-    {
-          @Override
-      public void execute(int index)
-      {
-        if (map.getRenderer().renderThread != currentThread)
-          return;
-        source[index].generatePhotons(map, intensity*sourceIntensity[index]/totalSourceIntensity, null);
-      }
-          @Override
-      public void cleanup()
-      {
-        map.getWorkspace().cleanup();
-      }
-    });
-    threads.run();
+    // Each source divides its own photons into tasks, and they all go to the same ThreadManager.
+
+    for (int i = 0; i < source.length; i++)
+      source[i].generatePhotons(map, intensity*sourceIntensity[i]/totalSourceIntensity, threads);
   }
 }
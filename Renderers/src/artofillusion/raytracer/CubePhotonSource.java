@@ -23,7 +23,6 @@ public class CubePhotonSource implements PhotonSource
   private double param[];
   private Mat4 fromLocal;
   private TextureMapping texMap;
-  private RGBColor color;
   private float lightIntensity;
 
   /** Create a CubePhotonSource from a RTCube.
@@ -50,13 +49,12 @@ public class CubePhotonSource implements PhotonSource
     fromLocal = obj.fromLocal;
     param = obj.param;
     texMap = obj.getTextureMapping();
-    color = new RGBColor();
 
     // Find the average emissive intensity.
 
     TextureSpec spec = map.getWorkspace().surfSpec[0];
     texMap.getTexture().getAverageSpec(spec, map.getRaytracer().getTime(), obj.param);
-    color.copy(spec.emissive);
+    RGBColor color = spec.emissive;
     lightIntensity = 0.5f*(color.getRed()+color.getGreen()+color.getBlue())*(float) totalArea;
     if (texMap.appliesTo() == TextureMapping.FRONT_AND_BACK)
       lightIntensity *= 2.0f;
@@ -77,9 +75,38 @@ public class CubePhotonSource implements PhotonSource
   */
 
   @Override
-  public void generatePhotons(PhotonMap map, double intensity, ThreadManager threads)
+  public void generatePhotons(final PhotonMap map, double intensity, ThreadManager threads)
+  {
+    final Thread currentThread = Thread.currentThread();
+    final int numTasks = (int) Math.ceil(intensity/PhotonMap.EMISSION_TASK_INTENSITY);
+    final double taskIntensity = intensity/numTasks;
+    threads.setNumIndices(numTasks);
+    threads.setTask(new ThreadManager.Task()
+    {
+      @Override
+      public void execute(int index)
+      {
+        if (map.getRenderer().renderThread == currentThread)
+          emitPhotons(map, taskIntensity);
+      }
+      @Override
+      public void cleanup()
+      {
+        map.getWorkspace().cleanup();
+      }
+    });
+    threads.run();
+  }
+
+  /** Emit photons from random points on the cube until their total intensity reaches a target.
+      @param map          the PhotonMap to add the Photons to
+      @param intensity    the total intensity of Photons to emit
+  */
+
+  private void emitPhotons(PhotonMap map, double intensity)
   {
     RenderWorkspace workspace = map.getWorkspace();
+    RGBColor color = new RGBColor();
     Ray r = new Ray(workspace.context);
     Vec3 orig = r.getOrigin();
     Vec3 norm = new Vec3();
@@ -124,7 +151,7 @@ public class CubePhotonSource implements PhotonSource
           orig.set(xsize*u+cube.minx, ysize*v+cube.miny, cube.maxz);
           norm.set(0.0, 0.0, 1.0);
         }
-        emittedIntensity += generateOnePhoton(map, r, workspace, norm);
+        emittedIntensity += generateOnePhoton(map, r, workspace, norm, color);
       }
   }
 
@@ -133,10 +160,11 @@ public class CubePhotonSource implements PhotonSource
       @param r         a ray whose origin is the point from which to generate the photon (in local coordinates)
       @param workspace the current workspace for this thread
       @param norm      the surface normal at the point (in local coordinates)
+      @param color     used to store the photon color
       @return the intensity of the emitted ray
   */
 
-  private float generateOnePhoton(PhotonMap map, Ray r, RenderWorkspace workspace, Vec3 norm)
+  private float generateOnePhoton(PhotonMap map, Ray r, RenderWorkspace workspace, Vec3 norm, RGBColor color)
   {
     RaytracerRenderer renderer = map.getRenderer();
     TextureSpec spec = workspace.surfSpec[0];
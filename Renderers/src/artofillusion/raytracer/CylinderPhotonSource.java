@@ -23,7 +23,6 @@ public class CylinderPhotonSource implements PhotonSource
   private double bottomArea, topArea, sideArea;
   private Mat4 fromLocal;
   private TextureMapping texMap;
-  private RGBColor color;
   private float lightIntensity;
 
   /** Create an CylinderPhotonSource from a RTCylinder.
@@ -48,7 +47,6 @@ public class CylinderPhotonSource implements PhotonSource
       }
     param = obj.param;
     texMap = obj.getTextureMapping();
-    color = new RGBColor();
     bottomArea = Math.PI*rx*rz;
     topArea = bottomArea*ratio*ratio;
     sideArea = 2.0*Math.PI*Math.sqrt(0.5*(rx*rx+rz*rz))*height*(0.5+0.5*ratio);
@@ -57,7 +55,7 @@ public class CylinderPhotonSource implements PhotonSource
 
     TextureSpec spec = map.getWorkspace().surfSpec[0];
     texMap.getTexture().getAverageSpec(spec, map.getRaytracer().getTime(), obj.param);
-    color.copy(spec.emissive);
+    RGBColor color = spec.emissive;
     lightIntensity = 0.5f*(color.getRed()+color.getGreen()+color.getBlue())*(float) (bottomArea+topArea+sideArea);
     if (texMap.appliesTo() == TextureMapping.FRONT_AND_BACK)
       lightIntensity *= 2.0f;
@@ -80,8 +78,37 @@ public class CylinderPhotonSource implements PhotonSource
    */
 
   @Override
-  public void generatePhotons(PhotonMap map, double intensity, ThreadManager threads)
+  public void generatePhotons(final PhotonMap map, double intensity, ThreadManager threads)
+  {
+    final Thread currentThread = Thread.currentThread();
+    final int numTasks = (int) Math.ceil(intensity/PhotonMap.EMISSION_TASK_INTENSITY);
+    final double taskIntensity = intensity/numTasks;
+    threads.setNumIndices(numTasks);
+    threads.setTask(new ThreadManager.Task()
+    {
+      @Override
+      public void execute(int index)
+      {
+        if (map.getRenderer().renderThread == currentThread)
+          emitPhotons(map, taskIntensity);
+      }
+      @Override
+      public void cleanup()
+      {
+        map.getWorkspace().cleanup();
+      }
+    });
+    threads.run();
+  }
+
+  /** Emit photons from random points on the cylinder until their total intensity reaches a target.
+      @param map          the PhotonMap to add the Photons to
+      @param intensity    the total intensity of Photons to emit
+  */
+
+  private void emitPhotons(PhotonMap map, double intensity)
   {
+    RGBColor color = new RGBColor();
     RenderWorkspace workspace = map.getWorkspace();
     Ray r = new Ray(workspace.context);
     Vec3 orig = r.getOrigin();
@@ -140,7 +167,7 @@ public class CylinderPhotonSource implements PhotonSource
 
         // Select an origin and direction.
 
-        emittedIntensity += generateOnePhoton(map, r, workspace, norm);
+        emittedIntensity += generateOnePhoton(map, r, workspace, norm, color);
       }
   }
 
@@ -149,10 +176,11 @@ public class CylinderPhotonSource implements PhotonSource
       @param r         a ray whose origin is the point from which to generate the photon (in local coordinates)
       @param workspace the current workspace for this thread
       @param norm      the surface normal at the point (in local coordinates)
+      @param color     used to store the photon color
       @return the intensity of the emitted ray
   */
 
-  private float generateOnePhoton(PhotonMap map, Ray r, RenderWorkspace workspace, Vec3 norm)
+  private float generateOnePhoton(PhotonMap map, Ray r, RenderWorkspace workspace, Vec3 norm, RGBColor color)
   {
     RaytracerRenderer renderer = map.getRenderer();
     TextureSpec spec = workspace.surfSpec[0];
@@ -0,0 +1,88 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A DisplacementCache places an upper limit on the number of {@link RTDisplacedTriangle}s which may hold
+ * their detailed geometry at once.  A displaced triangle builds that geometry the first time a ray enters its
+ * bounding box, and then registers itself here.  Once the cache is full, each new registration evicts a
+ * triangle that has not been hit recently.  The evicted triangle discards its geometry, and will rebuild it
+ * if another ray ever reaches it.
+ * <p>
+ * Eviction uses the CLOCK algorithm, which approximates least-recently-used order without any locking.  Each
+ * triangle has a flag that is set whenever it is used.  A "hand" sweeps around a fixed array of slots: if the
+ * triangle in a slot has been used since the hand last passed, its flag is cleared and the hand moves on;
+ * otherwise the slot is given to the new triangle.  Threads advance the hand and claim slots with atomic
+ * operations, so many threads can register triangles at once.
+ */
+
+class DisplacementCache
+{
+  private final AtomicReferenceArray<RTDisplacedTriangle> slots;
+  private final AtomicInteger hand;
+  private final AtomicLong evictions;
+
+  /**
+   * Create a DisplacementCache.
+   *
+   * @param capacity    the maximum number of triangles which may hold their geometry at once
+   */
+
+  DisplacementCache(int capacity)
+  {
+    if (capacity < 1)
+      throw new IllegalArgumentException("capacity must be positive");
+    slots = new AtomicReferenceArray<RTDisplacedTriangle>(capacity);
+    hand = new AtomicInteger();
+    evictions = new AtomicLong();
+  }
+
+  /** Get the maximum number of triangles which may hold their geometry at once. */
+
+  int getCapacity()
+  {
+    return slots.length();
+  }
+
+  /** Get the number of times a triangle has been evicted to make room for another one. */
+
+  long getNumEvictions()
+  {
+    return evictions.get();
+  }
+
+  /**
+   * Record that a triangle has just built its geometry, evicting another triangle if necessary.
+   */
+
+  void add(RTDisplacedTriangle tri)
+  {
+    int capacity = slots.length();
+    while (true)
+    {
+      int slot = (hand.getAndIncrement()&Integer.MAX_VALUE)%capacity;
+      RTDisplacedTriangle current = slots.get(slot);
+      if (current != null && current.clearRecentlyUsed())
+        continue;
+      if (slots.compareAndSet(slot, current, tri))
+      {
+        if (current != null)
+        {
+          current.releaseGeometry();
+          evictions.incrementAndGet();
+        }
+        return;
+      }
+    }
+  }
+}
@@ -23,7 +23,6 @@ public class EllipsoidPhotonSource implements PhotonSource
   private double rx, ry, rz, param[];
   private Mat4 fromLocal;
   private TextureMapping texMap;
-  private RGBColor color;
   private float lightIntensity;
 
   /** Create an EllipsoidPhotonSource from a RTEllipsoid.
@@ -41,7 +40,6 @@ public class EllipsoidPhotonSource implements PhotonSource
       fromLocal = Mat4.translation(obj.cx, obj.cy, obj.cz);
     param = obj.param;
     texMap = obj.getTextureMapping();
-    color = new RGBColor();
 
     // Calculating the surface area of a general ellipsoid is an incredibly difficult problem involving
     // elliptic integrals.  We can estimate it by triangulating the ellipsoid and adding up the areas
@@ -77,7 +75,7 @@ public class EllipsoidPhotonSource implements PhotonSource
 
     TextureSpec spec = map.getWorkspace().surfSpec[0];
     texMap.getTexture().getAverageSpec(spec, map.getRaytracer().getTime(), obj.param);
-    color.copy(spec.emissive);
+    RGBColor color = spec.emissive;
     lightIntensity = 0.5f*(color.getRed()+color.getGreen()+color.getBlue())*(float) area;
   }
 
@@ -94,7 +92,6 @@ public class EllipsoidPhotonSource implements PhotonSource
       fromLocal = Mat4.translation(obj.cx, obj.cy, obj.cz);
     param = obj.param;
     texMap = obj.getTextureMapping();
-    color = new RGBColor();
     double area = 4.0*Math.PI*rx*rx;
     if (texMap.appliesTo() == TextureMapping.FRONT_AND_BACK)
       area *= 2.0;
@@ -103,7 +100,7 @@ public class EllipsoidPhotonSource implements PhotonSource
 
     TextureSpec spec = map.getWorkspace().surfSpec[0];
     texMap.getTexture().getAverageSpec(spec, map.getRaytracer().getTime(), obj.param);
-    color.copy(spec.emissive);
+    RGBColor color = spec.emissive;
     lightIntensity = 0.5f*(color.getRed()+color.getGreen()+color.getBlue())*(float) area;
   }
 
@@ -123,8 +120,37 @@ public class EllipsoidPhotonSource implements PhotonSource
    */
 
   @Override
-  public void generatePhotons(PhotonMap map, double intensity, ThreadManager threads)
+  public void generatePhotons(final PhotonMap map, double intensity, ThreadManager threads)
+  {
+    final Thread currentThread = Thread.currentThread();
+    final int numTasks = (int) Math.ceil(intensity/PhotonMap.EMISSION_TASK_INTENSITY);
+    final double taskIntensity = intensity/numTasks;
+    threads.setNumIndices(numTasks);
+    threads.setTask(new ThreadManager.Task()
+    {
+      @Override
+      public void execute(int index)
+      {
+        if (map.getRenderer().renderThread == currentThread)
+          emitPhotons(map, taskIntensity);
+      }
+      @Override
+      public void cleanup()
+      {
+        map.getWorkspace().cleanup();
+      }
+    });
+    threads.run();
+  }
+
+  /** Emit photons from random points on the surface until their total intensity reaches a target.
+      @param map          the PhotonMap to add the Photons to
+      @param intensity    the total intensity of Photons to emit
+  */
+
+  private void emitPhotons(PhotonMap map, double intensity)
   {
+    RGBColor color = new RGBColor();
     Ray r = new Ray(map.getWorkspace().context);
     Vec3 orig = r.getOrigin();
     Vec3 norm = new Vec3();
@@ -143,7 +169,7 @@ public class EllipsoidPhotonSource implements PhotonSource
         norm.set(nx*x, ny*y, nz*z);
         norm.normalize();
         orig.set(rx*x, ry*y, rz*z);
-        emittedIntensity += generateOnePhoton(map, r, norm);
+        emittedIntensity += generateOnePhoton(map, r, norm, color);
       }
   }
 
@@ -151,10 +177,11 @@ public class EllipsoidPhotonSource implements PhotonSource
       @param map       the PhotonMap to add the Photon to
       @param r         a ray whose origin is the point from which to generate the photon (in local coordinates)
       @param norm      the surface normal at the point (in local coordinates)
+      @param color     used to store the photon color
       @return the intensity of the emitted ray
   */
 
-  private float generateOnePhoton(PhotonMap map, Ray r, Vec3 norm)
+  private float generateOnePhoton(PhotonMap map, Ray r, Vec3 norm, RGBColor color)
   {
     RaytracerRenderer rt = map.getRenderer();
     TextureSpec spec = map.getWorkspace().surfSpec[0];
@@ -23,7 +23,7 @@ public class EnvironmentPhotonSource implements PhotonSource
   private RGBColor color;
   private TextureMapping envMapping;
   private int envMode;
-  private float lightIntensity;
+  private float lightIntensity, averagePhotonIntensity;
   private double radius;
 
   /** Create an EnvironmentPhotonSource. */
@@ -64,6 +64,7 @@ public class EnvironmentPhotonSource implements PhotonSource
     lightIntensity = color.getRed()+color.getGreen()+color.getBlue();
     if (lightIntensity == 0.0f)
       return;
+    averagePhotonIntensity = (envMode == Scene.ENVIRON_SOLID ? 1.0f : lightIntensity);
     color.scale(1.0f/lightIntensity);
     lightIntensity *= (float) (4.0*Math.PI*radius*radius);
   }
@@ -89,11 +90,13 @@ public class EnvironmentPhotonSource implements PhotonSource
   {
     final Thread currentThread = Thread.currentThread();
     final RaytracerRenderer renderer = map.getRenderer();
-    final double emittedIntensity[] = new double[] {0.0};
+    if (averagePhotonIntensity == 0.0f)
+      return;
 
-    // Send out the photons.
+    // Send out the photons.  Each one carries, on average, averagePhotonIntensity, so the number to send is known
+    // in advance and does not depend on which photons happen to be generated first.
 
-    threads.setNumIndices(1024);
+    threads.setNumIndices((int) Math.ceil(intensity/averagePhotonIntensity));
     threads.setTask(new ThreadManager.Task()
     {
           @Override
@@ -130,41 +133,27 @@ public class EnvironmentPhotonSource implements PhotonSource
 
         // Determine the photon color.
 
-        double photonIntensity;
+        RGBColor photonColor = color;
         if (envMode == Scene.ENVIRON_DIFFUSE || envMode == Scene.ENVIRON_EMISSIVE)
           {
             TextureSpec spec = map.getWorkspace().surfSpec[0];
             envMapping.getTextureSpec(dir.times(-1.0), spec, 1.0, renderer.smoothScale*renderer.extraGIEnvSmoothing, renderer.time, null);
-            if (envMode == Scene.ENVIRON_DIFFUSE)
-              color.copy(spec.diffuse);
-            else
-              color.copy(spec.emissive);
-            photonIntensity = color.getRed()+color.getGreen()+color.getBlue();
+            photonColor = (envMode == Scene.ENVIRON_DIFFUSE ? spec.diffuse : spec.emissive);
+            double photonIntensity = photonColor.getRed()+photonColor.getGreen()+photonColor.getBlue();
             if (photonIntensity < 1.0)
               {
                 // Use Russian Roulette sampling.
 
                 if (photonIntensity < map.random.nextFloat())
                   return;
-                color.scale(1.0f/photonIntensity);
+                photonColor.scale(1.0f/photonIntensity);
               }
           }
-        else
-          photonIntensity = 1.0;
-        synchronized (emittedIntensity)
-        {
-          if (emittedIntensity[0] >= intensity)
-          {
-            threads.cancel();
-            return;
-          }
-          emittedIntensity[0] += photonIntensity;
-        }
 
         // Send out the photon.
 
         r.newID();
-        map.spawnPhoton(r, color, true);
+        map.spawnPhoton(r, photonColor, true);
       }
           @Override
       public void cleanup()
@@ -172,7 +161,6 @@ public class EnvironmentPhotonSource implements PhotonSource
         map.getWorkspace().cleanup();
       }
     });
-    while (emittedIntensity[0] < intensity)
-      threads.run();
+    threads.run();
   }
 }
\ No newline at end of file
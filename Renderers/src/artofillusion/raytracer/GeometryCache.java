@@ -0,0 +1,199 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.animation.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import java.util.*;
+
+/**
+ * A GeometryCache holds the objects a {@link Raytracer} built for one frame of an animation, so the next frame can
+ * reuse them.  When the scene's time changes, {@link Scene#setTime(double)} applies every object's tracks, but most
+ * of those tracks only move objects.  An object whose tracks cannot change its shape keeps the RTObjects from the
+ * previous frame if it has not moved, or keeps its tessellated mesh (an {@link RTTriangleMesh} with its own
+ * bounding volume hierarchy) and only gets a new {@link RTInstance} transform if it has.  If nothing except the
+ * camera and lights moved, the octree and bounding volume hierarchy of the whole scene are reused too.
+ * <p>
+ * An object is considered unchanged only if it is the same Object3D as in the previous frame, it is not
+ * distorted, and every enabled track of every ObjectInfo using that Object3D just positions, orients, or hides
+ * it.  Object collections and implicit objects are always rebuilt, since they can depend on the time or on other
+ * objects.  The cache does not notice any other modification to the scene, so it must be discarded whenever the
+ * scene is edited or the Raytracer's settings change.  {@link RaytracerRenderer} therefore only keeps it between
+ * renders that use the same RenderListener, as when the frames of an animation are rendered one after another.
+ */
+
+public class GeometryCache
+{
+  private Scene scene;
+  private Map<ObjectInfo, Entry> entries, newEntries;
+  private Set<Object3D> modified;
+  private boolean changed;
+  private RTObject sceneObject[];
+  private OctreeNode rootNode;
+  private BoundingVolumeHierarchy bvh;
+
+  public GeometryCache()
+  {
+    entries = new IdentityHashMap<ObjectInfo, Entry>();
+  }
+
+  /** This records the objects that were built for one ObjectInfo. */
+
+  static class Entry
+  {
+    final Object3D object;
+    final int level;
+    final Mat4 fromLocal;
+    final RTObject objects[];
+
+    /**
+     * Create an Entry.
+     *
+     * @param object      the Object3D the objects were built from
+     * @param level       the level of detail of the mesh, or -1 if they do not depend on it
+     * @param fromLocal   the transform from the object's local coordinates to world coordinates
+     * @param objects     the objects that were built
+     */
+
+    Entry(Object3D object, int level, Mat4 fromLocal, RTObject objects[])
+    {
+      this.object = object;
+      this.level = level;
+      this.fromLocal = fromLocal;
+      this.objects = objects;
+    }
+  }
+
+  /**
+   * This is called by the Raytracer before it starts adding objects for a new frame.
+   */
+
+  synchronized void startFrame(Scene scene)
+  {
+    if (scene != this.scene)
+    {
+      this.scene = scene;
+      entries.clear();
+      sceneObject = null;
+      rootNode = null;
+      bvh = null;
+    }
+    newEntries = new IdentityHashMap<ObjectInfo, Entry>();
+    changed = false;
+    modified = Collections.newSetFromMap(new IdentityHashMap<Object3D, Boolean>());
+    if (scene == null)
+      return;
+    for (ObjectInfo info : scene.getObjects())
+      for (Track track : info.getTracks())
+        if (!track.isNullTrack() && track.isEnabled() && !isRigid(track))
+        {
+          modified.add(info.getObject());
+          break;
+        }
+  }
+
+  /** Determine whether a track can only move, rotate, or hide its object. */
+
+  private static boolean isRigid(Track track)
+  {
+    return (track instanceof PositionTrack || track instanceof RotationTrack || track instanceof ProceduralPositionTrack ||
+        track instanceof ProceduralRotationTrack || track instanceof ConstraintTrack || track instanceof VisibilityTrack);
+  }
+
+  /**
+   * Determine whether an object's shape is known to be the same as in the previous frame.  It may still have moved.
+   */
+
+  synchronized boolean isUnchanged(ObjectInfo info)
+  {
+    if (info.isDistorted() || modified.contains(info.getObject()))
+      return false;
+    Object3D obj = info.getObject();
+    while (obj instanceof ObjectWrapper)
+      obj = ((ObjectWrapper) obj).getWrappedObject();
+    return !(obj instanceof ObjectCollection || obj instanceof ImplicitObject);
+  }
+
+  /** Get what was built for an object in the previous frame, or null if it was not cached. */
+
+  synchronized Entry getEntry(ObjectInfo info)
+  {
+    return entries.get(info);
+  }
+
+  /** Record what was built for an object in the current frame. */
+
+  synchronized void putEntry(ObjectInfo info, Entry entry)
+  {
+    newEntries.put(info, entry);
+  }
+
+  /** Record that some objects in the current frame are different from the previous one. */
+
+  synchronized void objectsChanged()
+  {
+    changed = true;
+  }
+
+  /**
+   * Determine whether the current frame contains exactly the same objects as the previous one, so its octree can
+   * be reused.
+   */
+
+  synchronized boolean canReuseStructure()
+  {
+    return (!changed && sceneObject != null && newEntries.size() == entries.size());
+  }
+
+  /** Get the objects in the previous frame, in the order they appear in its octree. */
+
+  synchronized RTObject[] getSceneObjects()
+  {
+    return sceneObject;
+  }
+
+  /** Get the root of the previous frame's octree. */
+
+  synchronized OctreeNode getRootNode()
+  {
+    return rootNode;
+  }
+
+  /** Get the previous frame's bounding volume hierarchy, or null if it did not use one. */
+
+  synchronized BoundingVolumeHierarchy getBoundingVolumeHierarchy()
+  {
+    return bvh;
+  }
+
+  /** Record the octree that was built for the current frame. */
+
+  synchronized void setStructure(RTObject sceneObject[], OctreeNode rootNode, BoundingVolumeHierarchy bvh)
+  {
+    this.sceneObject = sceneObject;
+    this.rootNode = rootNode;
+    this.bvh = bvh;
+  }
+
+  /**
+   * This is called by the Raytracer once it has finished building the current frame.  What was built for it
+   * replaces the previous frame in the cache.
+   */
+
+  synchronized void finishFrame()
+  {
+    entries = newEntries;
+    newEntries = null;
+    modified = null;
+  }
+}
@@ -0,0 +1,432 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.math.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An IrradianceCache stores the indirect diffuse illumination computed at a sparse set of points, so it can be
+ * interpolated at nearby points rather than being sampled again.  Indirect illumination usually varies slowly over
+ * a surface, so only a small fraction of the diffuse hits need to send out rays.
+ * <p>
+ * This follows the method of Ward, Rubinstein, and Clear, with the irradiance gradients of Ward and Heckbert.  Each
+ * record holds the irradiance at a point, the harmonic mean distance to the surfaces seen from it, and the gradients
+ * of the irradiance with respect to rotation and translation.  A record may be used at a point x with normal n if
+ * its weight
+ * <pre>
+ *   w = 1 / (|x-xi|/Ri + sqrt(1-n.ni))
+ * </pre>
+ * is greater than 1/a, where a is the accuracy.  Smaller values of a give more accurate results, but need more
+ * records.
+ * <p>
+ * The irradiance stored in this cache is divided by pi, so it is the average radiance arriving at the surface,
+ * weighted by the cosine of the angle.  That is the quantity which gets multiplied by the diffuse color.
+ * <p>
+ * The records are stored in an octree.  A record is placed in the smallest node containing it that is at least
+ * twice as large as the radius within which the record is valid, so every point where it may be used lies inside
+ * the node expanded by half its width.  Render threads share a single cache.  Nodes and records are added with
+ * compare-and-set operations and are never modified once they are visible to other threads, so neither lookups
+ * nor insertions take a lock.
+ */
+
+public class IrradianceCache
+{
+  private final Node root;
+  private final double accuracy;
+  private final AtomicInteger numRecords;
+
+  /** The minimum number of rays used to compute a record. */
+
+  public static final int MIN_SAMPLES = 64;
+
+  private static final int MAX_DEPTH = 20;
+
+  /** Create an IrradianceCache.
+   * @param bounds     a bounding box enclosing all points at which records may be added
+   * @param accuracy   the maximum allowed error (the value a in the description above)
+   */
+
+  public IrradianceCache(BoundingBox bounds, double accuracy)
+  {
+    double size = Math.max(Math.max(bounds.maxx-bounds.minx, bounds.maxy-bounds.miny), bounds.maxz-bounds.minz);
+    Vec3 center = bounds.getCenter();
+    root = new Node(center.x, center.y, center.z, 0.5*size*1.01+Raytracer.TOL);
+    this.accuracy = accuracy;
+    numRecords = new AtomicInteger();
+  }
+
+  /** Get the accuracy of the cache. */
+
+  public double getAccuracy()
+  {
+    return accuracy;
+  }
+
+  /** Get the number of records in the cache. */
+
+  public int getNumRecords()
+  {
+    return numRecords.get();
+  }
+
+  /** Estimate the irradiance at a point by interpolating the records near it.
+   * @param pos          the point at which to find the irradiance
+   * @param normal       the surface normal at the point, facing the side whose irradiance is wanted
+   * @param irradiance   on exit, this contains the interpolated irradiance
+   * @return false if there are no records which can be used at the point, in which case a new record should be
+   *     computed and added to the cache
+   */
+
+  public boolean getIrradiance(Vec3 pos, Vec3 normal, RGBColor irradiance)
+  {
+    double sum[] = new double [4];
+    interpolate(root, pos, normal, sum);
+    if (sum[3] == 0.0)
+      return false;
+    double scale = 1.0/sum[3];
+    irradiance.setRGB((float) Math.max(0.0, sum[0]*scale), (float) Math.max(0.0, sum[1]*scale), (float) Math.max(0.0, sum[2]*scale));
+    return true;
+  }
+
+  /** Add the contributions from all valid records in a node and its children to the weighted sum. */
+
+  private void interpolate(Node node, Vec3 pos, Vec3 normal, double sum[])
+  {
+    double cutoff = 1.0/accuracy;
+    for (Record rec = node.records.get(); rec != null; rec = rec.next)
+    {
+      double dx = pos.x-rec.x, dy = pos.y-rec.y, dz = pos.z-rec.z;
+      double dot = normal.x*rec.nx+normal.y*rec.ny+normal.z*rec.nz;
+      if (dot <= 0.0)
+        continue;
+      double dist = Math.sqrt(dx*dx+dy*dy+dz*dz);
+      double error = dist*rec.invRadius+Math.sqrt(Math.max(0.0, 1.0-dot));
+      double weight = (error < 1e-10 ? 1e10 : 1.0/error);
+      if (weight <= cutoff)
+        continue;
+
+      // Reject records that lie in front of the point, since they may see a different environment.
+
+      double front = 0.5*(dx*(normal.x+rec.nx)+dy*(normal.y+rec.ny)+dz*(normal.z+rec.nz));
+      if (front < -0.05*rec.radius)
+        continue;
+
+      // Extrapolate the irradiance to the point using the gradients.
+
+      double cx = rec.ny*normal.z-rec.nz*normal.y;
+      double cy = rec.nz*normal.x-rec.nx*normal.z;
+      double cz = rec.nx*normal.y-rec.ny*normal.x;
+      for (int i = 0; i < 3; i++)
+      {
+        double value = rec.irradiance[i];
+        value += cx*rec.rotGradient[3*i]+cy*rec.rotGradient[3*i+1]+cz*rec.rotGradient[3*i+2];
+        value += dx*rec.transGradient[3*i]+dy*rec.transGradient[3*i+1]+dz*rec.transGradient[3*i+2];
+        sum[i] += weight*value;
+      }
+      sum[3] += weight;
+    }
+    for (int i = 0; i < 8; i++)
+    {
+      Node child = node.child.get(i);
+      if (child != null && child.isNear(pos))
+        interpolate(child, pos, normal, sum);
+    }
+  }
+
+  /** Create a new record from the samples collected by a Sampler, and add it to the cache.
+   * @param pos          the point at which the samples were collected
+   * @param sampler      the Sampler containing the samples
+   * @param minRadius    the minimum value to allow for the harmonic mean distance
+   * @param maxRadius    the maximum value to allow for the harmonic mean distance
+   * @param irradiance   on exit, this contains the irradiance at the point
+   */
+
+  public void addRecord(Vec3 pos, Sampler sampler, double minRadius, double maxRadius, RGBColor irradiance)
+  {
+    Record rec = sampler.createRecord(pos, minRadius, maxRadius);
+    irradiance.setRGB((float) rec.irradiance[0], (float) rec.irradiance[1], (float) rec.irradiance[2]);
+
+    // Find the node to put it in.
+
+    double validRadius = accuracy*rec.radius;
+    Node node = root;
+    for (int depth = 0; depth < MAX_DEPTH && node.halfSize >= 2.0*validRadius && node.contains(pos); depth++)
+    {
+      int index = (pos.x > node.x ? 1 : 0) + (pos.y > node.y ? 2 : 0) + (pos.z > node.z ? 4 : 0);
+      Node child = node.child.get(index);
+      if (child == null)
+      {
+        double h = 0.5*node.halfSize;
+        child = new Node(node.x+((index&1) == 0 ? -h : h), node.y+((index&2) == 0 ? -h : h), node.z+((index&4) == 0 ? -h : h), h);
+        if (!node.child.compareAndSet(index, null, child))
+          child = node.child.get(index);
+      }
+      node = child;
+    }
+
+    // Add it to the node's list.
+
+    Record head;
+    do
+    {
+      head = node.records.get();
+      rec.next = head;
+    } while (!node.records.compareAndSet(head, rec));
+    numRecords.incrementAndGet();
+  }
+
+  /** A node in the octree. */
+
+  private static class Node
+  {
+    final double x, y, z, halfSize;
+    final AtomicReference<Record> records;
+    final AtomicReferenceArray<Node> child;
+
+    Node(double x, double y, double z, double halfSize)
+    {
+      this.x = x;
+      this.y = y;
+      this.z = z;
+      this.halfSize = halfSize;
+      records = new AtomicReference<Record>();
+      child = new AtomicReferenceArray<Node>(8);
+    }
+
+    /** Determine whether a point is inside this node. */
+
+    boolean contains(Vec3 pos)
+    {
+      return Math.abs(pos.x-x) <= halfSize && Math.abs(pos.y-y) <= halfSize && Math.abs(pos.z-z) <= halfSize;
+    }
+
+    /** Determine whether a point is inside this node expanded by half its width, so that records stored in it
+        may be valid at the point. */
+
+    boolean isNear(Vec3 pos)
+    {
+      double limit = 2.0*halfSize;
+      return Math.abs(pos.x-x) <= limit && Math.abs(pos.y-y) <= limit && Math.abs(pos.z-z) <= limit;
+    }
+  }
+
+  /** A single irradiance record.  The gradients are stored as three vectors (one for each color component)
+      packed into an array. */
+
+  private static class Record
+  {
+    final double x, y, z, nx, ny, nz, radius, invRadius;
+    final double irradiance[], rotGradient[], transGradient[];
+    Record next;
+
+    Record(Vec3 pos, Vec3 normal, double radius, double irradiance[], double rotGradient[], double transGradient[])
+    {
+      x = pos.x;
+      y = pos.y;
+      z = pos.z;
+      nx = normal.x;
+      ny = normal.y;
+      nz = normal.z;
+      this.radius = radius;
+      invRadius = 1.0/radius;
+      this.irradiance = irradiance;
+      this.rotGradient = rotGradient;
+      this.transGradient = transGradient;
+    }
+  }
+
+  /**
+   * A Sampler chooses the directions of the rays used to compute a new record, and collects the light arriving
+   * along them.  The hemisphere is divided into M strata in theta and N strata in phi, chosen so that each one
+   * subtends the same projected solid angle.  One ray is sent through a random point in each stratum.  This
+   * structure is what allows the gradients to be estimated from the differences between neighboring strata.
+   * <p>
+   * A Sampler is not thread safe.  Each thread should have its own one.
+   */
+
+  public static class Sampler
+  {
+    private final int m, n;
+    private final Vec3 normal, u, v;
+    private final double cosTheta[], sinTheta[], phi[], dist[];
+    private final float radiance[];
+
+    /** Create a Sampler.
+     * @param numRays   the approximate number of rays to use for each record
+     */
+
+    public Sampler(int numRays)
+    {
+      numRays = Math.max(numRays, MIN_SAMPLES);
+      m = Math.max(2, (int) Math.round(Math.sqrt(numRays/Math.PI)));
+      n = Math.max(3, (int) Math.round(numRays/(double) m));
+      normal = new Vec3();
+      u = new Vec3();
+      v = new Vec3();
+      cosTheta = new double [m*n];
+      sinTheta = new double [m*n];
+      phi = new double [m*n];
+      dist = new double [m*n];
+      radiance = new float [3*m*n];
+    }
+
+    /** Get the number of rays to send out for each record. */
+
+    public int getNumSamples()
+    {
+      return m*n;
+    }
+
+    /** Get the normal vector for the record currently being computed. */
+
+    public Vec3 getNormal()
+    {
+      return normal;
+    }
+
+    /** Begin computing a new record.
+     * @param norm   the surface normal
+     * @param flip   if true, the record is for the opposite side of the surface from the one norm points to
+     */
+
+    public void setNormal(Vec3 norm, boolean flip)
+    {
+      normal.set(norm);
+      if (flip)
+        normal.scale(-1.0);
+      if (Math.abs(normal.x) > 0.9)
+        u.set(0.0, 1.0, 0.0);
+      else
+        u.set(1.0, 0.0, 0.0);
+      v.set(normal.cross(u));
+      v.normalize();
+      u.set(v.cross(normal));
+    }
+
+    /** Choose the direction of a ray.
+     * @param sample   the index of the sample, between 0 and getNumSamples()-1
+     * @param random   the random number generator to use
+     * @param dir      on exit, this contains the ray direction
+     */
+
+    public void getDirection(int sample, Random random, Vec3 dir)
+    {
+      int j = sample/n, k = sample%n;
+      double t = (j+random.nextDouble())/m;
+      double ct = Math.sqrt(1.0-t), st = Math.sqrt(t);
+      double p = 2.0*Math.PI*(k+random.nextDouble())/n;
+      cosTheta[sample] = ct;
+      sinTheta[sample] = st;
+      phi[sample] = p;
+      double cp = Math.cos(p)*st, sp = Math.sin(p)*st;
+      dir.set(u.x*cp+v.x*sp+normal.x*ct, u.y*cp+v.y*sp+normal.y*ct, u.z*cp+v.z*sp+normal.z*ct);
+    }
+
+    /** Record the light arriving along a ray.
+     * @param sample     the index of the sample
+     * @param color      the radiance arriving along the ray
+     * @param distance   the distance to the surface which the ray hit
+     */
+
+    public void recordSample(int sample, RGBColor color, double distance)
+    {
+      radiance[3*sample] = color.getRed();
+      radiance[3*sample+1] = color.getGreen();
+      radiance[3*sample+2] = color.getBlue();
+      dist[sample] = Math.max(distance, Raytracer.TOL);
+    }
+
+    /** Compute the irradiance, its gradients, and the harmonic mean distance from the samples. */
+
+    Record createRecord(Vec3 pos, double minRadius, double maxRadius)
+    {
+      int total = m*n;
+      double irradiance[] = new double [3], rot[] = new double [9], trans[] = new double [9];
+      double invDistSum = 0.0;
+      for (int i = 0; i < total; i++)
+      {
+        invDistSum += 1.0/dist[i];
+        for (int c = 0; c < 3; c++)
+          irradiance[c] += radiance[3*i+c];
+      }
+      for (int c = 0; c < 3; c++)
+        irradiance[c] /= total;
+
+      // Compute the gradients.  These are the formulas of Ward and Heckbert, divided by pi to match the
+      // irradiance.
+
+      double uk[] = new double [3], vk[] = new double [3], vkMinus[] = new double [3];
+      for (int k = 0; k < n; k++)
+      {
+        double phiCenter = 2.0*Math.PI*(k+0.5)/n, phiMinus = 2.0*Math.PI*k/n;
+        setTangent(uk, phiCenter);
+        setTangent(vk, phiCenter+0.5*Math.PI);
+        setTangent(vkMinus, phiMinus+0.5*Math.PI);
+        int kPrev = (k+n-1)%n;
+        for (int j = 0; j < m; j++)
+        {
+          int s = j*n+k;
+          double tanTheta = sinTheta[s]/Math.max(cosTheta[s], 1e-3);
+          double cosMinus = Math.sqrt(1.0-j/(double) m);
+          double sinMinus = Math.sqrt(j/(double) m), sinPlus = Math.sqrt((j+1)/(double) m);
+
+          // The difference across the boundary between this stratum and the one before it in theta.
+
+          double thetaWeight = 0.0;
+          if (j > 0)
+            thetaWeight = (2.0*Math.PI/n)*sinMinus*cosMinus*cosMinus/Math.min(dist[s], dist[s-n]);
+
+          // The difference across the boundary between this stratum and the one before it in phi.
+
+          double phiWeight = (sinPlus-sinMinus)/Math.min(dist[s], dist[j*n+kPrev]);
+          for (int c = 0; c < 3; c++)
+          {
+            double value = radiance[3*s+c];
+            double rotScale = tanTheta*value/total;
+            double thetaDiff = (j > 0 ? thetaWeight*(value-radiance[3*(s-n)+c]) : 0.0);
+            double phiDiff = phiWeight*(value-radiance[3*(j*n+kPrev)+c]);
+            for (int axis = 0; axis < 3; axis++)
+            {
+              rot[3*c+axis] += rotScale*vk[axis];
+              trans[3*c+axis] += (uk[axis]*thetaDiff+vkMinus[axis]*phiDiff)/Math.PI;
+            }
+          }
+        }
+      }
+
+      // Select the radius.  Limit it so the translational gradient cannot change the irradiance too much
+      // within the region where the record is used.
+
+      double radius = (invDistSum > 0.0 ? total/invDistSum : maxRadius);
+      double maxIrradiance = Math.max(Math.max(irradiance[0], irradiance[1]), irradiance[2]);
+      double maxGradient = 0.0;
+      for (int c = 0; c < 3; c++)
+        maxGradient = Math.max(maxGradient, Math.sqrt(trans[3*c]*trans[3*c]+trans[3*c+1]*trans[3*c+1]+trans[3*c+2]*trans[3*c+2]));
+      if (maxGradient > 0.0)
+        radius = Math.min(radius, maxIrradiance/maxGradient);
+      radius = Math.max(minRadius, Math.min(maxRadius, radius));
+      return new Record(pos, normal, radius, irradiance, rot, trans);
+    }
+
+    /** Set a vector in the tangent plane to the direction at angle phi. */
+
+    private void setTangent(double vec[], double angle)
+    {
+      double c = Math.cos(angle), s = Math.sin(angle);
+      vec[0] = u.x*c+v.x*s;
+      vec[1] = u.y*c+v.y*s;
+      vec[2] = u.z*c+v.z*s;
+    }
+  }
+}
@@ -13,6 +13,7 @@ package artofillusion.raytracer;
 import artofillusion.math.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /** This class represents a node in an octree, used for sorting the objects by location in
     the scene.  OctreeNodes can be terminal nodes, in which case they contain a list of 
@@ -20,7 +21,10 @@ import java.util.*;
     <p>
     This class is more sophisticated than most octrees.  When it subdivides a node, it does
     not simply cut it in half along each axis.  Instead, it tries to determine the optimal place
-    to subdivide along each axis, based on the bounding boxes of the objects within the node. */
+    to subdivide along each axis, based on the bounding boxes of the objects within the node.
+    <p>
+    If the tree is constructed from within a ForkJoinPool, large nodes build their children as
+    separate tasks so the work is spread over all the threads in the pool. */
    
 public class OctreeNode
 {
@@ -30,15 +34,21 @@ public class OctreeNode
   public float midx, midy, midz;
   
   private static final int CELLS = 64;
+  private static final int PARALLEL_THRESHOLD = 2000;
   private static final RTObject EMPTY_OBJECT_LIST[] = new RTObject [0];
-  private static int leftCount[] = new int [CELLS+2];
-  private static int rightCount[] = new int [CELLS+2];
 
   /** The constructor takes a bounding box, an array of objects, an array of bounding boxes
-      of the objects, and a reference to its parent node.  treeDepth is the depth of this node 
-      in the octree, and maxDepth is the maximum allowed depth. */
+      of the objects, and a reference to its parent node. */
   
   public OctreeNode(float minx, float maxx, float miny, float maxy, float minz, float maxz, RTObject tri[], BoundingBox bb[], OctreeNode parentNode)
+  {
+    this(minx, maxx, miny, maxy, minz, maxz, tri, bb, parentNode, new Histogram());
+  }
+
+  /** This is the constructor that does the actual work.  The Histogram holds temporary arrays used
+      while choosing where to subdivide.  It may be shared by all nodes that are built on the same thread. */
+
+  private OctreeNode(float minx, float maxx, float miny, float maxy, float minz, float maxz, RTObject tri[], BoundingBox bb[], OctreeNode parentNode, Histogram histogram)
   {
     this.minx = minx;
     this.maxx = maxx;
@@ -77,46 +87,58 @@ public class OctreeNode
         obj[count] = tri[i];
         objBounds[count++] = bb[i];
       }
-    subdivide(objBounds);
+    subdivide(objBounds, histogram);
+  }
+
+  /** This class holds the arrays used for finding the best place to subdivide a node. */
+
+  private static class Histogram
+  {
+    final int leftCount[] = new int [CELLS+2];
+    final int rightCount[] = new int [CELLS+2];
   }
 
   /** Determine whether this node should be subdivided.  If so, create the child nodes.  Otherwise, mark it
       as a terminal node. */
 
-  private void subdivide(BoundingBox objBounds[])
+  private void subdivide(final BoundingBox objBounds[], Histogram histogram)
   {
     boolean splitx, splity, splitz;
 
     if (obj.length > 9)
       {
-        findMidpoints(objBounds);
+        findMidpoints(objBounds, histogram);
         splitx = (midx != maxx);
         splity = (midy != maxy);
         splitz = (midz != maxz);
         if (!(splitx || splity || splitz))
           return;
         child = new OctreeNode[8];
-        child[0] = new OctreeNode(minx, midx, miny, midy, minz, midz, obj, objBounds, this);
-        if (splitz)
-          child[1] = new OctreeNode(minx, midx, miny, midy, midz, maxz, obj, objBounds, this);
-        if (splity)
-          {
-            child[2] = new OctreeNode(minx, midx, midy, maxy, minz, midz, obj, objBounds, this);
-            if (splitz)
-              child[3] = new OctreeNode(minx, midx, midy, maxy, midz, maxz, obj, objBounds, this);
-          }
-        if (splitx)
+        boolean parallel = (obj.length > PARALLEL_THRESHOLD && ForkJoinTask.inForkJoinPool());
+        ArrayList<RecursiveAction> tasks = (parallel ? new ArrayList<RecursiveAction>() : null);
+        for (int i = 0; i < 8; i++)
           {
-            child[4] = new OctreeNode(midx, maxx, miny, midy, minz, midz, obj, objBounds, this);
-            if (splitz)
-              child[5] = new OctreeNode(midx, maxx, miny, midy, midz, maxz, obj, objBounds, this);
-            if (splity)
-              {
-                child[6] = new OctreeNode(midx, maxx, midy, maxy, minz, midz, obj, objBounds, this);
-                if (splitz)
-                  child[7] = new OctreeNode(midx, maxx, midy, maxy, midz, maxz, obj, objBounds, this);
-              }
+            // Child i is on the upper side of the x, y, and z splits if bits 2, 1, and 0 are set.
+
+            if (((i&4) != 0 && !splitx) || ((i&2) != 0 && !splity) || ((i&1) != 0 && !splitz))
+              continue;
+            final int index = i;
+            final float x1 = ((i&4) == 0 ? minx : midx), x2 = ((i&4) == 0 ? midx : maxx);
+            final float y1 = ((i&2) == 0 ? miny : midy), y2 = ((i&2) == 0 ? midy : maxy);
+            final float z1 = ((i&1) == 0 ? minz : midz), z2 = ((i&1) == 0 ? midz : maxz);
+            if (parallel)
+              tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute()
+                {
+                  child[index] = new OctreeNode(x1, x2, y1, y2, z1, z2, obj, objBounds, OctreeNode.this, new Histogram());
+                }
+              });
+            else
+              child[i] = new OctreeNode(x1, x2, y1, y2, z1, z2, obj, objBounds, this, histogram);
           }
+        if (parallel)
+          ForkJoinTask.invokeAll(tasks);
         obj = null;
       }
   }
@@ -406,7 +428,7 @@ public class OctreeNode
   /** Analyze the distribution of objects inside this node, and determine the best place at which
       to subdivide it along each axis. */
   
-  private void findMidpoints(BoundingBox objBounds[])
+  private void findMidpoints(BoundingBox objBounds[], Histogram histogram)
   {
     
     // If the box is much shorter along one axis than the other two, we don't want to subdivide 
@@ -422,22 +444,23 @@ public class OctreeNode
     if (cutoff < 1.0e-2)
       cutoff = 1.0e-2;
     if (xsize > cutoff)
-      midx = findAxisMidpoint(objBounds, 0);
+      midx = findAxisMidpoint(objBounds, 0, histogram);
     else
       midx = maxx;
     if (ysize > cutoff)
-      midy = findAxisMidpoint(objBounds, 1);
+      midy = findAxisMidpoint(objBounds, 1, histogram);
     else
       midy = maxy;
     if (zsize > cutoff)
-      midz = findAxisMidpoint(objBounds, 2);
+      midz = findAxisMidpoint(objBounds, 2, histogram);
     else
       midz = maxz;
   }
 
   
-  private float findAxisMidpoint(BoundingBox objBounds[], int axis)
+  private float findAxisMidpoint(BoundingBox objBounds[], int axis, Histogram histogram)
   {
+    int leftCount[] = histogram.leftCount, rightCount[] = histogram.rightCount;
     for (int i = 0; i < CELLS+2; i++)
       leftCount[i] = rightCount[i] = 0;
     float min = findMinimum(this, axis);
@@ -32,11 +32,18 @@ public class Photon
     x = (float) pos.x;
     y = (float) pos.y;
     z = (float) pos.z;
+    direction = encodeDirection(dir);
+    ergb = color.getERGB();
+  }
+
+  /** Encode a unit vector as a pair of 8 bit angles packed into a short. */
+
+  static short encodeDirection(Vec3 dir)
+  {
     int phi = (int) (Math.atan2(dir.z, dir.x)*128/Math.PI);
     if (phi < 0)
       phi += 256;
     int theta = (int) (Math.acos(dir.y)*256/Math.PI);
-    direction = (short) ((phi<<8)+theta);
-    ergb = color.getERGB();
+    return (short) ((phi<<8)+theta);
   }
 }
\ No newline at end of file
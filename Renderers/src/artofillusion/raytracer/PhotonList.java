@@ -11,7 +11,7 @@
 package artofillusion.raytracer;
 
 /** This class stores a list of photons which are close to a point in space, and calculates the incident
-    light intensity from them.
+    light intensity from them.  Photons are identified by their index in the {@link PhotonMap}.
     
     Parts of this class are based on the descriptions and sample code in
     
@@ -19,7 +19,7 @@ package artofillusion.raytracer;
 
 public class PhotonList
 {
-  public Photon photon[];
+  public int photon[];
   public float dist2[], cutoff2;
   public int numFound;
   
@@ -29,7 +29,7 @@ public class PhotonList
   
   public PhotonList(int size)
   {
-    photon = new Photon [size];
+    photon = new int [size];
     dist2 = new float [size];
   }
   
@@ -45,7 +45,7 @@ public class PhotonList
   
   /** Add a photon to the list. */
   
-  public final void addPhoton(Photon p, float sqDist)
+  public final void addPhoton(int p, float sqDist)
   {
     if (numFound < photon.length)
       {
@@ -54,7 +54,12 @@ public class PhotonList
         photon[numFound] = p;
         dist2[numFound++] = sqDist;
         if (numFound == photon.length)
-          buildHeap();
+          {
+            // From now on, only photons closer than the farthest one in the list can be added.
+
+            buildHeap();
+            cutoff2 = dist2[0];
+          }
         return;
       }
     
@@ -89,7 +94,7 @@ public class PhotonList
     for (int i = half; i >= 0; i--)
       {
         int parent = i;
-        Photon p = photon[i];
+        int p = photon[i];
         float d = dist2[i];
         while (parent <= half)
           {
@@ -15,11 +15,26 @@ import artofillusion.material.*;
 import artofillusion.texture.*;
 import artofillusion.util.*;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /** This class is a three dimensional data structure containing the photons in a scene.  The map can
     be searched very efficiently for locating the photons near a particular point and evaluating the
     local illumination
+    <p>
+    The photons are stored in a balanced kd-tree which is packed into flat arrays of primitives: the
+    children of the photon at index i are at 2i+1 and 2i+2.  For each photon the map records its position,
+    its incident direction (encoded as described in {@link Photon}), its color in ERGB format, and the axis
+    along which it splits its subtree.  Queries walk these arrays directly and store their results in a
+    {@link PhotonList}, so they never allocate memory.
+    <p>
+    Photon emission is deterministic: for a given seed, the map is always identical no matter how many
+    threads are used or how they are scheduled.  All sources are asked for their photons at once, and the
+    tasks they create are run together as a single batch, divided into fixed size blocks of consecutive task
+    indices.  Before each block runs, the random number streams of the thread running it are reset to a seed
+    that depends only on the block.  Each thread stores photons in its own buffer, and the buffers are merged
+    in block order once the batch is complete.
 
     Parts of this class are based on the descriptions and sample code in
 
@@ -29,9 +44,14 @@ public class PhotonMap
 {
   private Raytracer rt;
   private RaytracerRenderer renderer;
-  private ArrayList<Photon> photonList;
-  private Photon photon[], workspace[];
-  private int numWanted, filter, numEstimate;
+  private float photonPos[], newPos[];
+  private int photonERGB[], newERGB[];
+  private short photonDirection[], newDirection[];
+  private byte photonAxis[];
+  private int numPhotons, numWanted, filter, numEstimate, maxThreads;
+  private long seed;
+  private final List<PhotonBuffer> buffers;
+  private final ThreadLocal<PhotonBuffer> threadBuffer;
   private BoundingBox bounds;
   private Vec3 direction[];
   private boolean includeCaustics, includeDirect, includeIndirect, includeVolume;
@@ -39,6 +59,13 @@ public class PhotonMap
   private float cutoffDist2;
   public Random random;
 
+  private static final int PARALLEL_THRESHOLD = 10000;
+  private static final int EMISSION_BLOCK_SIZE = 64;
+
+  /** Sources that emit photons until a target intensity is reached, such as emissive objects, divide the
+      intensity into tasks of about this size. */
+  static final double EMISSION_TASK_INTENSITY = 16.0;
+
   /** Create a new PhotonMap
    * @param totalPhotons        the number of photons which should be stored in this map
    * @param numEstimate         the number of photons to use when estimating the illumination from this map
@@ -69,7 +96,99 @@ public class PhotonMap
       direction = shared.direction;
     else
       direction = new Vec3 [65536];
-    random = new Random(1);
+    seed = 1;
+    buffers = new ArrayList<PhotonBuffer>();
+    threadBuffer = new ThreadLocal<PhotonBuffer>() {
+      @Override
+      protected PhotonBuffer initialValue()
+      {
+        PhotonBuffer buffer = new PhotonBuffer();
+        synchronized (buffers)
+        {
+          buffers.add(buffer);
+        }
+        return buffer;
+      }
+    };
+    random = new ThreadRandom();
+  }
+
+  /** Create a PhotonMap by reading the photons that were written by writeToStream().
+   * @param in                  the stream to read from
+   * @param raytracer           the Raytracer which will use this PhotonMap
+   * @param renderer            the renderer which will use this PhotonMap
+   * @param shared              another PhotonMap with which this one may share data structures to save memory (may be null)
+   */
+
+  public PhotonMap(DataInputStream in, Raytracer raytracer, RaytracerRenderer renderer, PhotonMap shared) throws IOException, InvalidObjectException
+  {
+    this(0, 0, false, false, false, false, raytracer, renderer, null, 0, shared);
+    short version = in.readShort();
+    if (version != 0)
+      throw new InvalidObjectException("");
+    numWanted = in.readInt();
+    numEstimate = in.readInt();
+    filter = in.readInt();
+    includeCaustics = in.readBoolean();
+    includeDirect = in.readBoolean();
+    includeIndirect = in.readBoolean();
+    includeVolume = in.readBoolean();
+    bounds = new BoundingBox(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+    lightScale = in.readDouble();
+    cutoffDist2 = in.readFloat();
+    numPhotons = in.readInt();
+    photonPos = new float [3*numPhotons];
+    photonERGB = new int [numPhotons];
+    photonDirection = new short [numPhotons];
+    photonAxis = new byte [numPhotons];
+    for (int i = 0; i < photonPos.length; i++)
+      photonPos[i] = in.readFloat();
+    for (int i = 0; i < numPhotons; i++)
+      photonERGB[i] = in.readInt();
+    for (int i = 0; i < numPhotons; i++)
+    {
+      photonDirection[i] = in.readShort();
+      decodeDirection(photonDirection[i]);
+    }
+    in.readFully(photonAxis);
+  }
+
+  /** Write the photons in this map to a stream, so they can later be reloaded instead of being generated again. */
+
+  public void writeToStream(DataOutputStream out) throws IOException
+  {
+    out.writeShort(0);
+    out.writeInt(numWanted);
+    out.writeInt(numEstimate);
+    out.writeInt(filter);
+    out.writeBoolean(includeCaustics);
+    out.writeBoolean(includeDirect);
+    out.writeBoolean(includeIndirect);
+    out.writeBoolean(includeVolume);
+    out.writeDouble(bounds.minx);
+    out.writeDouble(bounds.maxx);
+    out.writeDouble(bounds.miny);
+    out.writeDouble(bounds.maxy);
+    out.writeDouble(bounds.minz);
+    out.writeDouble(bounds.maxz);
+    out.writeDouble(lightScale);
+    out.writeFloat(cutoffDist2);
+    out.writeInt(numPhotons);
+    for (int i = 0; i < 3*numPhotons; i++)
+      out.writeFloat(photonPos[i]);
+    for (int i = 0; i < numPhotons; i++)
+      out.writeInt(photonERGB[i]);
+    for (int i = 0; i < numPhotons; i++)
+      out.writeShort(photonDirection[i]);
+    out.write(photonAxis, 0, numPhotons);
+  }
+
+  /** Prepare this map to be used for rendering another frame with a different Raytracer.  This is only valid if
+      nothing that affects the photons has changed. */
+
+  void setRaytracer(Raytracer raytracer)
+  {
+    rt = raytracer;
   }
 
   /** Get the Raytracer for which this map holds photons. */
@@ -107,6 +226,36 @@ public class PhotonMap
     return numEstimate;
   }
 
+  /** Get the seed used for the random number streams when generating photons.  The default value is 1. */
+
+  public long getSeed()
+  {
+    return seed;
+  }
+
+  /** Set the seed used for the random number streams when generating photons.  This must be called before
+      generatePhotons(). */
+
+  public void setSeed(long seed)
+  {
+    this.seed = seed;
+  }
+
+  /** Set the maximum number of threads to use when generating photons.  If this is 0 (the default), one thread
+      is used for each processor.  This does not affect which photons are generated. */
+
+  public void setMaxThreads(int maxThreads)
+  {
+    this.maxThreads = maxThreads;
+  }
+
+  /** Get the number of photons stored in the map. */
+
+  public int getNumPhotons()
+  {
+    return numPhotons;
+  }
+
   /** Generate photons from all sources until the desired number has been collected. */
 
   public void generatePhotons(PhotonSource source[])
@@ -126,35 +275,53 @@ public class PhotonMap
 
     // Generate photons.
 
-    photonList = new ArrayList<Photon>((int) (1.1*numWanted));
+    int capacity = Math.max(16, (int) (1.1*numWanted));
+    newPos = new float [3*capacity];
+    newERGB = new int [capacity];
+    newDirection = new short [capacity];
+    numPhotons = 0;
     int iteration = 0;
     ThreadManager threads = new ThreadManager();
+    threads.setMaxThreads(maxThreads);
+    EmissionBatch batch = new EmissionBatch();
     try
     {
-      while (photonList.size() < numWanted)
+      while (numPhotons < numWanted)
       {
+        // Collect the tasks from every source, then run them all together.
+
+        batch.clear();
+        threadBuffer.get().startBlock(-1, selectSeed(iteration, -1));
         for (int i = 0; i < source.length; i++)
           {
             if (renderer.renderThread != currentThread)
               return;
-            source[i].generatePhotons(this, currentIntensity*sourceIntensity[i]/totalSourceIntensity, threads);
+            source[i].generatePhotons(this, currentIntensity*sourceIntensity[i]/totalSourceIntensity, batch);
             totalRequested += currentIntensity*sourceIntensity[i]/totalSourceIntensity;
           }
-        if (photonList.size() >= numWanted*0.9)
+        runBatch(batch, threads, iteration);
+        if (renderer.renderThread != currentThread)
+          return;
+        mergeBuffers();
+        if (numPhotons >= numWanted*0.9)
           break;
-        if (photonList.isEmpty() && currentIntensity > 5.0 && iteration > 2)
+        if (numPhotons == 0 && currentIntensity > 5.0 && iteration > 2)
           break; // Insignificant numbers of photons will be stored no matter how many we send out.
         totalIntensity += currentIntensity;
-        if (photonList.size() < 10)
+        if (numPhotons < 10)
           currentIntensity *= 10.0;
         else
-          currentIntensity = (numWanted-photonList.size())*totalIntensity/photonList.size();
+          currentIntensity = (numWanted-numPhotons)*totalIntensity/numPhotons;
         iteration++;
       }
     }
     finally
     {
       threads.finish();
+      synchronized (buffers)
+      {
+        buffers.clear();
+      }
     }
     lightScale = totalSourceIntensity/totalRequested;
     if (filter == 2)
@@ -164,12 +331,7 @@ public class PhotonMap
 
     // Create the balanced kd-tree.
 
-    int numPhotons = photonList.size();
-    workspace = photonList.toArray(new Photon [numPhotons]);
-    photonList = null;
-    photon = new Photon [numPhotons];
-    buildTree(0, numPhotons-1, 0);
-    workspace = null;
+    buildTree();
 
     // Select a maximum search radius.  We use two different methods to select cutoffs, one based on photon
     // intensity and one based on density, then keep whichever cutoff is smaller.  First, find the N brightest
@@ -178,17 +340,17 @@ public class PhotonMap
     PhotonList nearbyPhotons = new PhotonList(numEstimate);
     RGBColor tempColor = new RGBColor();
     nearbyPhotons.init(0.0f);
-    for (int i = 0; i < photon.length; i++)
+    for (int i = 0; i < numPhotons; i++)
       {
-        tempColor.setERGB(photon[i].ergb);
+        tempColor.setERGB(photonERGB[i]);
         float intensity = -(tempColor.getRed()+tempColor.getGreen()+tempColor.getBlue());
         if (intensity <= nearbyPhotons.cutoff2)
-          nearbyPhotons.addPhoton(photon[i], intensity);
+          nearbyPhotons.addPhoton(i, intensity);
       }
     float red = 0.0f, green = 0.0f, blue = 0.0f;
     for (int i = 0; i < nearbyPhotons.numFound; i++)
       {
-        tempColor.setERGB(nearbyPhotons.photon[i].ergb);
+        tempColor.setERGB(photonERGB[nearbyPhotons.photon[i]]);
         red += tempColor.getRed();
         green += tempColor.getGreen();
         blue += tempColor.getBlue();
@@ -200,10 +362,108 @@ public class PhotonMap
     else
       cutoff1 = Math.sqrt(max*lightScale/(Math.PI*0.1));
     double volume = (bounds.maxx-bounds.minx)*(bounds.maxy-bounds.miny)*(bounds.maxz-bounds.minz);
-    double cutoff2 = Math.pow(0.5*volume*nearbyPhotons.photon.length/photon.length, 1.0/3.0);
+    double cutoff2 = Math.pow(0.5*volume*nearbyPhotons.photon.length/numPhotons, 1.0/3.0);
     cutoffDist2 = (float) (cutoff1 < cutoff2 ? cutoff1*cutoff1 : cutoff2*cutoff2);
   }
 
+  /** Run all the tasks that were collected from the photon sources.  The task indices are divided into blocks
+      of EMISSION_BLOCK_SIZE, and every block gets its own random number streams, which depend only on the seed,
+      the iteration, and the block.  Reseeding once per block rather than once per index keeps the overhead
+      small, since many sources emit only a single photon for each index. */
+
+  private void runBatch(final EmissionBatch batch, ThreadManager threads, final int iteration)
+  {
+    // Every task has at least one index, so the start positions are strictly increasing.
+
+    final int start[] = new int [batch.tasks.size()+1];
+    for (int i = 0; i < batch.tasks.size(); i++)
+      start[i+1] = start[i]+batch.sizes.get(i);
+    final int total = start[start.length-1];
+    if (total == 0)
+      return;
+    threads.setNumIndices((total+EMISSION_BLOCK_SIZE-1)/EMISSION_BLOCK_SIZE);
+    threads.setTask(new ThreadManager.Task() {
+      @Override
+      public void execute(int block)
+      {
+        long blockSeed = selectSeed(iteration, block);
+        threadBuffer.get().startBlock(block, blockSeed);
+        getWorkspace().context.random.setSeed(~blockSeed);
+        int first = block*EMISSION_BLOCK_SIZE, end = Math.min(first+EMISSION_BLOCK_SIZE, total);
+        int i = Arrays.binarySearch(start, first);
+        if (i < 0)
+          i = -i-2;
+        for (int index = first; index < end; index++)
+        {
+          while (index >= start[i+1])
+            i++;
+          batch.tasks.get(i).execute(index-start[i]);
+        }
+      }
+
+      @Override
+      public void cleanup()
+      {
+        for (ThreadManager.Task task : batch.tasks)
+          task.cleanup();
+      }
+    });
+    threads.run();
+  }
+
+  /** Select the random seed to use for a block of tasks. */
+
+  private long selectSeed(int iteration, int block)
+  {
+    long x = seed + 0x9E3779B97F4A7C15L*(((long) iteration<<32)+block+1);
+    x = (x^(x>>>30))*0xBF58476D1CE4E5B9L;
+    x = (x^(x>>>27))*0x94D049BB133111EBL;
+    return x^(x>>>31);
+  }
+
+  /** Append the photons from all the thread buffers to the map, in the order of the blocks that created them.
+      Each block is run by a single thread, and each thread runs its blocks in increasing order, so every buffer
+      is already sorted and they only need to be merged. */
+
+  private void mergeBuffers()
+  {
+    PhotonBuffer buf[];
+    synchronized (buffers)
+    {
+      buf = buffers.toArray(new PhotonBuffer [buffers.size()]);
+    }
+    int total = numPhotons;
+    for (PhotonBuffer b : buf)
+      total += b.size;
+    if (total > newERGB.length)
+    {
+      newPos = Arrays.copyOf(newPos, 3*total);
+      newERGB = Arrays.copyOf(newERGB, total);
+      newDirection = Arrays.copyOf(newDirection, total);
+    }
+    int next[] = new int [buf.length];
+    while (true)
+    {
+      int best = -1;
+      for (int j = 0; j < buf.length; j++)
+        if (next[j] < buf[j].size && (best == -1 || buf[j].block[next[j]] < buf[best].block[next[best]]))
+          best = j;
+      if (best == -1)
+        break;
+      PhotonBuffer b = buf[best];
+      int first = next[best], end = first, block = b.block[first];
+      while (end < b.size && b.block[end] == block)
+        end++;
+      System.arraycopy(b.pos, 3*first, newPos, 3*numPhotons, 3*(end-first));
+      System.arraycopy(b.ergb, first, newERGB, numPhotons, end-first);
+      System.arraycopy(b.direction, first, newDirection, numPhotons, end-first);
+      numPhotons += end-first;
+      next[best] = end;
+    }
+    for (PhotonBuffer b : buf)
+      b.size = 0;
+  }
+
   /** Spawn a Photon, and see whether it hits anything in the scene.  If so, add it to the map.
       @param r         the ray along which to spawn the photon
       @param color     the photon color
@@ -654,19 +914,23 @@ public class PhotonMap
 
   private void addPhoton(Vec3 pos, Vec3 dir, RGBColor color)
   {
-    Photon p = new Photon(pos, dir, color);
-    synchronized (this)
-    {
-      photonList.add(p);
-    }
-    if (direction[p.direction&0xFFFF] == null)
+    short encodedDir = Photon.encodeDirection(dir);
+    threadBuffer.get().add(pos, encodedDir, color.getERGB());
+    decodeDirection(encodedDir);
+  }
+
+  /** Make sure the direction table contains the vector for an encoded direction. */
+
+  private void decodeDirection(short encodedDir)
+  {
+    if (direction[encodedDir&0xFFFF] == null)
     {
-      int i = (p.direction>>8) & 0xFF;
-      int j = p.direction & 0xFF;
+      int i = (encodedDir>>8) & 0xFF;
+      int j = encodedDir & 0xFF;
       double phi = i*Math.PI/128, theta = j*Math.PI/256;
       double sphi = Math.sin(phi), cphi = Math.cos(phi);
       double stheta = Math.sin(theta), ctheta = Math.cos(theta);
-      direction[p.direction&0xFFFF] = new Vec3(cphi*stheta, ctheta, sphi*stheta);
+      direction[encodedDir&0xFFFF] = new Vec3(cphi*stheta, ctheta, sphi*stheta);
     }
   }
 
@@ -735,16 +999,51 @@ public class PhotonMap
     dir.normalize();
   }
 
-  /** This method is called recursively to build the packed kd-tree of photons from the workspace array.
+  /** Build the packed kd-tree from the photons that have been generated.  Large subtrees are built in
+      parallel. */
+
+  private void buildTree()
+  {
+    final int n = numPhotons;
+    photonPos = new float [3*n];
+    photonERGB = new int [n];
+    photonDirection = new short [n];
+    photonAxis = new byte [n];
+    final int order[] = new int [n];
+    for (int i = 0; i < n; i++)
+      order[i] = i;
+    ForkJoinPool pool = new ForkJoinPool();
+    try
+    {
+      pool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute()
+        {
+          buildTree(order, 0, n-1, 0);
+        }
+      });
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+    newPos = null;
+    newERGB = null;
+    newDirection = null;
+  }
+
+  /** This method is called recursively to build the packed kd-tree of photons.
+      @param order      the indices of the photons in the order they were generated.  This is rearranged as
+                        the tree is built.
       @param start      the start of the segment from which to build the tree
       @param end        the end of the segment from which to build the tree
-      @param root       the position in the packed array where the root of the tree should go
+      @param root       the position in the packed arrays where the root of the tree should go
   */
 
-  private void buildTree(int start, int end, int root)
+  private void buildTree(final int order[], int start, int end, int root)
   {
     if (start == end)
-      photon[root] = workspace[start];
+      storePhoton(root, order[start], 0);
     if (start >= end)
       return;
 
@@ -752,15 +1051,17 @@ public class PhotonMap
 
     float minx = Float.MAX_VALUE, miny = Float.MAX_VALUE, minz = Float.MAX_VALUE;
     float maxx = -Float.MAX_VALUE, maxy = -Float.MAX_VALUE, maxz = -Float.MAX_VALUE;
+    float pos[] = newPos;
     for (int i = start; i <= end; i++)
       {
-        Photon p = workspace[i];
-        if (p.x < minx) minx = p.x;
-        if (p.y < miny) miny = p.y;
-        if (p.z < minz) minz = p.z;
-        if (p.x > maxx) maxx = p.x;
-        if (p.y > maxy) maxy = p.y;
-        if (p.z > maxz) maxz = p.z;
+        int p = 3*order[i];
+        float x = pos[p], y = pos[p+1], z = pos[p+2];
+        if (x < minx) minx = x;
+        if (y < miny) miny = y;
+        if (z < minz) minz = z;
+        if (x > maxx) maxx = x;
+        if (y > maxy) maxy = y;
+        if (z > maxz) maxz = z;
       }
     float xsize = maxx-minx, ysize = maxy-miny, zsize = maxz-minz;
     int axis;
@@ -781,39 +1082,70 @@ public class PhotonMap
       medianPos = 2*medianPos+start-1;
     else
       medianPos = end-medianPos+1;
-    medianSplit(start, end, medianPos, axis);
+    medianSplit(order, start, end, medianPos, axis);
 
     // Store the median photon, and build the subtrees.
 
-    photon[root] = workspace[medianPos];
-    photon[root].axis = (short) axis;
-    buildTree(start, medianPos-1, 2*root+1);
-    buildTree(medianPos+1, end, 2*root+2);
+    storePhoton(root, order[medianPos], axis);
+    if (size > PARALLEL_THRESHOLD && ForkJoinTask.inForkJoinPool())
+    {
+      // Build the lower subtree in a separate task while this thread builds the upper one.
+
+      final int childStart = start, childEnd = medianPos-1, childRoot = 2*root+1;
+      RecursiveAction lower = new RecursiveAction() {
+        @Override
+        protected void compute()
+        {
+          buildTree(order, childStart, childEnd, childRoot);
+        }
+      };
+      lower.fork();
+      buildTree(order, medianPos+1, end, 2*root+2);
+      lower.join();
+    }
+    else
+    {
+      buildTree(order, start, medianPos-1, 2*root+1);
+      buildTree(order, medianPos+1, end, 2*root+2);
+    }
+  }
+
+  /** Copy a photon into its position in the tree. */
+
+  private void storePhoton(int root, int index, int axis)
+  {
+    photonPos[3*root] = newPos[3*index];
+    photonPos[3*root+1] = newPos[3*index+1];
+    photonPos[3*root+2] = newPos[3*index+2];
+    photonERGB[root] = newERGB[index];
+    photonDirection[root] = newDirection[index];
+    photonAxis[root] = (byte) axis;
   }
 
   /** This method splits the photons about their median along a particular axis.  When this returns,
       all the photons before medianPos will have values <= the value in medianPos, and all the ones
       after medianPos will have values >= the value in medianPos. */
 
-  private void medianSplit(int start, int end, int medianPos, int axis)
+  private void medianSplit(int order[], int start, int end, int medianPos, int axis)
   {
     float medianEstimate;
+    float pos[] = newPos;
 
     if (start == end)
       return;
     if (end-start == 1)
       {
-        if (axisPosition(start, axis) > axisPosition(end, axis))
-          swap(start, end);
+        if (pos[3*order[start]+axis] > pos[3*order[end]+axis])
+          swap(order, start, end);
         return;
       }
     while (start < end)
       {
         // Estimate the median value.
 
-        float a = axisPosition(start, axis);
-        float b = axisPosition(start+1, axis);
-        float c = axisPosition(end, axis);
+        float a = pos[3*order[start]+axis];
+        float b = pos[3*order[start+1]+axis];
+        float c = pos[3*order[end]+axis];
         if (a > b)
           {
             if (a > c)
@@ -834,15 +1166,15 @@ public class PhotonMap
         int i = start, j = end;
         while (true)
           {
-            for (; i < end && axisPosition(i, axis) < medianEstimate; i++);
-            for (; axisPosition(j, axis) > medianEstimate; j--);
+            for (; i < end && pos[3*order[i]+axis] < medianEstimate; i++);
+            for (; pos[3*order[j]+axis] > medianEstimate; j--);
             if (i >= j)
               break;
-            swap(i, j);
+            swap(order, i, j);
             i++;
             j--;
           }
-        swap(i, end);
+        swap(order, i, end);
         if (i > medianPos)
           end = i-1;
         if (i <= medianPos)
@@ -850,28 +1182,13 @@ public class PhotonMap
       }
   }
 
-  /** Get the position of a photon along an axis. */
+  /** Swap two elements of an array. */
 
-  private float axisPosition(int index, int axis)
+  private static void swap(int order[], int first, int second)
   {
-    switch (axis)
-      {
-        case 0:
-          return workspace[index].x;
-        case 1:
-          return workspace[index].y;
-        default:
-          return workspace[index].z;
-      }
-  }
-
-  /** Swap two photons in the workspace array. */
-
-  private void swap(int first, int second)
-  {
-    Photon temp = workspace[first];
-    workspace[first] = workspace[second];
-    workspace[second] = temp;
+    int temp = order[first];
+    order[first] = order[second];
+    order[second] = temp;
   }
 
   /** Determine the surface lighting at a point due to the photons in this map.
@@ -887,7 +1204,7 @@ public class PhotonMap
   public void getLight(Vec3 pos, TextureSpec spec, Vec3 normal, Vec3 viewDir, boolean front, RGBColor light, PhotonMapContext pmc)
   {
     light.setRGB(0.0f, 0.0f, 0.0f);
-    if (photon.length == 0)
+    if (numPhotons == 0)
       return;
     PhotonList nearbyPhotons = pmc.nearbyPhotons;
     RGBColor tempColor = pmc.tempColor;
@@ -898,7 +1215,7 @@ public class PhotonMap
     if (startCutoff2 > cutoffDist2)
       startCutoff2 = cutoffDist2;
     nearbyPhotons.init(startCutoff2);
-    findPhotons(pos, 0, pmc);
+    findPhotons((float) pos.x, (float) pos.y, (float) pos.z, 0, nearbyPhotons);
     pmc.lastPos.set(pos);
     pmc.lastCutoff2 = nearbyPhotons.cutoff2;
     if (nearbyPhotons.numFound == 0)
@@ -912,12 +1229,12 @@ public class PhotonMap
     }
     for (int i = 0; i < nearbyPhotons.numFound; i++)
     {
-      Photon p = nearbyPhotons.photon[i];
-      Vec3 dir = direction[p.direction&0xFFFF];
+      int p = nearbyPhotons.photon[i];
+      Vec3 dir = direction[photonDirection[p]&0xFFFF];
       double dot = normal.dot(dir);
       if ((front && dot < -1.0e-10) || (!front && dot > 1.0e-10))
       {
-        tempColor.setERGB(p.ergb);
+        tempColor.setERGB(photonERGB[p]);
         float x = nearbyPhotons.dist2[i]*r2inv;
         if (filter == 2)
           tempColor.scale(x*(x-2.0f)+1.0f);
@@ -958,7 +1275,7 @@ public class PhotonMap
   public void getVolumeLight(Vec3 pos, MaterialSpec spec, Vec3 viewDir, RGBColor light, PhotonMapContext pmc)
   {
     light.setRGB(0.0f, 0.0f, 0.0f);
-    if (photon.length == 0)
+    if (numPhotons == 0)
       return;
     PhotonList nearbyPhotons = pmc.nearbyPhotons;
     RGBColor tempColor = pmc.tempColor;
@@ -966,7 +1283,7 @@ public class PhotonMap
     if (startCutoff2 > cutoffDist2)
       startCutoff2 = cutoffDist2;
     nearbyPhotons.init(startCutoff2);
-    findPhotons(pos, 0, pmc);
+    findPhotons((float) pos.x, (float) pos.y, (float) pos.z, 0, nearbyPhotons);
     pmc.lastPos.set(pos);
     pmc.lastCutoff2 = nearbyPhotons.cutoff2;
     if (nearbyPhotons.numFound == 0)
@@ -975,11 +1292,11 @@ public class PhotonMap
     double ec2 = eccentricity*eccentricity;
     for (int i = 0; i < nearbyPhotons.numFound; i++)
     {
-      Photon p = nearbyPhotons.photon[i];
-      tempColor.setERGB(p.ergb);
+      int p = nearbyPhotons.photon[i];
+      tempColor.setERGB(photonERGB[p]);
       if (eccentricity != 0.0)
       {
-        Vec3 dir = direction[p.direction&0xFFFF];
+        Vec3 dir = direction[photonDirection[p]&0xFFFF];
         double dot = dir.dot(viewDir);
         double fatt = (1.0-ec2)/Math.pow(1.0+ec2+2.0*eccentricity*dot, 1.5);
         tempColor.scale(fatt);
@@ -990,18 +1307,22 @@ public class PhotonMap
   }
 
   /** Find the photons nearest to a given point.
-      @param pos      the position near which to locate photons
+      @param x        the x coordinate of the position near which to locate photons
+      @param y        the y coordinate of the position near which to locate photons
+      @param z        the z coordinate of the position near which to locate photons
       @param index    the point in the map from which to start searching
-      @param pmc      the PhotonMapContext from which this is being invoked
+      @param nearby   the photons that are found are added to this
   */
 
-  private void findPhotons(Vec3 pos, int index, PhotonMapContext pmc)
+  private void findPhotons(float x, float y, float z, int index, PhotonList nearby)
   {
-    Photon p = photon[index];
-    float dx = p.x-(float) pos.x, dy = p.y-(float) pos.y, dz = p.z-(float) pos.z;
+    float pos[] = photonPos;
+    int n = numPhotons;
+    int base = 3*index;
+    float dx = pos[base]-x, dy = pos[base+1]-y, dz = pos[base+2]-z;
     float dist2 = dx*dx + dy*dy + dz*dz;
     float delta;
-    switch (p.axis)
+    switch (photonAxis[index])
       {
         case 0:
           delta = dx;
@@ -1015,40 +1336,73 @@ public class PhotonMap
     if (delta > 0.0f)
       {
         int child = (index<<1)+1;
-        if (child < photon.length)
+        if (child < n)
           {
-            findPhotons(pos, child, pmc);
+            findPhotons(x, y, z, child, nearby);
             delta *= delta;
             child++;
-            if (child < photon.length && delta < pmc.nearbyPhotons.cutoff2)
-              findPhotons(pos, child, pmc);
+            if (child < n && delta < nearby.cutoff2)
+              findPhotons(x, y, z, child, nearby);
           }
       }
     else
       {
         int child = (index<<1)+2;
-        if (child < photon.length)
-          findPhotons(pos, child, pmc);
+        if (child < n)
+          findPhotons(x, y, z, child, nearby);
         delta *= delta;
         child--;
-        if (child < photon.length && delta < pmc.nearbyPhotons.cutoff2)
-          findPhotons(pos, child, pmc);
+        if (child < n && delta < nearby.cutoff2)
+          findPhotons(x, y, z, child, nearby);
       }
-    if (dist2 < pmc.nearbyPhotons.cutoff2)
-      pmc.nearbyPhotons.addPhoton(p, dist2);
+    if (dist2 < nearby.cutoff2)
+      nearby.addPhoton(index, dist2);
+  }
+
+  /** Replace the contents of the map with photons at the specified positions, and build the kd-tree.  Every
+      photon has the same color and direction.  This is used for testing.
+      @param pos      the x, y, and z coordinates of each photon
+  */
+
+  void setPhotonPositions(float pos[])
+  {
+    numPhotons = pos.length/3;
+    newPos = pos.clone();
+    newERGB = new int [numPhotons];
+    newDirection = new short [numPhotons];
+    buildTree();
+  }
+
+  /** Get the position of a photon in the map.
+      @param index    the index of the photon, as stored in a PhotonList
+      @param pos      the position is stored in this
+  */
+
+  void getPhotonPosition(int index, Vec3 pos)
+  {
+    pos.set(photonPos[3*index], photonPos[3*index+1], photonPos[3*index+2]);
+  }
+
+  /** Find the photons closest to a point.  The list must be initialized with the maximum squared distance to
+      search before calling this. */
+
+  void findPhotons(Vec3 pos, PhotonList nearby)
+  {
+    if (numPhotons > 0)
+      findPhotons((float) pos.x, (float) pos.y, (float) pos.z, 0, nearby);
   }
 
   private void validateTree(int pos)
   {
     int child1 = 2*pos+1, child2 = 2*pos+2;
-    if (child1 < photon.length)
+    if (child1 < numPhotons)
       {
-        validateLowerBranch(child1, photon[pos].axis, median(pos, photon[pos].axis));
+        validateLowerBranch(child1, photonAxis[pos], median(pos, photonAxis[pos]));
         validateTree(child1);
       }
-    if (child2 < photon.length)
+    if (child2 < numPhotons)
       {
-        validateUpperBranch(child2, photon[pos].axis, median(pos, photon[pos].axis));
+        validateUpperBranch(child2, photonAxis[pos], median(pos, photonAxis[pos]));
         validateTree(child2);
       }
   }
@@ -1059,9 +1413,9 @@ public class PhotonMap
     if (value > median)
       System.out.println("error!");
     int child1 = 2*pos+1, child2 = 2*pos+2;
-    if (child1 < photon.length)
+    if (child1 < numPhotons)
       validateLowerBranch(child1, axis, median);
-    if (child2 < photon.length)
+    if (child2 < numPhotons)
       validateLowerBranch(child2, axis, median);
   }
 
@@ -1071,22 +1425,119 @@ public class PhotonMap
     if (value < median)
       System.out.println("error!");
     int child1 = 2*pos+1, child2 = 2*pos+2;
-    if (child1 < photon.length)
+    if (child1 < numPhotons)
       validateUpperBranch(child1, axis, median);
-    if (child2 < photon.length)
+    if (child2 < numPhotons)
       validateUpperBranch(child2, axis, median);
   }
 
   private float median(int index, int axis)
   {
-    switch (axis)
+    return photonPos[3*index+axis];
+  }
+
+  /** This class holds the photons generated by one thread, and the state of its random number stream. */
+
+  private static class PhotonBuffer
+  {
+    float pos[] = new float [3*256];
+    int ergb[] = new int [256], block[] = new int [256];
+    short direction[] = new short [256];
+    int size, currentBlock;
+    final FastRandom random = new FastRandom(0);
+
+    void startBlock(int block, long seed)
+    {
+      currentBlock = block;
+      random.setSeed(seed);
+    }
+
+    void add(Vec3 p, short dir, int color)
+    {
+      if (size == ergb.length)
       {
-        case 0:
-          return photon[index].x;
-        case 1:
-          return photon[index].y;
-        default:
-          return photon[index].z;
+        int capacity = 2*size;
+        pos = Arrays.copyOf(pos, 3*capacity);
+        ergb = Arrays.copyOf(ergb, capacity);
+        block = Arrays.copyOf(block, capacity);
+        direction = Arrays.copyOf(direction, capacity);
       }
+      pos[3*size] = (float) p.x;
+      pos[3*size+1] = (float) p.y;
+      pos[3*size+2] = (float) p.z;
+      ergb[size] = color;
+      direction[size] = dir;
+      block[size++] = currentBlock;
+    }
+  }
+
+  /** This is the object stored in the random field.  It draws numbers from the random number stream of
+      whichever thread calls it, so the numbers each block receives do not depend on what other threads
+      are doing. */
+
+  private class ThreadRandom extends Random
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected int next(int bits)
+    {
+      return threadBuffer.get().random.nextInt() >>> (32-bits);
+    }
+
+    @Override
+    public double nextGaussian()
+    {
+      return threadBuffer.get().random.nextGaussian();
+    }
+  }
+
+  /** This ThreadManager is passed to the photon sources.  Rather than running their tasks immediately, it
+      records them so the tasks from every source can be run together. */
+
+  private static class EmissionBatch extends ThreadManager
+  {
+    final List<ThreadManager.Task> tasks = new ArrayList<ThreadManager.Task>();
+    final List<Integer> sizes = new ArrayList<Integer>();
+    private ThreadManager.Task task;
+    private int numIndices;
+
+    void clear()
+    {
+      tasks.clear();
+      sizes.clear();
+    }
+
+    @Override
+    public void setNumIndices(int numIndices)
+    {
+      this.numIndices = numIndices;
+    }
+
+    @Override
+    public void setTask(ThreadManager.Task task)
+    {
+      this.task = task;
+    }
+
+    @Override
+    public void run()
+    {
+      if (task != null && numIndices > 0)
+      {
+        tasks.add(task);
+        sizes.add(numIndices);
+      }
+    }
+
+    @Override
+    public void cancel()
+    {
+    }
+
+    @Override
+    public void finish()
+    {
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,315 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.material.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.procedural.*;
+import artofillusion.procedural.Module;
+import artofillusion.texture.*;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * A PhotonMapCache holds the photon maps that were built for one frame, so they can be reused for later
+ * frames in which nothing that affects them has changed.  This is most useful for animations in which only
+ * the camera moves: the photons are traced once, and every frame is rendered from the same maps.
+ * <p>
+ * Whether the maps can be reused is decided by comparing scene fingerprints.  A fingerprint is a SHA-1
+ * digest of everything that affects the photons: the geometry, position, texture, and material of every
+ * visible object and light, the environment and fog settings, and the renderer options that control
+ * photon tracing.  Cameras are not included.  The scene time is only included if something in the scene
+ * may depend on it, such as an object with distortion tracks or a procedural texture that uses time.
+ * <p>
+ * A cache can also be saved to a file next to the scene, so the maps survive between rendering sessions.
+ */
+
+public class PhotonMapCache
+{
+  private final byte fingerprint[];
+  private final PhotonMap globalMap, causticsMap, volumeMap;
+
+  /** Create a PhotonMapCache.
+   * @param fingerprint    the fingerprint of the scene for which the maps were built
+   * @param globalMap      the global photon map (may be null)
+   * @param causticsMap    the caustics photon map (may be null)
+   * @param volumeMap      the volume photon map (may be null)
+   */
+
+  public PhotonMapCache(byte fingerprint[], PhotonMap globalMap, PhotonMap causticsMap, PhotonMap volumeMap)
+  {
+    this.fingerprint = fingerprint;
+    this.globalMap = globalMap;
+    this.causticsMap = causticsMap;
+    this.volumeMap = volumeMap;
+  }
+
+  /** Get the global photon map, or null if there is none. */
+
+  public PhotonMap getGlobalMap()
+  {
+    return globalMap;
+  }
+
+  /** Get the caustics photon map, or null if there is none. */
+
+  public PhotonMap getCausticsMap()
+  {
+    return causticsMap;
+  }
+
+  /** Get the volume photon map, or null if there is none. */
+
+  public PhotonMap getVolumeMap()
+  {
+    return volumeMap;
+  }
+
+  /** Determine whether the maps in this cache were built for a scene with a particular fingerprint. */
+
+  public boolean matches(byte fingerprint[])
+  {
+    return fingerprint != null && Arrays.equals(this.fingerprint, fingerprint);
+  }
+
+  /** Prepare the maps to be used with a new Raytracer. */
+
+  void setRaytracer(Raytracer raytracer)
+  {
+    for (PhotonMap map : new PhotonMap [] {globalMap, causticsMap, volumeMap})
+      if (map != null)
+        map.setRaytracer(raytracer);
+  }
+
+  /** Compute the fingerprint of a scene as it will be rendered by a RaytracerRenderer.  This returns null if
+      the fingerprint could not be computed, in which case the maps should not be reused. */
+
+  public static byte[] computeFingerprint(Scene scene, RaytracerRenderer renderer)
+  {
+    final MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      return null;
+    }
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new OutputStream() {
+      @Override
+      public void write(int b)
+      {
+        digest.update((byte) b);
+      }
+
+      @Override
+      public void write(byte b[], int off, int len)
+      {
+        digest.update(b, off, len);
+      }
+    }));
+    try
+    {
+      // The renderer options.
+
+      out.writeInt(renderer.giMode);
+      out.writeInt(renderer.scatterMode);
+      out.writeBoolean(renderer.caustics);
+      out.writeInt(renderer.globalPhotons);
+      out.writeInt(renderer.globalNeighborPhotons);
+      out.writeInt(renderer.causticsPhotons);
+      out.writeInt(renderer.causticsNeighborPhotons);
+      out.writeInt(renderer.volumePhotons);
+      out.writeInt(renderer.volumeNeighborPhotons);
+      out.writeInt(renderer.maxRayDepth);
+      out.writeFloat(renderer.minRayIntensity);
+      out.writeDouble(renderer.surfaceError);
+      out.writeDouble(renderer.smoothing);
+      out.writeDouble(renderer.extraGISmoothing);
+      out.writeDouble(renderer.extraGIEnvSmoothing);
+      out.writeDouble(renderer.stepSize);
+      out.writeBoolean(renderer.gloss);
+      out.writeBoolean(renderer.isPreview);
+
+      // The environment.
+
+      scene.getAmbientColor().writeToFile(out);
+      out.writeBoolean(scene.getFogState());
+      out.writeDouble(scene.getFogDistance());
+      scene.getFogColor().writeToFile(out);
+      out.writeInt(scene.getEnvironmentMode());
+      scene.getEnvironmentColor().writeToFile(out);
+      if (scene.getEnvironmentMode() != Scene.ENVIRON_SOLID)
+      {
+        out.writeInt(scene.indexOf(scene.getEnvironmentTexture()));
+        TextureMapping envMapping = scene.getEnvironmentMapping();
+        out.writeUTF(envMapping.getClass().getName());
+        if (envMapping instanceof LayeredMapping)
+          ((LayeredMapping) envMapping).writeToFile(out, scene);
+        else
+          envMapping.writeToFile(out);
+        for (ParameterValue value : scene.getEnvironmentParameterValues())
+          value.writeToStream(out);
+      }
+
+      // The textures and materials.
+
+      boolean usesTime = false;
+      for (int i = 0; i < scene.getNumTextures(); i++)
+      {
+        Texture tex = scene.getTexture(i);
+        out.writeUTF(tex.getClass().getName());
+        tex.writeToFile(out, scene);
+        usesTime |= dependsOnTime(tex);
+      }
+      for (int i = 0; i < scene.getNumMaterials(); i++)
+      {
+        Material mat = scene.getMaterial(i);
+        out.writeUTF(mat.getClass().getName());
+        mat.writeToFile(out, scene);
+        usesTime |= dependsOnTime(mat);
+      }
+
+      // The objects and lights.
+
+      for (ObjectInfo info : scene.getObjects())
+      {
+        Object3D obj = info.getObject();
+        if (!info.isVisible() || obj instanceof SceneCamera || obj instanceof NullObject)
+          continue;
+        info.getCoords().writeToFile(out);
+        out.writeUTF(obj.getClass().getName());
+        obj.writeToFile(out, scene);
+        usesTime |= info.isDistorted() || dependsOnTime(obj);
+      }
+      out.writeBoolean(usesTime);
+      if (usesTime)
+        out.writeDouble(scene.getTime());
+      out.flush();
+    }
+    catch (IOException ex)
+    {
+      return null;
+    }
+    return digest.digest();
+  }
+
+  /** Determine whether an object, texture, or material may change over time, even if the scene does not change. */
+
+  private static boolean dependsOnTime(Object obj)
+  {
+    while (obj instanceof ObjectWrapper)
+      obj = ((ObjectWrapper) obj).getWrappedObject();
+    if (obj instanceof ObjectCollection)
+      return true;
+    if (!(obj instanceof ProcedureOwner))
+      return false;
+    Procedure proc;
+    if (obj instanceof ProceduralTexture2D)
+      proc = ((ProceduralTexture2D) obj).getProcedure();
+    else if (obj instanceof ProceduralTexture3D)
+      proc = ((ProceduralTexture3D) obj).getProcedure();
+    else
+      return true;
+    for (Module module : proc.getModules())
+    {
+      if (module instanceof ExprModule)
+        return true;
+      if (module instanceof CoordinateModule && module.getName().equals(CoordinateModule.COORD_NAME[CoordinateModule.T]))
+        return true;
+    }
+    return false;
+  }
+
+  /** Get the file in which the photon maps for a scene are saved, or null if the scene has not been saved to disk. */
+
+  public static File getCacheFile(Scene scene)
+  {
+    if (scene.getDirectory() == null || scene.getName() == null)
+      return null;
+    String name = scene.getName();
+    if (name.toLowerCase().endsWith(".aoi"))
+      name = name.substring(0, name.length()-4);
+    return new File(scene.getDirectory(), name+".photons");
+  }
+
+  /** Save the photon maps to a file. */
+
+  public void writeToFile(File file) throws IOException
+  {
+    // Write to a temporary file first, so an interrupted write never leaves a corrupt cache behind.
+
+    File temp = new File(file.getPath()+".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try
+    {
+      out.writeShort(0);
+      out.writeInt(fingerprint.length);
+      out.write(fingerprint);
+      for (PhotonMap map : new PhotonMap [] {globalMap, causticsMap, volumeMap})
+      {
+        out.writeBoolean(map != null);
+        if (map != null)
+          map.writeToStream(out);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+    if (file.exists() && !file.delete())
+      throw new IOException("Cannot replace "+file);
+    if (!temp.renameTo(file))
+      throw new IOException("Cannot rename "+temp);
+  }
+
+  /** Load photon maps from a file.
+   * @param file          the file to read
+   * @param fingerprint   the fingerprint of the scene being rendered
+   * @param raytracer     the Raytracer which will use the maps
+   * @param renderer      the renderer which will use the maps
+   * @return the cache that was read, or null if the file holds maps for a different scene
+   */
+
+  public static PhotonMapCache readFromFile(File file, byte fingerprint[], Raytracer raytracer, RaytracerRenderer renderer) throws IOException, InvalidObjectException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try
+    {
+      short version = in.readShort();
+      if (version != 0)
+        throw new InvalidObjectException("");
+      byte fileFingerprint[] = new byte [in.readInt()];
+      in.readFully(fileFingerprint);
+      if (!Arrays.equals(fileFingerprint, fingerprint))
+        return null;
+
+      // Maps share their direction tables the same way RaytracerRenderer.buildPhotonMap() shares them.
+
+      PhotonMap maps[] = new PhotonMap [3], shared = null;
+      for (int i = 0; i < maps.length; i++)
+        if (in.readBoolean())
+        {
+          maps[i] = new PhotonMap(in, raytracer, renderer, shared);
+          shared = maps[i];
+        }
+      return new PhotonMapCache(fingerprint, maps[0], maps[1], maps[2]);
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+}
@@ -14,6 +14,7 @@ import artofillusion.*;
 import artofillusion.material.*;
 import artofillusion.math.*;
 import artofillusion.texture.*;
+import java.util.concurrent.atomic.*;
 
 /** RTDisplacedTriangle represents a displacement mapped triangle to be raytraced.  It is
     defined by specifying a
@@ -33,10 +34,14 @@ public class RTDisplacedTriangle extends RTObject
   private Mat4 toLocal, fromLocal;
   private volatile ExtraInfo extraInfo;
 
+  private static final AtomicReferenceFieldUpdater<RTDisplacedTriangle, ExtraInfo> EXTRA_INFO =
+      AtomicReferenceFieldUpdater.newUpdater(RTDisplacedTriangle.class, ExtraInfo.class, "extraInfo");
+
   /**
    * This inner class holds many internal fields that are only used after the triangle is initialized.
    * Putting them in a separate object saves memory on triangles that never get hit by a ray (and hence
-   * never get initialized).
+   * never get initialized).  If the Raytracer has a {@link DisplacementCache}, it may be discarded again
+   * later, so code using it should always hold its own reference rather than reading the field repeatedly.
    */
 
   private static class ExtraInfo
@@ -49,6 +54,7 @@ public class RTDisplacedTriangle extends RTObject
     double n3x, n3y, n3z;
     double dn1x, dn1y, dn2x, dn2y;
     double minscale, maxscale;
+    volatile boolean recentlyUsed = true;
   }
 
   public RTDisplacedTriangle(RenderingMesh mesh, int which, Mat4 fromLocal, Mat4 toLocal, double tol, double time)
@@ -139,12 +145,56 @@ public class RTDisplacedTriangle extends RTObject
   }
 
   /** Part of the initialization is done lazily to save time and memory, since some triangles may never
-      be hit by any ray. */
+      be hit by any ray.  This does not lock: if several threads reach an uninitialized triangle at once,
+      each one builds the same data, and only the first to finish publishes it. */
 
-  private synchronized void init()
+  private ExtraInfo getExtraInfo(Raytracer rt)
+  {
+    ExtraInfo ex = extraInfo;
+    if (ex != null)
+    {
+      if (!ex.recentlyUsed)
+        ex.recentlyUsed = true;
+      return ex;
+    }
+    ex = createExtraInfo();
+    if (EXTRA_INFO.compareAndSet(this, null, ex))
+    {
+      DisplacementCache cache = rt.getDisplacementCache();
+      if (cache != null)
+        cache.add(this);
+    }
+    return ex;
+  }
+
+  /** Determine whether this triangle has been hit since the last call to this method, and clear the flag
+      recording it.  This is called by {@link DisplacementCache} to choose which triangle to evict. */
+
+  boolean clearRecentlyUsed()
+  {
+    ExtraInfo ex = extraInfo;
+    if (ex == null || !ex.recentlyUsed)
+      return false;
+    ex.recentlyUsed = false;
+    return true;
+  }
+
+  /** Discard the lazily built data.  It will be recreated if the triangle is hit again. */
+
+  void releaseGeometry()
+  {
+    extraInfo = null;
+  }
+
+  /** Determine whether the lazily built data currently exists. */
+
+  boolean hasGeometry()
+  {
+    return (extraInfo != null);
+  }
+
+  private ExtraInfo createExtraInfo()
   {
-    if (extraInfo != null)
-      return;
     ExtraInfo ex = new ExtraInfo();
 
     // Determine a coordinate transformation which places the triangle in the xy plane, with
@@ -223,7 +273,7 @@ public class RTDisplacedTriangle extends RTObject
     ex.dn2y = n2.y-n3.y;
     ex.minscale = 1.0/Math.max(Math.max(n1.z, n2.z), n3.z);
     ex.maxscale = 1.0/Math.min(Math.min(n1.z, n2.z), n3.z);
-    extraInfo = ex;
+    return ex;
   }
 
   /** Get the TextureMapping for this object. */
@@ -252,9 +302,8 @@ public class RTDisplacedTriangle extends RTObject
     if (!rayIntersectsBounds(r.origin, r.direction, bounds, dti))
       return SurfaceIntersection.NO_INTERSECTION;
     double mint = dti.mint, maxt = dti.maxt;
-    if (extraInfo == null)
-      init();
-    ExtraInfo extra = extraInfo;
+    ExtraInfo extra = getExtraInfo(r.rt.rt);
+    dti.extra = extra;
 
     // Transform the ray to the local coordinate system, and check it against the bounding box.
 
@@ -436,7 +485,7 @@ public class RTDisplacedTriangle extends RTObject
 
   private void calcCoords(DisplacedTriangleIntersection dti, double x, double y, double z)
   {
-    ExtraInfo extra = extraInfo;
+    ExtraInfo extra = dti.extra;
     double dmax = z*extra.maxscale, dmin = z*extra.minscale;
     guessCoords(dti, x, y, dmax);
     double ua = dti.u, va = dti.v, wa = dti.w;
@@ -457,7 +506,7 @@ public class RTDisplacedTriangle extends RTObject
 
   private void guessCoords(DisplacedTriangleIntersection dti, double x, double y, double disp)
   {
-    ExtraInfo extra = extraInfo;
+    ExtraInfo extra = dti.extra;
     double a = extra.v1x+disp*extra.dn1x;
     double b = disp*extra.dn2x;
     double c = x-disp*extra.n3x;
@@ -720,6 +769,7 @@ public class RTDisplacedTriangle extends RTObject
     public Vec3 orig, dir, interp, rint[];
     public short numIntersections;
     public Ray ray;
+    private ExtraInfo extra;
 
     @Override
     public RTObject getObject()
@@ -798,7 +848,7 @@ public class RTDisplacedTriangle extends RTObject
 
     private void findAllIntersections()
     {
-      ExtraInfo extra = rtTri.extraInfo;
+      ExtraInfo extra = this.extra;
       double x, y, z;
       x = orig.x+t*dir.x;
       y = orig.y+t*dir.y;
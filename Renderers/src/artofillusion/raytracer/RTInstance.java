@@ -0,0 +1,215 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.material.*;
+import artofillusion.math.*;
+import artofillusion.texture.*;
+
+/**
+ * RTInstance represents one copy of a mesh which appears many times in a scene.  The mesh is tessellated
+ * once, in its own local coordinates, and stored in an {@link RTTriangleMesh} with its own bounding volume
+ * hierarchy.  Every copy is then an RTInstance which holds only a reference to that shared prototype and the
+ * transformation that positions it in the scene.  This gives a two level hierarchy: the scene's octree or
+ * hierarchy locates the instances a ray might hit, and each prototype's hierarchy locates the triangles.
+ * <p>
+ * To test for an intersection, the ray is transformed into the prototype's local coordinates without
+ * normalizing its direction, so distances along it are the same in both coordinate systems.
+ */
+
+public class RTInstance extends RTObject
+{
+  private final RTTriangleMesh prototype;
+  private final Mat4 fromLocal, toLocal;
+  private final BoundingBox bounds;
+  private final double localScale;
+
+  /**
+   * Create an RTInstance.
+   *
+   * @param prototype   the shared mesh, whose vertices are in its own local coordinates
+   * @param fromLocal   the transformation from the prototype's local coordinates to world coordinates
+   * @param toLocal     the transformation from world coordinates to the prototype's local coordinates
+   */
+
+  public RTInstance(RTTriangleMesh prototype, Mat4 fromLocal, Mat4 toLocal)
+  {
+    this.prototype = prototype;
+    this.fromLocal = fromLocal;
+    this.toLocal = toLocal;
+    bounds = prototype.getBounds().transformAndOutset(fromLocal);
+    double det = toLocal.m11*(toLocal.m22*toLocal.m33-toLocal.m23*toLocal.m32)
+        -toLocal.m12*(toLocal.m21*toLocal.m33-toLocal.m23*toLocal.m31)
+        +toLocal.m13*(toLocal.m21*toLocal.m32-toLocal.m22*toLocal.m31);
+    localScale = Math.cbrt(Math.abs(det));
+  }
+
+  /** Get the shared mesh of which this is a copy. */
+
+  public RTTriangleMesh getPrototype()
+  {
+    return prototype;
+  }
+
+  /** Get the TextureMapping for this object. */
+
+  @Override
+  public final TextureMapping getTextureMapping()
+  {
+    return prototype.getTextureMapping();
+  }
+
+  /** Get the MaterialMapping for this object. */
+
+  @Override
+  public final MaterialMapping getMaterialMapping()
+  {
+    return prototype.getMaterialMapping();
+  }
+
+  /** Determine whether a ray intersects this object. */
+
+  @Override
+  public SurfaceIntersection checkIntersection(Ray r)
+  {
+    Ray local;
+    if (r.rt == null)
+      local = new Ray(null);
+    else
+    {
+      if (r.rt.instanceRay == null)
+        r.rt.instanceRay = new Ray(r.rt);
+      local = r.rt.instanceRay;
+    }
+    Vec3 orig = local.getOrigin(), dir = local.getDirection();
+    orig.set(r.getOrigin());
+    toLocal.transform(orig);
+    dir.set(r.getDirection());
+    toLocal.transformDirection(dir);
+    SurfaceIntersection hit = prototype.checkIntersection(local);
+    if (hit == SurfaceIntersection.NO_INTERSECTION)
+      return hit;
+    InstanceIntersection intersection = (r.rt == null ? new InstanceIntersection() : (InstanceIntersection) r.rt.rtInstancePool.getObject());
+    intersection.init(this, hit);
+    return intersection;
+  }
+
+  /** Get a bounding box for this object. */
+
+  @Override
+  public BoundingBox getBounds()
+  {
+    return bounds;
+  }
+
+  /** Determine whether any part of the object may lie within an octree node.  This is conservative: the node
+      is transformed into the prototype's local coordinates, and compared to the bounding box of each triangle. */
+
+  @Override
+  public boolean intersectsNode(OctreeNode node)
+  {
+    if (node.minx > bounds.maxx || node.maxx < bounds.minx || node.miny > bounds.maxy ||
+        node.maxy < bounds.miny || node.minz > bounds.maxz || node.maxz < bounds.minz)
+      return false;
+    BoundingBox box = new BoundingBox(node.minx, node.maxx, node.miny, node.maxy, node.minz, node.maxz).transformAndOutset(toLocal);
+    return prototype.intersectsBox(box.minx, box.maxx, box.miny, box.maxy, box.minz, box.maxz);
+  }
+
+  /** Get the transformation from world coordinates to the object's local coordinates. */
+
+  @Override
+  public Mat4 toLocal()
+  {
+    return toLocal;
+  }
+
+  /** Transform a normal vector from the prototype's local coordinates to world coordinates. */
+
+  private void transformNormal(Vec3 n)
+  {
+    double x = toLocal.m11*n.x+toLocal.m21*n.y+toLocal.m31*n.z;
+    double y = toLocal.m12*n.x+toLocal.m22*n.y+toLocal.m32*n.z;
+    double z = toLocal.m13*n.x+toLocal.m23*n.y+toLocal.m33*n.z;
+    n.set(x, y, z);
+    n.normalize();
+  }
+
+  /**
+   * Inner class representing an intersection with an RTInstance.  It wraps the intersection with the
+   * prototype, and transforms its results back to world coordinates.
+   */
+
+  public static class InstanceIntersection implements SurfaceIntersection
+  {
+    private RTInstance instance;
+    private SurfaceIntersection local;
+    private final Vec3 localViewDir;
+
+    public InstanceIntersection()
+    {
+      localViewDir = new Vec3();
+    }
+
+    void init(RTInstance instance, SurfaceIntersection local)
+    {
+      this.instance = instance;
+      this.local = local;
+    }
+
+    @Override
+    public RTObject getObject()
+    {
+      return instance;
+    }
+
+    @Override
+    public int numIntersections()
+    {
+      return local.numIntersections();
+    }
+
+    @Override
+    public void intersectionPoint(int n, Vec3 p)
+    {
+      local.intersectionPoint(n, p);
+      instance.fromLocal.transform(p);
+    }
+
+    @Override
+    public double intersectionDist(int n)
+    {
+      return local.intersectionDist(n);
+    }
+
+    @Override
+    public void intersectionProperties(TextureSpec spec, Vec3 n, Vec3 viewDir, double size, double time)
+    {
+      localViewDir.set(viewDir);
+      instance.toLocal.transformDirection(localViewDir);
+      localViewDir.normalize();
+      local.intersectionProperties(spec, n, localViewDir, size*instance.localScale, time);
+      instance.transformNormal(n);
+    }
+
+    @Override
+    public void intersectionTransparency(int n, RGBColor trans, double angle, double size, double time)
+    {
+      local.intersectionTransparency(n, trans, angle, size*instance.localScale, time);
+    }
+
+    @Override
+    public void trueNormal(Vec3 n)
+    {
+      local.trueNormal(n);
+      instance.transformNormal(n);
+    }
+  }
+}
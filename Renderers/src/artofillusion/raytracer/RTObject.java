@@ -34,6 +34,20 @@ public abstract class RTObject
 
   public abstract SurfaceIntersection checkIntersection(Ray r);
 
+  /** Determine which of a set of rays in a RayPacket intersect this object, and record any hits in the
+      packet.  The default implementation tests the rays one at a time, but subclasses may override it
+      to test them more efficiently.
+
+      @param packet   the packet containing the rays
+      @param rays     the indices within the packet of the rays to test
+      @param numRays  the number of elements of rays[] to use
+  */
+
+  public void checkPacketIntersection(RayPacket packet, int rays[], int numRays)
+  {
+    packet.checkEachRay(this, rays, numRays);
+  }
+
   /** Get a bounding box for this object. */
   
   public abstract BoundingBox getBounds();
@@ -168,6 +168,53 @@ public class RTTriangle extends RTObject
     return intersection;
   }
 
+  /** Determine which of a set of rays in a RayPacket intersect this triangle.  This performs the same
+      calculations as checkIntersection(), but works directly on the packet's arrays and does not need to
+      create a TriangleIntersection for each hit. */
+
+  @Override
+  public void checkPacketIntersection(RayPacket packet, int rays[], int numRays)
+  {
+    double ox[] = packet.ox, oy[] = packet.oy, oz[] = packet.oz;
+    double dx[] = packet.dx, dy[] = packet.dy, dz[] = packet.dz;
+    double nx = trueNorm.x, ny = trueNorm.y, nz = trueNorm.z;
+    for (int i = 0; i < numRays; i++)
+    {
+      int n = rays[i];
+      double vd = nx*dx[n]+ny*dy[n]+nz*dz[n];
+      if (vd == 0.0)
+        continue;
+      double t = -(nx*ox[n]+ny*oy[n]+nz*oz[n]+d)/vd;
+      if (t < TOL || t >= packet.secondDist[n])
+        continue;
+      double vx, vy;
+      switch (dropAxis)
+      {
+        case 0:
+          vx = oy[n]+dy[n]*t - vert1.y;
+          vy = oz[n]+dz[n]*t - vert1.z;
+          break;
+        case 1:
+          vx = ox[n]+dx[n]*t - vert1.x;
+          vy = oz[n]+dz[n]*t - vert1.z;
+          break;
+        default:
+          vx = ox[n]+dx[n]*t - vert1.x;
+          vy = oy[n]+dy[n]*t - vert1.y;
+      }
+      double v = edge2d2x*vy - edge2d2y*vx;
+      if (v < -TOL || v > 1.0+TOL)
+        continue;
+      double w = vx*edge2d1y - vy*edge2d1x;
+      if (w < -TOL || w > 1.0+TOL)
+        continue;
+      double u = 1.0-v-w;
+      if (u < -TOL || u > 1.0+TOL)
+        continue;
+      packet.recordHit(n, this, t);
+    }
+  }
+
   /** Get a bounding box for this triangle. */
 
   @Override
@@ -0,0 +1,638 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.material.*;
+import artofillusion.math.*;
+import artofillusion.texture.*;
+import java.nio.*;
+
+/**
+ * RTTriangleMesh represents an entire RenderingMesh as a single object to be raytraced.  Rather than
+ * creating an RTTriangle for every face, the data needed to intersect rays with the triangles is packed
+ * into a single buffer of floats, and the triangles are organized into their own
+ * {@link BoundingVolumeHierarchy} which refers to them by index.  This greatly reduces the number of
+ * objects, and therefore the memory used and the work needed to build the scene's octree or hierarchy.
+ * <p>
+ * For each triangle, the buffer holds its plane (normal and offset), the position of its first vertex
+ * projected onto the plane's dominant axes, and its two edges in that projection, pre-scaled so the
+ * barycentric coordinates of a point can be found directly.  The buffer may optionally be allocated
+ * outside the Java heap, so that very large meshes do not add to garbage collection costs.
+ * <p>
+ * The mesh's vertices must already have been transformed into world coordinates.
+ */
+
+public class RTTriangleMesh extends RTObject
+{
+  private final RenderingMesh mesh;
+  private final Mat4 fromLocal, toLocal;
+  private final FloatBuffer data;
+  private final int triangle[];
+  private final BoundingVolumeHierarchy bvh;
+  private final boolean bumpMapped;
+
+  private static final int STRIDE = 10;
+  private static final double TOL = RTTriangle.TOL;
+
+  /** Floats are accurate to about 1e-7, so allow a little overlap along the edges where triangles meet. */
+
+  private static final double EDGE_TOL = 1e-6;
+
+  /**
+   * Create an RTTriangleMesh.
+   *
+   * @param mesh        the mesh to represent.  Its vertices must be in world coordinates.
+   * @param fromLocal   the transformation from the mesh's local coordinates to world coordinates
+   * @param toLocal     the transformation from world coordinates to the mesh's local coordinates
+   * @param offHeap     if true, the triangle data is stored in a direct buffer outside the Java heap
+   */
+
+  public RTTriangleMesh(RenderingMesh mesh, Mat4 fromLocal, Mat4 toLocal, boolean offHeap)
+  {
+    this.mesh = mesh;
+    this.fromLocal = fromLocal;
+    this.toLocal = toLocal;
+    Vec3 vert[] = mesh.vert;
+
+    // Find which triangles are usable, skipping degenerate ones.
+
+    int keep[] = new int [mesh.triangle.length];
+    int n = 0;
+    for (int i = 0; i < mesh.triangle.length; i++)
+    {
+      RenderingTriangle tri = mesh.triangle[i];
+      if (mesh.faceNorm[i].length() < Raytracer.TOL)
+        continue;
+      if (vert[tri.v1].distance(vert[tri.v2]) < Raytracer.TOL)
+        continue;
+      if (vert[tri.v1].distance(vert[tri.v3]) < Raytracer.TOL)
+        continue;
+      if (vert[tri.v2].distance(vert[tri.v3]) < Raytracer.TOL)
+        continue;
+      keep[n++] = i;
+    }
+
+    // Build the hierarchy, then store the triangles in the order the leaves refer to them.
+
+    float box[] = new float [6*n];
+    for (int i = 0; i < n; i++)
+    {
+      RenderingTriangle tri = mesh.triangle[keep[i]];
+      Vec3 v1 = vert[tri.v1], v2 = vert[tri.v2], v3 = vert[tri.v3];
+      box[6*i] = Math.nextAfter((float) Math.min(v1.x, Math.min(v2.x, v3.x)), Double.NEGATIVE_INFINITY);
+      box[6*i+1] = Math.nextAfter((float) Math.max(v1.x, Math.max(v2.x, v3.x)), Double.POSITIVE_INFINITY);
+      box[6*i+2] = Math.nextAfter((float) Math.min(v1.y, Math.min(v2.y, v3.y)), Double.NEGATIVE_INFINITY);
+      box[6*i+3] = Math.nextAfter((float) Math.max(v1.y, Math.max(v2.y, v3.y)), Double.POSITIVE_INFINITY);
+      box[6*i+4] = Math.nextAfter((float) Math.min(v1.z, Math.min(v2.z, v3.z)), Double.NEGATIVE_INFINITY);
+      box[6*i+5] = Math.nextAfter((float) Math.max(v1.z, Math.max(v2.z, v3.z)), Double.POSITIVE_INFINITY);
+    }
+    bvh = new BoundingVolumeHierarchy(box, n);
+    if (offHeap)
+      data = ByteBuffer.allocateDirect(4*STRIDE*n).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    else
+      data = FloatBuffer.wrap(new float [STRIDE*n]);
+    triangle = new int [n];
+    for (int i = 0; i < n; i++)
+      triangle[i] = storeTriangle(i, keep[bvh.getPrimitive(i)]);
+    bumpMapped = mesh.mapping.getTexture().hasComponent(Texture.BUMP_COMPONENT);
+  }
+
+  /** Store the data for a triangle in the buffer, and return its entry for the triangle[] array. */
+
+  private int storeTriangle(int slot, int which)
+  {
+    RenderingTriangle tri = mesh.triangle[which];
+    Vec3 vert1 = mesh.vert[tri.v1], vert2 = mesh.vert[tri.v2], vert3 = mesh.vert[tri.v3];
+    Vec3 trueNorm = mesh.faceNorm[which];
+    if (tri.n1 != tri.n2 || tri.n1 != tri.n3)
+    {
+      // Make sure trueNorm points in the same direction as the vertex normals.
+
+      int i = 0;
+      if (trueNorm.dot(mesh.norm[tri.n1]) < 0.0) i++;
+      if (trueNorm.dot(mesh.norm[tri.n2]) < 0.0) i++;
+      if (trueNorm.dot(mesh.norm[tri.n3]) < 0.0) i++;
+      if (i > 1)
+        trueNorm.scale(-1.0);
+    }
+    int dropAxis;
+    if (Math.abs(trueNorm.y) > Math.abs(trueNorm.x))
+      dropAxis = (Math.abs(trueNorm.z) > Math.abs(trueNorm.y) ? 2 : 1);
+    else
+      dropAxis = (Math.abs(trueNorm.z) > Math.abs(trueNorm.x) ? 2 : 0);
+    double p1x, p1y, edge2d1x, edge2d1y, edge2d2x, edge2d2y;
+    switch (dropAxis)
+    {
+      case 0:
+        p1x = vert1.y;
+        p1y = vert1.z;
+        edge2d1x = vert1.y-vert2.y;
+        edge2d1y = vert1.z-vert2.z;
+        edge2d2x = vert1.y-vert3.y;
+        edge2d2y = vert1.z-vert3.z;
+        break;
+      case 1:
+        p1x = vert1.x;
+        p1y = vert1.z;
+        edge2d1x = vert1.x-vert2.x;
+        edge2d1y = vert1.z-vert2.z;
+        edge2d2x = vert1.x-vert3.x;
+        edge2d2y = vert1.z-vert3.z;
+        break;
+      default:
+        p1x = vert1.x;
+        p1y = vert1.y;
+        edge2d1x = vert1.x-vert2.x;
+        edge2d1y = vert1.y-vert2.y;
+        edge2d2x = vert1.x-vert3.x;
+        edge2d2y = vert1.y-vert3.y;
+    }
+    double denom = 1.0/(edge2d1x*edge2d2y-edge2d1y*edge2d2x);
+    int base = STRIDE*slot;
+    data.put(base, (float) trueNorm.x);
+    data.put(base+1, (float) trueNorm.y);
+    data.put(base+2, (float) trueNorm.z);
+    data.put(base+3, (float) -trueNorm.dot(vert1));
+    data.put(base+4, (float) p1x);
+    data.put(base+5, (float) p1y);
+    data.put(base+6, (float) (edge2d1x*denom));
+    data.put(base+7, (float) (edge2d1y*denom));
+    data.put(base+8, (float) (edge2d2x*denom));
+    data.put(base+9, (float) (edge2d2y*denom));
+    return (which<<2) | dropAxis;
+  }
+
+  /** Get the mesh represented by this object. */
+
+  public RenderingMesh getMesh()
+  {
+    return mesh;
+  }
+
+  /** Get the number of triangles stored in this object.  This may be less than the number in the mesh, since
+      degenerate triangles are omitted. */
+
+  public int getNumTriangles()
+  {
+    return triangle.length;
+  }
+
+  /** Get the n'th triangle stored in this object. */
+
+  public RenderingTriangle getTriangle(int n)
+  {
+    return mesh.triangle[triangle[n]>>2];
+  }
+
+  /** Get the hierarchy used to locate triangles within the mesh. */
+
+  public BoundingVolumeHierarchy getBoundingVolumeHierarchy()
+  {
+    return bvh;
+  }
+
+  /** Get the TextureMapping for this object. */
+
+  @Override
+  public final TextureMapping getTextureMapping()
+  {
+    return mesh.mapping;
+  }
+
+  /** Get the MaterialMapping for this object. */
+
+  @Override
+  public final MaterialMapping getMaterialMapping()
+  {
+    return mesh.matMapping;
+  }
+
+  /** Find the distance at which a ray hits a stored triangle, or Double.MAX_VALUE if it misses or the hit
+      is further than maxDist. */
+
+  private double intersectTriangle(int slot, double ox, double oy, double oz, double dx, double dy, double dz, double maxDist)
+  {
+    int base = STRIDE*slot;
+    double nx = data.get(base), ny = data.get(base+1), nz = data.get(base+2);
+    double vd = nx*dx+ny*dy+nz*dz;
+    if (vd == 0.0)
+      return Double.MAX_VALUE;
+    double t = -(nx*ox+ny*oy+nz*oz+data.get(base+3))/vd;
+    if (t < TOL || t > maxDist)
+      return Double.MAX_VALUE;
+    double vx, vy;
+    switch (triangle[slot]&3)
+    {
+      case 0:
+        vx = oy+dy*t - data.get(base+4);
+        vy = oz+dz*t - data.get(base+5);
+        break;
+      case 1:
+        vx = ox+dx*t - data.get(base+4);
+        vy = oz+dz*t - data.get(base+5);
+        break;
+      default:
+        vx = ox+dx*t - data.get(base+4);
+        vy = oy+dy*t - data.get(base+5);
+    }
+    double v = data.get(base+8)*vy - data.get(base+9)*vx;
+    if (v < -EDGE_TOL || v > 1.0+EDGE_TOL)
+      return Double.MAX_VALUE;
+    double w = vx*data.get(base+7) - vy*data.get(base+6);
+    if (w < -EDGE_TOL || w > 1.0+EDGE_TOL)
+      return Double.MAX_VALUE;
+    double u = 1.0-v-w;
+    if (u < -EDGE_TOL || u > 1.0+EDGE_TOL)
+      return Double.MAX_VALUE;
+    return t;
+  }
+
+  /** Find the barycentric coordinates of the point at distance t along a ray, which is known to hit a
+      stored triangle.  The coordinates for the second and third vertices are stored into uv[]. */
+
+  private void findBarycentric(int slot, double ox, double oy, double oz, double dx, double dy, double dz, double t, double uv[], int index)
+  {
+    int base = STRIDE*slot;
+    double vx, vy;
+    switch (triangle[slot]&3)
+    {
+      case 0:
+        vx = oy+dy*t - data.get(base+4);
+        vy = oz+dz*t - data.get(base+5);
+        break;
+      case 1:
+        vx = ox+dx*t - data.get(base+4);
+        vy = oz+dz*t - data.get(base+5);
+        break;
+      default:
+        vx = ox+dx*t - data.get(base+4);
+        vy = oy+dy*t - data.get(base+5);
+    }
+    uv[2*index] = data.get(base+8)*vy - data.get(base+9)*vx;
+    uv[2*index+1] = vx*data.get(base+7) - vy*data.get(base+6);
+  }
+
+  /** Determine whether the given ray intersects this mesh.  The returned intersection initially only records
+      the closest hit.  The others are found if they are requested. */
+
+  @Override
+  public SurfaceIntersection checkIntersection(Ray r)
+  {
+    if (triangle.length == 0)
+      return SurfaceIntersection.NO_INTERSECTION;
+    Vec3 orig = r.getOrigin(), dir = r.getDirection();
+    double ox = orig.x, oy = orig.y, oz = orig.z, dx = dir.x, dy = dir.y, dz = dir.z;
+    double invx = 1.0/dx, invy = 1.0/dy, invz = 1.0/dz;
+    if (bvh.entryDistance(0, ox, oy, oz, invx, invy, invz, Double.MAX_VALUE) == Double.MAX_VALUE)
+      return SurfaceIntersection.NO_INTERSECTION;
+    int stack[];
+    double stackDist[];
+    int stackSize = bvh.getMaxDepth()+2;
+    if (r.rt == null)
+    {
+      stack = new int [stackSize];
+      stackDist = new double [stackSize];
+    }
+    else
+    {
+      if (r.rt.meshStack.length < stackSize)
+        r.rt.increaseMeshStackLength(stackSize);
+      stack = r.rt.meshStack;
+      stackDist = r.rt.meshStackDist;
+    }
+
+    // Visit nodes in order of distance, skipping any that are beyond the closest hit found so far.
+
+    int child[] = bvh.child, count[] = bvh.count;
+    int best = -1, sp = 0, node = 0;
+    double bestDist = Double.MAX_VALUE;
+    while (true)
+    {
+      int n = count[node];
+      if (n > 0)
+      {
+        for (int i = child[node], end = i+n; i < end; i++)
+        {
+          double t = intersectTriangle(i, ox, oy, oz, dx, dy, dz, bestDist);
+          if (t < bestDist || (t == bestDist && t != Double.MAX_VALUE && i < best))
+          {
+            bestDist = t;
+            best = i;
+          }
+        }
+      }
+      else
+      {
+        int c1 = child[node], c2 = c1+1;
+        double d1 = bvh.entryDistance(c1, ox, oy, oz, invx, invy, invz, bestDist);
+        double d2 = bvh.entryDistance(c2, ox, oy, oz, invx, invy, invz, bestDist);
+        if (d1 != Double.MAX_VALUE && d2 != Double.MAX_VALUE)
+        {
+          if (d1 <= d2)
+          {
+            stack[sp] = c2;
+            stackDist[sp++] = d2;
+            node = c1;
+          }
+          else
+          {
+            stack[sp] = c1;
+            stackDist[sp++] = d1;
+            node = c2;
+          }
+          continue;
+        }
+        if (d1 != Double.MAX_VALUE)
+        {
+          node = c1;
+          continue;
+        }
+        if (d2 != Double.MAX_VALUE)
+        {
+          node = c2;
+          continue;
+        }
+      }
+
+      // Pop the next node that might still contain a closer hit.
+
+      node = -1;
+      while (sp > 0)
+      {
+        sp--;
+        if (stackDist[sp] <= bestDist)
+        {
+          node = stack[sp];
+          break;
+        }
+      }
+      if (node == -1)
+        break;
+    }
+    if (best == -1)
+      return SurfaceIntersection.NO_INTERSECTION;
+    MeshIntersection intersection = (r.rt == null ? new MeshIntersection() : (MeshIntersection) r.rt.rtMeshPool.getObject());
+    intersection.init(this, orig, dir);
+    intersection.addHit(best, bestDist);
+    return intersection;
+  }
+
+  /** Find every triangle a ray hits, and record them in an intersection in order of distance. */
+
+  private void findAllIntersections(MeshIntersection intersection)
+  {
+    double ox = intersection.ox, oy = intersection.oy, oz = intersection.oz;
+    double dx = intersection.dx, dy = intersection.dy, dz = intersection.dz;
+    double invx = 1.0/dx, invy = 1.0/dy, invz = 1.0/dz;
+    int stack[] = new int [bvh.getMaxDepth()+2];
+    int child[] = bvh.child, count[] = bvh.count;
+    intersection.numHits = 0;
+    int sp = 0;
+    stack[sp++] = 0;
+    while (sp > 0)
+    {
+      int node = stack[--sp];
+      if (bvh.entryDistance(node, ox, oy, oz, invx, invy, invz, Double.MAX_VALUE) == Double.MAX_VALUE)
+        continue;
+      int n = count[node];
+      if (n == 0)
+      {
+        stack[sp++] = child[node];
+        stack[sp++] = child[node]+1;
+        continue;
+      }
+      for (int i = child[node], end = i+n; i < end; i++)
+      {
+        double t = intersectTriangle(i, ox, oy, oz, dx, dy, dz, Double.MAX_VALUE);
+        if (t != Double.MAX_VALUE)
+          intersection.addHit(i, t);
+      }
+    }
+  }
+
+  /** Get a bounding box for the mesh. */
+
+  @Override
+  public BoundingBox getBounds()
+  {
+    return bvh.getBounds();
+  }
+
+  /** Determine whether any part of the mesh may lie within a bounding box.  This is conservative: it
+      compares the node against the bounding box of each triangle. */
+
+  @Override
+  public boolean intersectsNode(OctreeNode node)
+  {
+    return intersectsBox(node.minx, node.maxx, node.miny, node.maxy, node.minz, node.maxz);
+  }
+
+  /** Determine whether any triangle's bounding box overlaps an axis aligned box, given in the same coordinates
+      as the mesh's vertices. */
+
+  boolean intersectsBox(double minx, double maxx, double miny, double maxy, double minz, double maxz)
+  {
+    if (triangle.length == 0)
+      return false;
+    float bounds[] = bvh.bounds;
+    int child[] = bvh.child, count[] = bvh.count;
+    int stack[] = new int [bvh.getMaxDepth()+2];
+    int sp = 0;
+    stack[sp++] = 0;
+    while (sp > 0)
+    {
+      int n = stack[--sp];
+      int base = 6*n;
+      if (bounds[base] > maxx || bounds[base+1] < minx || bounds[base+2] > maxy ||
+          bounds[base+3] < miny || bounds[base+4] > maxz || bounds[base+5] < minz)
+        continue;
+      if (count[n] == 0)
+      {
+        stack[sp++] = child[n];
+        stack[sp++] = child[n]+1;
+        continue;
+      }
+      Vec3 vert[] = mesh.vert;
+      for (int i = child[n], end = i+count[n]; i < end; i++)
+      {
+        RenderingTriangle tri = getTriangle(i);
+        Vec3 v1 = vert[tri.v1], v2 = vert[tri.v2], v3 = vert[tri.v3];
+        if (Math.min(v1.x, Math.min(v2.x, v3.x)) <= maxx && Math.max(v1.x, Math.max(v2.x, v3.x)) >= minx &&
+            Math.min(v1.y, Math.min(v2.y, v3.y)) <= maxy && Math.max(v1.y, Math.max(v2.y, v3.y)) >= miny &&
+            Math.min(v1.z, Math.min(v2.z, v3.z)) <= maxz && Math.max(v1.z, Math.max(v2.z, v3.z)) >= minz)
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /** Get the transformation from world coordinates to the object's local coordinates. */
+
+  @Override
+  public Mat4 toLocal()
+  {
+    return toLocal;
+  }
+
+  /** Get the mesh this object represents. */
+
+  @Override
+  public Object getObject()
+  {
+    return mesh;
+  }
+
+  /**
+   * Inner class representing an intersection with an RTTriangleMesh.
+   */
+
+  public static class MeshIntersection implements SurfaceIntersection
+  {
+    private RTTriangleMesh rtMesh;
+    private double ox, oy, oz, dx, dy, dz;
+    private int numHits, slot[];
+    private double dist[], uv[];
+    private boolean allFound;
+
+    public MeshIntersection()
+    {
+      slot = new int [2];
+      dist = new double [2];
+      uv = new double [4];
+    }
+
+    void init(RTTriangleMesh rtMesh, Vec3 orig, Vec3 dir)
+    {
+      this.rtMesh = rtMesh;
+      ox = orig.x;
+      oy = orig.y;
+      oz = orig.z;
+      dx = dir.x;
+      dy = dir.y;
+      dz = dir.z;
+      numHits = 0;
+      allFound = false;
+    }
+
+    /** Record a hit, keeping the hits sorted by distance. */
+
+    void addHit(int triangleSlot, double t)
+    {
+      if (numHits == slot.length)
+      {
+        int newSlot[] = new int [2*numHits];
+        double newDist[] = new double [2*numHits];
+        double newUV[] = new double [4*numHits];
+        System.arraycopy(slot, 0, newSlot, 0, numHits);
+        System.arraycopy(dist, 0, newDist, 0, numHits);
+        System.arraycopy(uv, 0, newUV, 0, 2*numHits);
+        slot = newSlot;
+        dist = newDist;
+        uv = newUV;
+      }
+      int i = numHits++;
+      while (i > 0 && (dist[i-1] > t || (dist[i-1] == t && slot[i-1] > triangleSlot)))
+      {
+        slot[i] = slot[i-1];
+        dist[i] = dist[i-1];
+        uv[2*i] = uv[2*i-2];
+        uv[2*i+1] = uv[2*i-1];
+        i--;
+      }
+      slot[i] = triangleSlot;
+      dist[i] = t;
+      rtMesh.findBarycentric(triangleSlot, ox, oy, oz, dx, dy, dz, t, uv, i);
+    }
+
+    private void findAll()
+    {
+      if (!allFound)
+      {
+        allFound = true;
+        rtMesh.findAllIntersections(this);
+      }
+    }
+
+    @Override
+    public RTObject getObject()
+    {
+      return rtMesh;
+    }
+
+    @Override
+    public int numIntersections()
+    {
+      findAll();
+      return numHits;
+    }
+
+    @Override
+    public void intersectionPoint(int n, Vec3 p)
+    {
+      if (n > 0)
+        findAll();
+      double t = dist[n];
+      p.set(ox+dx*t, oy+dy*t, oz+dz*t);
+    }
+
+    @Override
+    public double intersectionDist(int n)
+    {
+      if (n > 0)
+        findAll();
+      return dist[n];
+    }
+
+    @Override
+    public void intersectionProperties(TextureSpec spec, Vec3 n, Vec3 viewDir, double size, double time)
+    {
+      RenderingTriangle tri = rtMesh.getTriangle(slot[0]);
+      double v = uv[0], u = 1.0-v-uv[1], w = 1.0-u-v;
+      if (tri.n1 == tri.n2 && tri.n1 == tri.n3)
+        n.set(rtMesh.mesh.faceNorm[rtMesh.triangle[slot[0]]>>2]);
+      else
+        {
+          Vec3 normals[] = rtMesh.mesh.norm;
+          Vec3 norm1 = normals[tri.n1];
+          Vec3 norm2 = normals[tri.n2];
+          Vec3 norm3 = normals[tri.n3];
+          n.x = u*norm1.x + v*norm2.x + w*norm3.x;
+          n.y = u*norm1.y + v*norm2.y + w*norm3.y;
+          n.z = u*norm1.z + v*norm2.z + w*norm3.z;
+          n.normalize();
+        }
+      tri.getTextureSpec(spec, -n.dot(viewDir), u, v, w, size, time);
+      if (rtMesh.bumpMapped)
+        {
+          rtMesh.fromLocal.transformDirection(spec.bumpGrad);
+          n.scale(spec.bumpGrad.dot(n)+1.0);
+          n.subtract(spec.bumpGrad);
+          n.normalize();
+        }
+    }
+
+    @Override
+    public void intersectionTransparency(int n, RGBColor trans, double angle, double size, double time)
+    {
+      if (n > 0)
+        findAll();
+      double v = uv[2*n], u = 1.0-v-uv[2*n+1];
+      rtMesh.getTriangle(slot[n]).getTransparency(trans, angle, u, v, 1.0-u-v, size, time);
+    }
+
+    @Override
+    public void trueNormal(Vec3 n)
+    {
+      n.set(rtMesh.mesh.faceNorm[rtMesh.triangle[slot[0]]>>2]);
+    }
+  }
+}
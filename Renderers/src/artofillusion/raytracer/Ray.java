@@ -79,6 +79,8 @@ public class Ray
     rt.rtTriPool.reset();
     rt.rtDispTriPool.reset();
     rt.rtImplicitPool.reset();
+    rt.rtMeshPool.reset();
+    rt.rtInstancePool.reset();
   }
 
   private static int getNextID()
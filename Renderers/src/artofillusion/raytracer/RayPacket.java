@@ -0,0 +1,185 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.math.*;
+
+/**
+ * A RayPacket is a group of rays that are traced through the scene together.  When the rays are coherent
+ * (for example, eye rays through neighboring pixels), they visit almost the same nodes of the
+ * {@link BoundingVolumeHierarchy} and test almost the same objects, so tracing them together means each
+ * node and object only needs to be fetched once for the whole packet.
+ * <p>
+ * The rays are stored as separate arrays for each coordinate, rather than as Vec3 objects, so the inner
+ * loops over the rays of a packet work on contiguous memory.  For every ray, the packet records the two
+ * closest objects it hits and their distances.  Call {@link Raytracer#tracePacket(RayPacket)} to find them,
+ * then {@link Raytracer#getPacketIntersection(RayPacket, int, Ray, Raytracer.RayIntersection)} to get the
+ * full intersection information for one ray.
+ * <p>
+ * Like a Ray, each RayPacket is bound to a particular {@link RaytracerContext}, and should only be used on
+ * that context's thread.
+ */
+
+public class RayPacket
+{
+  public final double ox[], oy[], oz[], dx[], dy[], dz[];
+  public final double firstDist[], secondDist[];
+  final double invx[], invy[], invz[];
+  public final RTObject first[], second[];
+  final int active[];
+  int stackFirst[];
+  final Ray scratch;
+  private int size;
+
+  public static final int MAX_SIZE = 16;
+
+  public RayPacket(RaytracerContext rt)
+  {
+    ox = new double [MAX_SIZE];
+    oy = new double [MAX_SIZE];
+    oz = new double [MAX_SIZE];
+    dx = new double [MAX_SIZE];
+    dy = new double [MAX_SIZE];
+    dz = new double [MAX_SIZE];
+    invx = new double [MAX_SIZE];
+    invy = new double [MAX_SIZE];
+    invz = new double [MAX_SIZE];
+    firstDist = new double [MAX_SIZE];
+    secondDist = new double [MAX_SIZE];
+    first = new RTObject [MAX_SIZE];
+    second = new RTObject [MAX_SIZE];
+    active = new int [MAX_SIZE];
+    scratch = new Ray(rt);
+  }
+
+  /** Remove all rays from the packet. */
+
+  public void clear()
+  {
+    size = 0;
+  }
+
+  /** Get the number of rays in the packet. */
+
+  public int getSize()
+  {
+    return size;
+  }
+
+  /** Determine whether the packet is full. */
+
+  public boolean isFull()
+  {
+    return size == MAX_SIZE;
+  }
+
+  /** Add a ray to the packet.
+
+      @param orig    the ray origin
+      @param dir     the ray direction, which should be normalized
+      @return the index of the ray within the packet
+  */
+
+  public int addRay(Vec3 orig, Vec3 dir)
+  {
+    int n = size++;
+    ox[n] = orig.x;
+    oy[n] = orig.y;
+    oz[n] = orig.z;
+    dx[n] = dir.x;
+    dy[n] = dir.y;
+    dz[n] = dir.z;
+    invx[n] = 1.0/dir.x;
+    invy[n] = 1.0/dir.y;
+    invz[n] = 1.0/dir.z;
+    return n;
+  }
+
+  /** Copy the origin and direction of one ray in the packet into a Ray object.  This does not change
+      the ID of the Ray. */
+
+  public void getRay(int n, Ray r)
+  {
+    r.origin.set(ox[n], oy[n], oz[n]);
+    r.direction.set(dx[n], dy[n], dz[n]);
+  }
+
+  /** Determine whether the rays are coherent enough to be worth tracing as a packet.  This requires that
+      all the direction vectors lie in the same octant, so that every ray visits the children of a node in
+      roughly the same order. */
+
+  public boolean isCoherent()
+  {
+    boolean px = (dx[0] >= 0.0), py = (dy[0] >= 0.0), pz = (dz[0] >= 0.0);
+    for (int i = 1; i < size; i++)
+      if ((dx[i] >= 0.0) != px || (dy[i] >= 0.0) != py || (dz[i] >= 0.0) != pz)
+        return false;
+    return true;
+  }
+
+  /** Reset the record of which objects each ray hits. */
+
+  void clearHits()
+  {
+    for (int i = 0; i < size; i++)
+    {
+      first[i] = second[i] = null;
+      firstDist[i] = secondDist[i] = Double.MAX_VALUE;
+    }
+  }
+
+  /** Record that a ray hits an object at a given distance. */
+
+  public void recordHit(int n, RTObject obj, double dist)
+  {
+    if (dist < firstDist[n])
+    {
+      secondDist[n] = firstDist[n];
+      second[n] = first[n];
+      firstDist[n] = dist;
+      first[n] = obj;
+    }
+    else if (dist < secondDist[n])
+    {
+      secondDist[n] = dist;
+      second[n] = obj;
+    }
+  }
+
+  /** Test a set of rays from the packet against an object one at a time, and record any hits.  This is used
+      by objects which have no specialized code for testing packets.
+
+      @param obj      the object to test
+      @param rays     the indices of the rays to test
+      @param numRays  the number of elements of rays[] to use
+  */
+
+  void checkEachRay(RTObject obj, int rays[], int numRays)
+  {
+    RaytracerContext rt = scratch.rt;
+    for (int i = 0; i < numRays; i++)
+    {
+      int n = rays[i];
+      getRay(n, scratch);
+      SurfaceIntersection intersection = obj.checkIntersection(scratch);
+      if (intersection != SurfaceIntersection.NO_INTERSECTION)
+        recordHit(n, obj, intersection.intersectionDist(0));
+
+      // The intersection was only needed for its distance, so any pooled objects can be reused immediately.
+
+      rt.rtTriPool.reset();
+      rt.rtDispTriPool.reset();
+      rt.rtImplicitPool.reset();
+      rt.rtMeshPool.reset();
+      rt.rtInstancePool.reset();
+    }
+  }
+}
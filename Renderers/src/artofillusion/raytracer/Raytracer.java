@@ -15,8 +15,10 @@ import artofillusion.*;
 import artofillusion.math.*;
 import artofillusion.object.*;
 import artofillusion.texture.*;
+import artofillusion.util.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * <p>
@@ -31,6 +33,13 @@ import java.util.List;
  * the surface accuracy should vary based on the distance of the object from a camera.
  * </p>
  * <p>
+ * By default, objects are sorted into an octree for locating ray intersections.  If
+ * {@link #setUseBoundingVolumeHierarchy(boolean) setUseBoundingVolumeHierarchy()} is called, a
+ * {@link BoundingVolumeHierarchy} is built instead.  In that case the octree consists of a single empty node
+ * enclosing the whole scene, so code that passes OctreeNodes around continues to work unchanged, while
+ * {@link #traceRay(Ray, OctreeNode, RayIntersection) traceRay()} uses the hierarchy to find what a ray hits.
+ * </p>
+ * <p>
  * While building the scene, it also records a list of {@link RTLight} objects representing light sources in the scene.
  * You can query the list by calling {@link #getLights()}, but otherwise it is not used.
  * </p>
@@ -49,17 +58,29 @@ public class Raytracer
   private RTObject sceneObject[];
   private RTLight light[];
   private OctreeNode rootNode, cameraNode, lightNode[];
+  private BoundingVolumeHierarchy bvh;
   private Scene scene;
   private Camera camera;
   private double time, surfaceError = 0.02;
-  private boolean preview, softShadows, adaptive = true, reducedMemory;
+  private boolean preview, softShadows, adaptive = true, reducedMemory, useBVH, instancing;
+  private int triangleStorage = TRIANGLES_SEPARATE, displacementCacheSize;
+  private DisplacementCache displacementCache;
+  private GeometryCache geometryCache;
   private ThreadLocal<RaytracerContext> threadContext;
   private List<RTObjectFactory> factories;
-  private List<RTObject> objectList;
-  private List<RTLight> lightList;
+  private List<AddedObject> addedObjects;
+  private Map<Object3D, Integer> sceneReferences;
+  private Map<PrototypeKey, Prototype> prototypes;
 
   public static final double TOL = 1e-12;
 
+  public static final int TRIANGLES_SEPARATE = 0;
+  public static final int TRIANGLES_PACKED = 1;
+  public static final int TRIANGLES_PACKED_OFF_HEAP = 2;
+
+  private static final int TRIANGLE_CHUNK_SIZE = 4096;
+  private static final int DISPLACED_CHUNK_SIZE = 64;
+
   /**
    * When a ray is traced to determine what objects it intersects, a RayIntersection object
    * is used for returning the results.  Typically it reports only the first object that was
@@ -69,8 +90,8 @@ public class Raytracer
 
   public static class RayIntersection
   {
-    private SurfaceIntersection first, second;
-    private double distance;
+    SurfaceIntersection first, second;
+    double distance;
 
     public RayIntersection()
     {
@@ -114,8 +135,8 @@ public class Raytracer
     this.scene = scene;
     this.camera = camera;
     factories = PluginRegistry.getPlugins(RTObjectFactory.class);
-    objectList = Collections.synchronizedList(new ArrayList<RTObject>());
-    lightList = Collections.synchronizedList(new ArrayList<RTLight>());
+    addedObjects = Collections.synchronizedList(new ArrayList<AddedObject>());
+    prototypes = new ConcurrentHashMap<PrototypeKey, Prototype>();
     threadContext = new ThreadLocal<RaytracerContext>() {
       @Override
       protected RaytracerContext initialValue()
@@ -216,6 +237,129 @@ public class Raytracer
     this.reducedMemory = reducedMemory;
   }
 
+  /**
+   * Get how the triangles of meshes are represented.  This is TRIANGLES_SEPARATE (a separate RTObject for each triangle),
+   * TRIANGLES_PACKED (a single {@link RTTriangleMesh} for each mesh), or TRIANGLES_PACKED_OFF_HEAP (an RTTriangleMesh
+   * that stores its data outside the Java heap).  The default value is TRIANGLES_SEPARATE.
+   */
+  public int getTriangleStorage()
+  {
+    return triangleStorage;
+  }
+
+  /**
+   * Set how the triangles of meshes are represented.  This should be TRIANGLES_SEPARATE, TRIANGLES_PACKED, or
+   * TRIANGLES_PACKED_OFF_HEAP.  Displaced surfaces always use a separate object for each triangle.  Calling this method
+   * affects all future calls to {@link #addObject(ObjectInfo) addObject()}, but does not affect objects that have already
+   * been added.
+   */
+  public void setTriangleStorage(int storage)
+  {
+    triangleStorage = storage;
+  }
+
+  /**
+   * Get whether a bounding volume hierarchy should be built instead of an octree for locating ray intersections.
+   * The default value is false.
+   */
+  public boolean getUseBoundingVolumeHierarchy()
+  {
+    return useBVH;
+  }
+
+  /**
+   * Set whether a bounding volume hierarchy should be built instead of an octree for locating ray intersections.
+   * This must be called before {@link #finishConstruction()}.
+   */
+  public void setUseBoundingVolumeHierarchy(boolean useBVH)
+  {
+    if (sceneObject != null)
+      throw new IllegalStateException("finishConstruction() has already been called");
+    this.useBVH = useBVH;
+  }
+
+  /**
+   * Get whether meshes which appear more than once in the scene should be instanced.  The default value is false.
+   */
+  public boolean getUseInstancing()
+  {
+    return instancing;
+  }
+
+  /**
+   * Set whether meshes which appear more than once in the scene should be instanced.  If this is true, an object
+   * which is referenced by several ObjectInfos (or several times within an {@link ObjectCollection}) is tessellated
+   * only once, into an {@link RTTriangleMesh} in its own local coordinates, and each copy is represented by an
+   * {@link RTInstance} that refers to it.  Objects that are distorted, displaced, or emit light are never instanced.
+   * Calling this method affects all future calls to {@link #addObject(ObjectInfo) addObject()}, but does not affect
+   * objects that have already been added.
+   */
+  public void setUseInstancing(boolean instancing)
+  {
+    this.instancing = instancing;
+  }
+
+  /**
+   * Get the maximum number of displaced triangles which may hold their detailed geometry at once, or 0 if there
+   * is no limit.  The default value is 0.
+   */
+  public int getDisplacementCacheSize()
+  {
+    return displacementCacheSize;
+  }
+
+  /**
+   * Set the maximum number of displaced triangles which may hold their detailed geometry at once, or 0 if there
+   * is no limit.  Each {@link RTDisplacedTriangle} builds several hundred bytes of data the first time a ray reaches
+   * it.  When a limit is set, the triangles that have gone longest without being hit discard that data to make room
+   * for new ones, so heavily displaced scenes can be rendered in bounded memory.  This must be called before
+   * {@link #finishConstruction()}.
+   */
+  public void setDisplacementCacheSize(int size)
+  {
+    if (sceneObject != null)
+      throw new IllegalStateException("finishConstruction() has already been called");
+    if (size < 0)
+      throw new IllegalArgumentException("size must not be negative");
+    displacementCacheSize = size;
+  }
+
+  /**
+   * Get the cache which limits how many displaced triangles hold their geometry, or null if there is no limit.
+   */
+  DisplacementCache getDisplacementCache()
+  {
+    return displacementCache;
+  }
+
+  /**
+   * Get the cache of objects from the previous frame of an animation, or null if there is none.
+   */
+  public GeometryCache getGeometryCache()
+  {
+    return geometryCache;
+  }
+
+  /**
+   * Set a cache of the objects that were built for the previous frame of an animation.  Objects whose tracks have not
+   * changed their shape are taken from the cache instead of being built again, and if nothing in the scene except
+   * the camera and lights has moved, the octree or bounding volume hierarchy is reused as well.  When the cache is
+   * updated at the end of {@link #finishConstruction()}, it holds what was built for this frame, ready to pass to the
+   * Raytracer for the next one.
+   * <p>
+   * Meshes are always instanced when a cache is used, so that an object which only moves can keep its mesh.  The
+   * cache must be discarded whenever the scene is edited or any property of the Raytracer is changed.  This must be
+   * called before any objects are added.
+   */
+  public void setGeometryCache(GeometryCache cache)
+  {
+    if (addedObjects == null || !addedObjects.isEmpty())
+      throw new IllegalStateException("Objects have already been added");
+    geometryCache = cache;
+    if (cache != null)
+      cache.startFrame(scene);
+  }
+
   /**
    * Get whether RTLight objects should be configured to generate soft shadows.  The default value is false.
    */
@@ -264,6 +408,15 @@ public class Raytracer
     return rootNode;
   }
 
+  /**
+   * Get the bounding volume hierarchy used for locating ray intersections, or null if an octree is being
+   * used instead.
+   */
+  public BoundingVolumeHierarchy getBoundingVolumeHierarchy()
+  {
+    return bvh;
+  }
+
   /**
    * Get the octree node containing the camera.
    */
@@ -280,19 +433,107 @@ public class Raytracer
     return lightNode;
   }
 
-  /** Add a single object to the scene. */
+  /**
+   * Add a single object to the scene.  This may be called from several threads at once.  However they are added,
+   * objects that belong to the Scene end up in the same order as they appear in it.
+   */
 
   public void addObject(ObjectInfo info)
   {
     if (sceneObject != null)
       throw new IllegalStateException("finishConstruction() has already been called");
-    if (objectList == null)
+    if (addedObjects == null)
       throw new IllegalStateException("cleanup() has already been called");
+    AddedObject added = new AddedObject(info);
+    if (geometryCache != null)
+      addCachedObject(info, added.objects, added.lights);
+    else
+      addObject(info, instancing && getSceneReferenceCount(info.getObject()) > 1, added.objects, added.lights);
+    addedObjects.add(added);
+  }
+
+  /**
+   * Add an object to the scene, reusing what was built for it in the previous frame if possible.
+   *
+   * @param info      the object to add
+   * @param objects   the list to add RTObjects to.  This must be empty when this is called.
+   * @param lights    the list to add RTLights to
+   */
 
+  private void addCachedObject(ObjectInfo info, List<RTObject> objects, List<RTLight> lights)
+  {
+    if (info.getObject() instanceof Light)
+    {
+      // Lights are cheap to create, and are not part of the octree, so always create them again.
+
+      addObject(info, false, objects, lights);
+      return;
+    }
+    if (!geometryCache.isUnchanged(info))
+    {
+      addObject(info, instancing && getSceneReferenceCount(info.getObject()) > 1, objects, lights);
+      geometryCache.objectsChanged();
+      return;
+    }
+    int level = getDetailLevel(getTolerance(info));
+    Mat4 fromLocal = info.getCoords().fromLocal();
+    GeometryCache.Entry entry = geometryCache.getEntry(info);
+    if (entry != null && entry.object == info.getObject() && (entry.level == level || entry.level == -1))
+    {
+      if (entry.fromLocal.equals(fromLocal))
+      {
+        // Nothing has changed, so use exactly the same objects as before.
+
+        objects.addAll(Arrays.asList(entry.objects));
+        geometryCache.putEntry(info, entry);
+        return;
+      }
+      if (entry.objects.length == 1 && entry.objects[0] instanceof RTInstance)
+      {
+        // It has moved, but its shape is the same, so position the existing mesh at the new location.
+
+        RTObject moved = new RTInstance(((RTInstance) entry.objects[0]).getPrototype(), fromLocal, info.getCoords().toLocal());
+        objects.add(moved);
+        geometryCache.putEntry(info, new GeometryCache.Entry(info.getObject(), level, fromLocal, new RTObject [] {moved}));
+        geometryCache.objectsChanged();
+        return;
+      }
+    }
+
+    // Build it from scratch.  Meshes are always instanced, so that if the object moves in a later frame, its mesh
+    // can be reused.
+
+    addObject(info, true, objects, lights);
+    geometryCache.objectsChanged();
+    if (!lights.isEmpty())
+      return;
+    boolean instanced = false;
+    for (RTObject obj : objects)
+    {
+      if (obj instanceof RTInstance)
+        instanced = true;
+      else if (!(obj instanceof RTSphere || obj instanceof RTEllipsoid || obj instanceof RTCylinder || obj instanceof RTCube))
+        return;
+    }
+    geometryCache.putEntry(info, new GeometryCache.Entry(info.getObject(), instanced ? level : -1, fromLocal, objects.toArray(new RTObject [objects.size()])));
+  }
+
+  /**
+   * Add a single object to the scene.
+   *
+   * @param info      the object to add
+   * @param shared    true if the object's geometry is known to be used by other objects as well, so it should be
+   *                  instanced if possible
+   * @param objects   the list to add RTObjects to
+   * @param lights    the list to add RTLights to
+   */
+
+  private void addObject(ObjectInfo info, boolean shared, List<RTObject> objects, List<RTLight> lights)
+  {
     // First give plugins a chance to handle the object.
 
     for (RTObjectFactory factory : factories)
-      if (factory.processObject(info, scene, camera, objectList, lightList))
+      if (factory.processObject(info, scene, camera, objects, lights))
         return;
 
     // Handle it in the default way.
@@ -302,17 +543,17 @@ public class Raytracer
     Mat4 fromLocal = info.getCoords().fromLocal();
     if (theObject instanceof PointLight)
     {
-      lightList.add(new RTSphericalLight((PointLight) theObject, info.getCoords(), softShadows));
+      lights.add(new RTSphericalLight((PointLight) theObject, info.getCoords(), softShadows));
       return;
     }
     if (theObject instanceof SpotLight)
     {
-      lightList.add(new RTSphericalLight((SpotLight) theObject, info.getCoords(), softShadows));
+      lights.add(new RTSphericalLight((SpotLight) theObject, info.getCoords(), softShadows));
       return;
     }
     if (theObject instanceof DirectionalLight)
     {
-      lightList.add(new RTDirectionalLight((DirectionalLight) theObject, info.getCoords(), softShadows));
+      lights.add(new RTDirectionalLight((DirectionalLight) theObject, info.getCoords(), softShadows));
       return;
     }
     while (theObject instanceof ObjectWrapper)
@@ -320,30 +561,26 @@ public class Raytracer
     if (theObject instanceof ObjectCollection)
     {
       Enumeration enm = ((ObjectCollection) theObject).getObjects(info, false, scene);
+      ArrayList<ObjectInfo> elements = new ArrayList<ObjectInfo>();
+      Map<Object3D, Integer> references = new IdentityHashMap<Object3D, Integer>();
       while (enm.hasMoreElements())
       {
         ObjectInfo elem = (ObjectInfo) enm.nextElement();
         if (!elem.isVisible())
           continue;
+        elements.add(elem);
+        if (instancing)
+          countReference(references, elem.getObject());
+      }
+      for (ObjectInfo elem : elements)
+      {
         ObjectInfo copy = elem.duplicate();
         copy.getCoords().transformCoordinates(fromLocal);
-        addObject(copy);
+        addObject(copy, instancing && (shared || references.get(elem.getObject()) > 1), objects, lights);
       }
       return;
     }
-    Vec3 cameraOrig = camera.getCameraCoordinates().getOrigin();
-    double distToScreen = camera.getDistToScreen();
-    double tol;
-    if (adaptive)
-    {
-      double dist = info.getBounds().distanceToPoint(toLocal.times(cameraOrig));
-      if (dist < distToScreen)
-        tol = surfaceError;
-      else
-        tol = surfaceError*dist/distToScreen;
-    }
-    else
-      tol = surfaceError;
+    double tol = getTolerance(info);
     boolean displaced = false;
     Texture tex = theObject.getTexture();
     if (tex != null && tex.hasComponent(Texture.DISPLACEMENT_COMPONENT))
@@ -365,31 +602,38 @@ public class Raytracer
         Vec3 rad = ((Sphere) theObject).getRadii();
         if (rad.x == rad.y && rad.x == rad.z)
         {
-          objectList.add(new RTSphere((Sphere) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues()));
+          objects.add(new RTSphere((Sphere) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues()));
           return;
         }
         else
         {
-          objectList.add(new RTEllipsoid((Sphere) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues()));
+          objects.add(new RTEllipsoid((Sphere) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues()));
           return;
         }
       }
       else if (theObject instanceof Cylinder)
       {
-        objectList.add(new RTCylinder((Cylinder) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues()));
+        objects.add(new RTCylinder((Cylinder) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues()));
         return;
       }
       else if (theObject instanceof Cube)
       {
-        objectList.add(new RTCube((Cube) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues()));
+        objects.add(new RTCube((Cube) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues()));
         return;
       }
       else if (theObject instanceof ImplicitObject && ((ImplicitObject) theObject).getPreferDirectRendering())
       {
-        objectList.add(new RTImplicitObject((ImplicitObject) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues(), tol));
+        objects.add(new RTImplicitObject((ImplicitObject) theObject, fromLocal, toLocal, info.getObject().getAverageParameterValues(), tol));
         return;
       }
     }
+    if (shared && !displaced && !info.isDistorted() && (tex == null || !tex.hasComponent(Texture.EMISSIVE_COLOR_COMPONENT)))
+    {
+      RTTriangleMesh prototype = getPrototype(info, tol);
+      if (prototype != null && prototype.getNumTriangles() > 0)
+        objects.add(new RTInstance(prototype, fromLocal, toLocal));
+      return;
+    }
     RenderingMesh mesh;
     if (preview)
     {
@@ -402,80 +646,211 @@ public class Raytracer
     if (mesh == null)
       return;
     mesh.transformMesh(fromLocal);
-    Vec3 vert[] = mesh.vert;
-    RenderingTriangle t[] = mesh.triangle;
     if (displaced)
+      addDisplacedTriangles(mesh, fromLocal, toLocal, tol, objects);
+    else if (triangleStorage != TRIANGLES_SEPARATE)
     {
-      Vec3 cameraZDir = camera.getCameraCoordinates().getZDirection();
-      double vertTol[] = new double [vert.length];
-      if (adaptive)
-        for (int i = 0; i < vert.length; i++)
-        {
-          Vec3 offset = vert[i].minus(cameraOrig);
-          double vertDist = offset.length();
-          if (offset.dot(cameraZDir) < 0.0)
-            vertDist = -vertDist;
-          vertTol[i] = (vertDist < distToScreen ? surfaceError : surfaceError*vertDist/distToScreen);
-        }
-      for (int i = 0; i < t.length; i++)
+      RTTriangleMesh packed = new RTTriangleMesh(mesh, fromLocal, toLocal, triangleStorage == TRIANGLES_PACKED_OFF_HEAP);
+      if (packed.getNumTriangles() > 0)
+        objects.add(packed);
+    }
+    else
+      addTriangles(mesh, fromLocal, toLocal, objects);
+  }
+
+  /**
+   * Get the error tolerance to use when triangulating an object.
+   */
+
+  private double getTolerance(ObjectInfo info)
+  {
+    if (!adaptive)
+      return surfaceError;
+    Vec3 cameraOrig = camera.getCameraCoordinates().getOrigin();
+    double distToScreen = camera.getDistToScreen();
+    double dist = info.getBounds().distanceToPoint(info.getCoords().toLocal().times(cameraOrig));
+    if (dist < distToScreen)
+      return surfaceError;
+    return surfaceError*dist/distToScreen;
+  }
+
+  /**
+   * Get the level of detail at which to build a shared mesh.  The tolerance is rounded down to the surface error
+   * times 2 to the power of this level.
+   */
+
+  private int getDetailLevel(double tol)
+  {
+    if (tol > surfaceError && !preview)
+      return (int) Math.floor(Math.log(tol/surfaceError)/Math.log(2.0));
+    return 0;
+  }
+
+  /**
+   * Create an RTTriangle for every triangle in a mesh, and add them to the scene.  Large meshes are split into
+   * ranges of triangles which are processed in parallel, and the results are added to the object list in a single
+   * batch.
+   */
+
+  private void addTriangles(final RenderingMesh mesh, final Mat4 fromLocal, final Mat4 toLocal, List<RTObject> objects)
+  {
+    final RTObject created[] = new RTObject [mesh.triangle.length];
+    ThreadManager.runInChunks(created.length, TRIANGLE_CHUNK_SIZE, new ThreadManager.RangeTask() {
+      @Override
+      public void execute(int start, int end)
       {
-        RenderingTriangle tri = mesh.triangle[i];
-        if (mesh.faceNorm[i].length() < TOL)
-          continue;
-        if (vert[tri.v1].distance(vert[tri.v2]) < TOL)
-          continue;
-        if (vert[tri.v1].distance(vert[tri.v3]) < TOL)
-          continue;
-        if (vert[tri.v2].distance(vert[tri.v3]) < TOL)
-          continue;
-        double localTol;
-        if (adaptive)
-        {
-          localTol = vertTol[tri.v1];
-          if (vertTol[tri.v2] < localTol)
-            localTol = vertTol[tri.v2];
-          if (vertTol[tri.v3] < localTol)
-            localTol = vertTol[tri.v3];
-        }
-        else
-          localTol = tol;
-        RTDisplacedTriangle dispTri = new RTDisplacedTriangle(mesh, i, fromLocal, toLocal, localTol, time);
-        RTObject dt = dispTri;
-        if (!dispTri.isReallyDisplaced())
+        for (int i = start; i < end; i++)
         {
+          if (isDegenerate(mesh, i))
+            continue;
           if (reducedMemory)
-            dt = new RTTriangleLowMemory(mesh, i, fromLocal, toLocal);
+            created[i] = new RTTriangleLowMemory(mesh, i, fromLocal, toLocal);
           else
-            dt = new RTTriangle(mesh, i, fromLocal, toLocal);
+            created[i] = new RTTriangle(mesh, i, fromLocal, toLocal);
         }
-        objectList.add(dt);
-        if (adaptive && dt instanceof RTDisplacedTriangle)
+      }
+    });
+    addBatch(created, objects);
+  }
+
+  /**
+   * Create an RTDisplacedTriangle for every triangle in a mesh, and add them to the scene.  Like
+   * {@link #addTriangles(RenderingMesh, Mat4, Mat4, List)}, ranges of triangles are processed in parallel.
+   */
+
+  private void addDisplacedTriangles(final RenderingMesh mesh, final Mat4 fromLocal, final Mat4 toLocal, final double tol, List<RTObject> objects)
+  {
+    final Vec3 vert[] = mesh.vert;
+    final Vec3 cameraOrig = camera.getCameraCoordinates().getOrigin();
+    final double distToScreen = camera.getDistToScreen();
+    Vec3 cameraZDir = camera.getCameraCoordinates().getZDirection();
+    final double vertTol[] = new double [vert.length];
+    if (adaptive)
+      for (int i = 0; i < vert.length; i++)
+      {
+        Vec3 offset = vert[i].minus(cameraOrig);
+        double vertDist = offset.length();
+        if (offset.dot(cameraZDir) < 0.0)
+          vertDist = -vertDist;
+        vertTol[i] = (vertDist < distToScreen ? surfaceError : surfaceError*vertDist/distToScreen);
+      }
+    final RTObject created[] = new RTObject [mesh.triangle.length];
+    ThreadManager.runInChunks(created.length, DISPLACED_CHUNK_SIZE, new ThreadManager.RangeTask() {
+      @Override
+      public void execute(int start, int end)
+      {
+        for (int i = start; i < end; i++)
         {
-          double dist = dt.getBounds().distanceToPoint(cameraOrig);
-          if (dist < distToScreen)
-            ((RTDisplacedTriangle) dt).setTolerance(surfaceError);
+          RenderingTriangle tri = mesh.triangle[i];
+          if (isDegenerate(mesh, i))
+            continue;
+          double localTol;
+          if (adaptive)
+          {
+            localTol = vertTol[tri.v1];
+            if (vertTol[tri.v2] < localTol)
+              localTol = vertTol[tri.v2];
+            if (vertTol[tri.v3] < localTol)
+              localTol = vertTol[tri.v3];
+          }
           else
-            ((RTDisplacedTriangle) dt).setTolerance(surfaceError*dist/distToScreen);
+            localTol = tol;
+          RTDisplacedTriangle dispTri = new RTDisplacedTriangle(mesh, i, fromLocal, toLocal, localTol, time);
+          RTObject dt = dispTri;
+          if (!dispTri.isReallyDisplaced())
+          {
+            if (reducedMemory)
+              dt = new RTTriangleLowMemory(mesh, i, fromLocal, toLocal);
+            else
+              dt = new RTTriangle(mesh, i, fromLocal, toLocal);
+          }
+          created[i] = dt;
+          if (adaptive && dt instanceof RTDisplacedTriangle)
+          {
+            double dist = dt.getBounds().distanceToPoint(cameraOrig);
+            if (dist < distToScreen)
+              ((RTDisplacedTriangle) dt).setTolerance(surfaceError);
+            else
+              ((RTDisplacedTriangle) dt).setTolerance(surfaceError*dist/distToScreen);
+          }
         }
       }
+    });
+    addBatch(created, objects);
+  }
+
+  /** Determine whether a triangle in a mesh is too small to render. */
+
+  private static boolean isDegenerate(RenderingMesh mesh, int which)
+  {
+    RenderingTriangle tri = mesh.triangle[which];
+    Vec3 vert[] = mesh.vert;
+    if (mesh.faceNorm[which].length() < TOL)
+      return true;
+    if (vert[tri.v1].distance(vert[tri.v2]) < TOL)
+      return true;
+    if (vert[tri.v1].distance(vert[tri.v3]) < TOL)
+      return true;
+    return (vert[tri.v2].distance(vert[tri.v3]) < TOL);
+  }
+
+  /**
+   * Add every non-null element of an array to a list.  They are added all at once, so threads which are adding
+   * other objects to the same list at the same time only contend for it once.
+   */
+
+  private void addBatch(RTObject created[], List<RTObject> objects)
+  {
+    ArrayList<RTObject> batch = new ArrayList<RTObject>(created.length);
+    for (RTObject obj : created)
+      if (obj != null)
+        batch.add(obj);
+    objects.addAll(batch);
+  }
+
+  /**
+   * Get the number of ObjectInfos in the scene that refer to an object.
+   */
+
+  private synchronized int getSceneReferenceCount(Object3D obj)
+  {
+    if (scene == null)
+      return 0;
+    if (sceneReferences == null)
+    {
+      sceneReferences = new IdentityHashMap<Object3D, Integer>();
+      for (ObjectInfo info : scene.getObjects())
+        countReference(sceneReferences, info.getObject());
     }
-    else
-      for (int i = 0; i < t.length; i++)
-      {
-        RenderingTriangle tri = mesh.triangle[i];
-        if (mesh.faceNorm[i].length() < TOL)
-          continue;
-        if (vert[tri.v1].distance(vert[tri.v2]) < TOL)
-          continue;
-        if (vert[tri.v1].distance(vert[tri.v3]) < TOL)
-          continue;
-        if (vert[tri.v2].distance(vert[tri.v3]) < TOL)
-          continue;
-        if (reducedMemory)
-          objectList.add(new RTTriangleLowMemory(mesh, i, fromLocal, toLocal));
-        else
-          objectList.add(new RTTriangle(mesh, i, fromLocal, toLocal));
-      }
+    Integer count = sceneReferences.get(obj);
+    return (count == null ? 0 : count);
+  }
+
+  private static void countReference(Map<Object3D, Integer> references, Object3D obj)
+  {
+    Integer count = references.get(obj);
+    references.put(obj, count == null ? 1 : count+1);
+  }
+
+  /**
+   * Get the shared mesh for an object that is being instanced, creating it if necessary.  When the surface
+   * accuracy is adaptive, the tolerance is rounded down to the surface error times a power of two, so copies at
+   * similar distances from the camera can share a mesh without any of them being less accurate than requested.
+   */
+
+  private RTTriangleMesh getPrototype(ObjectInfo info, double tol)
+  {
+    int level = getDetailLevel(tol);
+    PrototypeKey key = new PrototypeKey(info.getObject(), level);
+    Prototype prototype = prototypes.get(key);
+    if (prototype == null)
+    {
+      Prototype newPrototype = new Prototype(info, surfaceError*Math.pow(2.0, level));
+      prototype = prototypes.putIfAbsent(key, newPrototype);
+      if (prototype == null)
+        prototype = newPrototype;
+    }
+    return prototype.getMesh();
   }
 
   /**
@@ -485,15 +860,81 @@ public class Raytracer
   {
     if (sceneObject != null)
       throw new IllegalStateException("finishConstruction() has already been called");
-    if (objectList == null)
+    if (addedObjects == null)
       throw new IllegalStateException("cleanup() has already been called");
-    sceneObject = objectList.toArray(new RTObject [objectList.size()]);
+
+    // Put the objects in the same order as the Scene, so it does not depend on which threads added them.
+
+    final Map<ObjectInfo, Integer> sceneIndex = new IdentityHashMap<ObjectInfo, Integer>();
+    if (scene != null)
+      for (int i = 0; i < scene.getNumObjects(); i++)
+        sceneIndex.put(scene.getObject(i), i);
+    Collections.sort(addedObjects, new Comparator<AddedObject>() {
+      @Override
+      public int compare(AddedObject a, AddedObject b)
+      {
+        Integer index1 = sceneIndex.get(a.info), index2 = sceneIndex.get(b.info);
+        return Integer.compare(index1 == null ? Integer.MAX_VALUE : index1, index2 == null ? Integer.MAX_VALUE : index2);
+      }
+    });
+    List<RTObject> objectList = new ArrayList<RTObject>();
+    List<RTLight> lightList = new ArrayList<RTLight>();
+    for (AddedObject added : addedObjects)
+    {
+      objectList.addAll(added.objects);
+      lightList.addAll(added.lights);
+    }
+    boolean reuseStructure = (geometryCache != null && geometryCache.canReuseStructure());
+    if (reuseStructure)
+      sceneObject = geometryCache.getSceneObjects();
+    else
+      sceneObject = objectList.toArray(new RTObject [objectList.size()]);
+    int numDisplaced = 0;
     for (int i = 0; i < sceneObject.length; i++)
+    {
       sceneObject[i].index = i;
+      if (sceneObject[i] instanceof RTDisplacedTriangle)
+        numDisplaced++;
+    }
+    if (displacementCacheSize > 0 && numDisplaced > displacementCacheSize)
+      displacementCache = new DisplacementCache(displacementCacheSize);
     light = lightList.toArray(new RTLight [lightList.size()]);
-    objectList = null;
-    lightList = null;
-    BoundingBox objBounds[] = new BoundingBox [sceneObject.length];
+    addedObjects = null;
+    sceneReferences = null;
+    prototypes = null;
+    if (reuseStructure)
+    {
+      rootNode = geometryCache.getRootNode();
+      bvh = geometryCache.getBoundingVolumeHierarchy();
+    }
+    else
+    {
+      buildOctree();
+      if (geometryCache != null)
+        geometryCache.setStructure(sceneObject, rootNode, bvh);
+    }
+    if (geometryCache != null)
+      geometryCache.finishFrame();
+
+    // Find the nodes which contain the camera and the lights.
+
+    cameraNode = rootNode.findNode(camera.getCameraCoordinates().getOrigin());
+    lightNode = new OctreeNode [light.length];
+    for (int i = 0; i < light.length; i++)
+    {
+      if (light[i].getLight() instanceof DirectionalLight)
+        lightNode[i] = null;
+      else
+        lightNode[i] = rootNode.findNode(light[i].getCoords().getOrigin());
+    }
+  }
+
+  /**
+   * Build the octree, and the bounding volume hierarchy if one is being used, for the objects in the scene.
+   */
+  private void buildOctree()
+  {
+    final BoundingBox objBounds[] = new BoundingBox [sceneObject.length];
     double minx, maxx, miny, maxy, minz, maxz;
     int i;
 
@@ -524,22 +965,29 @@ public class Raytracer
     maxy += TOL;
     maxz += TOL;
 
-    // Create the octree.
-
-    rootNode = new OctreeNode(Math.nextAfter((float) minx, Double.NEGATIVE_INFINITY), Math.nextAfter((float) maxx, Double.POSITIVE_INFINITY),
-        Math.nextAfter((float) miny, Double.NEGATIVE_INFINITY), Math.nextAfter((float) maxy, Double.POSITIVE_INFINITY),
-        Math.nextAfter((float) minz, Double.NEGATIVE_INFINITY), Math.nextAfter((float) maxz, Double.POSITIVE_INFINITY), sceneObject, objBounds, null);
+    // Create the octree.  If a bounding volume hierarchy is being used, the octree is just a single empty
+    // node enclosing the whole scene.  Construction is done inside a ForkJoinPool, so that large subtrees
+    // can be built in parallel.
 
-    // Find the nodes which contain the camera and the lights.
-
-    cameraNode = rootNode.findNode(camera.getCameraCoordinates().getOrigin());
-    lightNode = new OctreeNode [light.length];
-    for (i = 0; i < light.length; i++)
+    final float x1 = Math.nextAfter((float) minx, Double.NEGATIVE_INFINITY), x2 = Math.nextAfter((float) maxx, Double.POSITIVE_INFINITY);
+    final float y1 = Math.nextAfter((float) miny, Double.NEGATIVE_INFINITY), y2 = Math.nextAfter((float) maxy, Double.POSITIVE_INFINITY);
+    final float z1 = Math.nextAfter((float) minz, Double.NEGATIVE_INFINITY), z2 = Math.nextAfter((float) maxz, Double.POSITIVE_INFINITY);
+    ForkJoinPool pool = new ForkJoinPool();
+    try
     {
-      if (light[i].getLight() instanceof DirectionalLight)
-        lightNode[i] = null;
-      else
-        lightNode[i] = rootNode.findNode(light[i].getCoords().getOrigin());
+      pool.invoke(new RecursiveAction() {
+        @Override
+        protected void compute()
+        {
+          if (useBVH)
+            bvh = new BoundingVolumeHierarchy(sceneObject, objBounds);
+          rootNode = new OctreeNode(x1, x2, y1, y2, z1, z2, useBVH ? new RTObject [0] : sceneObject, objBounds, null);
+        }
+      });
+    }
+    finally
+    {
+      pool.shutdown();
     }
   }
 
@@ -550,11 +998,15 @@ public class Raytracer
 
   public void cleanup()
   {
-    objectList = null;
-    lightList = null;
+    addedObjects = null;
+    sceneReferences = null;
+    prototypes = null;
+    displacementCache = null;
+    geometryCache = null;
     sceneObject = null;
     light = null;
     rootNode = null;
+    bvh = null;
     cameraNode = null;
     lightNode = null;
     scene = null;
@@ -574,7 +1026,7 @@ public class Raytracer
   {
     if (sceneObject == null)
     {
-      if (objectList == null)
+      if (addedObjects == null)
         throw new IllegalStateException("cleanup() has already been called");
       throw new IllegalStateException("finishConstruction() has not been called");
     }
@@ -591,6 +1043,51 @@ public class Raytracer
     return intersect;
   }
 
+  /**
+   * Trace a packet of rays together, and find the first objects each one hits.  Packets can only be traced through
+   * a bounding volume hierarchy, and only if the rays are coherent.  If this returns false, nothing was done and the
+   * rays must be traced individually with {@link #traceRay(Ray, OctreeNode, RayIntersection)}.
+   *
+   * @param packet    the rays to trace
+   * @return true if the packet was traced, false if the rays must be traced individually
+   */
+  public boolean tracePacket(RayPacket packet)
+  {
+    if (bvh == null || !packet.isCoherent())
+      return false;
+    bvh.tracePacket(packet);
+    return true;
+  }
+
+  /**
+   * Get the full details of what one ray in a packet hits, after the packet has been traced with
+   * {@link #tracePacket(RayPacket)}.  This is equivalent to calling {@link #traceRay(Ray, OctreeNode, RayIntersection)}
+   * for that ray, but only needs to examine the objects already found by the packet.
+   *
+   * @param packet    the packet containing the ray
+   * @param n         the index of the ray within the packet
+   * @param r         a Ray whose origin and direction have been set to those of the packet's ray
+   * @param intersect the details of what was hit are returned in this object
+   * @return the octree node containing the intersection point, or null if nothing was hit
+   */
+  public OctreeNode getPacketIntersection(RayPacket packet, int n, Ray r, RayIntersection intersect)
+  {
+    if (packet.first[n] == null)
+    {
+      intersect.first = SurfaceIntersection.NO_INTERSECTION;
+      return null;
+    }
+    intersect.first = r.findIntersection(packet.first[n]);
+    if (intersect.first == SurfaceIntersection.NO_INTERSECTION)
+      return traceRay(r, rootNode, intersect);
+    intersect.distance = intersect.first.intersectionDist(0);
+    if (packet.second[n] != null && packet.secondDist[n]-packet.firstDist[n] < TOL)
+      intersect.second = r.findIntersection(packet.second[n]);
+    else
+      intersect.second = SurfaceIntersection.NO_INTERSECTION;
+    return rootNode;
+  }
+
   /**
    * Trace a ray and determine the first object it hits (or the first two objects, if they are almost exactly the same
    * distance away).  This version of traceRay() is more efficient, but requires more setup work by the caller.
@@ -602,6 +1099,8 @@ public class Raytracer
    */
   public OctreeNode traceRay(Ray r, OctreeNode node, RayIntersection intersect)
   {
+    if (bvh != null)
+      return (bvh.findFirstIntersection(r, intersect) ? rootNode : null);
     RTObject first = null, second = null, obj[];
     double dist, firstDist = Double.MAX_VALUE, secondDist = Double.MAX_VALUE;
     Vec3 intersectionPoint = r.rt.tempVec;
@@ -652,4 +1151,80 @@ public class Raytracer
       intersect.second = SurfaceIntersection.NO_INTERSECTION;
     return node;
   }
-}
\ No newline at end of file
+
+  /** This records the objects and lights that were created for one call to {@link #addObject(ObjectInfo)}. */
+
+  private static class AddedObject
+  {
+    final ObjectInfo info;
+    final List<RTObject> objects;
+    final List<RTLight> lights;
+
+    AddedObject(ObjectInfo info)
+    {
+      this.info = info;
+      objects = new ArrayList<RTObject>();
+      lights = new ArrayList<RTLight>();
+    }
+  }
+
+  /** This identifies a shared mesh: the object it was created from, and the level of detail. */
+
+  private static class PrototypeKey
+  {
+    private final Object3D obj;
+    private final int level;
+
+    PrototypeKey(Object3D obj, int level)
+    {
+      this.obj = obj;
+      this.level = level;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      return (o instanceof PrototypeKey && ((PrototypeKey) o).obj == obj && ((PrototypeKey) o).level == level);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31*System.identityHashCode(obj)+level;
+    }
+  }
+
+  /** This holds a shared mesh, which is built the first time it is requested by any thread. */
+
+  private class Prototype
+  {
+    private ObjectInfo info;
+    private final double tol;
+    private RTTriangleMesh mesh;
+
+    Prototype(ObjectInfo info, double tol)
+    {
+      this.info = info;
+      this.tol = tol;
+    }
+
+    synchronized RTTriangleMesh getMesh()
+    {
+      if (info == null)
+        return mesh;
+      RenderingMesh renderingMesh;
+      if (preview)
+      {
+        renderingMesh = info.getPreviewMesh();
+        if (renderingMesh != null)
+          renderingMesh = renderingMesh.clone();
+      }
+      else
+        renderingMesh = info.getRenderingMesh(tol);
+      if (renderingMesh != null)
+        mesh = new RTTriangleMesh(renderingMesh, Mat4.identity(), Mat4.identity(), triangleStorage == TRIANGLES_PACKED_OFF_HEAP);
+      info = null;
+      return mesh;
+    }
+  }
+}
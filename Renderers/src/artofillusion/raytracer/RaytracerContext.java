@@ -27,8 +27,14 @@ public class RaytracerContext
   public RayIntersection intersect;
   public int lastRayID[];
   public SurfaceIntersection lastRayResult[];
-  public ResourcePool rtTriPool, rtDispTriPool, rtImplicitPool;
+  public ResourcePool rtTriPool, rtDispTriPool, rtImplicitPool, rtMeshPool, rtInstancePool;
+  public Ray instanceRay;
   public Random random;
+  public int bvhStack[];
+  public double bvhStackDist[];
+  public RTObject bvhCandidates[];
+  public int meshStack[];
+  public double meshStackDist[];
 
   public RaytracerContext(Raytracer rt)
   {
@@ -42,8 +48,40 @@ public class RaytracerContext
       rtTriPool = new ResourcePool(RTTriangle.TriangleIntersection.class);
     rtDispTriPool = new ResourcePool(RTDisplacedTriangle.DisplacedTriangleIntersection.class);
     rtImplicitPool = new ResourcePool(RTImplicitObject.ImplicitIntersection.class);
+    rtMeshPool = new ResourcePool(RTTriangleMesh.MeshIntersection.class);
+    rtInstancePool = new ResourcePool(RTInstance.InstanceIntersection.class);
+    meshStack = new int [64];
+    meshStackDist = new double [64];
     lastRayID = new int [rt.getObjects().length];
     lastRayResult = new SurfaceIntersection [rt.getObjects().length];
+    BoundingVolumeHierarchy bvh = rt.getBoundingVolumeHierarchy();
+    if (bvh != null)
+    {
+      bvhStack = new int [bvh.getMaxDepth()+2];
+      bvhStackDist = new double [bvh.getMaxDepth()+2];
+      bvhCandidates = new RTObject [64];
+    }
+  }
+
+  /**
+   * Increase the length of the bvhCandidates array so it can hold at least the specified number of objects.
+   */
+
+  public void increaseCandidateLength(int minLength)
+  {
+    RTObject newCandidates[] = new RTObject [Math.max(minLength, bvhCandidates.length*2)];
+    System.arraycopy(bvhCandidates, 0, newCandidates, 0, bvhCandidates.length);
+    bvhCandidates = newCandidates;
+  }
+
+  /**
+   * Increase the length of the meshStack and meshStackDist arrays so they can hold at least the specified number of nodes.
+   */
+
+  public void increaseMeshStackLength(int minLength)
+  {
+    meshStack = new int [minLength];
+    meshStackDist = new double [minLength];
   }
 
   /**
@@ -58,5 +96,13 @@ public class RaytracerContext
     rtTriPool = null;
     rtDispTriPool = null;
     rtImplicitPool = null;
+    rtMeshPool = null;
+    rtInstancePool = null;
+    instanceRay = null;
+    bvhStack = null;
+    bvhStackDist = null;
+    bvhCandidates = null;
+    meshStack = null;
+    meshStackDist = null;
   }
 }
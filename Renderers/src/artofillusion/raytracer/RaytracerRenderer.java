@@ -23,21 +23,24 @@ import buoy.event.*;
 import buoy.widget.*;
 import java.awt.*;
 import java.awt.image.*;
+import java.io.*;
 import java.util.*;
 import java.util.List;
 
 /** RaytracerRenderer is a Renderer which generates images by raytracing. */
 
-public class RaytracerRenderer implements Renderer, Runnable
+public class RaytracerRenderer implements ProgressiveRenderer, Runnable
 {
   protected Raytracer raytracer;
   protected BTabbedPane configPanel;
-  protected BCheckBox depthBox, glossBox, shadowBox, causticsBox, transparentBox, adaptiveBox, rouletteBox, reducedMemoryBox;
-  protected BComboBox aliasChoice, maxRaysChoice, minRaysChoice, giModeChoice, scatterModeChoice, diffuseRaysChoice, glossRaysChoice, shadowRaysChoice;
-  protected ValueField errorField, rayDepthField, rayCutoffField, smoothField, stepSizeField;
-  protected ValueField extraGIField, extraGIEnvField;
+  protected BCheckBox depthBox, glossBox, shadowBox, causticsBox, transparentBox, adaptiveBox, rouletteBox, reducedMemoryBox, bvhBox, packetBox, instancingBox, reuseGeometryBox, reusePhotonMapsBox, savePhotonMapsBox, irradianceCacheBox, progressiveBox;
+  protected BComboBox aliasChoice, maxRaysChoice, minRaysChoice, giModeChoice, scatterModeChoice, diffuseRaysChoice, glossRaysChoice, shadowRaysChoice, tileOrderChoice, triangleStorageChoice;
+  protected ValueField errorField, rayDepthField, rayCutoffField, smoothField, stepSizeField, tileSizeField;
+  protected ValueField extraGIField, extraGIEnvField, irradianceAccuracyField, progressiveTimeField, progressiveSamplesField, displacementCacheField;
   protected ValueField globalPhotonsField, globalNeighborPhotonsField, causticsPhotonsField, causticsNeighborPhotonsField, volumePhotonsField, volumeNeighborPhotonsField;
   protected int pixel[], width, height, rtWidth, rtHeight, maxRayDepth = 8, minRays = 4, maxRays = 16, diffuseRays, glossRays, shadowRays, antialiasLevel;
+  protected int tileSize = 32, tileOrder = RenderTiles.ORDER_SPIRAL, triangleStorage = Raytracer.TRIANGLES_SEPARATE;
+  protected int progressiveSampleLimit = 256, displacementCacheSize = 1000000;
   protected MemoryImageSource imageSource;
   protected Scene theScene;
   protected Camera theCamera;
@@ -51,12 +54,19 @@ public class RaytracerRenderer implements Renderer, Runnable
   protected int envMode;
   protected double time, fogDist, surfaceError = 0.02, stepSize = 1.0;
   protected double smoothing = 1.0, smoothScale, extraGISmoothing = 10.0, extraGIEnvSmoothing = 100.0;
+  protected double irradianceAccuracy = 0.25, pixelScale, progressiveTimeLimit;
   protected int giMode = GI_NONE, scatterMode = SCATTER_SINGLE, globalPhotons = 10000, globalNeighborPhotons = 200, causticsPhotons = 10000, causticsNeighborPhotons = 100, volumePhotons = 10000, volumeNeighborPhotons = 100;
   protected float minRayIntensity = 0.01f, floatImage[][], depthImage[], errorImage[], objectImage[];
-  protected boolean fog, depth = false, gloss = false, softShadows = false, caustics = false, transparentBackground = false, adaptive = true, roulette = false, reducedMemory = false;
-  protected boolean useGloss, useSoftShadows;
+  protected boolean fog, depth = false, gloss = false, softShadows = false, caustics = false, transparentBackground = false, adaptive = true, roulette = false, reducedMemory = false, useBVH = false, packetTracing = false, instancing = false, reuseGeometry = false;
+  protected boolean reusePhotonMaps = false, savePhotonMaps = false, useIrradianceCache = false, progressive = false;
+  protected boolean useGloss, useSoftShadows, useProgressive;
+  protected volatile boolean stopRequested;
   protected boolean needCopyToUI = true, isPreview;
   protected PhotonMap globalMap, causticsMap, volumeMap;
+  protected PhotonMapCache photonMapCache;
+  protected GeometryCache geometryCache;
+  protected RenderListener geometryCacheListener;
+  protected IrradianceCache irradianceCache;
   protected BoundingBox materialBounds;
   protected ThreadLocal<RenderWorkspace> threadWorkspace;
   
@@ -70,6 +80,18 @@ public class RaytracerRenderer implements Renderer, Runnable
   public static final int SCATTER_PHOTONS = 1;
   public static final int SCATTER_BOTH = 2;
 
+  /** The width and height of the block of pixels whose eye rays are traced together as one packet. */
+
+  private static final int PACKET_WIDTH = 4;
+
+  /** In progressive mode, the number of rays sent through a pixel each time it is refined. */
+
+  private static final int PROGRESSIVE_BATCH = 4;
+
+  /** In progressive mode, the number of rays a pixel must receive before it can be considered converged. */
+
+  private static final int PROGRESSIVE_MIN_RAYS = 8;
+
   public static final float COLOR_THRESH_ABS = 1.0f/128.0f;
   public static final float COLOR_THRESH_REL = 1.0f/32.0f;
 
@@ -143,6 +165,27 @@ public class RaytracerRenderer implements Renderer, Runnable
     raytracer.setUsePreviewMeshes(isPreview);
     raytracer.setUseReducedMemory(reducedMemory);
     raytracer.setUseSoftShadows(softShadows);
+    raytracer.setUseBoundingVolumeHierarchy(useBVH);
+    raytracer.setTriangleStorage(triangleStorage);
+    raytracer.setUseInstancing(instancing);
+    raytracer.setDisplacementCacheSize(displacementCacheSize);
+
+    // The geometry cache cannot detect edits to the scene, so it is only kept between renders that use the same
+    // listener.  That happens when successive frames of an animation are rendered, but any other render starts
+    // with an empty cache.
+
+    if (reuseGeometry && !isPreview)
+    {
+      if (geometryCache == null || rl != geometryCacheListener)
+        geometryCache = new GeometryCache();
+      geometryCacheListener = rl;
+      raytracer.setGeometryCache(geometryCache);
+    }
+    else
+    {
+      geometryCache = null;
+      geometryCacheListener = null;
+    }
     Dimension dim = theCamera.getSize();
 
     listener = rl;
@@ -160,6 +203,7 @@ public class RaytracerRenderer implements Renderer, Runnable
     time = theScene.getTime();
     width = dim.width;
     height = dim.height;
+    stopRequested = false;
     renderThread = new Thread(this, "Raytracer main thread");
     renderThread.setPriority(Thread.NORM_PRIORITY);
     renderThread.start();
@@ -188,11 +232,19 @@ public class RaytracerRenderer implements Renderer, Runnable
     }
     RenderListener rl = listener;
     listener = null;
+    geometryCache = null;
     if (rl != null)
       rl.renderingCanceled();
     finish();
   }
 
+  @Override
+  public void stopRendering(Scene sc)
+  {
+    if (theScene == sc)
+      stopRequested = true;
+  }
+
   @Override
   public Widget getConfigPanel()
   {
@@ -239,6 +291,12 @@ public class RaytracerRenderer implements Renderer, Runnable
       row.add(Translate.label("raysToSample"), indent);
       row.add(shadowRaysChoice = new BComboBox());
       boxes.add(transparentBox = new BCheckBox(Translate.text("transparentBackground"), transparentBackground));
+      boxes.add(progressiveBox = new BCheckBox(Translate.text("progressiveRendering"), progressive));
+      boxes.add(row = new RowContainer());
+      row.add(Translate.label("progressiveTimeLimit"), indent);
+      row.add(progressiveTimeField = new ValueField(progressiveTimeLimit, ValueField.NONNEGATIVE, 5));
+      row.add(Translate.label("progressiveSampleLimit"));
+      row.add(progressiveSamplesField = new ValueField(progressiveSampleLimit, ValueField.NONNEGATIVE+ValueField.INTEGER, 5));
       glossRaysChoice.add("1");
       shadowRaysChoice.add("1");
       for (int i = 4; i <= 64; i *= 2)
@@ -284,6 +342,10 @@ public class RaytracerRenderer implements Renderer, Runnable
       volumePhotonsField = new ValueField(volumePhotons, ValueField.POSITIVE+ValueField.INTEGER, 7);
       volumeNeighborPhotonsField = new ValueField(volumeNeighborPhotons, ValueField.POSITIVE+ValueField.INTEGER, 4);
       causticsBox = new BCheckBox(Translate.text("useCausticsMap"), caustics);
+      irradianceCacheBox = new BCheckBox(Translate.text("useIrradianceCache"), useIrradianceCache);
+      irradianceAccuracyField = new ValueField(irradianceAccuracy, ValueField.POSITIVE, 5);
+      reusePhotonMapsBox = new BCheckBox(Translate.text("reusePhotonMaps"), reusePhotonMaps);
+      savePhotonMapsBox = new BCheckBox(Translate.text("savePhotonMaps"), savePhotonMaps);
       ColumnContainer illuminationPanel = new ColumnContainer();
       LayoutInfo indent0 = new LayoutInfo(LayoutInfo.WEST, LayoutInfo.NONE, null, null);
       LayoutInfo indent1 = new LayoutInfo(LayoutInfo.WEST, LayoutInfo.NONE, new Insets(0, 20, 0, 0), null);
@@ -294,6 +356,10 @@ public class RaytracerRenderer implements Renderer, Runnable
       row.add(Translate.label("raysToSampleEnvironment"));
       row.add(diffuseRaysChoice);
       illuminationPanel.add(row = new RowContainer(), indent1);
+      row.add(irradianceCacheBox);
+      row.add(Translate.label("irradianceCacheAccuracy"));
+      row.add(irradianceAccuracyField);
+      illuminationPanel.add(row = new RowContainer(), indent1);
       row.add(Translate.label("totalPhotons"));
       row.add(globalPhotonsField);
       row.add(Translate.label("numToEstimateLight"));
@@ -312,6 +378,8 @@ public class RaytracerRenderer implements Renderer, Runnable
       row.add(volumePhotonsField);
       row.add(Translate.label("numToEstimateLight"));
       row.add(volumeNeighborPhotonsField);
+      illuminationPanel.add(reusePhotonMapsBox, indent0);
+      illuminationPanel.add(savePhotonMapsBox, indent1);
       causticsBox.dispatchEvent(new ValueChangedEvent(causticsBox));
 
       // Advanced options panel.
@@ -325,13 +393,33 @@ public class RaytracerRenderer implements Renderer, Runnable
       adaptiveBox = new BCheckBox(Translate.text("reduceAccuracyForDistant"), adaptive);
       rouletteBox = new BCheckBox(Translate.text("russianRoulette"), roulette);
       reducedMemoryBox = new BCheckBox(Translate.text("useLessMemory"), reducedMemory);
-      FormContainer advancedPanel = new FormContainer(2, 8);
+      bvhBox = new BCheckBox(Translate.text("useBoundingVolumeHierarchy"), useBVH);
+      packetBox = new BCheckBox(Translate.text("usePacketTracing"), packetTracing);
+      instancingBox = new BCheckBox(Translate.text("useInstancing"), instancing);
+      reuseGeometryBox = new BCheckBox(Translate.text("reuseGeometry"), reuseGeometry);
+      tileSizeField = new ValueField(tileSize, ValueField.POSITIVE+ValueField.INTEGER, 4);
+      tileOrderChoice = new BComboBox(new String [] {
+          Translate.text("tileOrderRows"),
+          Translate.text("tileOrderSpiral"),
+          Translate.text("tileOrderHilbert")
+      });
+      triangleStorageChoice = new BComboBox(new String [] {
+          Translate.text("triangleStorageSeparate"),
+          Translate.text("triangleStoragePacked"),
+          Translate.text("triangleStorageOffHeap")
+      });
+      displacementCacheField = new ValueField(displacementCacheSize, ValueField.NONNEGATIVE+ValueField.INTEGER, 8);
+      FormContainer advancedPanel = new FormContainer(2, 10);
       advancedPanel.add(Translate.label("maxRayTreeDepth"), 0, 0, leftLayout);
       advancedPanel.add(Translate.label("minRayIntensity"), 0, 1, leftLayout);
+      advancedPanel.add(Translate.label("renderTileSize"), 0, 2, leftLayout);
       advancedPanel.add(Translate.label("matStepSize"), 0, 3, leftLayout);
       advancedPanel.add(Translate.label("texSmoothing"), 0, 4, leftLayout);
       advancedPanel.add(rayDepthField, 1, 0, rightLayout);
       advancedPanel.add(rayCutoffField, 1, 1, rightLayout);
+      advancedPanel.add(row = new RowContainer(), 1, 2, rightLayout);
+      row.add(tileSizeField);
+      row.add(tileOrderChoice);
       advancedPanel.add(stepSizeField, 1, 3, rightLayout);
       advancedPanel.add(smoothField, 1, 4, rightLayout);
       advancedPanel.add(Translate.label("extraGISmoothing"), 0, 5, 2, 1);
@@ -340,11 +428,27 @@ public class RaytracerRenderer implements Renderer, Runnable
       row.add(extraGIField);
       row.add(new BLabel(Translate.text("environment")+":"));
       row.add(extraGIEnvField);
+      advancedPanel.add(row = new RowContainer(), 0, 7, 2, 1);
+      row.add(Translate.label("triangleStorage"));
+      row.add(triangleStorageChoice);
+      advancedPanel.add(row = new RowContainer(), 0, 8, 2, 1);
+      row.add(Translate.label("displacementCacheSize"));
+      row.add(displacementCacheField);
       boxes = new ColumnContainer();
-      advancedPanel.add(boxes, 0, 7, 2, 1);
+      advancedPanel.add(boxes, 0, 9, 2, 1);
       boxes.setDefaultLayout(new LayoutInfo(LayoutInfo.WEST, LayoutInfo.NONE, null, null));
       boxes.add(adaptiveBox);
       boxes.add(reducedMemoryBox);
+      boxes.add(bvhBox);
+      boxes.add(packetBox);
+      bvhBox.addEventLink(ValueChangedEvent.class, new Object() {
+        void processEvent()
+        {
+          packetBox.setEnabled(bvhBox.getState());
+        }
+      });
+      boxes.add(instancingBox);
+      boxes.add(reuseGeometryBox);
       boxes.add(rouletteBox);
 
       // Create the tabbed pane.
@@ -364,8 +468,10 @@ public class RaytracerRenderer implements Renderer, Runnable
           depthBox.setEnabled(multi);
           glossBox.setEnabled(multi);
           shadowBox.setEnabled(multi);
-          minRaysChoice.setEnabled(multi);
-          maxRaysChoice.setEnabled(multi);
+          minRaysChoice.setEnabled(multi && !progressiveBox.getState());
+          maxRaysChoice.setEnabled(multi && !progressiveBox.getState());
+          progressiveBox.setEnabled(multi);
+          UIUtilities.setEnabled(progressiveTimeField.getParent(), multi && progressiveBox.getState());
           UIUtilities.setEnabled(glossRaysChoice.getParent(), multi && glossBox.getState());
           UIUtilities.setEnabled(shadowRaysChoice.getParent(), multi && shadowBox.getState());
           if (minRaysChoice.getSelectedIndex() > maxRaysChoice.getSelectedIndex())
@@ -380,20 +486,28 @@ public class RaytracerRenderer implements Renderer, Runnable
       aliasChoice.addEventLink(ValueChangedEvent.class, raysListener);
       minRaysChoice.addEventLink(ValueChangedEvent.class, raysListener);
       maxRaysChoice.addEventLink(ValueChangedEvent.class, raysListener);
+      progressiveBox.addEventLink(ValueChangedEvent.class, raysListener);
       aliasChoice.dispatchEvent(new ValueChangedEvent(aliasChoice));
       Object illumListener = new Object() {
         void processEvent()
         {
           int mode = giModeChoice.getSelectedIndex();
           UIUtilities.setEnabled(diffuseRaysChoice.getParent(), mode == GI_MONTE_CARLO || mode == GI_HYBRID || mode == GI_AMBIENT_OCCLUSION);
+          UIUtilities.setEnabled(irradianceCacheBox.getParent(), mode == GI_MONTE_CARLO || mode == GI_HYBRID);
+          irradianceAccuracyField.setEnabled((mode == GI_MONTE_CARLO || mode == GI_HYBRID) && irradianceCacheBox.getState());
           UIUtilities.setEnabled(globalPhotonsField.getParent(), mode == GI_PHOTON || mode == GI_HYBRID);
           UIUtilities.setEnabled(causticsPhotonsField.getParent(), causticsBox.getState());
           UIUtilities.setEnabled(volumePhotonsField.getParent(), scatterModeChoice.getSelectedIndex() > 0);
+          boolean photons = (mode == GI_PHOTON || mode == GI_HYBRID || causticsBox.getState() || scatterModeChoice.getSelectedIndex() > 0);
+          reusePhotonMapsBox.setEnabled(photons);
+          savePhotonMapsBox.setEnabled(photons && reusePhotonMapsBox.getState());
         }
       };
       giModeChoice.addEventLink(ValueChangedEvent.class, illumListener);
       causticsBox.addEventLink(ValueChangedEvent.class, illumListener);
       scatterModeChoice.addEventLink(ValueChangedEvent.class, illumListener);
+      reusePhotonMapsBox.addEventLink(ValueChangedEvent.class, illumListener);
+      irradianceCacheBox.addEventLink(ValueChangedEvent.class, illumListener);
       giModeChoice.dispatchEvent(new ValueChangedEvent(giModeChoice));
     }
     if (needCopyToUI)
@@ -425,9 +539,23 @@ public class RaytracerRenderer implements Renderer, Runnable
     shadowRaysChoice.setSelectedValue(Integer.toString(shadowRays));
     minRaysChoice.setSelectedValue(Integer.toString(minRays));
     maxRaysChoice.setSelectedValue(Integer.toString(maxRays));
+    progressiveBox.setState(progressive);
+    progressiveTimeField.setValue(progressiveTimeLimit);
+    progressiveSamplesField.setValue(progressiveSampleLimit);
     reducedMemoryBox.setState(reducedMemory);
+    bvhBox.setState(useBVH);
+    packetBox.setState(packetTracing);
+    packetBox.setEnabled(useBVH);
+    instancingBox.setState(instancing);
+    reuseGeometryBox.setState(reuseGeometry);
+    tileSizeField.setValue(tileSize);
+    tileOrderChoice.setSelectedIndex(tileOrder);
+    triangleStorageChoice.setSelectedIndex(triangleStorage);
+    displacementCacheField.setValue(displacementCacheSize);
     giModeChoice.setSelectedIndex(giMode);
     diffuseRaysChoice.setSelectedValue(Integer.toString(diffuseRays));
+    irradianceCacheBox.setState(useIrradianceCache);
+    irradianceAccuracyField.setValue(irradianceAccuracy);
     globalPhotonsField.setValue(globalPhotons);
     globalNeighborPhotonsField.setValue(globalNeighborPhotons);
     causticsBox.setState(caustics);
@@ -436,6 +564,8 @@ public class RaytracerRenderer implements Renderer, Runnable
     scatterModeChoice.setSelectedIndex(scatterMode);
     volumePhotonsField.setValue(volumePhotons);
     volumeNeighborPhotonsField.setValue(volumeNeighborPhotons);
+    reusePhotonMapsBox.setState(reusePhotonMaps);
+    savePhotonMapsBox.setState(savePhotonMaps);
     transparentBox.setState(transparentBackground);
 
     // Generate events to force appropriate components to be enabled or disabled.
@@ -464,9 +594,14 @@ public class RaytracerRenderer implements Renderer, Runnable
     shadowRays = Integer.parseInt((String) shadowRaysChoice.getSelectedValue());
     minRays = Integer.parseInt((String) minRaysChoice.getSelectedValue());
     maxRays = Integer.parseInt((String) maxRaysChoice.getSelectedValue());
+    progressive = progressiveBox.getState();
+    progressiveTimeLimit = progressiveTimeField.getValue();
+    progressiveSampleLimit = (int) progressiveSamplesField.getValue();
     transparentBackground = transparentBox.getState();
     giMode = giModeChoice.getSelectedIndex();
     diffuseRays = Integer.parseInt((String) diffuseRaysChoice.getSelectedValue());
+    useIrradianceCache = irradianceCacheBox.getState();
+    irradianceAccuracy = irradianceAccuracyField.getValue();
     globalPhotons = (int) globalPhotonsField.getValue();
     globalNeighborPhotons = (int) globalNeighborPhotonsField.getValue();
     caustics = causticsBox.getState();
@@ -475,8 +610,19 @@ public class RaytracerRenderer implements Renderer, Runnable
     scatterMode = scatterModeChoice.getSelectedIndex();
     volumePhotons = (int) volumePhotonsField.getValue();
     volumeNeighborPhotons = (int) volumeNeighborPhotonsField.getValue();
+    reusePhotonMaps = reusePhotonMapsBox.getState();
+    savePhotonMaps = savePhotonMapsBox.getState();
     reducedMemory = reducedMemoryBox.getState();
+    useBVH = bvhBox.getState();
+    packetTracing = packetBox.getState();
+    instancing = instancingBox.getState();
+    reuseGeometry = reuseGeometryBox.getState();
+    tileSize = (int) tileSizeField.getValue();
+    tileOrder = tileOrderChoice.getSelectedIndex();
+    triangleStorage = triangleStorageChoice.getSelectedIndex();
+    displacementCacheSize = (int) displacementCacheField.getValue();
     isPreview = false;
+    geometryCache = null;
     return true;
   }
 
@@ -493,6 +639,14 @@ public class RaytracerRenderer implements Renderer, Runnable
     map.put("reduceAccuracyForDistant", adaptive);
     map.put("russianRouletteSampling", roulette);
     map.put("useLessMemory", reducedMemory);
+    map.put("useBoundingVolumeHierarchy", useBVH);
+    map.put("packetTracing", packetTracing);
+    map.put("instancing", instancing);
+    map.put("reuseGeometry", reuseGeometry);
+    map.put("tileSize", tileSize);
+    map.put("tileOrder", tileOrder);
+    map.put("triangleStorage", triangleStorage);
+    map.put("displacementCacheSize", displacementCacheSize);
     map.put("maxSurfaceError", surfaceError);
     map.put("antialiasing", antialiasLevel);
     map.put("depthOfField", depth);
@@ -502,9 +656,14 @@ public class RaytracerRenderer implements Renderer, Runnable
     map.put("raysToSampleShadows", shadowRays);
     map.put("minRaysPerPixel", minRays);
     map.put("maxRaysPerPixel", maxRays);
+    map.put("progressive", progressive);
+    map.put("progressiveTimeLimit", progressiveTimeLimit);
+    map.put("progressiveMaxRaysPerPixel", progressiveSampleLimit);
     map.put("transparentBackground", transparentBackground);
     map.put("globalIlluminationMode", giMode);
     map.put("raysToSampleEnvironment", diffuseRays);
+    map.put("irradianceCache", useIrradianceCache);
+    map.put("irradianceCacheAccuracy", irradianceAccuracy);
     map.put("globalIlluminationPhotons", globalPhotons);
     map.put("globalIlluminationPhotonsInEstimate", globalNeighborPhotons);
     map.put("caustics", caustics);
@@ -513,6 +672,8 @@ public class RaytracerRenderer implements Renderer, Runnable
     map.put("scatteringMode", scatterMode);
     map.put("scatteringPhotons", volumePhotons);
     map.put("scatteringPhotonsInEstimate", volumeNeighborPhotons);
+    map.put("reusePhotonMaps", reusePhotonMaps);
+    map.put("savePhotonMaps", savePhotonMaps);
     return map;
   }
 
@@ -521,6 +682,7 @@ public class RaytracerRenderer implements Renderer, Runnable
   {
     needCopyToUI = true;
     isPreview = false;
+    geometryCache = null;
     if ("maxRayDepth".equals(property))
       maxRayDepth = (Integer) value;
     else if ("minRayIntensity".equals(property))
@@ -539,6 +701,22 @@ public class RaytracerRenderer implements Renderer, Runnable
       roulette = (Boolean) value;
     else if ("useLessMemory".equals(property))
       reducedMemory = (Boolean) value;
+    else if ("useBoundingVolumeHierarchy".equals(property))
+      useBVH = (Boolean) value;
+    else if ("packetTracing".equals(property))
+      packetTracing = (Boolean) value;
+    else if ("instancing".equals(property))
+      instancing = (Boolean) value;
+    else if ("reuseGeometry".equals(property))
+      reuseGeometry = (Boolean) value;
+    else if ("tileSize".equals(property))
+      tileSize = (Integer) value;
+    else if ("tileOrder".equals(property))
+      tileOrder = (Integer) value;
+    else if ("triangleStorage".equals(property))
+      triangleStorage = (Integer) value;
+    else if ("displacementCacheSize".equals(property))
+      displacementCacheSize = (Integer) value;
     else if ("maxSurfaceError".equals(property))
       surfaceError = ((Number) value).doubleValue();
     else if ("antialiasing".equals(property))
@@ -557,12 +735,22 @@ public class RaytracerRenderer implements Renderer, Runnable
       minRays = (Integer) value;
     else if ("maxRaysPerPixel".equals(property))
       maxRays = (Integer) value;
+    else if ("progressive".equals(property))
+      progressive = (Boolean) value;
+    else if ("progressiveTimeLimit".equals(property))
+      progressiveTimeLimit = ((Number) value).doubleValue();
+    else if ("progressiveMaxRaysPerPixel".equals(property))
+      progressiveSampleLimit = (Integer) value;
     else if ("transparentBackground".equals(property))
       transparentBackground = (Boolean) value;
     else if ("globalIlluminationMode".equals(property))
       giMode = (Integer) value;
     else if ("raysToSampleEnvironment".equals(property))
       diffuseRays = (Integer) value;
+    else if ("irradianceCache".equals(property))
+      useIrradianceCache = (Boolean) value;
+    else if ("irradianceCacheAccuracy".equals(property))
+      irradianceAccuracy = ((Number) value).doubleValue();
     else if ("globalIlluminationPhotons".equals(property))
       globalPhotons = (Integer) value;
     else if ("globalIlluminationPhotonsInEstimate".equals(property))
@@ -579,6 +767,10 @@ public class RaytracerRenderer implements Renderer, Runnable
       volumePhotons = (Integer) value;
     else if ("scatteringPhotonsInEstimate".equals(property))
       volumeNeighborPhotons = (Integer) value;
+    else if ("reusePhotonMaps".equals(property))
+      reusePhotonMaps = (Boolean) value;
+    else if ("savePhotonMaps".equals(property))
+      savePhotonMaps = (Boolean) value;
   }
 
   @Override
@@ -589,7 +781,7 @@ public class RaytracerRenderer implements Renderer, Runnable
     maxRayDepth = 6;
     minRayIntensity = 0.02f;
     antialiasLevel = 0;
-    depth = gloss = softShadows = transparentBackground = false;
+    depth = gloss = softShadows = transparentBackground = progressive = false;
     minRays = 4;
     maxRays = 4;
     antialiasLevel = 2;
@@ -659,8 +851,17 @@ public class RaytracerRenderer implements Renderer, Runnable
 
   protected void buildPhotonMap()
   {
+    if (!reusePhotonMaps)
+      photonMapCache = null;
     if (giMode != GI_PHOTON && giMode != GI_HYBRID && !caustics && scatterMode != SCATTER_PHOTONS && scatterMode != SCATTER_BOTH)
       return;
+    byte fingerprint[] = null;
+    if (reusePhotonMaps)
+    {
+      fingerprint = PhotonMapCache.computeFingerprint(theScene, this);
+      if (findCachedPhotonMaps(fingerprint))
+        return;
+    }
     PhotonMap shared = null;
     if (giMode == GI_PHOTON)
     {
@@ -720,6 +921,61 @@ public class RaytracerRenderer implements Renderer, Runnable
       volumeMap = new PhotonMap(volumePhotons, volumeNeighborPhotons, false, scatterMode == SCATTER_PHOTONS, true, true, raytracer, this, bounds, 0, shared);
       generatePhotons(volumeMap);
     }
+    if (fingerprint != null && renderThread == Thread.currentThread())
+    {
+      photonMapCache = new PhotonMapCache(fingerprint, globalMap, causticsMap, volumeMap);
+      File file = PhotonMapCache.getCacheFile(theScene);
+      if (savePhotonMaps && file != null)
+      {
+        try
+        {
+          photonMapCache.writeToFile(file);
+        }
+        catch (IOException ex)
+        {
+          ex.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /** Look for photon maps that were built for an identical scene, either by an earlier render or in a file
+      saved with the scene.  If they are found, use them instead of building new ones.
+
+      @param fingerprint   the fingerprint of the scene being rendered
+      @return true if cached photon maps were found
+  */
+
+  private boolean findCachedPhotonMaps(byte fingerprint[])
+  {
+    if (fingerprint == null)
+      return false;
+    PhotonMapCache cache = photonMapCache;
+    if ((cache == null || !cache.matches(fingerprint)) && savePhotonMaps)
+    {
+      cache = null;
+      File file = PhotonMapCache.getCacheFile(theScene);
+      if (file != null && file.isFile())
+      {
+        listener.statusChanged("Loading Photon Maps");
+        try
+        {
+          cache = PhotonMapCache.readFromFile(file, fingerprint, raytracer, this);
+        }
+        catch (IOException ex)
+        {
+          ex.printStackTrace();
+        }
+      }
+    }
+    if (cache == null || !cache.matches(fingerprint))
+      return false;
+    cache.setRaytracer(raytracer);
+    photonMapCache = cache;
+    globalMap = cache.getGlobalMap();
+    causticsMap = cache.getCausticsMap();
+    volumeMap = cache.getVolumeMap();
+    return true;
   }
 
   /** Find all the photon sources in the scene, and generate the photons in a PhotonMap. */
@@ -770,6 +1026,17 @@ public class RaytracerRenderer implements Renderer, Runnable
 
       if (!obj.getTextureMapping().getTexture().hasComponent(Texture.EMISSIVE_COLOR_COMPONENT))
         continue;
+      if (obj instanceof RTTriangleMesh)
+      {
+        RTTriangleMesh mesh = (RTTriangleMesh) obj;
+        for (int i = 0; i < mesh.getNumTriangles(); i++)
+        {
+          PhotonSource src = new TrianglePhotonSource(mesh.getTriangle(i), map);
+          if (src.getTotalIntensity() > 0.0)
+            objectSources.add(src);
+        }
+        continue;
+      }
       PhotonSource src;
       if (obj instanceof RTTriangle)
         src = new TrianglePhotonSource(((RTTriangle) obj).tri, map);
@@ -802,7 +1069,7 @@ public class RaytracerRenderer implements Renderer, Runnable
   @Override
   public void run()
   {
-    long updateTime = System.currentTimeMillis();
+    long startTime = System.currentTimeMillis(), updateTime = startTime;
     final Thread thisThread = Thread.currentThread();
     if (renderThread != thisThread)
       return;
@@ -817,10 +1084,11 @@ public class RaytracerRenderer implements Renderer, Runnable
     imageSource.setAnimated(true);
     img = Toolkit.getDefaultToolkit().createImage(imageSource);
     int requiredComponents = sceneCamera.getComponentsForFilters();
+    useProgressive = progressive && antialiasLevel > 0;
     floatImage = new float [4][width*height];
     if ((requiredComponents&ComplexImage.DEPTH) != 0)
       depthImage = new float [width*height];
-    if ((requiredComponents&ComplexImage.NOISE) != 0)
+    if ((requiredComponents&ComplexImage.NOISE) != 0 || useProgressive)
       errorImage = new float [width*height];
     if ((requiredComponents&ComplexImage.OBJECT) != 0)
       objectImage = new float [width*height];
@@ -829,14 +1097,17 @@ public class RaytracerRenderer implements Renderer, Runnable
     if (renderThread != thisThread)
       return;
     buildPhotonMap();
+    if (useIrradianceCache && (giMode == GI_MONTE_CARLO || giMode == GI_HYBRID))
+      irradianceCache = new IrradianceCache(raytracer.getRootNode().getBounds(), irradianceAccuracy);
     listener.statusChanged(Translate.text("Rendering"));
     for (int i = 0; i < pixel.length; i++)
       pixel[i] = 0;
     int maxRaysInUse = maxRays;
     int minRaysInUse = minRays;
-    if (antialiasLevel == 0)
+    if (antialiasLevel == 0 || useProgressive)
       minRaysInUse = maxRaysInUse = 1;
-    smoothScale = smoothing*2.0*Math.tan(sceneCamera.getFieldOfView()*Math.PI/360.0)/height;
+    pixelScale = 2.0*Math.tan(sceneCamera.getFieldOfView()*Math.PI/360.0)/height;
+    smoothScale = smoothing*pixelScale;
     useGloss = gloss && antialiasLevel > 0;
     useSoftShadows = softShadows && antialiasLevel > 0;
 
@@ -855,28 +1126,68 @@ public class RaytracerRenderer implements Renderer, Runnable
       smoothScale *= 0.5;
     }
 
+    // Each pass divides the image into tiles, and each thread renders a whole tile at a time.  The pixels
+    // of a tile are collected in the thread's workspace, then copied into the image once the tile is complete.
+    // If packet tracing is enabled, the tile is further divided into small blocks whose eye rays are traced
+    // together.
+
+    final boolean usePackets = (packetTracing && raytracer.getBoundingVolumeHierarchy() != null);
     final int finalMinRays = minRaysInUse;
     final int currentScale[] = new int [1];
-    final int currentWidth[] = new int [1];
+    final RenderTiles currentTiles[] = new RenderTiles [1];
     final boolean isFirstPass[] = new boolean[] {true};
-    ThreadManager threads = new ThreadManager(width, new ThreadManager.Task() {
+    ThreadManager threads = new ThreadManager(0, new ThreadManager.Task() {
           @Override
       public void execute(int index)
       {
         if (renderThread != thisThread)
           return;
-        int row = index/currentWidth[0];
-        int col = index-row*currentWidth[0];
-        if (!isFirstPass[0] && row%2 == 0 && col%2 == 0)
-          return;
+        RenderTiles tiles = currentTiles[0];
+        int startx = tiles.getStartX(index), endx = tiles.getEndX(index);
+        int starty = tiles.getStartY(index), endy = tiles.getEndY(index);
         int subsample = (finalMinRays > 1 ? 2 : 1);
         RenderWorkspace workspace = getWorkspace();
-        PixelInfo pixel = workspace.tempPixel;
+        PixelInfo tilePixel[] = workspace.getTilePixels(tiles.getTileSize()*tiles.getTileSize());
+        RayPacket packet = (usePackets ? workspace.getRayPacket() : null);
+        int tileWidth = endx-startx;
+        int block = (packet == null ? tiles.getTileSize() : PACKET_WIDTH);
+        for (int blocky = starty; blocky < endy; blocky += block)
+          for (int blockx = startx; blockx < endx; blockx += block)
+          {
+            if (packet != null)
+              packet.clear();
+            for (int row = blocky; row < endy && row < blocky+block; row++)
+              for (int col = blockx; col < endx && col < blockx+block; col++)
+              {
+                if (!isFirstPass[0] && row%2 == 0 && col%2 == 0)
+                  continue;
+                int n = (row-starty)*tileWidth+col-startx;
+                int i = col*subsample*currentScale[0], j = row*subsample*currentScale[0];
+                if (packet == null)
+                  recordEyeRay(workspace, tilePixel[n], spawnEyeRay(workspace, i, j, 4, finalMinRays));
+                else
+                  workspace.packetPixel[addEyeRayToPacket(workspace, packet, i, j, 4, finalMinRays)] = n;
+              }
+            if (packet != null)
+            {
+              boolean traced = raytracer.tracePacket(packet);
+              for (int k = 0; k < packet.getSize(); k++)
+                recordEyeRay(workspace, tilePixel[workspace.packetPixel[k]], spawnEyeRayFromPacket(workspace, packet, k, traced, 4));
+            }
+          }
+        int n = 0;
+        for (int row = starty; row < endy; row++)
+          for (int col = startx; col < endx; col++, n++)
+            if (isFirstPass[0] || row%2 != 0 || col%2 != 0)
+              recordPixel(col*currentScale[0], row*currentScale[0], currentScale[0], tilePixel[n]);
+      }
+
+      private void recordEyeRay(RenderWorkspace workspace, PixelInfo pixel, double dist)
+      {
         pixel.clear();
-        pixel.depth = (float) spawnEyeRay(workspace, col*subsample*currentScale[0], row*subsample*currentScale[0], 4, finalMinRays);
+        pixel.depth = (float) dist;
         pixel.object = (workspace.firstObjectHit == null ? 0.0f : Float.intBitsToFloat(workspace.firstObjectHit.getObject().hashCode()));
         pixel.add(workspace.color[0], (float) workspace.transparency[0]);
-        recordPixel(col*currentScale[0], row*currentScale[0], currentScale[0], pixel);
       }
           @Override
       public void cleanup()
@@ -884,11 +1195,13 @@ public class RaytracerRenderer implements Renderer, Runnable
         getWorkspace().cleanup();
       }
     });
+    int tileSizeInUse = Math.max(1, tileSize);
     for (currentScale[0] = 1<<(int)(Math.log(width/32)/Math.log(2.0)); currentScale[0] >= 1; currentScale[0] /= 2)
     {
-      currentWidth[0] = (int) Math.ceil((double) width/currentScale[0]);
+      int currentWidth = (int) Math.ceil((double) width/currentScale[0]);
       int currentHeight = (int) Math.ceil((double) height/currentScale[0]);
-      threads.setNumIndices(currentWidth[0]*currentHeight);
+      currentTiles[0] = new RenderTiles(currentWidth, currentHeight, tileSizeInUse, tileOrder);
+      threads.setNumIndices(currentTiles[0].getNumTiles());
       threads.run();
       isFirstPass[0] = false;
       if (renderThread != thisThread)
@@ -908,8 +1221,10 @@ public class RaytracerRenderer implements Renderer, Runnable
 
     // At this point, we have sent one ray/pixel.  If that's all they requested, we can just
     // return now.  Otherwise, go on to phase 2 where we send out more rays to improve the
-    // image quality.
+    // image quality.  In progressive mode, phase 2 is replaced by renderProgressive().
 
+    if (useProgressive && !renderProgressive(thisThread, startTime))
+      return;
     if (maxRaysInUse == 1)
     {
       imageSource.newPixels();
@@ -935,48 +1250,90 @@ public class RaytracerRenderer implements Renderer, Runnable
     int minPerSubpixel = minRaysInUse/4, maxPerSubpixel = maxRaysInUse/4;
     final int currentRow[] = new int [1];
     final int currentCount[] = new int [1];
-    threads = new ThreadManager(rtWidth, new ThreadManager.Task() {
+
+    // Every pass over a band of rows waits for all of its tasks to finish, so divide the band into enough
+    // strips that every thread stays busy even when only a few columns need more rays.
+
+    final int stripWidth = Math.max(1, rtWidth/(4*Runtime.getRuntime().availableProcessors()));
+    threads = new ThreadManager((rtWidth+stripWidth-1)/stripWidth, new ThreadManager.Task() {
           @Override
-      public void execute(int index)
+      public void execute(int strip)
+      {
+        // Each task refines a vertical strip of adjacent columns of subpixels.
+
+        int end = Math.min(rtWidth, (strip+1)*stripWidth);
+        for (int index = strip*stripWidth; index < end; index++)
+          refineColumn(index);
+      }
+
+      private void refineColumn(int index)
       {
+        // The rays for each pixel are divided into two halves, which are accumulated separately so they can be
+        // compared to see whether the pixel has converged.
+
         RenderWorkspace workspace = getWorkspace();
-        PixelInfo tempPixel = workspace.tempPixel;
+        PixelInfo tempPixel[] = workspace.getTilePixels(6);
+        RayPacket packet = (usePackets ? workspace.getRayPacket() : null);
+        if (packet != null)
+          packet.clear();
         for (int m = 0; m < 6; m++)
         {
           PixelInfo thisPixel = pix[m][index];
           thisPixel.converged = true;
-          if (thisPixel.needsMore)
+          if (!thisPixel.needsMore)
+            continue;
+          tempPixel[m].clear();
+          int baseNum = (m&1)*8+(index&1)*4;
+          int numNeeded = currentCount[0]-thisPixel.raysSent;
+          for (int k = thisPixel.raysSent; k < currentCount[0]; k++)
           {
-            tempPixel.clear();
-            int baseNum = (m&1)*8+(index&1)*4;
-            int numNeeded = currentCount[0]-thisPixel.raysSent;
-            for (int k = thisPixel.raysSent; k < currentCount[0]; k++)
+            if (packet == null)
             {
               float dist = (float) spawnEyeRay(workspace, index, 2*currentRow[0]+m, baseNum+k, numNeeded);
-              if (k < currentCount[0]/2)
-              {
-                thisPixel.add(workspace.color[0], (float) workspace.transparency[0]);
-                if (dist < thisPixel.depth)
-                {
-                  thisPixel.depth = dist;
-                  thisPixel.object = (workspace.firstObjectHit == null ? 0.0f : Float.intBitsToFloat(workspace.firstObjectHit.getObject().hashCode()));
-                }
-              }
-              else
-              {
-                tempPixel.add(workspace.color[0], (float) workspace.transparency[0]);
-                if (dist < tempPixel.depth)
-                {
-                  tempPixel.depth = dist;
-                  tempPixel.object = (workspace.firstObjectHit == null ? 0.0f : Float.intBitsToFloat(workspace.firstObjectHit.getObject().hashCode()));
-                }
-              }
+              recordSample(workspace, m, index, k, dist, tempPixel);
+              continue;
             }
-            if (currentCount[0] > 1)
-              thisPixel.converged = thisPixel.matches(tempPixel, COLOR_THRESH_ABS, COLOR_THRESH_REL);
-            thisPixel.add(tempPixel);
+            int n = addEyeRayToPacket(workspace, packet, index, 2*currentRow[0]+m, baseNum+k, numNeeded);
+            workspace.packetPixel[n] = m;
+            workspace.packetSample[n] = k;
+            if (packet.isFull())
+              tracePacket(workspace, packet, index, tempPixel);
           }
         }
+        if (packet != null && packet.getSize() > 0)
+          tracePacket(workspace, packet, index, tempPixel);
+        for (int m = 0; m < 6; m++)
+        {
+          PixelInfo thisPixel = pix[m][index];
+          if (!thisPixel.needsMore)
+            continue;
+          if (currentCount[0] > 1)
+            thisPixel.converged = thisPixel.matches(tempPixel[m], COLOR_THRESH_ABS, COLOR_THRESH_REL);
+          thisPixel.add(tempPixel[m]);
+        }
+      }
+
+      private void tracePacket(RenderWorkspace workspace, RayPacket packet, int index, PixelInfo tempPixel[])
+      {
+        boolean traced = raytracer.tracePacket(packet);
+        for (int n = 0; n < packet.getSize(); n++)
+        {
+          int m = workspace.packetPixel[n], k = workspace.packetSample[n];
+          float dist = (float) spawnEyeRayFromPacket(workspace, packet, n, traced, (m&1)*8+(index&1)*4+k);
+          recordSample(workspace, m, index, k, dist, tempPixel);
+        }
+        packet.clear();
+      }
+
+      private void recordSample(RenderWorkspace workspace, int m, int index, int k, float dist, PixelInfo tempPixel[])
+      {
+        PixelInfo p = (k < currentCount[0]/2 ? pix[m][index] : tempPixel[m]);
+        p.add(workspace.color[0], (float) workspace.transparency[0]);
+        if (dist < p.depth)
+        {
+          p.depth = dist;
+          p.object = (workspace.firstObjectHit == null ? 0.0f : Float.intBitsToFloat(workspace.firstObjectHit.getObject().hashCode()));
+        }
       }
           @Override
       public void cleanup()
@@ -985,8 +1342,17 @@ public class RaytracerRenderer implements Renderer, Runnable
       }
     });
 
+    boolean stopped = false;
     for (currentRow[0] = 0; currentRow[0] < height-1; currentRow[0]++)
     {
+      // If we have been asked to stop, leave the remaining rows as they were after the first phase.
+
+      if (stopRequested)
+      {
+        stopped = true;
+        break;
+      }
+
       // Keep refining the pixels in the current set of six rows until they converge, or
       // we reach maxRays.
 
@@ -1064,7 +1430,8 @@ public class RaytracerRenderer implements Renderer, Runnable
 
     // Copy the final row of pixels into the image.
 
-    recordRow(pix, tempPixel, height-1);
+    if (!stopped)
+      recordRow(pix, tempPixel, height-1);
 
     // All done.  Send the final image.
 
@@ -1073,6 +1440,140 @@ public class RaytracerRenderer implements Renderer, Runnable
     finish();
   }
 
+  /** This is used in place of the second phase of rendering when progressive mode is enabled.  It keeps
+      sending rays through the image until it converges, the time or ray limit is reached, or stopRendering()
+      is called.  floatImage holds the mean of all rays sent through each pixel so far, and errorImage holds
+      the variance of that mean.  On each pass, more rays are sent through every pixel which has not yet
+      converged, and through its neighbors.  Once every pixel has converged, the convergence threshold is
+      reduced and the process repeats, so the work is always concentrated on the noisiest parts of the image.
+      This returns false if rendering was canceled. */
+
+  protected boolean renderProgressive(final Thread thisThread, long startTime)
+  {
+    final int numRays[] = new int [width*height];
+    final double sumSquares[] = new double [width*height];
+    final boolean needsMore[] = new boolean [width*height];
+    Arrays.fill(numRays, 1);
+    final long endTime = (progressiveTimeLimit > 0.0 ? startTime+(long) (progressiveTimeLimit*60000.0) : Long.MAX_VALUE);
+    final int rayLimit = (progressiveSampleLimit > 0 ? progressiveSampleLimit : Integer.MAX_VALUE);
+    final RenderTiles tiles = new RenderTiles(width, height, Math.max(1, tileSize), tileOrder);
+    ThreadManager threads = new ThreadManager(tiles.getNumTiles(), new ThreadManager.Task() {
+      @Override
+      public void execute(int index)
+      {
+        RenderWorkspace workspace = getWorkspace();
+        PixelInfo tempPixel = workspace.getTilePixels(1)[0];
+        RGBColor mean = new RGBColor();
+        for (int y = tiles.getStartY(index); y < tiles.getEndY(index); y++)
+          for (int x = tiles.getStartX(index); x < tiles.getEndX(index); x++)
+          {
+            if (renderThread != thisThread || stopRequested || System.currentTimeMillis() > endTime)
+              return;
+            int i = x+y*width;
+            if (!needsMore[i])
+              continue;
+            for (int k = 0; k < PROGRESSIVE_BATCH && numRays[i] < rayLimit; k++)
+              addRay(workspace, x, y, i);
+
+            // Update the error estimate and the displayed image.
+
+            int n = numRays[i];
+            errorImage[i] = (float) (sumSquares[i]/(3.0*n*(n-1)));
+            mean.setRGB(floatImage[0][i], floatImage[1][i], floatImage[2][i]);
+            tempPixel.clear();
+            tempPixel.add(mean, 1.0f-floatImage[3][i]);
+            pixel[i] = tempPixel.calcARGB();
+          }
+      }
+
+      /** Send one more ray through a pixel, and add it to the running mean and variance. */
+
+      private void addRay(RenderWorkspace workspace, int x, int y, int i)
+      {
+        int n = numRays[i];
+        float dist = (float) spawnEyeRay(workspace, x, y, n, PROGRESSIVE_BATCH);
+        RGBColor color = workspace.color[0];
+        n++;
+        float ninv = 1.0f/n;
+        float dr = color.getRed()-floatImage[0][i];
+        float dg = color.getGreen()-floatImage[1][i];
+        float db = color.getBlue()-floatImage[2][i];
+        floatImage[0][i] += dr*ninv;
+        floatImage[1][i] += dg*ninv;
+        floatImage[2][i] += db*ninv;
+        floatImage[3][i] += (1.0f-(float) workspace.transparency[0]-floatImage[3][i])*ninv;
+        sumSquares[i] += dr*(color.getRed()-floatImage[0][i])+dg*(color.getGreen()-floatImage[1][i])+db*(color.getBlue()-floatImage[2][i]);
+        numRays[i] = n;
+        if (depthImage != null && dist < depthImage[i])
+        {
+          depthImage[i] = dist;
+          if (objectImage != null)
+            objectImage[i] = (workspace.firstObjectHit == null ? 0.0f : Float.intBitsToFloat(workspace.firstObjectHit.getObject().hashCode()));
+        }
+      }
+
+      @Override
+      public void cleanup()
+      {
+        getWorkspace().cleanup();
+      }
+    });
+
+    // Each time every pixel converges, the threshold is halved.  Once it has been reduced far below
+    // anything that could be seen in the image, there is no point in continuing.
+
+    float thresholdScale = 1.0f;
+    boolean converged[] = new boolean [width*height];
+    long updateTime = System.currentTimeMillis();
+    while (!stopRequested && System.currentTimeMillis() < endTime)
+    {
+      boolean any = false, allAtLimit = true;
+      for (int i = 0; i < converged.length; i++)
+      {
+        int n = numRays[i];
+        if (n < rayLimit)
+          allAtLimit = false;
+        float mean = (floatImage[0][i]+floatImage[1][i]+floatImage[2][i])/3.0f;
+        float threshold = thresholdScale*Math.max(COLOR_THRESH_ABS, COLOR_THRESH_REL*mean);
+        converged[i] = (n >= rayLimit || n >= PROGRESSIVE_MIN_RAYS && errorImage[i] <= threshold*threshold);
+      }
+      for (int y = 0; y < height; y++)
+        for (int x = 0; x < width; x++)
+        {
+          int i = x+y*width;
+          needsMore[i] = numRays[i] < rayLimit && (!converged[i] || (x > 0 && !converged[i-1]) || (x < width-1 && !converged[i+1]) ||
+              (y > 0 && !converged[i-width]) || (y < height-1 && !converged[i+width]));
+          any |= needsMore[i];
+        }
+      if (!any)
+      {
+        if (allAtLimit || thresholdScale < 1.0f/64.0f)
+          break;
+        thresholdScale *= 0.5f;
+        continue;
+      }
+      threads.run();
+      if (renderThread != thisThread)
+      {
+        threads.finish();
+        return false;
+      }
+      long currentTime = System.currentTimeMillis();
+      if (currentTime-updateTime > 250)
+      {
+        long totalRays = 0;
+        for (int n : numRays)
+          totalRays += n;
+        listener.statusChanged(Translate.text("progressiveStatus", Math.round(totalRays/(double) numRays.length)));
+        imageSource.newPixels();
+        listener.imageUpdated(img);
+        updateTime = currentTime;
+      }
+    }
+    threads.finish();
+    return true;
+  }
+
   /** Load a row of pixels from the image. */
 
   protected void loadRow(PixelInfo pix[], int y, RGBColor temp)
@@ -1190,6 +1691,7 @@ public class RaytracerRenderer implements Renderer, Runnable
     globalMap = null;
     causticsMap = null;
     volumeMap = null;
+    irradianceCache = null;
     RenderListener rl = listener;
     ComplexImage im =  null;
     Image image = img;
@@ -1233,7 +1735,38 @@ public class RaytracerRenderer implements Renderer, Runnable
   protected double spawnEyeRay(RenderWorkspace workspace, int i, int j, int number, int outOf)
   {
     Ray ray = workspace.ray[0];
-    Vec3 orig = ray.getOrigin(), dir = ray.getDirection();
+    initEyeRay(workspace, ray.getOrigin(), ray.getDirection(), i, j, number, outOf);
+    return traceEyeRay(workspace, number);
+  }
+
+  /** Add an eye ray passing through pixel (i, j) to a packet, so that it can be traced together with the other
+   rays in the packet.  The parameters have the same meaning as for spawnEyeRay().  This returns the index of the
+   ray within the packet. */
+
+  protected int addEyeRayToPacket(RenderWorkspace workspace, RayPacket packet, int i, int j, int number, int outOf)
+  {
+    Ray ray = workspace.ray[0];
+    initEyeRay(workspace, ray.getOrigin(), ray.getDirection(), i, j, number, outOf);
+    return packet.addRay(ray.getOrigin(), ray.getDirection());
+  }
+
+  /** Trace one of the eye rays in a packet.  If traced is true, the packet has already been traced with
+   {@link Raytracer#tracePacket(RayPacket)} and its results are used to find what the ray hits.  Otherwise the ray
+   is traced on its own.  The return value and results are the same as for spawnEyeRay(). */
+
+  protected double spawnEyeRayFromPacket(RenderWorkspace workspace, RayPacket packet, int n, boolean traced, int number)
+  {
+    packet.getRay(n, workspace.ray[0]);
+    workspace.packetIndex = (traced ? n : -1);
+    double dist = traceEyeRay(workspace, number);
+    workspace.packetIndex = -1;
+    return dist;
+  }
+
+  /** Find the origin and direction of the eye ray passing through pixel (i, j). */
+
+  protected void initEyeRay(RenderWorkspace workspace, Vec3 orig, Vec3 dir, int i, int j, int number, int outOf)
+  {
     double h = i-rtWidth*0.5+0.5, v = j-rtHeight*0.5+0.5;
     Random random = workspace.context.random;
 
@@ -1246,6 +1779,14 @@ public class RaytracerRenderer implements Renderer, Runnable
       int col = num-row*cols;
       h += (col+random.nextDouble())/cols-0.5;
       v += (row+random.nextDouble())/rows-0.5;
+      if (useProgressive && antialiasLevel == 2)
+      {
+        // Progressive rendering has no subpixels to filter, so approximate the wider filter by spreading
+        // each ray over a tent two pixels across.
+
+        h += random.nextDouble()-0.5;
+        v += random.nextDouble()-0.5;
+      }
     }
     double dof1 = 0.0, dof2 = 0.0;
     if (depth)
@@ -1256,6 +1797,14 @@ public class RaytracerRenderer implements Renderer, Runnable
     sceneCamera.getRayFromCamera(h/rtHeight, v/rtHeight, dof1, dof2, orig, dir);
     theCamera.getCameraCoordinates().fromLocal().transform(orig);
     theCamera.getCameraCoordinates().fromLocal().transformDirection(dir);
+  }
+
+  /** Trace the eye ray stored in the first ray of the workspace, whose origin and direction have already been set. */
+
+  protected double traceEyeRay(RenderWorkspace workspace, int number)
+  {
+    Ray ray = workspace.ray[0];
+    Vec3 orig = ray.getOrigin(), dir = ray.getDirection();
     ray.newID();
     workspace.rayIntensity[0].setRGB(1.0f, 1.0f, 1.0f);
     workspace.firstObjectHit = null;
@@ -1437,7 +1986,10 @@ public class RaytracerRenderer implements Renderer, Runnable
     else
     {
       Raytracer.RayIntersection intersect = workspace.context.intersect;
-      nextNode = raytracer.traceRay(r, node, intersect);
+      if (treeDepth == 0 && workspace.packetIndex > -1)
+        nextNode = raytracer.getPacketIntersection(workspace.packet, workspace.packetIndex, r, intersect);
+      else
+        nextNode = raytracer.traceRay(r, node, intersect);
       if (nextNode == null)
       {
         if (transmitted && transparentBackground)
@@ -1705,7 +2257,44 @@ public class RaytracerRenderer implements Renderer, Runnable
         color.add(workspace.color[treeDepth+1]);
       }
     }
-    if (spawnDiffuse)
+    if (spawnDiffuse && irradianceCache != null && !diffuse)
+    {
+      // Look up the indirect light in the irradiance cache.  If there are no usable records nearby, compute a
+      // new one.
+
+      IrradianceCache.Sampler sampler = workspace.getIrradianceSampler(4*diffuseRays);
+      sampler.setNormal(norm, dot > 0.0);
+      RGBColor irradiance = workspace.irradiance;
+      if (!irradianceCache.getIrradiance(intersectionPoint, sampler.getNormal(), irradiance))
+      {
+        col.setRGB(1.0f, 1.0f, 1.0f);
+        temp = workspace.ray[treeDepth+1].getDirection();
+        for (int i = 0; i < sampler.getNumSamples(); i++)
+        {
+          sampler.getDirection(i, random, temp);
+          if (temp.dot(trueNorm) * (truedot > 0.0 ? 1.0 : -1.0) > 0.0)
+          {
+            // Make sure it comes out the correct side.
+
+            temp.scale(-1.0);
+          }
+          workspace.ray[treeDepth+1].getOrigin().set(intersectionPoint);
+          workspace.ray[treeDepth+1].newID();
+          double rayDist = spawnRay(workspace, treeDepth+1, nextNode, SurfaceIntersection.NO_INTERSECTION, currentMaterial, prevMaterial, currentMatTrans, prevMatTrans, rayNumber, totalDist, false, true);
+          sampler.recordSample(i, workspace.color[treeDepth+1], rayDist);
+        }
+
+        // The spacing between records is limited to a range of sizes on screen.
+
+        double pixelSize = totalDist*pixelScale/irradianceCache.getAccuracy();
+        irradianceCache.addRecord(intersectionPoint, sampler, 2.0*pixelSize, 50.0*pixelSize, irradiance);
+      }
+      irradiance.multiply(spec.diffuse);
+      irradiance.multiply(rayIntensity);
+      irradiance.scale(diffuseScale);
+      color.add(irradiance);
+    }
+    else if (spawnDiffuse)
     {
       // Spawn a diffusely reflected ray.
 
@@ -1878,12 +2467,26 @@ public class RaytracerRenderer implements Renderer, Runnable
     RGBColor lightColor = workspace.color[treeDepth], transColor = workspace.surfSpec[treeDepth].transparent;
     Vec3 intersectionPoint = workspace.pos[maxRayDepth], trueNorm = workspace.trueNormal[maxRayDepth];
     MaterialIntersection matChange[] = workspace.matChange;
+    BoundingVolumeHierarchy bvh = raytracer.getBoundingVolumeHierarchy();
     int i, j, matCount = 0;
 
     do
     {
-      RTObject obj[] = node.getObjects();
-      for (i = obj.length-1; i >= 0; i--)
+      // If a bounding volume hierarchy is in use, the octree is a single node and the hierarchy
+      // supplies the list of objects to check.
+
+      RTObject obj[];
+      if (bvh == null)
+      {
+        obj = node.getObjects();
+        i = obj.length-1;
+      }
+      else
+      {
+        i = bvh.findObjectsAlongRay(r, distToLight)-1;
+        obj = r.rt.bvhCandidates;
+      }
+      for (; i >= 0; i--)
       {
         SurfaceIntersection intersection = r.findIntersection(obj[i]);
         if (intersection != SurfaceIntersection.NO_INTERSECTION)
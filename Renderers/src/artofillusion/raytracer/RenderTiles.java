@@ -0,0 +1,183 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+/**
+ * This class divides an image into square tiles, and determines the order in which they should be rendered.
+ * Each tile is a unit of work for one thread.  Working on a whole tile at once means threads only need to
+ * coordinate with each other once per tile rather than once per pixel, and rays through neighboring pixels
+ * tend to touch the same objects and textures, which makes better use of the processor cache.
+ * <p>
+ * The tiles may be ordered row by row, in a spiral starting from the center of the image (so the most
+ * important part of the image usually appears first), or along a Hilbert curve (which keeps consecutive
+ * tiles close together, so the threads work on nearby parts of the scene at any given time).
+ */
+
+public class RenderTiles
+{
+  private final int width, height, tileSize, numX, numY;
+  private final int tileX[], tileY[];
+
+  public static final int ORDER_ROWS = 0;
+  public static final int ORDER_SPIRAL = 1;
+  public static final int ORDER_HILBERT = 2;
+
+  /**
+   * Divide an image into tiles.
+   *
+   * @param width     the width of the image in pixels
+   * @param height    the height of the image in pixels
+   * @param tileSize  the width and height of each tile in pixels
+   * @param order     the order in which to render the tiles.  This should be ORDER_ROWS, ORDER_SPIRAL, or ORDER_HILBERT.
+   */
+
+  public RenderTiles(int width, int height, int tileSize, int order)
+  {
+    if (tileSize < 1)
+      throw new IllegalArgumentException("Tile size must be positive");
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    numX = (width+tileSize-1)/tileSize;
+    numY = (height+tileSize-1)/tileSize;
+    tileX = new int [numX*numY];
+    tileY = new int [numX*numY];
+    if (order == ORDER_SPIRAL)
+      createSpiralOrder();
+    else if (order == ORDER_HILBERT)
+      createHilbertOrder();
+    else
+      createRowOrder();
+  }
+
+  /** Get the number of tiles. */
+
+  public int getNumTiles()
+  {
+    return tileX.length;
+  }
+
+  /** Get the width and height of a full tile in pixels.  Tiles along the right and bottom edges may be smaller. */
+
+  public int getTileSize()
+  {
+    return tileSize;
+  }
+
+  /** Get the x coordinate of the first pixel in the n'th tile to render. */
+
+  public int getStartX(int n)
+  {
+    return tileX[n]*tileSize;
+  }
+
+  /** Get the y coordinate of the first pixel in the n'th tile to render. */
+
+  public int getStartY(int n)
+  {
+    return tileY[n]*tileSize;
+  }
+
+  /** Get the x coordinate one past the last pixel in the n'th tile to render. */
+
+  public int getEndX(int n)
+  {
+    return Math.min(width, (tileX[n]+1)*tileSize);
+  }
+
+  /** Get the y coordinate one past the last pixel in the n'th tile to render. */
+
+  public int getEndY(int n)
+  {
+    return Math.min(height, (tileY[n]+1)*tileSize);
+  }
+
+  private void createRowOrder()
+  {
+    int n = 0;
+    for (int j = 0; j < numY; j++)
+      for (int i = 0; i < numX; i++)
+      {
+        tileX[n] = i;
+        tileY[n++] = j;
+      }
+  }
+
+  /** Walk outward from the center tile in a square spiral, keeping every tile that lies inside the image. */
+
+  private void createSpiralOrder()
+  {
+    int x = (numX-1)/2, y = (numY-1)/2;
+    int dx = 1, dy = 0, n = 0;
+    for (int length = 1; n < tileX.length; length++)
+    {
+      // Each segment length is used twice before it grows.
+
+      for (int segment = 0; segment < 2; segment++)
+      {
+        for (int step = 0; step < length && n < tileX.length; step++)
+        {
+          if (x >= 0 && x < numX && y >= 0 && y < numY)
+          {
+            tileX[n] = x;
+            tileY[n++] = y;
+          }
+          x += dx;
+          y += dy;
+        }
+        int temp = dx;
+        dx = -dy;
+        dy = temp;
+      }
+    }
+  }
+
+  /** Follow a Hilbert curve over the smallest power of two square that contains all the tiles, keeping every
+      tile that lies inside the image. */
+
+  private void createHilbertOrder()
+  {
+    int size = 1;
+    while (size < numX || size < numY)
+      size *= 2;
+    int n = 0;
+    for (int d = 0; n < tileX.length; d++)
+    {
+      // Convert the distance along the curve to a position.
+
+      int x = 0, y = 0, t = d;
+      for (int s = 1; s < size; s *= 2)
+      {
+        int rx = 1 & (t/2);
+        int ry = 1 & (t ^ rx);
+        if (ry == 0)
+        {
+          if (rx == 1)
+          {
+            x = s-1-x;
+            y = s-1-y;
+          }
+          int temp = x;
+          x = y;
+          y = temp;
+        }
+        x += s*rx;
+        y += s*ry;
+        t /= 4;
+      }
+      if (x < numX && y < numY)
+      {
+        tileX[n] = x;
+        tileY[n++] = y;
+      }
+    }
+  }
+}
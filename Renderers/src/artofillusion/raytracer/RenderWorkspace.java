@@ -28,14 +28,17 @@ public class RenderWorkspace
   public RTObject firstObjectHit, materialAtCamera;
   public boolean materialAtCameraIsFixed;
   public Ray ray[];
-  public RGBColor color[], rayIntensity[], tempColor, tempColor2;
+  public RGBColor color[], rayIntensity[], tempColor, tempColor2, irradiance;
   public Vec3 pos[], normal[], trueNormal[];
   public double transparency[];
   public MaterialIntersection matChange[];
   public TextureSpec surfSpec[];
   public MaterialSpec matSpec;
-  public PixelInfo tempPixel;
+  public PixelInfo tempPixel, tilePixel[];
   public PhotonMapContext globalMap, causticsMap, volumeMap;
+  public IrradianceCache.Sampler irradianceSampler;
+  public RayPacket packet;
+  public int packetIndex = -1, packetPixel[], packetSample[];
 
   public RenderWorkspace(RaytracerRenderer rt, RaytracerContext context)
   {
@@ -63,6 +66,7 @@ public class RenderWorkspace
     matSpec = new MaterialSpec();
     tempColor = new RGBColor(0.0f, 0.0f, 0.0f);
     tempColor2 = new RGBColor(0.0f, 0.0f, 0.0f);
+    irradiance = new RGBColor(0.0f, 0.0f, 0.0f);
     matChange = new MaterialIntersection [16];
     for (int i = 0; i < matChange.length; i++)
       matChange[i] = new MaterialIntersection();
@@ -97,6 +101,53 @@ public class RenderWorkspace
     matChange = newMatChange;
   }
 
+  /**
+   * Get an array of PixelInfo objects for collecting the pixels of a tile before they are recorded in the image.
+   * The array is reused for every tile rendered by this thread.
+   *
+   * @param size    the minimum number of pixels the array must hold
+   */
+
+  public PixelInfo[] getTilePixels(int size)
+  {
+    if (tilePixel == null || tilePixel.length < size)
+    {
+      tilePixel = new PixelInfo [size];
+      for (int i = 0; i < size; i++)
+        tilePixel[i] = new PixelInfo();
+    }
+    return tilePixel;
+  }
+
+  /**
+   * Get the Sampler used for computing new records in the irradiance cache.
+   *
+   * @param numRays    the approximate number of rays to use for each record
+   */
+
+  public IrradianceCache.Sampler getIrradianceSampler(int numRays)
+  {
+    if (irradianceSampler == null)
+      irradianceSampler = new IrradianceCache.Sampler(numRays);
+    return irradianceSampler;
+  }
+
+  /**
+   * Get the RayPacket used for tracing eye rays in packets.  This also allocates the packetPixel and packetSample
+   * arrays, which the renderer uses to remember which pixel and sample each ray in the packet belongs to.
+   */
+
+  public RayPacket getRayPacket()
+  {
+    if (packet == null)
+    {
+      packet = new RayPacket(context);
+      packetPixel = new int [RayPacket.MAX_SIZE];
+      packetSample = new int [RayPacket.MAX_SIZE];
+    }
+    return packet;
+  }
+
   /**
    * This is called when rendering is finished.  It nulls out fields to help garbage collection.
    */
@@ -105,8 +156,11 @@ public class RenderWorkspace
   {
     matChange = null;
     tempPixel = null;
+    tilePixel = null;
+    packet = null;
     globalMap = null;
     causticsMap = null;
     volumeMap = null;
+    irradianceSampler = null;
   }
 }
@@ -20,7 +20,6 @@ import artofillusion.*;
 public class TrianglePhotonSource implements PhotonSource
 {
   private RenderingTriangle tri;
-  private RGBColor color;
   private float lightIntensity;
 
   /** Create an TrianglePhotonSource.
@@ -47,7 +46,7 @@ public class TrianglePhotonSource implements PhotonSource
 
     TextureSpec spec = map.getWorkspace().surfSpec[0];
     double third = 1.0/3.0;
-    color = new RGBColor();
+    RGBColor color = new RGBColor();
     tri.getTextureSpec(spec, 1.0, third, third, third, avgSize, map.getRaytracer().getTime());
     color.copy(spec.emissive);
     tri.getTextureSpec(spec, -1.0, third, third, third, avgSize, map.getRaytracer().getTime());
@@ -72,8 +71,37 @@ public class TrianglePhotonSource implements PhotonSource
    */
 
   @Override
-  public void generatePhotons(PhotonMap map, double intensity, ThreadManager threads)
+  public void generatePhotons(final PhotonMap map, double intensity, ThreadManager threads)
   {
+    final Thread currentThread = Thread.currentThread();
+    final int numTasks = (int) Math.ceil(intensity/PhotonMap.EMISSION_TASK_INTENSITY);
+    final double taskIntensity = intensity/numTasks;
+    threads.setNumIndices(numTasks);
+    threads.setTask(new ThreadManager.Task()
+    {
+      @Override
+      public void execute(int index)
+      {
+        if (map.getRenderer().renderThread == currentThread)
+          emitPhotons(map, taskIntensity);
+      }
+      @Override
+      public void cleanup()
+      {
+        map.getWorkspace().cleanup();
+      }
+    });
+    threads.run();
+  }
+
+  /** Emit photons from random points on the triangle until their total intensity reaches a target.
+      @param map          the PhotonMap to add the Photons to
+      @param intensity    the total intensity of Photons to emit
+  */
+
+  private void emitPhotons(PhotonMap map, double intensity)
+  {
+    RGBColor color = new RGBColor();
     RaytracerRenderer rt = map.getRenderer();
     TextureSpec spec = map.getWorkspace().surfSpec[0];
     Ray r = new Ray(map.getWorkspace().context);
@@ -0,0 +1,116 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.batch;
+
+import artofillusion.image.*;
+import java.io.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BatchRenderJobTest
+{
+  @Test
+  public void testSaveAndLoad() throws IOException
+  {
+    BatchRenderJob job = new BatchRenderJob();
+    job.setSceneFile(new File("scene.aoi"));
+    job.setOutput(new File("frame###.png"));
+    job.setCameraName("Camera 2");
+    job.setRendererName("Raytracer");
+    job.setSize(320, 200);
+    job.setFramesPerSecond(24);
+    job.setSubimages(3);
+    job.setFrameRange(-5, 10);
+    job.setQuality(75);
+    job.getConfiguration().put("antialiasing", 2);
+    job.getConfiguration().put("shadows", true);
+    job.getConfiguration().put("maxRayDepth", 8L);
+    job.getConfiguration().put("minRayIntensity", 0.01f);
+    job.getConfiguration().put("smoothing", 0.5);
+    job.getConfiguration().put("name", "a:b");
+    File file = File.createTempFile("job", ".properties");
+    try
+    {
+      job.save(file);
+      BatchRenderJob loaded = BatchRenderJob.load(file);
+      assertEquals(job.getSceneFile().getAbsoluteFile(), loaded.getSceneFile());
+      assertEquals(job.getOutput().getAbsoluteFile(), loaded.getOutput());
+      assertEquals("Camera 2", loaded.getCameraName());
+      assertEquals("Raytracer", loaded.getRendererName());
+      assertEquals(320, loaded.getWidth());
+      assertEquals(200, loaded.getHeight());
+      assertEquals(24, loaded.getFramesPerSecond());
+      assertEquals(3, loaded.getSubimages());
+      assertEquals(-5, loaded.getStartFrame());
+      assertEquals(10, loaded.getEndFrame());
+      assertEquals(75, loaded.getQuality());
+      assertEquals(job.getConfiguration(), loaded.getConfiguration());
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testOutputFile()
+  {
+    BatchRenderJob job = new BatchRenderJob();
+    job.setOutput(new File("dir", "image.png"));
+    assertEquals(new File("dir", "image.png"), job.getOutputFile(1));
+    job.setFrameRange(1, 20);
+    assertEquals(new File("dir", "image0007.png"), job.getOutputFile(7));
+    job.setOutput(new File("dir", "image"));
+    assertEquals(new File("dir", "image0007"), job.getOutputFile(7));
+    job.setOutput(new File("dir", "a##b.jpg"));
+    assertEquals(new File("dir", "a07b.jpg"), job.getOutputFile(7));
+    assertEquals(new File("dir", "a123b.jpg"), job.getOutputFile(123));
+    assertEquals(new File("dir", "a-03b.jpg"), job.getOutputFile(-3));
+    assertEquals(ImageSaver.FORMAT_JPEG, job.getOutputFormat());
+    job.setOutput(new File("image.TIFF"));
+    assertEquals(ImageSaver.FORMAT_TIFF, job.getOutputFormat());
+    job.setOutput(new File("image.hdr"));
+    assertEquals(ImageSaver.FORMAT_HDR, job.getOutputFormat());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedFormat()
+  {
+    BatchRenderJob job = new BatchRenderJob();
+    job.setOutput(new File("movie.mov"));
+    job.getOutputFormat();
+  }
+
+  @Test
+  public void testTime()
+  {
+    BatchRenderJob job = new BatchRenderJob();
+    job.setFramesPerSecond(10);
+    assertEquals(0.0, job.getTime(1, 0), 1e-10);
+    assertEquals(0.4, job.getTime(5, 0), 1e-10);
+    job.setSubimages(4);
+    assertEquals(0.4, job.getTime(5, 0), 1e-10);
+    assertEquals(0.475, job.getTime(5, 3), 1e-10);
+  }
+
+  @Test
+  public void testTaskNames()
+  {
+    for (int frame : new int [] {-12, 0, 1, 345})
+      for (int subimage : new int [] {0, 5})
+      {
+        String name = RenderCoordinator.getTaskName(frame, subimage);
+        assertEquals(frame, RenderCoordinator.getTaskFrame(name));
+        assertEquals(subimage, RenderCoordinator.getTaskSubimage(name));
+      }
+    assertTrue(RenderCoordinator.getTaskName(2, 0).compareTo(RenderCoordinator.getTaskName(10, 0)) < 0);
+  }
+}
@@ -0,0 +1,58 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.batch;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CommandLineRendererTest
+{
+  @Test
+  public void testParseOption()
+  {
+    Map<String, Object> current = new HashMap<String, Object>();
+    current.put("shadows", false);
+    current.put("antialiasing", 1);
+    current.put("smoothing", 1.0);
+    current.put("error", 0.5f);
+    current.put("name", "a");
+    current.put("unset", null);
+    assertEquals(Boolean.TRUE, CommandLineRenderer.parseOption("shadows", "TRUE", current));
+    assertEquals(2, CommandLineRenderer.parseOption("antialiasing", "2", current));
+    assertEquals(0.25, CommandLineRenderer.parseOption("smoothing", "0.25", current));
+    assertEquals(0.1f, CommandLineRenderer.parseOption("error", "0.1", current));
+    assertEquals("b", CommandLineRenderer.parseOption("name", "b", current));
+    assertEquals("c", CommandLineRenderer.parseOption("unset", "c", current));
+    for (String bad[] : new String [][] {{"shadows", "yes"}, {"antialiasing", "1.5"}, {"missing", "1"}})
+    {
+      try
+      {
+        CommandLineRenderer.parseOption(bad[0], bad[1], current);
+        fail("Accepted "+bad[0]+"="+bad[1]);
+      }
+      catch (IllegalArgumentException ex)
+      {
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidArguments()
+  {
+    PrintStream out = new PrintStream(new ByteArrayOutputStream());
+    assertEquals(2, CommandLineRenderer.run(new String [] {"-bogus", "1", "scene.aoi"}, out));
+    assertEquals(2, CommandLineRenderer.run(new String [] {"-frames", "5-1", "scene.aoi"}, out));
+    assertEquals(2, CommandLineRenderer.run(new String [] {"-size", "100", "scene.aoi"}, out));
+    assertEquals(2, CommandLineRenderer.run(new String [] {"scene.aoi", "-output"}, out));
+  }
+}
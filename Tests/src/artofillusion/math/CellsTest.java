@@ -0,0 +1,55 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.math;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CellsTest
+{
+  @Test
+  public void testBatch()
+  {
+    // Evaluate a batch of points which are close together, so the cached feature points get
+    // reused, and compare them to the values from a new Cells object for each point.
+
+    int count = 500;
+    double x[] = new double [count], y[] = new double [count], z[] = new double [count];
+    for (int i = 0; i < count; i++)
+    {
+      x[i] = 0.01*i-2.5;
+      y[i] = 2.0*Math.random();
+      z[i] = 3.0*Math.random()-1.0;
+    }
+    for (int metric = Cells.EUCLIDEAN; metric <= Cells.CHESS_BOARD; metric++)
+    {
+      Cells cells = new Cells();
+      cells.setMetric(metric);
+      double value[][] = new double [3][count];
+      int id[][] = new int [3][count];
+      cells.calcFunctions(x, y, z, count, value, id);
+      for (int i = 0; i < count; i++)
+      {
+        Cells single = new Cells();
+        single.setMetric(metric);
+        double expectedValue[] = new double [3];
+        int expectedId[] = new int [3];
+        Vec3 grad[] = new Vec3 [] {new Vec3(), new Vec3(), new Vec3()};
+        single.calcFunctions(new Vec3(x[i], y[i], z[i]), expectedValue, grad, expectedId);
+        for (int j = 0; j < 3; j++)
+        {
+          assertEquals(expectedValue[j], value[j][i], 0.0);
+          assertEquals(expectedId[j], id[j][i]);
+        }
+      }
+    }
+  }
+}
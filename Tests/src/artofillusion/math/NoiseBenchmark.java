@@ -0,0 +1,258 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.math;
+
+import artofillusion.procedural.*;
+import artofillusion.procedural.Module;
+import java.awt.*;
+import java.util.*;
+
+/**
+ * This measures the throughput of the noise functions, both one point at a time and in batches, and of
+ * the TurbulenceModule and CellsModule when evaluated through a compiled procedure.  Run it with
+ * "ant benchmark", or directly with the class path used by the tests.  Each line of the report gives
+ * the number of points evaluated per microsecond, so higher is better.
+ * <p>
+ * The arguments, if given, are the number of seconds to spend warming up each case and the number of
+ * seconds to spend measuring it.
+ */
+
+public class NoiseBenchmark
+{
+  private static final int POINTS = 1024;
+
+  private final double x[], y[], z[], result[];
+  private final float xf[], yf[], zf[], resultf[];
+  private final double warmup, measure;
+
+  /** This accumulates the results, so the JIT compiler cannot discard the calculations. */
+
+  private static volatile double sink;
+
+  public static void main(String args[])
+  {
+    double warmup = (args.length > 0 ? Double.parseDouble(args[0]) : 2.0);
+    double measure = (args.length > 1 ? Double.parseDouble(args[1]) : 3.0);
+    new NoiseBenchmark(warmup, measure).run();
+  }
+
+  private NoiseBenchmark(double warmup, double measure)
+  {
+    this.warmup = warmup;
+    this.measure = measure;
+    x = new double [POINTS];
+    y = new double [POINTS];
+    z = new double [POINTS];
+    result = new double [POINTS];
+    xf = new float [POINTS];
+    yf = new float [POINTS];
+    zf = new float [POINTS];
+    resultf = new float [POINTS];
+
+    // Use a strip of nearby points, as a renderer would.
+
+    Random random = new Random(0);
+    for (int i = 0; i < POINTS; i++)
+    {
+      x[i] = 0.01*i;
+      y[i] = 10.0+random.nextDouble();
+      z[i] = -10.0+random.nextDouble();
+      xf[i] = (float) x[i];
+      yf[i] = (float) y[i];
+      zf[i] = (float) z[i];
+    }
+  }
+
+  private void run()
+  {
+    System.out.println("Java "+System.getProperty("java.version")+" ("+System.getProperty("java.vm.name")+")");
+    System.out.println("Points per microsecond:");
+    time("SimplexNoise.noise (scalar)", new Runnable() {
+      @Override
+      public void run()
+      {
+        for (int i = 0; i < POINTS; i++)
+          result[i] = SimplexNoise.noise(x[i], y[i], z[i]);
+      }
+    });
+    time("SimplexNoise.noise (batch)", new Runnable() {
+      @Override
+      public void run()
+      {
+        SimplexNoise.noise(x, y, z, result, POINTS);
+      }
+    });
+    time("SimplexNoise.noise (float batch)", new Runnable() {
+      @Override
+      public void run()
+      {
+        SimplexNoise.noise(xf, yf, zf, resultf, POINTS);
+        result[0] = resultf[0];
+      }
+    });
+    final Vec3 grad = new Vec3(), vector = new Vec3();
+    time("SimplexNoise.noiseGradient", new Runnable() {
+      @Override
+      public void run()
+      {
+        for (int i = 0; i < POINTS; i++)
+        {
+          SimplexNoise.noiseGradient(grad, x[i], y[i], z[i]);
+          result[i] = grad.x;
+        }
+      }
+    });
+    time("SimplexNoise.noiseVector", new Runnable() {
+      @Override
+      public void run()
+      {
+        for (int i = 0; i < POINTS; i++)
+        {
+          SimplexNoise.noiseVector(vector, x[i], y[i], z[i]);
+          result[i] = vector.x;
+        }
+      }
+    });
+    time("PerlinNoise.value (scalar)", new Runnable() {
+      @Override
+      public void run()
+      {
+        for (int i = 0; i < POINTS; i++)
+          result[i] = PerlinNoise.value(x[i], y[i], z[i]);
+      }
+    });
+    time("PerlinNoise.value (batch)", new Runnable() {
+      @Override
+      public void run()
+      {
+        PerlinNoise.value(x, y, z, result, POINTS);
+      }
+    });
+    time("PerlinNoise.calcGradient", new Runnable() {
+      @Override
+      public void run()
+      {
+        for (int i = 0; i < POINTS; i++)
+        {
+          PerlinNoise.calcGradient(grad, x[i], y[i], z[i]);
+          result[i] = grad.x;
+        }
+      }
+    });
+    time("Noise.value (scalar)", new Runnable() {
+      @Override
+      public void run()
+      {
+        for (int i = 0; i < POINTS; i++)
+          result[i] = Noise.value(x[i], y[i], z[i]);
+      }
+    });
+    time("Noise.value (batch)", new Runnable() {
+      @Override
+      public void run()
+      {
+        Noise.value(x, y, z, result, POINTS);
+      }
+    });
+    final Cells cells = new Cells();
+    final double cellValue[] = new double [2];
+    final int cellId[] = new int [2];
+    final double cellValues[][] = new double [2][POINTS];
+    final int cellIds[][] = new int [2][POINTS];
+    time("Cells.calcFunctions (scalar)", new Runnable() {
+      @Override
+      public void run()
+      {
+        for (int i = 0; i < POINTS; i++)
+        {
+          vector.set(x[i], y[i], z[i]);
+          cells.calcFunctions(vector, cellValue, null, cellId);
+          result[i] = cellValue[0];
+        }
+      }
+    });
+    time("Cells.calcFunctions (batch)", new Runnable() {
+      @Override
+      public void run()
+      {
+        cells.calcFunctions(x, y, z, POINTS, cellValues, cellIds);
+        result[0] = cellValues[0][0];
+      }
+    });
+    timeProcedure("TurbulenceModule", new TurbulenceModule(new Point()));
+    timeProcedure("CellsModule", new CellsModule(new Point()));
+  }
+
+  /**
+   * Measure a procedure whose only output is connected to a module, both through the interpreter
+   * and as a compiled Batch.
+   */
+
+  private void timeProcedure(String name, Module module)
+  {
+    final Procedure proc = new Procedure(new OutputModule [] {new OutputModule("Value", "0", 0.0, null, IOPort.NUMBER)});
+    proc.addModule(module);
+    proc.addLink(new Link(module.getOutputPorts()[0], proc.getOutputModules()[0].getInputPorts()[0]));
+    final PointInfo point = new PointInfo();
+    point.xsize = point.ysize = point.zsize = 0.01;
+    time(name+" (interpreted)", new Runnable() {
+      @Override
+      public void run()
+      {
+        OutputModule output = proc.getOutputModules()[0];
+        for (int i = 0; i < POINTS; i++)
+        {
+          point.x = x[i];
+          point.y = y[i];
+          point.z = z[i];
+          proc.initForPoint(point);
+          result[i] = output.getAverageValue(0, 0.0);
+        }
+      }
+    });
+    CompiledProcedure compiled = new CompiledProcedure(proc, new int [] {0}, new int [0]);
+    final CompiledProcedure.Batch batch = compiled.createBatch(POINTS);
+    System.arraycopy(x, 0, batch.x, 0, POINTS);
+    System.arraycopy(y, 0, batch.y, 0, POINTS);
+    System.arraycopy(z, 0, batch.z, 0, POINTS);
+    Arrays.fill(batch.xsize, 0.01);
+    Arrays.fill(batch.ysize, 0.01);
+    Arrays.fill(batch.zsize, 0.01);
+    time(name+" (compiled batch)", new Runnable() {
+      @Override
+      public void run()
+      {
+        batch.evaluate(POINTS);
+        result[0] = batch.getOutputValue(0, 0);
+      }
+    });
+  }
+
+  /** Run a task repeatedly, and print how many points it processed per microsecond. */
+
+  private void time(String name, Runnable task)
+  {
+    long end = System.nanoTime()+(long) (warmup*1e9);
+    while (System.nanoTime() < end)
+      task.run();
+    long start = System.nanoTime(), elapsed;
+    end = start+(long) (measure*1e9);
+    int repeats = 0;
+    do
+    {
+      task.run();
+      sink += result[0];
+      repeats++;
+      elapsed = System.nanoTime()-start;
+    } while (start+elapsed < end);
+    System.out.printf("  %-40s %10.2f%n", name, repeats*(double) POINTS*1000.0/elapsed);
+  }
+}
@@ -0,0 +1,35 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.math;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PerlinNoiseTest
+{
+  @Test
+  public void testBatch()
+  {
+    // The batch method should give the same values as evaluating each point separately.
+
+    int count = 1000;
+    double x[] = new double [count], y[] = new double [count], z[] = new double [count], result[] = new double [count];
+    for (int i = 0; i < count; i++)
+    {
+      x[i] = 1000.0*Math.random()-500.0;
+      y[i] = 1000.0*Math.random()-500.0;
+      z[i] = (i < 100 ? Math.floor(x[i]) : 1000.0*Math.random()-500.0);
+    }
+    PerlinNoise.value(x, y, z, result, count);
+    for (int i = 0; i < count; i++)
+      assertEquals(PerlinNoise.value(x[i], y[i], z[i]), result[i], 1e-15);
+  }
+}
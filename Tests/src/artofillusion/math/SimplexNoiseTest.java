@@ -104,6 +104,35 @@ public class SimplexNoiseTest
     assertTrue(avgLength > 0.3);
   }
 
+  @Test
+  public void testBatch()
+  {
+    // The batch methods should give the same values as evaluating each point separately.
+
+    int count = 1000;
+    double x[] = new double [count], y[] = new double [count], z[] = new double [count], result[] = new double [count];
+    float xf[] = new float [count], yf[] = new float [count], zf[] = new float [count], resultf[] = new float [count];
+    for (int i = 0; i < count; i++)
+    {
+      x[i] = rand();
+      y[i] = rand();
+      z[i] = (i < 100 ? x[i] : rand());
+      xf[i] = (float) (0.01*x[i]);
+      yf[i] = (float) (0.01*y[i]);
+      zf[i] = (float) (0.01*z[i]);
+    }
+    SimplexNoise.noise(x, y, z, result, count);
+    SimplexNoise.noise(xf, yf, zf, resultf, count);
+    for (int i = 0; i < count; i++)
+    {
+      assertEquals(SimplexNoise.noise(x[i], y[i], z[i]), result[i], 0.0);
+      assertEquals(SimplexNoise.noise(xf[i], yf[i], zf[i]), resultf[i], 1e-4);
+    }
+    Noise.value(x, y, z, result, count);
+    for (int i = 0; i < count; i++)
+      assertEquals(Noise.value(x[i], y[i], z[i]), result[i], 0.0);
+  }
+
   private double rand()
   {
     return 1000.0*Math.random()-500.0;
@@ -0,0 +1,416 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.procedural;
+
+import artofillusion.math.*;
+import java.awt.*;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CompiledProcedureTest
+{
+  private Procedure proc;
+
+  /** A module that the compiler does not know about, standing in for one from a plugin. */
+
+  public static class PluginModule extends ProceduralModule
+  {
+    public PluginModule(Point position)
+    {
+      super("plugin", new IOPort[] {new IOPort(IOPort.NUMBER, IOPort.INPUT, IOPort.LEFT, "Input", "(0)")},
+        new IOPort[] {new IOPort(IOPort.NUMBER, IOPort.OUTPUT, IOPort.RIGHT, "Output")},
+        position);
+    }
+
+    @Override
+    public double getAverageValue(int which, double blur)
+    {
+      return (linkFrom[0] == null ? 0.0 : 2.0*linkFrom[0].getAverageValue(linkFromIndex[0], blur+0.1));
+    }
+
+    @Override
+    public void getValueGradient(int which, Vec3 grad, double blur)
+    {
+      if (linkFrom[0] == null)
+        grad.set(0.0, 0.0, 0.0);
+      else
+      {
+        linkFrom[0].getValueGradient(linkFromIndex[0], grad, blur+0.1);
+        grad.scale(2.0);
+      }
+    }
+  }
+
+  @Before
+  public void setUp()
+  {
+    proc = new Procedure(new OutputModule [] {
+      new OutputModule("Color 1", "white", 0.0, new RGBColor(1.0f, 1.0f, 1.0f), IOPort.COLOR),
+      new OutputModule("Color 2", "black", 0.0, new RGBColor(0.0f, 0.0f, 0.0f), IOPort.COLOR),
+      new OutputModule("Value 1", "0", 0.0, null, IOPort.NUMBER),
+      new OutputModule("Value 2", "0", 0.25, null, IOPort.NUMBER),
+      new OutputModule("Value 3", "0", 0.0, null, IOPort.NUMBER)
+    });
+  }
+
+  private <T extends Module> T add(T module)
+  {
+    proc.addModule(module);
+    return module;
+  }
+
+  private void link(Module from, int fromPort, Module to, int toPort)
+  {
+    proc.addLink(new Link(from.getOutputPorts()[fromPort], to.getInputPorts()[toPort]));
+  }
+
+  private void link(Module from, int fromPort, int output)
+  {
+    OutputModule to = proc.getOutputModules()[output];
+    proc.addLink(new Link(from.getOutputPorts()[fromPort], to.getInputPorts()[0]));
+  }
+
+  private CompiledProcedure compileAll()
+  {
+    return new CompiledProcedure(proc, new int [] {0, 1, 2, 3, 4}, new int [] {2, 3, 4});
+  }
+
+  /**
+   * Evaluate the procedure at random points, and check that the compiled version gives the same results,
+   * both when evaluating one point at a time and when evaluating them all as a Batch.
+   */
+
+  private void checkResults(CompiledProcedure compiled)
+  {
+    int count = 200;
+    CompiledProcedure.Frame frame = compiled.createFrame();
+    CompiledProcedure.Batch batch = compiled.createBatch(count+10);
+    OutputModule output[] = proc.getOutputModules();
+    Random random = new Random(0);
+    PointInfo point[] = new PointInfo [count];
+    for (int i = 0; i < count; i++)
+    {
+      point[i] = new PointInfo();
+      point[i].x = batch.x[i] = 4.0*random.nextDouble()-2.0;
+      point[i].y = batch.y[i] = 4.0*random.nextDouble()-2.0;
+      point[i].z = batch.z[i] = 4.0*random.nextDouble()-2.0;
+      point[i].xsize = point[i].ysize = point[i].zsize = (i%2 == 0 ? 0.0 : 0.1*random.nextDouble());
+      batch.xsize[i] = batch.ysize[i] = batch.zsize[i] = point[i].xsize;
+      point[i].t = batch.t[i] = random.nextDouble();
+      point[i].viewangle = batch.viewangle[i] = random.nextDouble();
+    }
+    batch.evaluate(count);
+    RGBColor expectedColor = new RGBColor(), actualColor = new RGBColor();
+    Vec3 expectedGrad = new Vec3(), actualGrad = new Vec3();
+    for (int i = 0; i < count; i++)
+    {
+      proc.initForPoint(point[i]);
+      frame.evaluate(point[i]);
+      for (int j = 0; j < 2; j++)
+      {
+        if (compiled.outputSlot[j] == -1)
+          continue;
+        output[j].getColor(0, expectedColor, 0.0);
+        frame.getOutputColor(j, actualColor);
+        assertEquals(expectedColor, actualColor);
+        batch.getOutputColor(j, i, actualColor);
+        assertEquals(expectedColor, actualColor);
+      }
+      for (int j = 2; j < 5; j++)
+      {
+        if (compiled.outputSlot[j] == -1)
+          continue;
+        double expected = output[j].getAverageValue(0, 0.0);
+        assertEquals(expected, frame.getOutputValue(j), 1e-10);
+        assertEquals(frame.getOutputValue(j), batch.getOutputValue(j, i), 0.0);
+        assertEquals(frame.getOutputValue(j), batch.getOutputValues(j)[i], 0.0);
+        output[j].getValueGradient(0, expectedGrad, 0.0);
+        frame.getOutputGradient(j, actualGrad);
+        assertEquals(expectedGrad.x, actualGrad.x, 1e-10);
+        assertEquals(expectedGrad.y, actualGrad.y, 1e-10);
+        assertEquals(expectedGrad.z, actualGrad.z, 1e-10);
+        batch.getOutputGradient(j, i, expectedGrad);
+        assertEquals(actualGrad.x, expectedGrad.x, 0.0);
+        assertEquals(actualGrad.y, expectedGrad.y, 0.0);
+        assertEquals(actualGrad.z, expectedGrad.z, 0.0);
+      }
+    }
+  }
+
+  @Test
+  public void testUnconnected()
+  {
+    CompiledProcedure compiled = compileAll();
+    assertEquals(0, compiled.op.length);
+    checkResults(compiled);
+    assertEquals(0.25, compiled.createFrame().getOutputValue(3), 0.0);
+  }
+
+  @Test
+  public void testArithmetic()
+  {
+    Module x = add(new CoordinateModule(new Point(), CoordinateModule.X));
+    Module y = add(new CoordinateModule(new Point(), CoordinateModule.Y));
+    Module number = add(new NumberModule(new Point(), 1.5));
+    Module sum = add(new SumModule(new Point()));
+    Module difference = add(new DifferenceModule(new Point()));
+    Module product = add(new ProductModule(new Point()));
+    Module ratio = add(new RatioModule(new Point()));
+    ScaleShiftModule scaleShift = add(new ScaleShiftModule(new Point()));
+    scaleShift.setScale(-2.0);
+    scaleShift.setShift(0.5);
+    link(x, 0, sum, 0);
+    link(number, 0, sum, 1);
+    link(sum, 0, difference, 0);
+    link(y, 0, difference, 1);
+    link(difference, 0, product, 0);
+    link(x, 0, product, 1);
+    link(product, 0, ratio, 0);
+    link(sum, 0, ratio, 1);
+    link(ratio, 0, scaleShift, 0);
+    link(product, 0, 2);
+    link(ratio, 0, 3);
+    link(scaleShift, 0, 4);
+    checkResults(compileAll());
+  }
+
+  @Test
+  public void testNoise()
+  {
+    Module noise = add(new NoiseModule(new Point()));
+    TurbulenceModule turbulence = add(new TurbulenceModule(new Point()));
+    turbulence.setOctaves(6);
+    Module y = add(new CoordinateModule(new Point(), CoordinateModule.Y));
+    ScaleShiftModule scale = add(new ScaleShiftModule(new Point()));
+    scale.setScale(5.0);
+    Module persistence = add(new NumberModule(new Point(), 0.7));
+    link(y, 0, scale, 0);
+    link(scale, 0, turbulence, 0);
+    link(noise, 0, turbulence, 2);
+    link(persistence, 0, turbulence, 3);
+    link(noise, 0, 2);
+    link(turbulence, 0, 3);
+    checkResults(compileAll());
+  }
+
+  @Test
+  public void testColors()
+  {
+    Module noise = add(new NoiseModule(new Point()));
+    Module x = add(new CoordinateModule(new Point(), CoordinateModule.X));
+    Module rgb = add(new RGBModule(new Point()));
+    Module color = add(new ColorModule(new Point(), new RGBColor(0.2f, 0.4f, 0.9f)));
+    Module blend = add(new BlendModule(new Point()));
+    Module colorSum = add(new ColorSumModule(new Point()));
+    Module colorScale = add(new ColorScaleModule(new Point()));
+    Module colorProduct = add(new ColorProductModule(new Point()));
+    Module colorDifference = add(new ColorDifferenceModule(new Point()));
+    link(noise, 0, rgb, 0);
+    link(x, 0, rgb, 2);
+    link(rgb, 0, blend, 0);
+    link(color, 0, blend, 1);
+    link(noise, 0, blend, 2);
+    link(blend, 0, colorSum, 0);
+    link(color, 0, colorSum, 1);
+    link(colorSum, 0, colorScale, 0);
+    link(x, 0, colorScale, 1);
+    link(colorScale, 0, colorProduct, 0);
+    link(rgb, 0, colorProduct, 1);
+    link(colorProduct, 0, colorDifference, 1);
+    link(colorScale, 0, 0);
+    link(colorDifference, 0, 1);
+    checkResults(compileAll());
+  }
+
+  @Test
+  public void testExpression()
+  {
+    Module noise = add(new NoiseModule(new Point()));
+    ExprModule expr = add(new ExprModule(new Point()));
+    link(noise, 0, expr, 0);
+    expr.setExpr("sin(x*3)+pow(y,2)*input1-abs(z)/(1+max(x,t))");
+    link(expr, 0, 2);
+    link(noise, 0, 3);
+    CompiledProcedure compiled = compileAll();
+    checkResults(compiled);
+    assertEquals(0, compiled.interpreted.length);
+    for (Module module : compiled.module)
+      assertFalse(module instanceof ExprModule);
+  }
+
+  @Test
+  public void testOtherModules()
+  {
+    Module cells = add(new CellsModule(new Point()));
+    Module polar = add(new PolarModule(new Point()));
+    Module clip = add(new ClipModule(new Point()));
+    Module min = add(new MinModule(new Point()));
+    Module hsv = add(new HSVModule(new Point()));
+    Module viewAngle = add(new ViewAngleModule(new Point()));
+    link(cells, 1, polar, 0);
+    link(cells, 2, polar, 1);
+    link(polar, 1, clip, 0);
+    link(clip, 0, min, 0);
+    link(viewAngle, 0, min, 1);
+    link(min, 0, hsv, 0);
+    link(polar, 0, hsv, 2);
+    link(hsv, 0, 0);
+    link(cells, 0, 2);
+    link(min, 0, 3);
+    link(polar, 0, 4);
+    checkResults(compileAll());
+  }
+
+  @Test
+  public void testCells()
+  {
+    CellsModule cells1 = add(new CellsModule(new Point()));
+    CellsModule cells2 = add(new CellsModule(new Point()));
+    cells2.setMetric(Cells.CITY_BLOCK);
+    Module noise = add(new NoiseModule(new Point()));
+    ScaleShiftModule scale = add(new ScaleShiftModule(new Point()));
+    scale.setScale(3.0);
+    link(noise, 0, scale, 0);
+    link(scale, 0, cells1, 1);
+    link(cells1, 1, cells2, 0);
+    link(cells1, 0, 2);
+    link(cells2, 2, 3);
+    link(cells1, 1, 4);
+    checkResults(compileAll());
+
+    // Try it with only the nearest feature point being needed.
+
+    checkResults(new CompiledProcedure(proc, new int [] {4}, new int [] {4}));
+  }
+
+  @Test
+  public void testInterpreted()
+  {
+    Module noise = add(new NoiseModule(new Point()));
+    Module plugin = add(new PluginModule(new Point()));
+    Module blur = add(new BlurModule(new Point()));
+    Module sum = add(new SumModule(new Point()));
+    Module x = add(new CoordinateModule(new Point(), CoordinateModule.X));
+    link(noise, 0, plugin, 0);
+    link(noise, 0, blur, 1);
+    link(plugin, 0, sum, 0);
+    link(x, 0, sum, 1);
+    link(sum, 0, 2);
+    link(blur, 0, 3);
+    link(noise, 0, 4);
+    CompiledProcedure compiled = compileAll();
+    assertEquals(3, compiled.interpreted.length);
+    checkResults(compiled);
+  }
+
+  @Test
+  public void testOptimizations()
+  {
+    // Constant expressions should be evaluated in advance.
+
+    Module number1 = add(new NumberModule(new Point(), 2.0));
+    Module number2 = add(new NumberModule(new Point(), 3.0));
+    Module product = add(new ProductModule(new Point()));
+    Module sine = add(new SineModule(new Point()));
+    link(number1, 0, product, 0);
+    link(number2, 0, product, 1);
+    link(product, 0, 2);
+    link(product, 0, sine, 0);
+    link(sine, 0, 3);
+
+    // Modules that are not used should be discarded.
+
+    Module noise = add(new NoiseModule(new Point()));
+    link(noise, 0, 4);
+    CompiledProcedure compiled = new CompiledProcedure(proc, new int [] {2, 3}, new int [0]);
+    assertEquals(1, compiled.op.length);
+    assertTrue(compiled.op[0] instanceof CompiledOp.ModuleOp);
+    CompiledProcedure.Frame frame = compiled.createFrame();
+    frame.evaluate(new PointInfo());
+    assertEquals(6.0, frame.getOutputValue(2), 0.0);
+    assertEquals(Math.sin(6.0), frame.getOutputValue(3), 1e-10);
+
+    // Errors and gradients should only be calculated when they are needed.
+
+    compiled = new CompiledProcedure(proc, new int [] {4}, new int [0]);
+    assertEquals(CompiledOp.VALUE, compiled.op[compiled.op.length-1].demand[0]);
+    compiled = new CompiledProcedure(proc, new int [0], new int [] {4});
+    assertEquals(CompiledOp.VALUE+CompiledOp.GRADIENT, compiled.op[compiled.op.length-1].demand[0]);
+  }
+
+  @Test
+  public void testFramePool() throws Exception
+  {
+    Module noise = add(new NoiseModule(new Point()));
+    link(noise, 0, 2);
+    final CompiledProcedure compiled = compileAll();
+
+    // A released Frame should be reused by the same thread, but never given to two callers at once.
+
+    CompiledProcedure.Frame frame1 = compiled.acquireFrame();
+    CompiledProcedure.Frame frame2 = compiled.acquireFrame();
+    assertNotSame(frame1, frame2);
+    compiled.releaseFrame(frame1);
+    assertSame(frame1, compiled.acquireFrame());
+
+    // Every Frame released by one thread should be kept, and another thread should be able to reuse them.
+
+    compiled.releaseFrame(frame1);
+    compiled.releaseFrame(frame2);
+    final Set<CompiledProcedure.Frame> reused = new HashSet<CompiledProcedure.Frame>();
+    Thread other = new Thread() {
+      @Override
+      public void run()
+      {
+        reused.add(compiled.acquireFrame());
+        reused.add(compiled.acquireFrame());
+      }
+    };
+    other.start();
+    other.join();
+    assertEquals(new HashSet<CompiledProcedure.Frame>(Arrays.asList(frame1, frame2)), reused);
+
+    // Many threads evaluating it at once should all get correct results.
+
+    final PointInfo point = new PointInfo();
+    point.x = 0.3;
+    point.y = 0.7;
+    point.z = -1.2;
+    CompiledProcedure.Frame frame = compiled.acquireFrame();
+    frame.evaluate(point);
+    final double expected = frame.getOutputValue(2);
+    final boolean failed[] = new boolean [1];
+    Thread thread[] = new Thread [8];
+    for (int i = 0; i < thread.length; i++)
+    {
+      thread[i] = new Thread() {
+        @Override
+        public void run()
+        {
+          for (int j = 0; j < 1000; j++)
+          {
+            CompiledProcedure.Frame frame = compiled.acquireFrame();
+            frame.evaluate(point);
+            if (frame.getOutputValue(2) != expected)
+              failed[0] = true;
+            compiled.releaseFrame(frame);
+          }
+        }
+      };
+      thread[i].start();
+    }
+    for (Thread t : thread)
+      t.join();
+    assertFalse(failed[0]);
+  }
+}
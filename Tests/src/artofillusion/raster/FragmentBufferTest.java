@@ -0,0 +1,187 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raster;
+
+import artofillusion.math.*;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FragmentBufferTest
+{
+  private static final int WHITE = new RGBColor(1.0f, 1.0f, 1.0f).getERGB();
+  private static final int GRAY = new RGBColor(0.5f, 0.5f, 0.5f).getERGB();
+
+  /**
+   * Transparent fragments should be kept in order from front to back, and an opaque fragment should
+   * discard everything behind it.
+   */
+
+  @Test
+  public void testOrdering()
+  {
+    FragmentBuffer buffer = new FragmentBuffer(10, 10, 4);
+    int index = 3*10+5;
+    assertTrue(buffer.isBackground(index));
+    assertEquals(FragmentBuffer.END, buffer.getFirstFragment(index));
+    buffer.addFragment(5, 3, 1, GRAY, 2.0f, null, false);
+    buffer.addFragment(5, 3, 2, GRAY, 1.0f, null, false);
+    buffer.addFragment(5, 3, 3, GRAY, 4.0f, null, false);
+    buffer.addFragment(5, 3, 4, GRAY, 3.0f, null, false);
+    assertArrayEquals(new float [] {1.0f, 2.0f, 3.0f, 4.0f}, getDepths(buffer, 5, 3), 0.0f);
+    assertEquals(2, buffer.getFrontColor(5, 3));
+    assertEquals(1.0f, buffer.getFrontDepth(5, 3), 0.0f);
+    buffer.addFragment(5, 3, 5, 0, 2.5f, null, false);
+    assertFalse(buffer.isBackground(index));
+    assertEquals(5, buffer.getOpaqueColor(index));
+    assertEquals(2.5f, buffer.getOpaqueDepth(index), 0.0f);
+    assertArrayEquals(new float [] {1.0f, 2.0f}, getDepths(buffer, 5, 3), 0.0f);
+
+    // Anything behind the opaque fragment should be ignored, as should fragments that have no effect.
+
+    buffer.addFragment(5, 3, 6, GRAY, 2.5f, null, false);
+    buffer.addFragment(5, 3, 7, 0, 3.0f, null, false);
+    buffer.addFragment(5, 3, 0, WHITE, 0.5f, null, false);
+    assertArrayEquals(new float [] {1.0f, 2.0f}, getDepths(buffer, 5, 3), 0.0f);
+    assertEquals(5, buffer.getOpaqueColor(index));
+    buffer.addFragment(5, 3, 8, 0, 0.5f, null, false);
+    assertEquals(0, getDepths(buffer, 5, 3).length);
+    assertEquals(8, buffer.getFrontColor(5, 3));
+    assertEquals(0.5f, buffer.getFrontDepth(5, 3), 0.0f);
+
+    // Other pixels should not have been affected.
+
+    for (int x = 0; x < 10; x++)
+      for (int y = 0; y < 10; y++)
+        if (x != 5 || y != 3)
+          assertTrue(buffer.isBackground(y*10+x));
+  }
+
+  /**
+   * A fragment entering a material should go in front of one exiting the same material at the same depth.
+   */
+
+  @Test
+  public void testMaterials()
+  {
+    FragmentBuffer buffer = new FragmentBuffer(4, 4, 4);
+    ObjectMaterialInfo material = new ObjectMaterialInfo(null, null);
+    buffer.addFragment(1, 1, 1, GRAY, 1.0f, material, false);
+    buffer.addFragment(1, 1, 2, GRAY, 1.0f, material, true);
+    buffer.addFragment(1, 1, 3, WHITE, 1.0f, material, false);
+    buffer.addFragment(1, 1, 0, WHITE, 1.0f, null, false);
+    FragmentBuffer.Tile tile = buffer.getTile(1, 1);
+    int f = buffer.getFirstFragment(5);
+    assertEquals(2, tile.getAdditiveColor(f));
+    assertTrue(tile.isEntering(f));
+    assertSame(material, tile.getMaterialMapping(f));
+    f = tile.getNext(f);
+    assertEquals(1, tile.getAdditiveColor(f));
+    assertFalse(tile.isEntering(f));
+    f = tile.getNext(f);
+    assertEquals(3, tile.getAdditiveColor(f));
+    assertEquals(FragmentBuffer.END, tile.getNext(f));
+  }
+
+  /**
+   * Fragments hidden by opaque ones should be returned to the tile's pool and reused, so the pool does not
+   * keep growing.
+   */
+
+  @Test
+  public void testReuse()
+  {
+    FragmentBuffer buffer = new FragmentBuffer(64, 64, 32);
+    Random random = new Random(0);
+    for (int pass = 0; pass < 20; pass++)
+    {
+      float depth = 100.0f-pass;
+      for (int i = 0; i < 5; i++)
+        for (int x = 0; x < 32; x++)
+          for (int y = 0; y < 32; y++)
+            buffer.addFragment(x, y, 1, GRAY, depth-random.nextFloat()*0.5f, null, false);
+      for (int x = 0; x < 32; x++)
+        for (int y = 0; y < 32; y++)
+          buffer.addFragment(x, y, 2, 0, depth-0.75f, null, false);
+      assertEquals(0, buffer.getTile(0, 0).getNumFragments());
+    }
+    assertEquals(0, buffer.getTile(40, 40).getNumFragments());
+    buffer.addFragment(40, 40, 1, GRAY, 1.0f, null, false);
+    assertEquals(1, buffer.getTile(40, 40).getNumFragments());
+    assertNotSame(buffer.getTile(0, 0), buffer.getTile(40, 40));
+    assertSame(buffer.getTile(32, 32), buffer.getTile(63, 63));
+  }
+
+  /**
+   * A rectangle should be reported as hidden only if every pixel in it has an opaque fragment in front of
+   * the depth being checked.
+   */
+
+  @Test
+  public void testHidden()
+  {
+    FragmentBuffer buffer = new FragmentBuffer(100, 70, 32);
+    assertFalse(buffer.isHidden(0, 0, 99, 69, 10.0f));
+    assertFalse(buffer.isHidden(5, 5, 5, 5, 10.0f));
+    assertTrue(buffer.isHidden(100, 0, 120, 69, 10.0f));
+
+    // Cover a region with opaque fragments at varying depths.
+
+    Random random = new Random(0);
+    for (int x = 10; x < 80; x++)
+      for (int y = 20; y < 65; y++)
+        if (x != 40 || y != 40)
+          buffer.addFragment(x, y, 1, 0, 2.0f+random.nextFloat(), null, false);
+    buffer.addFragment(40, 40, 1, 0, 5.0f, null, false);
+    buffer.addFragment(45, 30, 1, GRAY, 0.5f, null, false);
+    assertTrue(buffer.isHidden(10, 20, 79, 64, 5.5f));
+    assertFalse(buffer.isHidden(10, 20, 79, 64, 4.5f));
+    assertTrue(buffer.isHidden(11, 21, 39, 64, 3.5f));
+    assertTrue(buffer.isHidden(41, 20, 79, 64, 3.5f));
+    assertFalse(buffer.isHidden(9, 20, 30, 30, 5.5f));
+    assertFalse(buffer.isHidden(70, 60, 80, 65, 5.5f));
+    assertFalse(buffer.isHidden(40, 40, 40, 40, 4.5f));
+    assertTrue(buffer.isHidden(41, 40, 41, 40, 4.5f));
+
+    // Adding closer fragments should be reflected the next time it is checked.
+
+    buffer.addFragment(40, 40, 1, 0, 1.0f, null, false);
+    assertTrue(buffer.isHidden(10, 20, 79, 64, 4.5f));
+
+    // Compare against checking every pixel directly.
+
+    for (int i = 0; i < 1000; i++)
+    {
+      int x1 = random.nextInt(100), x2 = x1+random.nextInt(100-x1), y1 = random.nextInt(70), y2 = y1+random.nextInt(70-y1);
+      float depth = 2.0f+1.2f*random.nextFloat();
+      boolean expected = true;
+      for (int x = x1; x <= x2; x++)
+        for (int y = y1; y <= y2; y++)
+          if (buffer.getOpaqueDepth(y*100+x) >= depth)
+            expected = false;
+      assertEquals(expected, buffer.isHidden(x1, y1, x2, y2, depth));
+    }
+  }
+
+  /** Get the depths of all the transparent fragments in a pixel, from front to back. */
+
+  private static float [] getDepths(FragmentBuffer buffer, int x, int y)
+  {
+    FragmentBuffer.Tile tile = buffer.getTile(x, y);
+    ArrayList<Float> depths = new ArrayList<Float>();
+    for (int f = buffer.getFirstFragment(y*buffer.getWidth()+x); f != FragmentBuffer.END; f = tile.getNext(f))
+      depths.add(tile.getDepth(f));
+    float result[] = new float [depths.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = depths.get(i);
+    return result;
+  }
+}
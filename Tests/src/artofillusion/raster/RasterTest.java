@@ -0,0 +1,183 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raster;
+
+import artofillusion.*;
+import artofillusion.image.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.texture.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RasterTest
+{
+  private Scene scene;
+  private Camera camera;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception
+  {
+    // Raster asks objects for their bounding boxes, which depend on the application preferences.  Use the
+    // defaults, pointing the preferences directory at an empty temporary directory so no real preferences
+    // file is read or modified.
+
+    if (ArtOfIllusion.getPreferences() == null)
+    {
+      String home = System.getProperty("user.home");
+      File tempHome = Files.createTempDirectory("aoi").toFile();
+      try
+      {
+        System.setProperty("user.home", tempHome.getAbsolutePath());
+        Field field = ArtOfIllusion.class.getDeclaredField("preferences");
+        field.setAccessible(true);
+        field.set(null, new ApplicationPreferences());
+      }
+      finally
+      {
+        System.setProperty("user.home", home);
+        new File(tempHome, ".artofillusion").delete();
+        tempHome.delete();
+      }
+    }
+  }
+
+  @Before
+  public void setUp()
+  {
+    // Create a scene with opaque and transparent objects, including one that crosses the clipping plane and one
+    // that extends past the edges of the image.
+
+    scene = new Scene();
+    UniformTexture opaque = new UniformTexture();
+    opaque.diffuseColor.setRGB(0.8f, 0.3f, 0.2f);
+    UniformTexture transparent = new UniformTexture();
+    transparent.transparency = 0.5f;
+    addObject(new Sphere(1.0, 1.0, 1.0), opaque, new Vec3(0.0, 0.0, 0.0));
+    addObject(new Cube(1.5, 1.5, 1.5), transparent, new Vec3(0.7, 0.5, 1.0));
+    addObject(new Cube(20.0, 0.5, 20.0), opaque, new Vec3(0.0, -1.5, 0.0));
+    addObject(new Sphere(0.5, 0.5, 0.5), opaque, new Vec3(-1.5, 1.0, 4.8));
+    scene.addObject(new ObjectInfo(new PointLight(new RGBColor(1.0f, 1.0f, 1.0f), 1.0f, 0.5), new CoordinateSystem(new Vec3(2.0, 4.0, 2.0), Vec3.vz(), Vec3.vy()), "Light"), null);
+    camera = new Camera();
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(0.0, 0.0, 5.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()));
+    camera.setSize(100, 75);
+  }
+
+  private void addObject(Object3D obj, Texture tex, Vec3 pos)
+  {
+    obj.setTexture(tex, tex.getDefaultMapping(obj));
+    scene.addObject(new ObjectInfo(obj, new CoordinateSystem(pos, Vec3.vz(), Vec3.vy()), "Object"), null);
+  }
+
+  /**
+   * Rendering in tiles should produce the same image as rendering one object at a time.
+   */
+
+  @Test
+  public void testTiles() throws Exception
+  {
+    for (int shading = Raster.GOURAUD; shading <= Raster.PHONG; shading++)
+    {
+      Raster renderer = new Raster();
+      renderer.setConfiguration("shadingMethod", shading);
+      renderer.setConfiguration("renderInTiles", false);
+      ComplexImage expected = new ImageCollector(renderer).waitForImage();
+      renderer.setConfiguration("renderInTiles", true);
+      ComplexImage actual = new ImageCollector(renderer).waitForImage();
+      int different = 0, lit = 0;
+      for (int x = 0; x < 100; x++)
+        for (int y = 0; y < 75; y++)
+        {
+          if (expected.getPixelComponent(x, y, ComplexImage.RED) > 0.1f)
+            lit++;
+          for (int component : new int [] {ComplexImage.RED, ComplexImage.GREEN, ComplexImage.BLUE, ComplexImage.ALPHA})
+            if (Math.abs(expected.getPixelComponent(x, y, component)-actual.getPixelComponent(x, y, component)) > 1e-4f)
+              different++;
+        }
+      assertTrue(lit > 1000);
+      assertEquals(0, different);
+    }
+  }
+
+  /**
+   * Turning on shadows should darken parts of the image, and never brighten anything.
+   */
+
+  @Test
+  public void testShadows() throws Exception
+  {
+    // Look down on the floor, so the shadow of the sphere is not hidden behind it.
+
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(0.0, 3.0, 6.0), new Vec3(0.0, -0.5, -1.0), Vec3.vy()));
+    Raster renderer = new Raster();
+    ComplexImage unshadowed = new ImageCollector(renderer).waitForImage();
+    renderer.setConfiguration("shadows", true);
+    renderer.setConfiguration("shadowMapSize", 256);
+    ComplexImage shadowed = new ImageCollector(renderer).waitForImage();
+    int darker = 0;
+    for (int x = 0; x < 100; x++)
+      for (int y = 0; y < 75; y++)
+      {
+        float before = unshadowed.getPixelComponent(x, y, ComplexImage.RED);
+        float after = shadowed.getPixelComponent(x, y, ComplexImage.RED);
+        assertTrue(after <= before+1e-4f);
+        if (after < before-0.1f)
+          darker++;
+      }
+    assertTrue(darker > 50);
+  }
+
+  /** A RenderListener that starts a render and waits for it to finish. */
+
+  private class ImageCollector implements RenderListener
+  {
+    volatile ComplexImage image;
+
+    ImageCollector(Raster renderer)
+    {
+      renderer.renderScene(scene, camera, this, null);
+    }
+
+    synchronized ComplexImage waitForImage() throws InterruptedException
+    {
+      while (image == null)
+        wait();
+      return image;
+    }
+
+    @Override
+    public void imageUpdated(java.awt.Image image)
+    {
+    }
+
+    @Override
+    public void statusChanged(String status)
+    {
+    }
+
+    @Override
+    public synchronized void imageComplete(ComplexImage image)
+    {
+      this.image = image;
+      notifyAll();
+    }
+
+    @Override
+    public void renderingCanceled()
+    {
+    }
+  }
+}
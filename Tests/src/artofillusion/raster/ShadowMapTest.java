@@ -0,0 +1,118 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raster;
+
+import artofillusion.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.texture.*;
+import java.util.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShadowMapTest
+{
+  private static List<ShadowMap.Caster> casters;
+  private static Camera camera;
+
+  @BeforeClass
+  public static void setUpClass()
+  {
+    // A unit sphere at the origin, floating above a floor whose top is at y=-2.
+
+    casters = new ArrayList<ShadowMap.Caster>();
+    addCaster(new Sphere(1.0, 1.0, 1.0), new Vec3());
+    addCaster(new Cube(20.0, 1.0, 20.0), new Vec3(0.0, -2.5, 0.0));
+    camera = new Camera();
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(0.0, 2.0, 10.0), new Vec3(0.0, -0.2, -1.0), Vec3.vy()));
+    camera.setSize(200, 150);
+  }
+
+  private static void addCaster(Object3D obj, Vec3 pos)
+  {
+    Texture tex = new UniformTexture();
+    obj.setTexture(tex, tex.getDefaultMapping(obj));
+    ObjectInfo info = new ObjectInfo(obj, new CoordinateSystem(pos, Vec3.vz(), Vec3.vy()), "Object");
+    casters.add(new ShadowMap.Caster(obj.getRenderingMesh(0.01, false, info), info.getCoords().fromLocal()));
+  }
+
+  private static ShadowMap createMap(Light light, CoordinateSystem coords)
+  {
+    ShadowMap map = new ShadowMap(light, coords, 512, 1, casters, camera);
+    for (int i = 0; i < map.getNumFaces(); i++)
+      map.renderFace(i, casters);
+    return map;
+  }
+
+  @Test
+  public void testPointLight()
+  {
+    ShadowMap map = createMap(new PointLight(new RGBColor(1.0f, 1.0f, 1.0f), 1.0f, 0.1), new CoordinateSystem(new Vec3(0.0, 5.0, 0.0), Vec3.vz(), Vec3.vy()));
+    assertEquals(6, map.getNumFaces());
+    checkShadows(map);
+  }
+
+  @Test
+  public void testSpotLight()
+  {
+    SpotLight light = new SpotLight(new RGBColor(1.0f, 1.0f, 1.0f), 1.0f, 120.0, 0.0, 0.1);
+    ShadowMap map = createMap(light, new CoordinateSystem(new Vec3(0.0, 5.0, 0.0), new Vec3(0.0, -1.0, 0.0), Vec3.vz()));
+    assertEquals(1, map.getNumFaces());
+    checkShadows(map);
+  }
+
+  @Test
+  public void testDirectionalLight()
+  {
+    ShadowMap map = createMap(new DirectionalLight(new RGBColor(1.0f, 1.0f, 1.0f), 1.0f), new CoordinateSystem(new Vec3(0.0, 5.0, 0.0), new Vec3(0.0, -1.0, 0.0), Vec3.vz()));
+    assertTrue(map.getNumFaces() > 1);
+    checkShadows(map);
+  }
+
+  /**
+   * With the light straight above the sphere, the floor beneath it should be shadowed, while the rest of the
+   * floor and the top of the sphere should be fully lit.
+   */
+
+  private void checkShadows(ShadowMap map)
+  {
+    Vec3 up = Vec3.vy();
+    assertEquals(0.0f, map.getLitFraction(new Vec3(0.0, -2.0, 0.0), up), 0.0f);
+    assertEquals(0.0f, map.getLitFraction(new Vec3(0.5, -2.0, -0.5), up), 0.0f);
+    assertEquals(0.0f, map.getLitFraction(new Vec3(0.0, -1.0, 0.0), up), 0.0f);
+    assertEquals(1.0f, map.getLitFraction(new Vec3(3.0, -2.0, 0.0), up), 0.0f);
+    assertEquals(1.0f, map.getLitFraction(new Vec3(-2.5, -2.0, 2.0), up), 0.0f);
+
+    // Check for self shadowing on lit surfaces.
+
+    Random random = new Random(0);
+    for (int i = 0; i < 200; i++)
+    {
+      Vec3 floor = new Vec3(random.nextDouble()*4+2, -2.0, random.nextDouble()*4-2);
+      assertEquals(1.0f, map.getLitFraction(floor, up), 0.0f);
+      Vec3 normal = new Vec3(random.nextDouble()-0.5, 1.0, random.nextDouble()-0.5);
+      normal.normalize();
+      assertEquals(1.0f, map.getLitFraction(normal, normal), 0.0f);
+    }
+
+    // Points partway into the edge of the shadow should be partially lit.
+
+    boolean partial = false;
+    for (double x = 1.0; x < 3.0; x += 0.005)
+    {
+      float lit = map.getLitFraction(new Vec3(x, -2.0, 0.0), up);
+      if (lit > 0.0f && lit < 1.0f)
+        partial = true;
+    }
+    assertTrue(partial);
+  }
+}
@@ -0,0 +1,198 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.texture.*;
+import java.util.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BoundingVolumeHierarchyTest
+{
+  private static Raytracer octreeTracer, bvhTracer;
+
+  @BeforeClass
+  public static void setUpClass()
+  {
+    // Create a scene containing a mixture of spheres and boxes.
+
+    Scene scene = new Scene();
+    Texture tex = new UniformTexture();
+    Random random = new Random(0);
+    for (int i = 0; i < 300; i++)
+    {
+      Object3D obj = (i%2 == 0 ? new Sphere(0.5, 0.5, 0.5) : new Cube(0.4, 0.8, 0.6));
+      obj.setTexture(tex, tex.getDefaultMapping(obj));
+      Vec3 pos = new Vec3(random.nextDouble()*10, random.nextDouble()*10, random.nextDouble()*(i < 100 ? 0.0 : 10.0));
+      scene.addObject(new ObjectInfo(obj, new CoordinateSystem(pos, Vec3.vz(), Vec3.vy()), "Object "+i), null);
+    }
+    octreeTracer = createRaytracer(scene, false);
+    bvhTracer = createRaytracer(scene, true);
+  }
+
+  private static Raytracer createRaytracer(Scene scene, boolean useBVH)
+  {
+    Camera camera = new Camera();
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(5.0, 5.0, 30.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()));
+    Raytracer rt = new Raytracer(scene, camera);
+    rt.setAdaptive(false);
+    rt.setUseBoundingVolumeHierarchy(useBVH);
+    for (ObjectInfo info : scene.getObjects())
+      rt.addObject(info);
+    rt.finishConstruction();
+    return rt;
+  }
+
+  /**
+   * Make sure every object ends up in the hierarchy, and that the tree is reasonably balanced.
+   */
+
+  @Test
+  public void testStructure()
+  {
+    BoundingVolumeHierarchy bvh = bvhTracer.getBoundingVolumeHierarchy();
+    assertNotNull(bvh);
+    assertNull(octreeTracer.getBoundingVolumeHierarchy());
+    assertTrue(bvh.getNumNodes() > 1);
+    assertTrue(bvh.getNumNodes() < 2*bvhTracer.getObjects().length);
+    assertTrue(bvh.getMaxDepth() < 40);
+    BoundingBox bounds = bvh.getBounds();
+    for (RTObject obj : bvhTracer.getObjects())
+    {
+      BoundingBox b = obj.getBounds();
+      assertTrue(b.minx >= bounds.minx && b.maxx <= bounds.maxx);
+      assertTrue(b.miny >= bounds.miny && b.maxy <= bounds.maxy);
+      assertTrue(b.minz >= bounds.minz && b.maxz <= bounds.maxz);
+    }
+  }
+
+  /**
+   * Trace random rays, and make sure the hierarchy finds the same intersections as the octree.
+   */
+
+  @Test
+  public void testTraceRay()
+  {
+    Random random = new Random(1);
+    Vec3 orig = new Vec3(), dir = new Vec3();
+    for (int i = 0; i < 2000; i++)
+    {
+      if (i%2 == 0)
+      {
+        // A ray starting outside the scene.
+
+        orig.set(random.nextDouble()-0.5, random.nextDouble()-0.5, random.nextDouble()-0.5);
+        orig.normalize();
+        orig.scale(20.0);
+        orig.add(new Vec3(5.0, 5.0, 5.0));
+      }
+      else
+      {
+        // A ray starting inside the scene.
+
+        orig.set(random.nextDouble()*10, random.nextDouble()*10, random.nextDouble()*10);
+      }
+      dir.set(random.nextDouble()-0.5, random.nextDouble()-0.5, random.nextDouble()-0.5);
+      dir.normalize();
+      Raytracer.RayIntersection expected = octreeTracer.traceRay(orig, dir);
+      Raytracer.RayIntersection actual = bvhTracer.traceRay(orig, dir);
+      assertEquals(expected.getFirst() == SurfaceIntersection.NO_INTERSECTION, actual.getFirst() == SurfaceIntersection.NO_INTERSECTION);
+      if (expected.getFirst() != SurfaceIntersection.NO_INTERSECTION)
+      {
+        assertEquals(expected.getDistance(), actual.getDistance(), 1e-6);
+        assertEquals(expected.getFirst().getObject().getIndex(), actual.getFirst().getObject().getIndex());
+      }
+    }
+  }
+
+  /**
+   * Trace packets of coherent rays, and make sure they find the same intersections as individual rays.
+   */
+
+  @Test
+  public void testTracePacket()
+  {
+    Random random = new Random(3);
+    RayPacket packet = new RayPacket(bvhTracer.getContext());
+    Ray r = new Ray(bvhTracer.getContext());
+    Raytracer.RayIntersection intersect = new Raytracer.RayIntersection();
+    Vec3 orig = new Vec3(), dir = new Vec3();
+    for (int i = 0; i < 200; i++)
+    {
+      orig.set(random.nextDouble()*10, random.nextDouble()*10, 15.0);
+      Vec3 center = new Vec3(random.nextDouble()*0.2, random.nextDouble()*0.2, -1.0);
+      packet.clear();
+      while (!packet.isFull())
+      {
+        dir.set(center.x+random.nextDouble()*0.05, center.y+random.nextDouble()*0.05, center.z);
+        dir.normalize();
+        packet.addRay(orig, dir);
+      }
+      assertTrue(bvhTracer.tracePacket(packet));
+      for (int j = 0; j < packet.getSize(); j++)
+      {
+        packet.getRay(j, r);
+        r.newID();
+        Raytracer.RayIntersection expected = octreeTracer.traceRay(r.getOrigin(), r.getDirection());
+        OctreeNode node = bvhTracer.getPacketIntersection(packet, j, r, intersect);
+        assertEquals(expected.getFirst() == SurfaceIntersection.NO_INTERSECTION, node == null);
+        if (node != null)
+        {
+          // Several of the boxes have coplanar faces, so if two objects are hit at the same distance, either one
+          // may be reported first.
+
+          assertEquals(expected.getDistance(), intersect.getDistance(), 1e-6);
+          int index = intersect.getFirst().getObject().getIndex();
+          if (index != expected.getFirst().getObject().getIndex())
+            assertEquals(expected.getSecond().getObject().getIndex(), index);
+        }
+      }
+    }
+
+    // The octree cannot trace packets.
+
+    assertFalse(octreeTracer.tracePacket(packet));
+  }
+
+  /**
+   * Make sure that every object a ray segment hits is reported as a candidate.
+   */
+
+  @Test
+  public void testFindObjectsAlongRay()
+  {
+    BoundingVolumeHierarchy bvh = bvhTracer.getBoundingVolumeHierarchy();
+    RTObject objects[] = bvhTracer.getObjects();
+    Ray r = new Ray(bvhTracer.getContext());
+    Random random = new Random(2);
+    for (int i = 0; i < 500; i++)
+    {
+      r.getOrigin().set(random.nextDouble()*10, random.nextDouble()*10, random.nextDouble()*10);
+      r.getDirection().set(random.nextDouble()-0.5, random.nextDouble()-0.5, random.nextDouble()-0.5);
+      r.getDirection().normalize();
+      r.newID();
+      double maxDist = random.nextDouble()*5.0;
+      int found = bvh.findObjectsAlongRay(r, maxDist);
+      Set<RTObject> candidates = new HashSet<RTObject>(Arrays.asList(r.rt.bvhCandidates).subList(0, found));
+      assertEquals(found, candidates.size());
+      for (RTObject obj : objects)
+      {
+        SurfaceIntersection intersection = obj.checkIntersection(r);
+        if (intersection != SurfaceIntersection.NO_INTERSECTION && intersection.intersectionDist(0) < maxDist)
+          assertTrue(candidates.contains(obj));
+      }
+    }
+  }
+}
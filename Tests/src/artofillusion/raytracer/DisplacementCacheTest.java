@@ -0,0 +1,161 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.procedural.*;
+import artofillusion.texture.*;
+import java.awt.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DisplacementCacheTest
+{
+  private static final int CACHE_SIZE = 32;
+
+  private static Scene scene;
+
+  @BeforeClass
+  public static void setUpClass()
+  {
+    // Create a sphere whose surface is displaced by noise.
+
+    scene = new Scene();
+    ProceduralTexture3D tex = new ProceduralTexture3D();
+    Procedure proc = tex.getProcedure();
+    NoiseModule noise = new NoiseModule(new Point());
+    noise.setAmplitude(0.2);
+    proc.addModule(noise);
+    proc.addLink(new Link(noise.getOutputPorts()[0], proc.getOutputModules()[10].getInputPorts()[0]));
+    Object3D obj = new Sphere(1.0, 1.0, 1.0).convertToTriangleMesh(0.1);
+    obj.setTexture(tex, tex.getDefaultMapping(obj));
+    scene.addObject(new ObjectInfo(obj, new CoordinateSystem(new Vec3(), Vec3.vz(), Vec3.vy()), "Sphere"), null);
+  }
+
+  private static Raytracer createRaytracer(int cacheSize)
+  {
+    Camera camera = new Camera();
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(0.0, 0.0, 10.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()));
+    Raytracer rt = new Raytracer(scene, camera);
+    rt.setAdaptive(false);
+    rt.setDisplacementCacheSize(cacheSize);
+    for (ObjectInfo info : scene.getObjects())
+      rt.addObject(info);
+    rt.finishConstruction();
+    return rt;
+  }
+
+  /**
+   * Limiting the cache should bound how many triangles hold their geometry, without changing any results.
+   */
+
+  @Test
+  public void testEviction()
+  {
+    Raytracer unlimited = createRaytracer(0);
+    Raytracer limited = createRaytracer(CACHE_SIZE);
+    assertNull(unlimited.getDisplacementCache());
+    DisplacementCache cache = limited.getDisplacementCache();
+    assertNotNull(cache);
+    assertEquals(CACHE_SIZE, cache.getCapacity());
+    int hits = 0;
+    for (int i = 0; i < 500; i++)
+    {
+      if (compareRay(unlimited, limited, new Random(i)))
+        hits++;
+      assertTrue(countGeometry(limited) <= CACHE_SIZE);
+    }
+    assertTrue(hits > 100);
+    assertTrue(cache.getNumEvictions() > 0);
+    assertTrue(countGeometry(unlimited) > CACHE_SIZE);
+
+    // A cache at least as large as the number of displaced triangles is never needed.
+
+    assertNull(createRaytracer(unlimited.getObjects().length).getDisplacementCache());
+  }
+
+  /**
+   * Trace rays from several threads at once through a small cache, so triangles are constantly being built
+   * and evicted by different threads, and make sure every result is still correct.
+   */
+
+  @Test
+  public void testConcurrentAccess() throws InterruptedException
+  {
+    final Raytracer unlimited = createRaytracer(0);
+    final Raytracer limited = createRaytracer(CACHE_SIZE);
+    final AtomicInteger hits = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread threads[] = new Thread [4];
+    for (int t = 0; t < threads.length; t++)
+    {
+      final int seed = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run()
+        {
+          try
+          {
+            Random random = new Random(seed);
+            for (int i = 0; i < 500; i++)
+              if (compareRay(unlimited, limited, random))
+                hits.incrementAndGet();
+          }
+          catch (Throwable ex)
+          {
+            failure.set(ex);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertNull(failure.get());
+    assertTrue(hits.get() > 400);
+    assertTrue(countGeometry(limited) <= CACHE_SIZE+threads.length);
+  }
+
+  /** Trace a random ray toward the sphere with two Raytracers, and check that they agree. */
+
+  private static boolean compareRay(Raytracer expected, Raytracer actual, Random random)
+  {
+    Vec3 orig = new Vec3(random.nextDouble()*4-2, random.nextDouble()*4-2, 5.0);
+    Vec3 dir = new Vec3(random.nextDouble()*0.2-0.1, random.nextDouble()*0.2-0.1, -1.0);
+    dir.normalize();
+    Raytracer.RayIntersection expectedHit = expected.traceRay(orig, dir);
+    Raytracer.RayIntersection actualHit = actual.traceRay(orig, dir);
+    boolean hit = (expectedHit.getFirst() != SurfaceIntersection.NO_INTERSECTION);
+    assertEquals(hit, actualHit.getFirst() != SurfaceIntersection.NO_INTERSECTION);
+    if (hit)
+    {
+      assertTrue(expectedHit.getFirst() instanceof RTDisplacedTriangle.DisplacedTriangleIntersection);
+      assertEquals(expectedHit.getDistance(), actualHit.getDistance(), 1e-10);
+    }
+    return hit;
+  }
+
+  /** Count how many displaced triangles currently hold their geometry. */
+
+  private static int countGeometry(Raytracer rt)
+  {
+    int count = 0;
+    for (RTObject obj : rt.getObjects())
+      if (obj instanceof RTDisplacedTriangle && ((RTDisplacedTriangle) obj).hasGeometry())
+        count++;
+    return count;
+  }
+}
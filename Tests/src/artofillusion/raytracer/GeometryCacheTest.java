@@ -0,0 +1,234 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.animation.*;
+import artofillusion.image.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.texture.*;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GeometryCacheTest
+{
+  private Scene scene;
+  private ObjectInfo mesh, sphere, light;
+  private Camera camera;
+  private GeometryCache cache;
+
+  @Before
+  public void setUp()
+  {
+    // Create a scene with a static mesh, a sphere that moves, and a light.
+
+    scene = new Scene();
+    Texture tex = new UniformTexture();
+    Object3D meshObject = new Cube(1.0, 2.0, 1.5).convertToTriangleMesh(0.05);
+    meshObject.setTexture(tex, tex.getDefaultMapping(meshObject));
+    mesh = new ObjectInfo(meshObject, new CoordinateSystem(new Vec3(-1.0, 0.0, 0.0), Vec3.vz(), Vec3.vy()), "Mesh");
+    scene.addObject(mesh, null);
+    Sphere sphereObject = new Sphere(0.5, 0.5, 0.5);
+    sphereObject.setTexture(tex, tex.getDefaultMapping(sphereObject));
+    sphere = new ObjectInfo(sphereObject, new CoordinateSystem(new Vec3(), Vec3.vz(), Vec3.vy()), "Sphere");
+    PositionTrack track = new PositionTrack(sphere);
+    track.setKeyframe(0.0, new VectorKeyframe(1.0, 0.0, 0.0), new Smoothness());
+    track.setKeyframe(1.0, new VectorKeyframe(2.0, 1.0, 0.0), new Smoothness());
+    sphere.addTrack(track, 0);
+    scene.addObject(sphere, null);
+    light = new ObjectInfo(new PointLight(new RGBColor(1.0f, 1.0f, 1.0f), 1.0f, 0.5), new CoordinateSystem(new Vec3(0.0, 5.0, 5.0), Vec3.vz(), Vec3.vy()), "Light");
+    scene.addObject(light, null);
+    camera = new Camera();
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(0.0, 0.0, 10.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()));
+    cache = new GeometryCache();
+  }
+
+  private Raytracer createRaytracer(double time, GeometryCache cache)
+  {
+    scene.setTime(time);
+    Raytracer rt = new Raytracer(scene, camera);
+    rt.setAdaptive(false);
+    rt.setUseBoundingVolumeHierarchy(true);
+    rt.setGeometryCache(cache);
+    for (ObjectInfo info : scene.getObjects())
+      rt.addObject(info);
+    rt.finishConstruction();
+    return rt;
+  }
+
+  /** Find the object that was built for the mesh. */
+
+  private RTInstance findMesh(Raytracer rt)
+  {
+    for (RTObject obj : rt.getObjects())
+      if (obj instanceof RTInstance)
+        return (RTInstance) obj;
+    fail("No instance found");
+    return null;
+  }
+
+  /**
+   * If nothing moves, everything should be reused.  If only the camera moves, lights are rebuilt but objects are not.
+   */
+
+  @Test
+  public void testNothingMoved()
+  {
+    Raytracer first = createRaytracer(0.0, cache);
+    assertEquals(2, first.getObjects().length);
+    Raytracer second = createRaytracer(0.0, cache);
+    assertSame(first.getObjects(), second.getObjects());
+    assertSame(first.getRootNode(), second.getRootNode());
+    assertSame(first.getBoundingVolumeHierarchy(), second.getBoundingVolumeHierarchy());
+    assertNotSame(first.getLights()[0], second.getLights()[0]);
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(1.0, 0.0, 10.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()));
+    Raytracer third = createRaytracer(0.0, cache);
+    assertSame(first.getObjects(), third.getObjects());
+    assertSame(third.getRootNode().findNode(new Vec3(1.0, 0.0, 10.0)), third.getCameraNode());
+  }
+
+  /**
+   * When one object moves, the others should keep their objects, and a mesh that moves should keep its prototype.
+   */
+
+  @Test
+  public void testObjectMoved()
+  {
+    Raytracer first = createRaytracer(0.0, cache);
+    Raytracer second = createRaytracer(0.5, cache);
+    assertNotSame(first.getRootNode(), second.getRootNode());
+    assertSame(findMesh(first), findMesh(second));
+    mesh.getCoords().setOrigin(new Vec3(-2.0, 0.0, 0.0));
+    Raytracer third = createRaytracer(0.5, cache);
+    assertNotSame(findMesh(second), findMesh(third));
+    assertSame(findMesh(second).getPrototype(), findMesh(third).getPrototype());
+
+    // The result should be the same as building the scene from scratch.
+
+    Raytracer fresh = createRaytracer(0.5, new GeometryCache());
+    compareIntersections(fresh, third);
+  }
+
+  /**
+   * Objects whose tracks may change their shape should be rebuilt in every frame.
+   */
+
+  @Test
+  public void testShapeChanged()
+  {
+    PoseTrack track = new PoseTrack(mesh);
+    track.setKeyframe(0.0, mesh.getObject().getPoseKeyframe(), new Smoothness());
+    mesh.addTrack(track, 0);
+    Raytracer first = createRaytracer(0.0, cache);
+    Raytracer second = createRaytracer(0.0, cache);
+    assertNotSame(first.getRootNode(), second.getRootNode());
+    List<RTObject> previous = Arrays.asList(first.getObjects());
+    for (RTObject obj : second.getObjects())
+      if (!(obj instanceof RTSphere))
+        assertFalse(previous.contains(obj));
+  }
+
+  /**
+   * The renderer cannot tell whether the scene was edited between two renders, so it should only keep its cache
+   * between renders that use the same listener, as the frames of an animation do.
+   */
+
+  @Test
+  public void testRendererKeepsCacheOnlyForSameListener() throws Exception
+  {
+    RaytracerRenderer renderer = new RaytracerRenderer();
+    renderer.setConfiguration("antialiasing", 0);
+    renderer.setConfiguration("reduceAccuracyForDistant", false);
+    renderer.setConfiguration("reuseGeometry", true);
+    FrameListener animation = new FrameListener();
+    render(renderer, animation, 0.0);
+    GeometryCache first = renderer.geometryCache;
+    assertNotNull(first);
+    render(renderer, animation, 0.5);
+    assertSame(first, renderer.geometryCache);
+    render(renderer, new FrameListener(), 0.5);
+    assertNotNull(renderer.geometryCache);
+    assertNotSame(first, renderer.geometryCache);
+  }
+
+  private void render(RaytracerRenderer renderer, FrameListener listener, double time) throws InterruptedException
+  {
+    scene.setTime(time);
+    Camera cam = camera.duplicate();
+    cam.setSize(20, 15);
+    listener.reset();
+    renderer.renderScene(scene, cam, listener, null);
+    listener.waitForImage();
+  }
+
+  private void compareIntersections(Raytracer expected, Raytracer actual)
+  {
+    Random random = new Random(0);
+    int hits = 0;
+    for (int i = 0; i < 1000; i++)
+    {
+      Vec3 origin = new Vec3(random.nextDouble()*6.0-3.0, random.nextDouble()*4.0-2.0, 10.0);
+      Vec3 dir = new Vec3(0.0, 0.0, -1.0);
+      Raytracer.RayIntersection a = expected.traceRay(origin, dir);
+      Raytracer.RayIntersection b = actual.traceRay(origin, dir);
+      assertEquals(a.getFirst() == SurfaceIntersection.NO_INTERSECTION, b.getFirst() == SurfaceIntersection.NO_INTERSECTION);
+      if (a.getFirst() != SurfaceIntersection.NO_INTERSECTION)
+      {
+        hits++;
+        assertEquals(a.getDistance(), b.getDistance(), 1e-10);
+      }
+    }
+    assertTrue(hits > 100);
+  }
+
+  /** A RenderListener that can wait for any number of images to be completed, one at a time. */
+
+  private static class FrameListener implements RenderListener
+  {
+    private boolean done;
+
+    synchronized void reset()
+    {
+      done = false;
+    }
+
+    synchronized void waitForImage() throws InterruptedException
+    {
+      while (!done)
+        wait();
+    }
+
+    @Override
+    public void imageUpdated(java.awt.Image image)
+    {
+    }
+
+    @Override
+    public void statusChanged(String status)
+    {
+    }
+
+    @Override
+    public synchronized void imageComplete(ComplexImage image)
+    {
+      done = true;
+      notifyAll();
+    }
+
+    @Override
+    public void renderingCanceled()
+    {
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.math.*;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IrradianceCacheTest
+{
+  /**
+   * Add a record computed from a uniform environment, and check where it can be used.
+   */
+
+  @Test
+  public void testUniform()
+  {
+    IrradianceCache cache = new IrradianceCache(new BoundingBox(-10, 10, -10, 10, -10, 10), 0.25);
+    IrradianceCache.Sampler sampler = new IrradianceCache.Sampler(64);
+    assertTrue(sampler.getNumSamples() >= 64);
+    Vec3 pos = new Vec3(1.0, 2.0, 3.0), dir = new Vec3();
+    RGBColor light = new RGBColor(0.2f, 0.5f, 1.0f), result = new RGBColor();
+    Random random = new Random(0);
+    assertFalse(cache.getIrradiance(pos, Vec3.vz(), result));
+    sampler.setNormal(Vec3.vz(), false);
+    for (int i = 0; i < sampler.getNumSamples(); i++)
+    {
+      sampler.getDirection(i, random, dir);
+      assertEquals(1.0, dir.length(), 1e-10);
+      assertTrue(dir.z > 0.0);
+      sampler.recordSample(i, light, 4.0);
+    }
+    cache.addRecord(pos, sampler, 0.01, 100.0, result);
+    assertEquals(1, cache.getNumRecords());
+    assertColorEquals(light, result, 1e-5);
+
+    // It should be usable at nearby points with similar normals.
+
+    assertTrue(cache.getIrradiance(pos, Vec3.vz(), result));
+    assertColorEquals(light, result, 1e-5);
+    assertTrue(cache.getIrradiance(new Vec3(1.5, 2.0, 3.0), Vec3.vz(), result));
+    assertColorEquals(light, result, 1e-5);
+
+    // It should not be used far away, on the other side of the surface, or with a very different normal.
+
+    assertFalse(cache.getIrradiance(new Vec3(3.0, 2.0, 3.0), Vec3.vz(), result));
+    assertFalse(cache.getIrradiance(pos, new Vec3(0.0, 0.0, -1.0), result));
+    assertFalse(cache.getIrradiance(pos, Vec3.vx(), result));
+  }
+
+  /**
+   * Check the rotational gradient using an environment whose brightness varies linearly with direction.
+   */
+
+  @Test
+  public void testRotationalGradient()
+  {
+    IrradianceCache cache = new IrradianceCache(new BoundingBox(-10, 10, -10, 10, -10, 10), 0.5);
+    IrradianceCache.Sampler sampler = new IrradianceCache.Sampler(4096);
+    Vec3 pos = new Vec3(), dir = new Vec3(), tilt = new Vec3(0.5, 0.0, 0.0);
+    RGBColor color = new RGBColor(), result = new RGBColor();
+    Random random = new Random(1);
+    sampler.setNormal(Vec3.vz(), false);
+    for (int i = 0; i < sampler.getNumSamples(); i++)
+    {
+      sampler.getDirection(i, random, dir);
+      float value = (float) (1.0+dir.dot(tilt));
+      color.setRGB(value, value, value);
+      sampler.recordSample(i, color, 10.0);
+    }
+    cache.addRecord(pos, sampler, 0.01, 100.0, result);
+
+    // The average of the radiance, weighted by the cosine, is 1+(2/3)n.tilt.
+
+    assertEquals(1.0, result.getRed(), 0.01);
+    for (double angle = -0.3; angle <= 0.3; angle += 0.1)
+    {
+      Vec3 normal = new Vec3(Math.sin(angle), 0.0, Math.cos(angle));
+      assertTrue(cache.getIrradiance(pos, normal, result));
+      assertEquals(1.0+(2.0/3.0)*normal.dot(tilt), result.getRed(), 0.02);
+    }
+  }
+
+  /**
+   * Check the translational gradient using a point just below a bright strip on a plane above it.
+   */
+
+  @Test
+  public void testTranslationalGradient()
+  {
+    IrradianceCache cache = new IrradianceCache(new BoundingBox(-10, 10, -10, 10, -10, 10), 0.5);
+    double height = 1.0;
+    Vec3 pos = new Vec3();
+    RGBColor result = new RGBColor();
+    IrradianceCache.Sampler sampler = sampleStrip(pos, height, 1);
+    cache.addRecord(pos, sampler, 0.01, 100.0, result);
+
+    // Moving toward the strip should increase the irradiance, and moving away should decrease it, by about the
+    // amount computed directly at those points.
+
+    for (double offset = -0.2; offset <= 0.2; offset += 0.1)
+    {
+      Vec3 p = new Vec3(offset, 0.0, 0.0);
+      assertTrue(cache.getIrradiance(p, Vec3.vz(), result));
+      RGBColor expected = new RGBColor();
+      new IrradianceCache(new BoundingBox(-10, 10, -10, 10, -10, 10), 0.5).addRecord(p, sampleStrip(p, height, 2), 0.01, 100.0, expected);
+      assertEquals(expected.getRed(), result.getRed(), 0.03);
+    }
+  }
+
+  /** Sample the light arriving at a point from a plane above it, which is bright for x > 0.5 and dark elsewhere. */
+
+  private IrradianceCache.Sampler sampleStrip(Vec3 pos, double height, long seed)
+  {
+    IrradianceCache.Sampler sampler = new IrradianceCache.Sampler(4096);
+    Vec3 dir = new Vec3();
+    RGBColor bright = new RGBColor(1.0f, 1.0f, 1.0f), dark = new RGBColor(0.0f, 0.0f, 0.0f);
+    Random random = new Random(seed);
+    sampler.setNormal(Vec3.vz(), false);
+    for (int i = 0; i < sampler.getNumSamples(); i++)
+    {
+      sampler.getDirection(i, random, dir);
+      double dist = height/dir.z;
+      double x = pos.x+dir.x*dist;
+      sampler.recordSample(i, x > 0.5 ? bright : dark, dist);
+    }
+    return sampler;
+  }
+
+  /**
+   * Add records from many threads at once, and make sure none are lost.
+   */
+
+  @Test
+  public void testConcurrentInsertion() throws InterruptedException
+  {
+    final IrradianceCache cache = new IrradianceCache(new BoundingBox(-10, 10, -10, 10, -10, 10), 0.25);
+    Thread threads[] = new Thread [4];
+    for (int t = 0; t < threads.length; t++)
+    {
+      final int seed = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run()
+        {
+          IrradianceCache.Sampler sampler = new IrradianceCache.Sampler(64);
+          Random random = new Random(seed);
+          Vec3 dir = new Vec3();
+          RGBColor light = new RGBColor(1.0f, 1.0f, 1.0f), result = new RGBColor();
+          for (int i = 0; i < 500; i++)
+          {
+            Vec3 pos = new Vec3(random.nextDouble()*20-10, random.nextDouble()*20-10, random.nextDouble()*20-10);
+            sampler.setNormal(Vec3.vy(), false);
+            for (int j = 0; j < sampler.getNumSamples(); j++)
+            {
+              sampler.getDirection(j, random, dir);
+              sampler.recordSample(j, light, 0.1+random.nextDouble());
+            }
+            cache.addRecord(pos, sampler, 0.01, 100.0, result);
+            assertTrue(cache.getIrradiance(pos, Vec3.vy(), result));
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals(2000, cache.getNumRecords());
+  }
+
+  private void assertColorEquals(RGBColor expected, RGBColor actual, double tol)
+  {
+    assertEquals(expected.getRed(), actual.getRed(), tol);
+    assertEquals(expected.getGreen(), actual.getGreen(), tol);
+    assertEquals(expected.getBlue(), actual.getBlue(), tol);
+  }
+}
@@ -0,0 +1,190 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.image.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.texture.*;
+import java.io.*;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PhotonMapCacheTest
+{
+  private Scene scene;
+  private ObjectInfo sphere, camera;
+
+  @Before
+  public void setUp()
+  {
+    scene = new Scene();
+    Texture tex = new UniformTexture();
+    Object3D obj = new Sphere(1.0, 1.0, 1.0);
+    obj.setTexture(tex, tex.getDefaultMapping(obj));
+    sphere = new ObjectInfo(obj, new CoordinateSystem(new Vec3(), Vec3.vz(), Vec3.vy()), "Sphere");
+    scene.addObject(sphere, null);
+    obj = new Cube(10.0, 0.2, 10.0);
+    obj.setTexture(tex, tex.getDefaultMapping(obj));
+    scene.addObject(new ObjectInfo(obj, new CoordinateSystem(new Vec3(0.0, -1.1, 0.0), Vec3.vz(), Vec3.vy()), "Floor"), null);
+    scene.addObject(new ObjectInfo(new PointLight(new RGBColor(1.0f, 1.0f, 1.0f), 1.0f, 0.1), new CoordinateSystem(new Vec3(2.0, 4.0, 2.0), Vec3.vz(), Vec3.vy()), "Light"), null);
+    camera = new ObjectInfo(new SceneCamera(), new CoordinateSystem(new Vec3(0.0, 0.0, 10.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()), "Camera");
+    scene.addObject(camera, null);
+  }
+
+  private RaytracerRenderer createRenderer()
+  {
+    RaytracerRenderer renderer = new RaytracerRenderer();
+    renderer.setConfiguration("antialiasing", 0);
+    renderer.setConfiguration("reduceAccuracyForDistant", false);
+    renderer.setConfiguration("globalIlluminationMode", RaytracerRenderer.GI_PHOTON);
+    renderer.setConfiguration("globalIlluminationPhotons", 2000);
+    renderer.setConfiguration("reusePhotonMaps", true);
+    return renderer;
+  }
+
+  /**
+   * Moving the camera should not change the fingerprint, but changing the scene or the photon settings should.
+   */
+
+  @Test
+  public void testFingerprint()
+  {
+    RaytracerRenderer renderer = createRenderer();
+    byte original[] = PhotonMapCache.computeFingerprint(scene, renderer);
+    assertNotNull(original);
+    assertArrayEquals(original, PhotonMapCache.computeFingerprint(scene, renderer));
+    camera.getCoords().setOrigin(new Vec3(1.0, 2.0, 8.0));
+    assertArrayEquals(original, PhotonMapCache.computeFingerprint(scene, renderer));
+    sphere.getCoords().setOrigin(new Vec3(0.0, 0.5, 0.0));
+    byte moved[] = PhotonMapCache.computeFingerprint(scene, renderer);
+    assertFalse(Arrays.equals(original, moved));
+    renderer.setConfiguration("globalIlluminationPhotons", 3000);
+    assertFalse(Arrays.equals(moved, PhotonMapCache.computeFingerprint(scene, renderer)));
+    sphere.setVisible(false);
+    assertFalse(Arrays.equals(moved, PhotonMapCache.computeFingerprint(scene, renderer)));
+  }
+
+  /**
+   * Rendering a second frame from a different viewpoint should reuse the photon maps.
+   */
+
+  @Test
+  public void testReuse() throws Exception
+  {
+    RaytracerRenderer renderer = createRenderer();
+    render(renderer);
+    PhotonMapCache cache = renderer.photonMapCache;
+    assertNotNull(cache);
+    assertTrue(cache.getGlobalMap().getNumPhotons() > 0);
+    camera.getCoords().setOrigin(new Vec3(1.0, 2.0, 8.0));
+    render(renderer);
+    assertSame(cache, renderer.photonMapCache);
+    sphere.getCoords().setOrigin(new Vec3(0.0, 0.5, 0.0));
+    render(renderer);
+    assertNotSame(cache, renderer.photonMapCache);
+  }
+
+  /**
+   * Photon maps written to a file should be read back unchanged.
+   */
+
+  @Test
+  public void testFile() throws Exception
+  {
+    RaytracerRenderer renderer = createRenderer();
+    renderer.setConfiguration("caustics", true);
+    render(renderer);
+    PhotonMapCache cache = renderer.photonMapCache;
+    byte fingerprint[] = PhotonMapCache.computeFingerprint(scene, renderer);
+    assertTrue(cache.matches(fingerprint));
+    File file1 = File.createTempFile("photons", ".photons"), file2 = File.createTempFile("photons", ".photons");
+    try
+    {
+      cache.writeToFile(file1);
+      PhotonMapCache loaded = PhotonMapCache.readFromFile(file1, fingerprint, null, renderer);
+      assertNotNull(loaded);
+      assertNull(loaded.getVolumeMap());
+      assertEquals(cache.getGlobalMap().getNumPhotons(), loaded.getGlobalMap().getNumPhotons());
+      assertEquals(cache.getCausticsMap().getNumPhotons(), loaded.getCausticsMap().getNumPhotons());
+      loaded.writeToFile(file2);
+      assertArrayEquals(readBytes(file1), readBytes(file2));
+
+      // A file for a different scene should be ignored.
+
+      sphere.getCoords().setOrigin(new Vec3(0.0, 0.5, 0.0));
+      assertNull(PhotonMapCache.readFromFile(file1, PhotonMapCache.computeFingerprint(scene, renderer), null, renderer));
+    }
+    finally
+    {
+      file1.delete();
+      file2.delete();
+    }
+  }
+
+  private void render(RaytracerRenderer renderer) throws InterruptedException
+  {
+    Camera cam = new Camera();
+    cam.setCameraCoordinates(camera.getCoords().duplicate());
+    cam.setSize(40, 30);
+    final Object lock = new Object();
+    final boolean done[] = new boolean [1];
+    renderer.renderScene(scene, cam, new RenderListener() {
+      @Override
+      public void imageUpdated(java.awt.Image image)
+      {
+      }
+
+      @Override
+      public void statusChanged(String status)
+      {
+      }
+
+      @Override
+      public void imageComplete(ComplexImage image)
+      {
+        synchronized (lock)
+        {
+          done[0] = true;
+          lock.notify();
+        }
+      }
+
+      @Override
+      public void renderingCanceled()
+      {
+      }
+    }, null);
+    synchronized (lock)
+    {
+      while (!done[0])
+        lock.wait();
+    }
+  }
+
+  private byte[] readBytes(File file) throws IOException
+  {
+    byte data[] = new byte [(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try
+    {
+      in.readFully(data);
+    }
+    finally
+    {
+      in.close();
+    }
+    return data;
+  }
+}
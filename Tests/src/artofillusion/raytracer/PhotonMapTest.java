@@ -0,0 +1,230 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.image.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.texture.*;
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PhotonMapTest
+{
+  /**
+   * Create a scene with a point light, an emissive sphere, an emissive box, and a mirrored sphere
+   * that produces caustics.
+   */
+
+  private Scene createScene()
+  {
+    Scene scene = new Scene();
+    UniformTexture white = new UniformTexture();
+    UniformTexture glowing = new UniformTexture();
+    glowing.emissiveColor = new RGBColor(2.0f, 1.0f, 0.5f);
+    UniformTexture mirror = new UniformTexture();
+    mirror.specularity = 1.0f;
+    addObject(scene, new Cube(10.0, 0.2, 10.0), white, new Vec3(0.0, -1.1, 0.0));
+    addObject(scene, new Sphere(0.5, 0.5, 0.5), glowing, new Vec3(-1.5, 0.0, 0.0));
+    addObject(scene, new Cube(0.5, 1.0, 0.5), glowing, new Vec3(1.5, -0.5, 0.0));
+    addObject(scene, new Sphere(0.7, 0.7, 0.7), mirror, new Vec3(0.0, 0.0, 0.5));
+    scene.addObject(new ObjectInfo(new PointLight(new RGBColor(1.0f, 1.0f, 1.0f), 1.0f, 0.1), new CoordinateSystem(new Vec3(2.0, 4.0, 2.0), Vec3.vz(), Vec3.vy()), "Light"), null);
+    scene.addObject(new ObjectInfo(new SceneCamera(), new CoordinateSystem(new Vec3(0.0, 0.0, 10.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()), "Camera"), null);
+    return scene;
+  }
+
+  private void addObject(Scene scene, Object3D obj, Texture tex, Vec3 pos)
+  {
+    obj.setTexture(tex, tex.getDefaultMapping(obj));
+    scene.addObject(new ObjectInfo(obj, new CoordinateSystem(pos, Vec3.vz(), Vec3.vy()), "Object"), null);
+  }
+
+  /**
+   * The photon maps should be identical no matter how many threads generate them.  ThreadManager never uses
+   * more threads than there are processors, so on a single processor machine this compares two single
+   * threaded maps.
+   */
+
+  @Test
+  public void testThreadCountDoesNotChangeMap() throws Exception
+  {
+    Scene scene = createScene();
+    PhotonMapCache single = generateMaps(scene, 1);
+    PhotonMapCache multiple = generateMaps(scene, 4);
+    assertTrue(single.getGlobalMap().getNumPhotons() > 0);
+    assertTrue(single.getCausticsMap().getNumPhotons() > 0);
+    assertArrayEquals(toBytes(single.getGlobalMap()), toBytes(multiple.getGlobalMap()));
+    assertArrayEquals(toBytes(single.getCausticsMap()), toBytes(multiple.getCausticsMap()));
+  }
+
+  /**
+   * Searching the kd-tree should find the same photons as checking every photon in the map.
+   */
+
+  @Test
+  public void testFindPhotons()
+  {
+    Random random = new Random(0);
+    checkFindPhotons(new float [0], random);
+    checkFindPhotons(new float [] {0.5f, -0.2f, 1.0f}, random);
+    checkFindPhotons(createPositions(100, false, random), random);
+    checkFindPhotons(createPositions(2000, true, random), random);
+
+    // This is large enough for the tree to be built in parallel.
+
+    checkFindPhotons(createPositions(30000, false, random), random);
+
+    // Every photon at the same point.
+
+    float pos[] = new float [300];
+    Arrays.fill(pos, 0.25f);
+    checkFindPhotons(pos, random);
+  }
+
+  /**
+   * Create random photon positions in a cube of width 2 centered at the origin.  If duplicates is true,
+   * each coordinate is one of only five values, so many photons share coordinates or are at the same point.
+   */
+
+  private float[] createPositions(int count, boolean duplicates, Random random)
+  {
+    float pos[] = new float [3*count];
+    for (int i = 0; i < pos.length; i++)
+      pos[i] = (duplicates ? 0.5f*(random.nextInt(5)-2) : 2.0f*random.nextFloat()-1.0f);
+    return pos;
+  }
+
+  /**
+   * Build a map from a set of photons, then compare searches near random points to a brute force search.
+   */
+
+  private void checkFindPhotons(float pos[], Random random)
+  {
+    PhotonMap map = new PhotonMap(0, 0, false, false, false, false, null, null, null, 0, null);
+    map.setPhotonPositions(pos);
+    assertEquals(pos.length/3, map.getNumPhotons());
+    Vec3 point = new Vec3(), photon = new Vec3();
+    for (int i = 0; i < 50; i++)
+    {
+      // Search near random points, and exactly at some of the photons.
+
+      if (i%5 == 0 && pos.length > 0)
+      {
+        int j = random.nextInt(pos.length/3);
+        point.set(pos[3*j], pos[3*j+1], pos[3*j+2]);
+      }
+      else
+        point.set(3.0*random.nextDouble()-1.5, 3.0*random.nextDouble()-1.5, 3.0*random.nextDouble()-1.5);
+      float x = (float) point.x, y = (float) point.y, z = (float) point.z;
+      float all[] = new float [pos.length/3];
+      for (int j = 0; j < all.length; j++)
+      {
+        float dx = pos[3*j]-x, dy = pos[3*j+1]-y, dz = pos[3*j+2]-z;
+        all[j] = dx*dx + dy*dy + dz*dz;
+      }
+      Arrays.sort(all);
+      for (int size : new int [] {1, 7, 50})
+        for (float cutoff2 : new float [] {0.01f, 0.25f, Float.MAX_VALUE})
+        {
+          PhotonList list = new PhotonList(size);
+          list.init(cutoff2);
+          map.findPhotons(point, list);
+          int expected = 0;
+          while (expected < all.length && expected < size && all[expected] < cutoff2)
+            expected++;
+          assertEquals(expected, list.numFound);
+
+          // The distances should be the smallest ones, and should agree with the positions of the photons.
+
+          float found[] = Arrays.copyOf(list.dist2, list.numFound);
+          Arrays.sort(found);
+          assertArrayEquals(Arrays.copyOf(all, expected), found, 0.0f);
+          Set<Integer> indices = new HashSet<Integer>();
+          for (int j = 0; j < list.numFound; j++)
+          {
+            assertTrue(indices.add(list.photon[j]));
+            map.getPhotonPosition(list.photon[j], photon);
+            float dx = (float) photon.x-x, dy = (float) photon.y-y, dz = (float) photon.z-z;
+            assertEquals(dx*dx + dy*dy + dz*dz, list.dist2[j], 0.0f);
+          }
+        }
+    }
+  }
+
+  /** Render a scene and return the photon maps that were generated, using a specified number of threads. */
+
+  private PhotonMapCache generateMaps(Scene scene, final int threads) throws InterruptedException
+  {
+    RaytracerRenderer renderer = new RaytracerRenderer() {
+      @Override
+      protected void generatePhotons(PhotonMap map)
+      {
+        map.setMaxThreads(threads);
+        super.generatePhotons(map);
+      }
+    };
+    renderer.setConfiguration("antialiasing", 0);
+    renderer.setConfiguration("reduceAccuracyForDistant", false);
+    renderer.setConfiguration("globalIlluminationMode", RaytracerRenderer.GI_PHOTON);
+    renderer.setConfiguration("globalIlluminationPhotons", 5000);
+    renderer.setConfiguration("caustics", true);
+    renderer.setConfiguration("reusePhotonMaps", true);
+    Camera cam = new Camera();
+    cam.setCameraCoordinates(scene.getObject("Camera").getCoords().duplicate());
+    cam.setSize(8, 6);
+    final Object lock = new Object();
+    final boolean done[] = new boolean [1];
+    renderer.renderScene(scene, cam, new RenderListener() {
+      @Override
+      public void imageUpdated(java.awt.Image image)
+      {
+      }
+
+      @Override
+      public void statusChanged(String status)
+      {
+      }
+
+      @Override
+      public void imageComplete(ComplexImage image)
+      {
+        synchronized (lock)
+        {
+          done[0] = true;
+          lock.notify();
+        }
+      }
+
+      @Override
+      public void renderingCanceled()
+      {
+      }
+    }, null);
+    synchronized (lock)
+    {
+      while (!done[0])
+        lock.wait();
+    }
+    return renderer.photonMapCache;
+  }
+
+  private byte[] toBytes(PhotonMap map) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    map.writeToStream(out);
+    out.close();
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,149 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.image.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.texture.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProgressiveRenderingTest
+{
+  private Scene scene;
+  private Camera camera;
+
+  @Before
+  public void setUp()
+  {
+    scene = new Scene();
+    Texture tex = new UniformTexture();
+    Object3D obj = new Sphere(1.0, 1.0, 1.0);
+    obj.setTexture(tex, tex.getDefaultMapping(obj));
+    scene.addObject(new ObjectInfo(obj, new CoordinateSystem(new Vec3(), Vec3.vz(), Vec3.vy()), "Sphere"), null);
+    scene.addObject(new ObjectInfo(new PointLight(new RGBColor(1.0f, 1.0f, 1.0f), 1.0f, 0.5), new CoordinateSystem(new Vec3(2.0, 4.0, 2.0), Vec3.vz(), Vec3.vy()), "Light"), null);
+    camera = new Camera();
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(0.0, 0.0, 5.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()));
+    camera.setSize(40, 30);
+  }
+
+  private RaytracerRenderer createRenderer()
+  {
+    RaytracerRenderer renderer = new RaytracerRenderer();
+    renderer.setConfiguration("antialiasing", 1);
+    renderer.setConfiguration("reduceAccuracyForDistant", false);
+    renderer.setConfiguration("softShadows", true);
+    renderer.setConfiguration("progressive", true);
+    return renderer;
+  }
+
+  /**
+   * A progressive render should stop at the ray limit, and produce the same image as a normal render.
+   */
+
+  @Test
+  public void testRayLimit() throws Exception
+  {
+    RaytracerRenderer renderer = createRenderer();
+    renderer.setConfiguration("progressiveMaxRaysPerPixel", 16);
+    ComplexImage progressive = new ImageCollector(renderer).waitForImage();
+    assertTrue(progressive.hasFloatData(ComplexImage.NOISE));
+    renderer.setConfiguration("progressive", false);
+    renderer.setConfiguration("minRaysPerPixel", 16);
+    renderer.setConfiguration("maxRaysPerPixel", 16);
+    ComplexImage adaptive = new ImageCollector(renderer).waitForImage();
+    double diff = 0.0, noise = 0.0;
+    for (int x = 0; x < 40; x++)
+      for (int y = 0; y < 30; y++)
+      {
+        diff += Math.abs(progressive.getPixelComponent(x, y, ComplexImage.RED)-adaptive.getPixelComponent(x, y, ComplexImage.RED));
+        noise += progressive.getPixelComponent(x, y, ComplexImage.NOISE);
+        assertEquals(1.0f, progressive.getPixelComponent(x, y, ComplexImage.ALPHA), 1e-5f);
+      }
+    assertTrue(diff/(40*30) < 0.02);
+    assertTrue(noise > 0.0);
+  }
+
+  /**
+   * With no limits, rendering should continue until stopRendering() is called, and then return the image.
+   */
+
+  @Test
+  public void testStop() throws Exception
+  {
+    RaytracerRenderer renderer = createRenderer();
+    renderer.setConfiguration("progressiveMaxRaysPerPixel", 0);
+    renderer.setConfiguration("progressiveTimeLimit", 0.0);
+    ImageCollector collector = new ImageCollector(renderer);
+    Thread.sleep(500);
+    assertNull(collector.image);
+    renderer.stopRendering(scene);
+    assertNotNull(collector.waitForImage());
+  }
+
+  /**
+   * A scene with no noise at all should converge and finish on its own.
+   */
+
+  @Test
+  public void testConvergence() throws Exception
+  {
+    RaytracerRenderer renderer = createRenderer();
+    renderer.setConfiguration("progressiveMaxRaysPerPixel", 0);
+    scene = new Scene();
+    ComplexImage image = new ImageCollector(renderer).waitForImage();
+    assertEquals(0.0f, image.getPixelComponent(10, 10, ComplexImage.NOISE), 0.0f);
+  }
+
+  /** A RenderListener that starts a render and waits for it to finish. */
+
+  private class ImageCollector implements RenderListener
+  {
+    volatile ComplexImage image;
+
+    ImageCollector(RaytracerRenderer renderer)
+    {
+      renderer.renderScene(scene, camera, this, null);
+    }
+
+    synchronized ComplexImage waitForImage() throws InterruptedException
+    {
+      while (image == null)
+        wait();
+      return image;
+    }
+
+    @Override
+    public void imageUpdated(java.awt.Image image)
+    {
+    }
+
+    @Override
+    public void statusChanged(String status)
+    {
+    }
+
+    @Override
+    public synchronized void imageComplete(ComplexImage image)
+    {
+      this.image = image;
+      notifyAll();
+    }
+
+    @Override
+    public void renderingCanceled()
+    {
+    }
+  }
+}
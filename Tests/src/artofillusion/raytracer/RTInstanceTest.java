@@ -0,0 +1,163 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.texture.*;
+import java.util.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RTInstanceTest
+{
+  private static Scene scene;
+  private static Raytracer separateTracer, instancedTracer, instancedBVHTracer;
+
+  @BeforeClass
+  public static void setUpClass()
+  {
+    // Create a scene containing many rotated copies of two meshes, plus one mesh that appears only once.
+
+    scene = new Scene();
+    Texture tex = new UniformTexture();
+    Object3D shared[] = new Object3D [] {new Sphere(1.0, 1.0, 1.0).convertToTriangleMesh(0.05), new Cube(0.8, 1.6, 1.2).convertToTriangleMesh(0.05)};
+    for (Object3D obj : shared)
+      obj.setTexture(tex, tex.getDefaultMapping(obj));
+    Random random = new Random(0);
+    for (int i = 0; i < 20; i++)
+    {
+      Vec3 pos = new Vec3(random.nextDouble()*10, random.nextDouble()*10, random.nextDouble()*10);
+      Vec3 zdir = new Vec3(random.nextDouble()-0.5, random.nextDouble()-0.5, random.nextDouble()-0.5);
+      zdir.normalize();
+      Vec3 updir = zdir.cross(Vec3.vx());
+      updir.normalize();
+      scene.addObject(new ObjectInfo(shared[i%2], new CoordinateSystem(pos, zdir, updir), "Object "+i), null);
+    }
+    Object3D single = new Cube(1.0, 1.0, 1.0).convertToTriangleMesh(0.05);
+    single.setTexture(tex, tex.getDefaultMapping(single));
+    scene.addObject(new ObjectInfo(single, new CoordinateSystem(new Vec3(5.0, 5.0, 5.0), Vec3.vz(), Vec3.vy()), "Single"), null);
+    separateTracer = createRaytracer(false, false);
+    instancedTracer = createRaytracer(true, false);
+    instancedBVHTracer = createRaytracer(true, true);
+  }
+
+  private static Raytracer createRaytracer(boolean instancing, boolean bvh)
+  {
+    Camera camera = new Camera();
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(5.0, 5.0, 30.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()));
+    Raytracer rt = new Raytracer(scene, camera);
+    rt.setAdaptive(false);
+    rt.setUseInstancing(instancing);
+    rt.setUseBoundingVolumeHierarchy(bvh);
+    for (ObjectInfo info : scene.getObjects())
+      rt.addObject(info);
+    rt.finishConstruction();
+    return rt;
+  }
+
+  /**
+   * Each copy of a shared mesh should be an instance, and all copies of a mesh should share one prototype.
+   */
+
+  @Test
+  public void testStructure()
+  {
+    Set<RTTriangleMesh> prototypes = new HashSet<RTTriangleMesh>();
+    int instances = 0, triangles = 0;
+    for (RTObject obj : instancedTracer.getObjects())
+    {
+      if (obj instanceof RTInstance)
+      {
+        instances++;
+        prototypes.add(((RTInstance) obj).getPrototype());
+      }
+      else
+        triangles++;
+    }
+    assertEquals(20, instances);
+    assertEquals(2, prototypes.size());
+    assertTrue(triangles > 0);
+    int expectedTriangles = triangles;
+    for (RTTriangleMesh prototype : prototypes)
+      expectedTriangles += 10*prototype.getNumTriangles();
+    assertEquals(separateTracer.getObjects().length, expectedTriangles);
+  }
+
+  /**
+   * Trace random rays, and make sure instances give the same results as separate triangles.
+   */
+
+  @Test
+  public void testTraceRay()
+  {
+    checkTraceRay(instancedTracer);
+    checkTraceRay(instancedBVHTracer);
+  }
+
+  private void checkTraceRay(Raytracer tracer)
+  {
+    Random random = new Random(1);
+    Vec3 orig = new Vec3(), dir = new Vec3(), expectedNormal = new Vec3(), actualNormal = new Vec3();
+    Vec3 expectedPoint = new Vec3(), actualPoint = new Vec3();
+    int hits = 0;
+    for (int i = 0; i < 2000; i++)
+    {
+      orig.set(random.nextDouble()*10, random.nextDouble()*10, random.nextDouble()*10);
+      dir.set(random.nextDouble()-0.5, random.nextDouble()-0.5, random.nextDouble()-0.5);
+      dir.normalize();
+      Raytracer.RayIntersection expected = separateTracer.traceRay(orig, dir);
+      Raytracer.RayIntersection actual = tracer.traceRay(orig, dir);
+      boolean expectedHit = (expected.getFirst() != SurfaceIntersection.NO_INTERSECTION);
+      boolean actualHit = (actual.getFirst() != SurfaceIntersection.NO_INTERSECTION);
+      assertEquals(expectedHit, actualHit);
+      if (!expectedHit)
+        continue;
+      hits++;
+      assertEquals(expected.getDistance(), actual.getDistance(), 1e-4);
+      expected.getFirst().trueNormal(expectedNormal);
+      actual.getFirst().trueNormal(actualNormal);
+      assertTrue(expectedNormal.dot(actualNormal) > 0.99);
+      expected.getFirst().intersectionPoint(0, expectedPoint);
+      actual.getFirst().intersectionPoint(0, actualPoint);
+      assertEquals(0.0, expectedPoint.distance(actualPoint), 1e-4);
+    }
+    assertTrue(hits > 100);
+  }
+
+  /**
+   * Objects that emit light must not be instanced, since photon mapping needs their triangles in world coordinates.
+   */
+
+  @Test
+  public void testEmissive()
+  {
+    Scene emissiveScene = new Scene();
+    UniformTexture tex = new UniformTexture();
+    tex.emissiveColor.setRGB(1.0f, 1.0f, 1.0f);
+    Object3D obj = new Cube(1.0, 1.0, 1.0).convertToTriangleMesh(0.05);
+    obj.setTexture(tex, tex.getDefaultMapping(obj));
+    for (int i = 0; i < 2; i++)
+      emissiveScene.addObject(new ObjectInfo(obj, new CoordinateSystem(new Vec3(i*2.0, 0.0, 0.0), Vec3.vz(), Vec3.vy()), "Object "+i), null);
+    Camera camera = new Camera();
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(0.0, 0.0, 10.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()));
+    Raytracer rt = new Raytracer(emissiveScene, camera);
+    rt.setAdaptive(false);
+    rt.setUseInstancing(true);
+    for (ObjectInfo info : emissiveScene.getObjects())
+      rt.addObject(info);
+    rt.finishConstruction();
+    for (RTObject rtobj : rt.getObjects())
+      assertFalse(rtobj instanceof RTInstance);
+  }
+}
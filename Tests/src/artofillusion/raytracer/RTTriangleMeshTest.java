@@ -0,0 +1,147 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import artofillusion.*;
+import artofillusion.math.*;
+import artofillusion.object.*;
+import artofillusion.texture.*;
+import java.util.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RTTriangleMeshTest
+{
+  private static Raytracer separateTracer, packedTracer, offHeapTracer;
+
+  @BeforeClass
+  public static void setUpClass()
+  {
+    // Create a scene containing a few triangulated spheres and boxes.
+
+    Scene scene = new Scene();
+    Texture tex = new UniformTexture();
+    Random random = new Random(0);
+    for (int i = 0; i < 20; i++)
+    {
+      Object3D obj = (i%2 == 0 ? new Sphere(1.0, 1.0, 1.0) : new Cube(0.8, 1.6, 1.2)).convertToTriangleMesh(0.05);
+      obj.setTexture(tex, tex.getDefaultMapping(obj));
+      Vec3 pos = new Vec3(random.nextDouble()*10, random.nextDouble()*10, random.nextDouble()*10);
+      scene.addObject(new ObjectInfo(obj, new CoordinateSystem(pos, Vec3.vz(), Vec3.vy()), "Object "+i), null);
+    }
+    separateTracer = createRaytracer(scene, Raytracer.TRIANGLES_SEPARATE);
+    packedTracer = createRaytracer(scene, Raytracer.TRIANGLES_PACKED);
+    offHeapTracer = createRaytracer(scene, Raytracer.TRIANGLES_PACKED_OFF_HEAP);
+  }
+
+  private static Raytracer createRaytracer(Scene scene, int storage)
+  {
+    Camera camera = new Camera();
+    camera.setCameraCoordinates(new CoordinateSystem(new Vec3(5.0, 5.0, 30.0), new Vec3(0.0, 0.0, -1.0), Vec3.vy()));
+    Raytracer rt = new Raytracer(scene, camera);
+    rt.setAdaptive(false);
+    rt.setTriangleStorage(storage);
+    for (ObjectInfo info : scene.getObjects())
+      rt.addObject(info);
+    rt.finishConstruction();
+    return rt;
+  }
+
+  /**
+   * Each mesh should become a single object.
+   */
+
+  @Test
+  public void testStructure()
+  {
+    assertEquals(20, packedTracer.getObjects().length);
+    int triangles = 0;
+    for (RTObject obj : packedTracer.getObjects())
+    {
+      assertTrue(obj instanceof RTTriangleMesh);
+      triangles += ((RTTriangleMesh) obj).getNumTriangles();
+    }
+    assertEquals(separateTracer.getObjects().length, triangles);
+  }
+
+  /**
+   * Trace random rays, and make sure packed meshes give the same results as separate triangles.
+   */
+
+  @Test
+  public void testTraceRay()
+  {
+    checkTraceRay(packedTracer);
+    checkTraceRay(offHeapTracer);
+  }
+
+  private void checkTraceRay(Raytracer tracer)
+  {
+    Random random = new Random(1);
+    Vec3 orig = new Vec3(), dir = new Vec3(), expectedNormal = new Vec3(), actualNormal = new Vec3();
+    int hits = 0;
+    for (int i = 0; i < 2000; i++)
+    {
+      orig.set(random.nextDouble()*10, random.nextDouble()*10, random.nextDouble()*10);
+      dir.set(random.nextDouble()-0.5, random.nextDouble()-0.5, random.nextDouble()-0.5);
+      dir.normalize();
+      Raytracer.RayIntersection expected = separateTracer.traceRay(orig, dir);
+      Raytracer.RayIntersection actual = tracer.traceRay(orig, dir);
+      boolean expectedHit = (expected.getFirst() != SurfaceIntersection.NO_INTERSECTION);
+      boolean actualHit = (actual.getFirst() != SurfaceIntersection.NO_INTERSECTION);
+      assertEquals(expectedHit, actualHit);
+      if (!expectedHit)
+        continue;
+      hits++;
+      assertEquals(expected.getDistance(), actual.getDistance(), 1e-4);
+      expected.getFirst().trueNormal(expectedNormal);
+      actual.getFirst().trueNormal(actualNormal);
+      assertTrue(expectedNormal.dot(actualNormal) > 0.99);
+    }
+    assertTrue(hits > 100);
+  }
+
+  /**
+   * Make sure that all the intersections along a ray are found, in order.
+   */
+
+  @Test
+  public void testAllIntersections()
+  {
+    RTTriangleMesh mesh = (RTTriangleMesh) packedTracer.getObjects()[0];
+    BoundingBox bounds = mesh.getBounds();
+    Vec3 center = bounds.getCenter();
+    Ray r = new Ray(packedTracer.getContext());
+    Vec3 point = new Vec3();
+    Random random = new Random(2);
+    for (int i = 0; i < 100; i++)
+    {
+      // Shoot a ray from outside the sphere through its center, which must enter and then leave it.  The
+      // triangulated surface is only accurate to 0.05.
+
+      Vec3 dir = new Vec3(random.nextDouble()-0.5, random.nextDouble()-0.5, random.nextDouble()-0.5);
+      dir.normalize();
+      r.getOrigin().set(center.minus(dir.times(5.0)));
+      r.getDirection().set(dir);
+      r.newID();
+      SurfaceIntersection intersection = mesh.checkIntersection(r);
+      assertNotSame(SurfaceIntersection.NO_INTERSECTION, intersection);
+      double firstDist = intersection.intersectionDist(0);
+      assertEquals(2, intersection.numIntersections());
+      assertEquals(firstDist, intersection.intersectionDist(0), 0.0);
+      assertEquals(4.0, intersection.intersectionDist(0), 0.05);
+      assertEquals(6.0, intersection.intersectionDist(1), 0.05);
+      intersection.intersectionPoint(1, point);
+      assertEquals(1.0, point.distance(center), 0.05);
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.raytracer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RenderTilesTest
+{
+  /**
+   * Make sure every pixel is covered by exactly one tile, for every ordering and a variety of image sizes.
+   */
+
+  @Test
+  public void testCoverage()
+  {
+    int sizes[][] = {{1, 1}, {32, 32}, {100, 37}, {37, 100}, {640, 480}, {5, 300}};
+    for (int order = RenderTiles.ORDER_ROWS; order <= RenderTiles.ORDER_HILBERT; order++)
+      for (int size[] : sizes)
+        for (int tileSize = 1; tileSize <= 64; tileSize *= 4)
+          checkCoverage(new RenderTiles(size[0], size[1], tileSize, order), size[0], size[1]);
+  }
+
+  private void checkCoverage(RenderTiles tiles, int width, int height)
+  {
+    int covered[] = new int [width*height];
+    for (int n = 0; n < tiles.getNumTiles(); n++)
+    {
+      assertTrue(tiles.getEndX(n) > tiles.getStartX(n));
+      assertTrue(tiles.getEndY(n) > tiles.getStartY(n));
+      for (int y = tiles.getStartY(n); y < tiles.getEndY(n); y++)
+        for (int x = tiles.getStartX(n); x < tiles.getEndX(n); x++)
+          covered[x+y*width]++;
+    }
+    for (int count : covered)
+      assertEquals(1, count);
+  }
+
+  /**
+   * A spiral should start at the center of the image.
+   */
+
+  @Test
+  public void testSpiralStartsAtCenter()
+  {
+    RenderTiles tiles = new RenderTiles(500, 300, 100, RenderTiles.ORDER_SPIRAL);
+    assertEquals(200, tiles.getStartX(0));
+    assertEquals(100, tiles.getStartY(0));
+  }
+
+  /**
+   * Consecutive tiles along a Hilbert curve should always be adjacent when the grid is a power of two.
+   */
+
+  @Test
+  public void testHilbertAdjacency()
+  {
+    RenderTiles tiles = new RenderTiles(256, 256, 16, RenderTiles.ORDER_HILBERT);
+    for (int n = 1; n < tiles.getNumTiles(); n++)
+    {
+      int dx = Math.abs(tiles.getStartX(n)-tiles.getStartX(n-1));
+      int dy = Math.abs(tiles.getStartY(n)-tiles.getStartY(n-1));
+      assertEquals(16, dx+dy);
+    }
+  }
+}
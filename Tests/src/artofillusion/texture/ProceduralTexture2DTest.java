@@ -0,0 +1,125 @@
+/* Copyright (C) 2026 by Art of Illusion contributors
+
+   This program is free software; you can redistribute it and/or modify it under the
+   terms of the GNU General Public License as published by the Free Software
+   Foundation; either version 2 of the License, or (at your option) any later version.
+
+   This program is distributed in the hope that it will be useful, but WITHOUT ANY
+   WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+   PARTICULAR PURPOSE.  See the GNU General Public License for more details. */
+
+package artofillusion.texture;
+
+import artofillusion.*;
+import artofillusion.math.*;
+import artofillusion.procedural.*;
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ProceduralTexture2DTest
+{
+  /**
+   * Create a texture whose diffuse color is (x, y, 0), specularity is x, bump height is y*y, and
+   * displacement is x+y.
+   */
+
+  private ProceduralTexture2D createTexture()
+  {
+    ProceduralTexture2D tex = new ProceduralTexture2D();
+    tex.setName("test");
+    Procedure proc = tex.getProcedure();
+    OutputModule output[] = proc.getOutputModules();
+    CoordinateModule x = new CoordinateModule(new Point(), CoordinateModule.X);
+    CoordinateModule y = new CoordinateModule(new Point(), CoordinateModule.Y);
+    RGBModule rgb = new RGBModule(new Point());
+    ProductModule product = new ProductModule(new Point());
+    SumModule sum = new SumModule(new Point());
+    proc.addModule(x);
+    proc.addModule(y);
+    proc.addModule(rgb);
+    proc.addModule(product);
+    proc.addModule(sum);
+    proc.addLink(new Link(x.getOutputPorts()[0], rgb.getInputPorts()[0]));
+    proc.addLink(new Link(y.getOutputPorts()[0], rgb.getInputPorts()[1]));
+    proc.addLink(new Link(rgb.getOutputPorts()[0], output[0].getInputPorts()[0]));
+    proc.addLink(new Link(x.getOutputPorts()[0], output[5].getInputPorts()[0]));
+    proc.addLink(new Link(y.getOutputPorts()[0], product.getInputPorts()[0]));
+    proc.addLink(new Link(y.getOutputPorts()[0], product.getInputPorts()[1]));
+    proc.addLink(new Link(product.getOutputPorts()[0], output[9].getInputPorts()[0]));
+    proc.addLink(new Link(x.getOutputPorts()[0], sum.getInputPorts()[0]));
+    proc.addLink(new Link(y.getOutputPorts()[0], sum.getInputPorts()[1]));
+    proc.addLink(new Link(sum.getOutputPorts()[0], output[10].getInputPorts()[0]));
+    return tex;
+  }
+
+  /** Check that two textures give nearly the same values at a point. */
+
+  private void checkSame(Texture2D expected, Texture2D actual, double x, double y, double tol)
+  {
+    TextureSpec spec1 = new TextureSpec(), spec2 = new TextureSpec();
+    expected.getTextureSpec(spec1, x, y, 1e-3, 1e-3, 1.0, 0.0, null);
+    actual.getTextureSpec(spec2, x, y, 1e-3, 1e-3, 1.0, 0.0, null);
+    assertEquals(spec1.diffuse.getRed(), spec2.diffuse.getRed(), tol);
+    assertEquals(spec1.diffuse.getGreen(), spec2.diffuse.getGreen(), tol);
+    assertEquals(spec1.diffuse.getBlue(), spec2.diffuse.getBlue(), tol);
+    assertEquals(spec1.specular.getRed(), spec2.specular.getRed(), tol);
+    assertEquals(spec1.transparent.getRed(), spec2.transparent.getRed(), tol);
+    assertEquals(spec1.roughness, spec2.roughness, tol);
+    assertEquals(spec1.bumpGrad.x, spec2.bumpGrad.x, 0.1*tol);
+    assertEquals(spec1.bumpGrad.y, spec2.bumpGrad.y, 0.1*tol);
+    assertEquals(expected.getDisplacement(x, y, 1e-3, 1e-3, 0.0, null), actual.getDisplacement(x, y, 1e-3, 1e-3, 0.0, null), tol);
+  }
+
+  @Test
+  public void testBake()
+  {
+    Scene scene = new Scene();
+    ProceduralTexture2D tex = createTexture();
+    ProceduralTexture2D reference = createTexture();
+    tex.setBakeSize(64);
+    tex.updateBakedImages(scene);
+    assertTrue(tex.isBaked());
+
+    // Diffuse, specularity, two for the bump gradient, and displacement.
+
+    assertEquals(5, scene.getNumImages());
+    for (int i = 0; i < scene.getNumImages(); i++)
+      assertTrue(tex.usesImage(scene.getImage(i)));
+
+    // Points in the unit square come from the images, and others from the procedure.
+
+    Random random = new Random(0);
+    for (int i = 0; i < 100; i++)
+      checkSame(reference, tex, 0.02+0.96*random.nextDouble(), 0.02+0.96*random.nextDouble(), 0.02);
+    checkSame(reference, tex, 1.5, 0.5, 0.0);
+    checkSame(reference, tex, -0.5, 2.0, 0.0);
+
+    // Turning off baking should remove the images.
+
+    tex.setBakeSize(0);
+    tex.updateBakedImages(scene);
+    assertFalse(tex.isBaked());
+    assertEquals(0, scene.getNumImages());
+    checkSame(reference, tex, 0.5, 0.5, 0.0);
+  }
+
+  @Test
+  public void testWriteBaked() throws IOException
+  {
+    Scene scene = new Scene();
+    ProceduralTexture2D tex = createTexture();
+    tex.setBakeSize(32);
+    tex.updateBakedImages(scene);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    tex.writeToFile(new DataOutputStream(bytes), scene);
+    ProceduralTexture2D copy = new ProceduralTexture2D(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), scene);
+    assertTrue(copy.isBaked());
+    assertEquals(32, copy.getBakeSize());
+    for (int i = 0; i < scene.getNumImages(); i++)
+      assertTrue(copy.usesImage(scene.getImage(i)));
+    checkSame(tex, copy, 0.3, 0.7, 0.0);
+  }
+}
@@ -87,4 +87,55 @@ public class TestThreadManager
       assertTrue(errorCount.get() < Runtime.getRuntime().availableProcessors());
     }
   }
+
+  @Test
+  public void testRunInChunks()
+  {
+    for (final int size : new int [] {0, 1, 10, 1000, 12345})
+    {
+      final AtomicIntegerArray count = new AtomicIntegerArray(size);
+      ThreadManager.runInChunks(size, 100, new ThreadManager.RangeTask()
+      {
+        @Override
+        public void execute(int start, int end)
+        {
+          assertTrue(start < end);
+          for (int i = start; i < end; i++)
+            count.incrementAndGet(i);
+        }
+      });
+      for (int i = 0; i < size; i++)
+        assertEquals(1, count.get(i));
+    }
+  }
+
+  @Test
+  public void testNestedRunInChunks()
+  {
+    // Chunked tasks may themselves run chunked tasks.
+
+    final AtomicIntegerArray count = new AtomicIntegerArray(100*500);
+    ThreadManager.runInChunks(100, 1, new ThreadManager.RangeTask()
+    {
+      @Override
+      public void execute(int start, int end)
+      {
+        for (int i = start; i < end; i++)
+        {
+          final int base = i*500;
+          ThreadManager.runInChunks(500, 50, new ThreadManager.RangeTask()
+          {
+            @Override
+            public void execute(int start, int end)
+            {
+              for (int j = start; j < end; j++)
+                count.incrementAndGet(base+j);
+            }
+          });
+        }
+      }
+    });
+    for (int i = 0; i < count.length(); i++)
+      assertEquals(1, count.get(i));
+  }
 }